@@ -0,0 +1,32 @@
+package org.jgroups;
+
+import java.io.OutputStream;
+
+/**
+ * Extension of {@link StateListener} for incremental (delta) state transfer. A state requester which already has
+ * (some of) the state, e.g. loaded from a local snapshot after a restart, supplies the version of that state, and
+ * the state provider only writes the changes since that version.
+ * <p>
+ * A provider can always write the full state instead of a delta (e.g. if the version is too old), and providers
+ * which don't implement this interface always write the full state via {@link #getState(OutputStream)}, so
+ * {@link #setState(java.io.InputStream)} has to be able to tell a full state from a delta, e.g. by a marker written
+ * at the start of the stream.
+ * @since  4.1.2
+ */
+public interface DeltaStateListener extends StateListener {
+
+    /**
+     * Returns the version of the local state, e.g. a version vector, which is sent to the state provider with the
+     * state request
+     * @return the version, or null if there is no local state (the full state will be transferred)
+     */
+    byte[] getStateVersion() throws Exception;
+
+    /**
+     * Writes the changes since the given version to the output stream. Implementations may write the full state
+     * instead, e.g. if the version is unknown.
+     * @param version the version returned by {@link #getStateVersion()} in the state requester
+     * @param output the output stream. Doesn't need to be closed
+     */
+    void getState(byte[] version, OutputStream output) throws Exception;
+}
@@ -67,6 +67,8 @@ public class Event {
     public static final int SET_SECRET_KEY                     = 112; // arg = Tuple<SecretKey,byte[]> // PK+version
     public static final int UNLOCK_FORCE                       = 113; // arg = lock name
     public static final int INSTALL_MERGE_VIEW                 = 114; // arg = MergeView
+    public static final int GET_STATE_VERSION                  = 115; // arg = null -> byte[] (version of the local state)
+    public static final int STATE_TRANSFER_DELTA_OUTPUTSTREAM  = 116; // arg = Tuple<byte[],OutputStream> -> true if handled
 
     public static final int USER_DEFINED                       = 1000; // arg = <user def., e.g. evt type + data>
 
@@ -157,6 +159,8 @@ public class Event {
             case SET_SECRET_KEY:         return "SET_SECRET_KEY";
             case UNLOCK_FORCE:           return "UNLOCK_FORCE";
             case INSTALL_MERGE_VIEW:     return "INSTALL_MERGE_VIEW";
+            case GET_STATE_VERSION:      return "GET_STATE_VERSION";
+            case STATE_TRANSFER_DELTA_OUTPUTSTREAM: return "STATE_TRANSFER_DELTA_OUTPUTSTREAM";
 
             case USER_DEFINED:           return "USER_DEFINED";
             default:                     return "UNDEFINED(" + t + ")";
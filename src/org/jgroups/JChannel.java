@@ -895,6 +895,12 @@ public class JChannel implements Closeable {
 
         state_promise.reset();
         StateTransferInfo state_info=new StateTransferInfo(target, timeout);
+        try {
+            state_info.version((byte[])up(new Event(Event.GET_STATE_VERSION)));
+        }
+        catch(Throwable t) {
+            log.warn("%s: failed getting the version of the local state; fetching the full state: %s", local_addr, t);
+        }
         long start=System.currentTimeMillis();
         down(new Event(Event.GET_STATE, state_info));
         StateTransferResult result=state_promise.getResult(state_info.timeout);
@@ -926,8 +932,12 @@ public class JChannel implements Closeable {
                 byte[] tmp_state=null;
                 if(receiver != null) {
                     ByteArrayOutputStream output=new ByteArrayOutputStream(1024);
+                    byte[] version=arg instanceof StateTransferInfo? ((StateTransferInfo)arg).version : null;
                     try {
-                        receiver.getState(output);
+                        if(version != null && receiver instanceof DeltaStateListener)
+                            ((DeltaStateListener)receiver).getState(version, output);
+                        else
+                            receiver.getState(output);
                         tmp_state=output.toByteArray();
                     }
                     catch(Exception e) {
@@ -935,6 +945,28 @@ public class JChannel implements Closeable {
                     }
                 }
                 return new StateTransferInfo(null, 0L, tmp_state);
+            case Event.GET_STATE_VERSION:
+                if(receiver instanceof DeltaStateListener) {
+                    try {
+                        return ((DeltaStateListener)receiver).getStateVersion();
+                    }
+                    catch(Exception e) {
+                        throw new RuntimeException(local_addr + ": failed getting the state version from application", e);
+                    }
+                }
+                return null;
+            case Event.STATE_TRANSFER_DELTA_OUTPUTSTREAM:
+                if(receiver instanceof DeltaStateListener) {
+                    Tuple<?,?> tuple=(Tuple<?,?>)arg;
+                    try {
+                        ((DeltaStateListener)receiver).getState((byte[])tuple.getVal1(), (OutputStream)tuple.getVal2());
+                    }
+                    catch(Exception e) {
+                        throw new RuntimeException("failed calling getState() in state provider", e);
+                    }
+                    return true;
+                }
+                return null;
             case Event.BLOCK:
                 receiver.block();
                 return true;
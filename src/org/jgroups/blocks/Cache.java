@@ -15,11 +15,19 @@ import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Simple cache which maintains keys and value. A reaper can be enabled which periodically evicts expired entries.
- * Also, when the cache is configured to be bounded, entries in excess of the max size will be evicted on put().
+ * Also, when the cache is configured to be bounded (by number of entries and/or weight), entries in excess of the max
+ * size will be evicted on put().
+ * <p>
+ * Eviction uses a segmented LRU: new entries are added to a probationary segment and moved to a protected segment
+ * when accessed again; victims are picked from the least recently used end of the probationary segment first. Keys
+ * which are only read once (e.g. by a scan) therefore don't displace frequently accessed keys. Expired entries are
+ * evicted before live ones.
  * @author Bela Ban
  */
 public class Cache<K,V> {
@@ -27,7 +35,19 @@ public class Cache<K,V> {
     private final ConcurrentMap<K,Value<V>> map=Util.createConcurrentMap();
     private ScheduledThreadPoolExecutor timer=new ScheduledThreadPoolExecutor(1);
     private Future task=null;
-    private final AtomicBoolean is_reaping=new AtomicBoolean(false);
+
+    /** Entries which were accessed only once (since they were added or demoted), in LRU order. Guarded by lock */
+    private final LinkedHashMap<K,Value<V>> probation=new LinkedHashMap<>();
+
+    /** Entries which were accessed more than once, in LRU order. Guarded by lock */
+    private final LinkedHashMap<K,Value<V>> protected_segment=new LinkedHashMap<>();
+
+    /** Entries with an expiration time (one per entry), ordered by that time. Guarded by lock */
+    private final TreeSet<Expiration<K,V>> expirations=new TreeSet<>();
+
+    private long expiration_seqno; // orders expirations with the same time; guarded by lock
+
+    private final Lock lock=new ReentrantLock();
 
     private final Set<ChangeListener> change_listeners=new LinkedHashSet<>();
 
@@ -37,6 +57,33 @@ public class Cache<K,V> {
     @ManagedAttribute(writable=true)
     private int max_num_entries=0;
 
+    /** The max sum of the weights of all entries (as computed by the weigher). 0 means don't bound the cache */
+    @ManagedAttribute(writable=true)
+    private long max_weight=0;
+
+    /** The percentage of max_num_entries (max_weight) reserved for entries that have been accessed more than once */
+    @ManagedAttribute(writable=true)
+    private double protected_ratio=0.8;
+
+    private Weigher<? super K,? super V> weigher=(k,v) -> 1;
+
+    private long weight, protected_weight; // guarded by lock
+
+    /** True if the segments contain all entries; this is only the case when the cache is bounded. Changed under lock */
+    private volatile boolean tracked;
+
+    @ManagedAttribute(description="Number of get() calls which found a value")
+    private final LongAdder num_hits=new LongAdder();
+
+    @ManagedAttribute(description="Number of get() calls which found no (or an expired) value")
+    private final LongAdder num_misses=new LongAdder();
+
+    @ManagedAttribute(description="Number of entries evicted to stay below max_num_entries or max_weight")
+    private final LongAdder num_evictions=new LongAdder();
+
+    @ManagedAttribute(description="Number of expired entries removed")
+    private final LongAdder num_expirations=new LongAdder();
+
     public int getMaxNumberOfEntries() {
         return max_num_entries;
     }
@@ -45,6 +92,71 @@ public class Cache<K,V> {
         this.max_num_entries=max_num_entries;
     }
 
+    public long getMaxWeight() {
+        return max_weight;
+    }
+
+    /** Sets the max weight of the cache; the weight of each entry is computed by {@link #setWeigher(Weigher)} */
+    public void setMaxWeight(long max_weight) {
+        this.max_weight=max_weight;
+    }
+
+    public double getProtectedRatio() {
+        return protected_ratio;
+    }
+
+    public void setProtectedRatio(double ratio) {
+        if(ratio < 0 || ratio > 1)
+            throw new IllegalArgumentException("protected ratio has to be in range [0..1]: " + ratio);
+        this.protected_ratio=ratio;
+    }
+
+    /** Sets the function computing the weight of an entry (default: 1). Needs to be set before adding entries */
+    public void setWeigher(Weigher<? super K,? super V> weigher) {
+        this.weigher=weigher != null? weigher : (k,v) -> 1;
+    }
+
+    public long getNumHits()        {return num_hits.sum();}
+    public long getNumMisses()      {return num_misses.sum();}
+    public long getNumEvictions()   {return num_evictions.sum();}
+    public long getNumExpirations() {return num_expirations.sum();}
+
+    @ManagedAttribute(description="Ratio of hits to all get() calls")
+    public double getHitRatio() {
+        long hits=num_hits.sum(), total=hits + num_misses.sum();
+        return total == 0? 0 : (double)hits / total;
+    }
+
+    @ManagedAttribute(description="Sum of the weights of all entries (only maintained when the cache is bounded)")
+    public long getWeight() {
+        lock.lock();
+        try {
+            return weight;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    @ManagedAttribute(description="Number of entries with an expiration time")
+    public int getNumExpiringEntries() {
+        lock.lock();
+        try {
+            return expirations.size();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    @ManagedOperation(description="Resets all statistics")
+    public void resetStats() {
+        num_hits.reset();
+        num_misses.reset();
+        num_evictions.reset();
+        num_expirations.reset();
+    }
+
     public void addChangeListener(ChangeListener l) {
         change_listeners.add(l);
     }
@@ -98,7 +210,7 @@ public class Cache<K,V> {
      * @param val
      * @param caching_time Number of milliseconds to keep an entry in the cache. -1 means don't cache (if reaping
      * is enabled, we'll evict an entry with -1 caching time), 0 means never evict. In the latter case, we can still
-     * evict an entry with 0 caching time: when we have a bounded cache, we evict in order of insertion no matter
+     * evict an entry with 0 caching time: when we have a bounded cache, we evict in LRU order no matter
      * what the caching time is.
      */
     @ManagedOperation
@@ -106,49 +218,36 @@ public class Cache<K,V> {
         if(log.isTraceEnabled())
             log.trace("put(" + key + ", " + val + ", " + caching_time + ")");
         Value<V> value=new Value<>(val, caching_time);
-        Value<V> retval=map.put(key, value);
-
-        if(max_num_entries > 0 && map.size() > max_num_entries) {
-            boolean rc=is_reaping.compareAndSet(false, true);
-            if(rc) {
-                if(log.isTraceEnabled())
-                    log.trace("reaping: max_num_entries=" + max_num_entries + ", size=" + map.size());
-                timer.execute(() -> {
-                    if(max_num_entries > 0) {
-                        try {
-                            if(map.size() > max_num_entries) {
-                                evict(); // see if we can gracefully evict expired items
-                            }
-                            if(map.size() > max_num_entries) {
-                                // still too many entries: now evict entries based on insertion time: oldest first
-                                int diff=map.size() - max_num_entries; // we have to evict diff entries
-                                SortedMap<Long,K> tmp=new TreeMap<>();
-                                for(Map.Entry<K,Value<V>> entry: map.entrySet()) {
-                                    tmp.put(entry.getValue().insertion_time, entry.getKey());
-                                }
-
-                                Collection<K> vals=tmp.values();
-                                for(K k: vals) {
-                                    if(diff-- > 0) {
-                                        Value<V> v=map.remove(k);
-                                        if(log.isTraceEnabled())
-                                            log.trace("evicting " + k + ": " + v.value);
-                                    }
-                                    else
-                                        break;
-                                }
-                            }
-                            if(log.isTraceEnabled())
-                                log.trace("done reaping (size=" + map.size() + ")");
-                        }
-                        finally {
-                            is_reaping.set(false);
-                        }
-                    }
-                });
+        value.weight=weigher.weigh(key, val);
+        Value<V> retval;
+        if(caching_time == 0 && !isBounded()) { // no segments to maintain and no expiration to add: don't lock
+            retval=map.put(key, value);
+            // tracked is re-read after the put: if the cache has become bounded in the meantime, value is added
+            if(tracked || (retval != null && retval.expiration != null))
+                update(key, retval, value);
+            return getValue(retval);
+        }
+        boolean evicted;
+        lock.lock();
+        try {
+            syncTracking();
+            retval=map.put(key, value);
+            if(retval != null)
+                removeFromSegments(key, retval);
+            if(tracked)
+                track(key, value);
+            if(value.timeout != 0) {
+                Expiration<K,V> exp=new Expiration<>(key, value, expiration_seqno++);
+                expirations.add(exp);
+                value.expiration=exp;
             }
+            evicted=evictIfNeeded();
         }
-
+        finally {
+            lock.unlock();
+        }
+        if(evicted)
+            notifyChangeListeners();
         return getValue(retval);
     }
 
@@ -159,10 +258,16 @@ public class Cache<K,V> {
         Value<V> val=map.get(key);
 
         if (isExpired(val)) {
-            map.remove(key);
+            remove(key, val);
+            num_expirations.increment();
+            val=null;
+        }
+        if(val == null) {
+            num_misses.increment();
             return null;
         }
-
+        num_hits.increment();
+        recordAccess(key, val);
         return getValue(val);
     }
 
@@ -178,13 +283,31 @@ public class Cache<K,V> {
     public Value<V> getEntry(K key) {
         if(log.isTraceEnabled())
             log.trace("getEntry(" + key + ")");
-        return map.get(key);
+        Value<V> val=map.get(key);
+        if(val != null)
+            recordAccess(key, val);
+        return val;
     }
 
     public V remove(K key) {
         if(log.isTraceEnabled())
             log.trace("remove(" + key + ")");
-        return getValue(map.remove(key));
+        if(!isBounded()) {
+            Value<V> val=map.remove(key);
+            if(val != null && (tracked || val.expiration != null))
+                update(key, val, null);
+            return getValue(val);
+        }
+        lock.lock();
+        try {
+            Value<V> val=map.remove(key);
+            if(val != null)
+                removeFromSegments(key, val);
+            return getValue(val);
+        }
+        finally {
+            lock.unlock();
+        }
     }
 
     public Set<Map.Entry<K,Value<V>>> entrySet() {
@@ -225,20 +348,176 @@ public class Cache<K,V> {
         return sb.toString();
     }
 
+    /** Removes all expired entries; the cost is proportional to the number of expired entries, not the cache size */
     private void evict() {
-        boolean evicted=false;
-        for(Iterator<Map.Entry<K,Value<V>>> it=map.entrySet().iterator(); it.hasNext();) {
+        boolean evicted;
+        lock.lock();
+        try {
+            evicted=removeExpired();
+        }
+        finally {
+            lock.unlock();
+        }
+        if(evicted)
+            notifyChangeListeners();
+    }
+
+    /** Removes val if it's still the value associated with key */
+    private void remove(K key, Value<V> val) {
+        lock.lock();
+        try {
+            if(map.remove(key, val))
+                removeFromSegments(key, val);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes old_val (if not null) from the segments and the expirations and adds new_val to the probationary segment
+     * if the cache is bounded and new_val is still the value associated with key. Used by put() and remove() when
+     * they didn't acquire the lock
+     */
+    private void update(K key, Value<V> old_val, Value<V> new_val) {
+        lock.lock();
+        try {
+            syncTracking();
+            if(old_val != null)
+                removeFromSegments(key, old_val);
+            if(tracked && new_val != null && map.get(key) == new_val)
+                track(key, new_val);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Starts maintaining the segments when the cache has become bounded (adding all entries), or stops maintaining
+     * them when it has become unbounded. Called with the lock held
+     */
+    private void syncTracking() {
+        boolean bounded=isBounded();
+        if(bounded == tracked)
+            return;
+        tracked=bounded; // set before iterating over the map, so that concurrent unlocked puts are added by update()
+        probation.clear();
+        protected_segment.clear();
+        weight=protected_weight=0;
+        if(bounded) {
+            for(Map.Entry<K,Value<V>> entry: map.entrySet())
+                track(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Adds an entry to the probationary segment, unless it's already in one of the segments. A different value for
+     * the same key (replaced by a concurrent unlocked put()) is removed
+     */
+    private void track(K key, Value<V> val) {
+        if(probation.get(key) == val || protected_segment.get(key) == val)
+            return;
+        Value<V> prev=probation.remove(key);
+        if(prev != null)
+            weight-=prev.weight;
+        else if((prev=protected_segment.remove(key)) != null) {
+            weight-=prev.weight;
+            protected_weight-=prev.weight;
+        }
+        probation.put(key, val);
+        weight+=val.weight;
+    }
+
+    private boolean isBounded() {
+        return max_num_entries > 0 || max_weight > 0;
+    }
+
+    /** Moves an accessed entry to the MRU end of the protected segment. No-op if the cache is not bounded */
+    private void recordAccess(K key, Value<V> val) {
+        if(!tracked)
+            return;
+        lock.lock();
+        try {
+            if(protected_segment.get(key) == val) {
+                protected_segment.remove(key);
+                protected_segment.put(key, val);
+                return;
+            }
+            if(probation.get(key) != val)
+                return;
+            probation.remove(key);
+            protected_segment.put(key, val);
+            protected_weight+=val.weight;
+            // demote the LRU entries of the protected segment if it has become too big
+            long max_protected=(long)(protected_ratio * (max_weight > 0? max_weight : max_num_entries));
+            for(Iterator<Map.Entry<K,Value<V>>> it=protected_segment.entrySet().iterator();
+                (max_weight > 0? protected_weight : protected_segment.size()) > max_protected && it.hasNext();) {
+                Map.Entry<K,Value<V>> entry=it.next();
+                it.remove();
+                protected_weight-=entry.getValue().weight;
+                probation.put(entry.getKey(), entry.getValue());
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /** Evicts expired entries, then LRU entries until the cache is below max_num_entries and max_weight */
+    private boolean evictIfNeeded() {
+        if(!exceedsBounds())
+            return false;
+        boolean evicted=removeExpired();
+        while(exceedsBounds()) {
+            LinkedHashMap<K,Value<V>> segment=!probation.isEmpty()? probation : protected_segment;
+            Iterator<Map.Entry<K,Value<V>>> it=segment.entrySet().iterator();
+            if(!it.hasNext())
+                break;
             Map.Entry<K,Value<V>> entry=it.next();
+            K key=entry.getKey();
             Value<V> val=entry.getValue();
-            evicted = isExpired(val);
-            if (evicted) {
+            map.remove(key, val);
+            removeFromSegments(key, val);
+            num_evictions.increment();
+            evicted=true;
+            if(log.isTraceEnabled())
+                log.trace("evicting " + key + ": " + val.value);
+        }
+        return evicted;
+    }
+
+    private boolean exceedsBounds() {
+        return (max_num_entries > 0 && map.size() > max_num_entries) || (max_weight > 0 && weight > max_weight);
+    }
+
+    private boolean removeExpired() {
+        boolean evicted=false;
+        long now=System.currentTimeMillis();
+        Expiration<K,V> exp;
+        while(!expirations.isEmpty() && (exp=expirations.first()).expiration_time <= now) {
+            expirations.pollFirst();
+            if(map.remove(exp.key, exp.val)) {
+                removeFromSegments(exp.key, exp.val);
+                num_expirations.increment();
+                evicted=true;
                 if(log.isTraceEnabled())
-                    log.trace("evicting " + entry.getKey() + ": " + getValue(val));
-                it.remove();
+                    log.trace("evicting " + exp.key + ": " + getValue(exp.val));
             }
         }
-        if(evicted)
-            notifyChangeListeners();
+        return evicted;
+    }
+
+    /** Removes a removed (or replaced) entry from the segments and the expirations */
+    private void removeFromSegments(K key, Value<V> val) {
+        if(val.expiration != null)
+            expirations.remove(val.expiration);
+        if(probation.remove(key, val))
+            weight-=val.weight;
+        else if(protected_segment.remove(key, val)) {
+            weight-=val.weight;
+            protected_weight-=val.weight;
+        }
     }
 
     private void notifyChangeListeners() {
@@ -268,6 +547,12 @@ public class Cache<K,V> {
         
         /** When the value can be reaped (in ms) */
         private transient long timeout;
+
+        /** The weight as computed by the cache's weigher */
+        private transient int weight;
+
+        /** The entry in the cache's expirations, or null if the value doesn't expire */
+        private transient Expiration<?,V> expiration;
         private static final long serialVersionUID=-3445944261826378608L;
 
 
@@ -307,4 +592,29 @@ public class Cache<K,V> {
         void changed();
     }
 
+    /** Computes the weight of an entry, e.g. the size of the value in bytes */
+    @FunctionalInterface
+    public interface Weigher<K,V> {
+        int weigh(K key, V value);
+    }
+
+    private static class Expiration<K,V> implements Comparable<Expiration<K,V>> {
+        private final K        key;
+        private final Value<V> val;
+        private final long     expiration_time;
+        private final long     seqno;
+
+        private Expiration(K key, Value<V> val, long seqno) {
+            this.key=key;
+            this.val=val;
+            this.expiration_time=val.timeout < 0? val.insertion_time : val.insertion_time + val.timeout;
+            this.seqno=seqno;
+        }
+
+        public int compareTo(Expiration<K,V> o) {
+            int rc=Long.compare(expiration_time, o.expiration_time);
+            return rc != 0? rc : Long.compare(seqno, o.seqno);
+        }
+    }
+
 }
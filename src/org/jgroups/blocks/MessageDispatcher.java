@@ -476,11 +476,26 @@ public class MessageDispatcher implements RequestHandler, Closeable, ChannelList
                 byte[] tmp_state=null;
                 if(state_listener != null) {
                     ByteArrayOutputStream output=new ByteArrayOutputStream(1024);
-                    state_listener.getState(output);
+                    byte[] version=evt.getArg() instanceof StateTransferInfo? ((StateTransferInfo)evt.getArg()).version : null;
+                    if(version != null && state_listener instanceof DeltaStateListener)
+                        ((DeltaStateListener)state_listener).getState(version, output);
+                    else
+                        state_listener.getState(output);
                     tmp_state=output.toByteArray();
                 }
                 return new StateTransferInfo(null, 0L, tmp_state);
 
+            case Event.GET_STATE_VERSION:
+                return state_listener instanceof DeltaStateListener? ((DeltaStateListener)state_listener).getStateVersion() : null;
+
+            case Event.STATE_TRANSFER_DELTA_OUTPUTSTREAM:
+                if(state_listener instanceof DeltaStateListener) {
+                    Tuple<byte[],OutputStream> tuple=evt.getArg();
+                    ((DeltaStateListener)state_listener).getState(tuple.getVal1(), tuple.getVal2());
+                    return true;
+                }
+                return null;
+
             case Event.GET_STATE_OK:
                 if(state_listener != null) {
                     StateTransferResult result=evt.getArg();
@@ -2,6 +2,7 @@ package org.jgroups.blocks;
 
 import org.jgroups.Address;
 import org.jgroups.JChannel;
+import org.jgroups.Message;
 import org.jgroups.MembershipListener;
 import org.jgroups.View;
 import org.jgroups.annotations.Experimental;
@@ -20,7 +21,11 @@ import java.util.*;
 
 /** Hashmap which distributes its keys and values across the cluster. A PUT/GET/REMOVE computes the cluster node to which
  * or from which to get/set the key/value from a hash of the key and then forwards the request to the remote cluster node.
- * We also maintain a local cache (L1 cache) which is a bounded cache that caches retrieved keys/values. <br/>
+ * We also maintain a local cache (L1 cache) which is a bounded cache that caches retrieved keys/values. When
+ * invalidate_l1 is true and an L1 cache is used, PUTs and REMOVEs are multicast instead of sent to the owner only: the
+ * owner applies them and all other members remove the key from their L1 caches. Members running a version which
+ * doesn't support invalidation drop the multicast PUTs and REMOVEs, so it must only be enabled when all members
+ * support it.<br/>
  * Todos:<br/>
  * <ol>
  * <li>Use MarshalledValue to keep track of byte[] buffers, and be able to compute the exact size of the cache. This is
@@ -28,7 +33,6 @@ import java.util.*;
  * <li>Provide a better consistent hashing algorithm than ConsistentHashFunction as default
  * <li>GUI (showing at least the topology and L1 and L2 caches)
  * <li>Notifications (puts, removes, gets etc)
- * <li>Invalidation of L1 caches (if used) on removal/put of item
  * <li>Benchmarks, comparison to memcached
  * <li>Documentation, comparison to memcached
  * </ol>
@@ -65,9 +69,18 @@ public class PartitionedHashMap<K,V> implements MembershipListener {
     @ManagedAttribute(writable=true)
     private boolean migrate_data=false;
 
+    /**
+     * Multicasts PUTs and REMOVEs, so that all members can invalidate the key in their L1 caches. Only used when
+     * an L1 cache is set. Must only be enabled when all members support it
+     */
+    @ManagedAttribute(writable=true)
+    private boolean invalidate_l1=false;
+
     private static final short PUT     = 1;
     private static final short GET     = 2;
     private static final short REMOVE  = 3;
+    private static final short PUT_INV = 4;
+    private static final short REM_INV = 5;
 
     protected static final Map<Short,Method> methods=Util.createConcurrentMap(8);
 
@@ -80,6 +93,12 @@ public class PartitionedHashMap<K,V> implements MembershipListener {
             methods.put(GET, PartitionedHashMap.class.getMethod("_get",
                                                                Object.class));
             methods.put(REMOVE, PartitionedHashMap.class.getMethod("_remove", Object.class));
+            methods.put(PUT_INV, PartitionedHashMap.class.getMethod("_put",
+                                                                    Object.class,
+                                                                    Object.class,
+                                                                    long.class,
+                                                                    Address.class));
+            methods.put(REM_INV, PartitionedHashMap.class.getMethod("_remove", Object.class, Address.class));
         }
         catch(NoSuchMethodException e) {
             throw new RuntimeException(e);
@@ -159,6 +178,14 @@ public class PartitionedHashMap<K,V> implements MembershipListener {
         this.caching_time=caching_time;
     }
 
+    public boolean isInvalidateL1() {
+        return invalidate_l1;
+    }
+
+    public void setInvalidateL1(boolean invalidate_l1) {
+        this.invalidate_l1=invalidate_l1;
+    }
+
     public boolean isMigrateData() {
         return migrate_data;
     }
@@ -255,7 +282,12 @@ public class PartitionedHashMap<K,V> implements MembershipListener {
     @ManagedOperation
     public void put(K key, V val, long caching_time) {
         Address dest_node=getNode(key);
-        if(dest_node.equals(local_addr)) {
+        if(invalidateL1()) {
+            mcast(new MethodCall(PUT_INV, key, val, caching_time, dest_node));
+            if(dest_node.equals(local_addr))
+                l2_cache.put(key, val, caching_time);
+        }
+        else if(dest_node.equals(local_addr)) {
             l2_cache.put(key, val, caching_time);
         }
         else {
@@ -307,7 +339,12 @@ public class PartitionedHashMap<K,V> implements MembershipListener {
         Address dest_node=getNode(key);
 
         try {
-            if(dest_node.equals(local_addr)) {
+            if(invalidateL1()) {
+                mcast(new MethodCall(REM_INV, key, dest_node));
+                if(dest_node.equals(local_addr))
+                    l2_cache.remove(key);
+            }
+            else if(dest_node.equals(local_addr)) {
                 l2_cache.remove(key);
             }
             else {
@@ -341,6 +378,24 @@ public class PartitionedHashMap<K,V> implements MembershipListener {
         return l2_cache.remove(key);
     }
 
+    /** Stores the key/value if we're the owner, otherwise removes the key from the L1 cache */
+    public V _put(K key, V val, long caching_time, Address owner) {
+        if(local_addr.equals(owner))
+            return _put(key, val, caching_time);
+        if(l1_cache != null)
+            l1_cache.remove(key);
+        return null;
+    }
+
+    /** Removes the key if we're the owner, otherwise removes the key from the L1 cache */
+    public V _remove(K key, Address owner) {
+        if(local_addr.equals(owner))
+            return _remove(key);
+        if(l1_cache != null)
+            l1_cache.remove(key);
+        return null;
+    }
+
 
 
 
@@ -401,6 +456,22 @@ public class PartitionedHashMap<K,V> implements MembershipListener {
         }
     }
 
+    private boolean invalidateL1() {
+        return invalidate_l1 && l1_cache != null && view != null && view.size() > 1;
+    }
+
+    /** Multicasts a call to all other members */
+    private void mcast(MethodCall call) {
+        try {
+            disp.callRemoteMethods(null, call, new RequestOptions(ResponseMode.GET_NONE, call_timeout)
+              .transientFlags(Message.TransientFlag.DONT_LOOPBACK));
+        }
+        catch(Throwable t) {
+            if(log.isWarnEnabled())
+                log.warn("multicasting " + call + " failed", t);
+        }
+    }
+
     private void sendPut(Address dest, K key, V val, long caching_time, boolean synchronous) {
         try {
             ResponseMode mode=synchronous? ResponseMode.GET_ALL : ResponseMode.GET_NONE;
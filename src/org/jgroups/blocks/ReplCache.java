@@ -489,6 +489,8 @@ public class ReplCache<K,V> implements MembershipListener, Cache.ChangeListener
      * @return
      */
     public V _put(K key, V val, short repl_count, long timeout, boolean force) {
+        // PUTs are multicast, so every member invalidates its L1 cache, including members which don't store the key
+        invalidateL1(key, val);
 
         if(!force) {
 
@@ -523,9 +525,6 @@ public class ReplCache<K,V> implements MembershipListener, Cache.ChangeListener
         Value<V> value=new Value<>(val, repl_count);
         Value<V> retval=l2_cache.put(key, value, timeout);
 
-        if(l1_cache != null)
-            l1_cache.remove(key);
-
         notifyChangeListeners();
 
         return retval != null? retval.getVal() : null;
@@ -611,6 +610,15 @@ public class ReplCache<K,V> implements MembershipListener, Cache.ChangeListener
         return sb.toString();
     }
 
+    /** Removes key from the L1 cache, unless the cached value is val (e.g. the caller's own put()) */
+    private void invalidateL1(K key, V val) {
+        if(l1_cache == null)
+            return;
+        Cache.Value<V> cached=l1_cache.getInternalMap().get(key);
+        if(cached != null && !Objects.equals(cached.getValue(), val))
+            l1_cache.remove(key);
+    }
+
     private void notifyChangeListeners() {
         for(ChangeListener l: change_listeners) {
             try {
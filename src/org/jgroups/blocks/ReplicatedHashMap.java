@@ -3,6 +3,8 @@ package org.jgroups.blocks;
 import org.jgroups.*;
 import org.jgroups.logging.Log;
 import org.jgroups.logging.LogFactory;
+import org.jgroups.util.ByteArrayDataInputStream;
+import org.jgroups.util.ByteArrayDataOutputStream;
 import org.jgroups.util.Util;
 
 import java.io.*;
@@ -11,6 +13,7 @@ import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 
 /**
@@ -23,11 +26,18 @@ import java.util.stream.Collectors;
  * A {@code ReplicatedHashMap} allows one to implement a distributed naming service in just a couple of lines.
  * <p>
  * An instance of this class will contact an existing member of the group to fetch its initial state.
+ * <p>
+ * If delta state transfer is enabled ({@link #setDeltaStateTransfer(boolean)}), updates are tagged with the address
+ * of the originating member and a per-member seqno, and every member keeps a version vector of the updates it has
+ * applied. A member which already has a state (e.g. loaded via {@link #loadSnapshot(InputStream)} after a restart)
+ * sends its version vector with the state request, and the state provider only sends the entries that changed (and
+ * the keys that were removed) since then. As this changes the format of updates and of the state, it is disabled by
+ * default and has to be enabled on all members.
  *
  * @author Bela Ban
  */
 public class ReplicatedHashMap<K, V> extends
-        AbstractMap<K, V> implements ConcurrentMap<K, V>, MembershipListener, StateListener, ReplicatedMap<K, V>, Closeable {
+        AbstractMap<K, V> implements ConcurrentMap<K, V>, MembershipListener, DeltaStateListener, ReplicatedMap<K, V>, Closeable {
 
     public interface Notification<K, V> {
         void entrySet(K key, V value);
@@ -49,6 +59,10 @@ public class ReplicatedHashMap<K, V> extends
     private static final short REPLACE_IF_EXISTS = 6;
     private static final short REPLACE_IF_EQUALS = 7;
     private static final short CLEAR = 8;
+    private static final short UPDATE = 9;
+
+    private static final byte FULL_STATE = 1;
+    private static final byte DELTA_STATE = 2;
 
     protected static Map<Short, Method> methods;
 
@@ -74,6 +88,11 @@ public class ReplicatedHashMap<K, V> extends
                                                                              Object.class,
                                                                              Object.class));
             methods.put(CLEAR, ReplicatedHashMap.class.getMethod("_clear"));
+            methods.put(UPDATE, ReplicatedHashMap.class.getMethod("_update",
+                                                                  Address.class,
+                                                                  long.class,
+                                                                  short.class,
+                                                                  Object[].class));
         } catch (NoSuchMethodException e) {
             throw new RuntimeException(e);
         }
@@ -95,6 +114,61 @@ public class ReplicatedHashMap<K, V> extends
      */
     protected ConcurrentMap<K, V> map = null;
 
+    /**
+     * seqno of the updates sent by this member
+     */
+    protected final AtomicLong seqno = new AtomicLong();
+
+    /**
+     * highest seqno of the updates applied, per originating member
+     */
+    protected final ConcurrentMap<Address, Long> version_vector = new ConcurrentHashMap<>();
+
+    /**
+     * version of the last update to each key in the map
+     */
+    protected final ConcurrentMap<K, Version> versions = new ConcurrentHashMap<>();
+
+    /**
+     * versions of removed keys, needed to send removals in a delta state. The oldest tombstones are dropped when
+     * there are more than {@link #max_tombstones}
+     */
+    protected final Map<K, Version> tombstones = Collections.synchronizedMap(new LinkedHashMap<K, Version>() {
+        protected boolean removeEldestEntry(Entry<K, Version> eldest) {
+            boolean remove = size() > max_tombstones;
+            if (remove)
+                advance(dropped_tombstones, eldest.getValue());
+            return remove;
+        }
+    });
+
+    /**
+     * highest seqnos of dropped tombstones, per member. A requester which hasn't seen these gets the full state
+     */
+    protected final ConcurrentMap<Address, Long> dropped_tombstones = new ConcurrentHashMap<>();
+
+    /**
+     * version of the last clear()
+     */
+    protected volatile Version clear_version;
+
+    /**
+     * max number of tombstones to keep for delta state transfer
+     */
+    protected int max_tombstones = 10000;
+
+    /**
+     * whether updates are versioned and delta state transfer is used; needs to be the same on all members
+     */
+    protected boolean delta_state_transfer;
+
+    /**
+     * set when the state has been set (from a state provider or a snapshot); only then is a delta state requested
+     */
+    protected volatile boolean has_state;
+
+    protected final Object update_lock = new Object();
+
     /**
      * Constructs a new ReplicatedHashMap with channel. Call {@link #start(long)} to start this map.
      */
@@ -154,6 +228,33 @@ public class ReplicatedHashMap<K, V> extends
         call_options.timeout(timeout);
     }
 
+    public boolean isDeltaStateTransfer() {
+        return delta_state_transfer;
+    }
+
+    /**
+     * Enables versioned updates and delta state transfer. Needs to be set before {@link #start(long)} and to the same
+     * value on all members, as it changes the format of updates and of the state (and of snapshots). Members running
+     * an older version can only be part of the cluster when this is disabled (default)
+     */
+    public ReplicatedHashMap<K, V> setDeltaStateTransfer(boolean flag) {
+        this.delta_state_transfer = flag;
+        return this;
+    }
+
+    public int getMaxTombstones() {
+        return max_tombstones;
+    }
+
+    /**
+     * Sets the max number of removed keys to remember for delta state transfer. When more keys have been removed,
+     * members whose state is older than the oldest remembered removal will get the full state
+     */
+    public ReplicatedHashMap<K, V> setMaxTombstones(int max_tombstones) {
+        this.max_tombstones = max_tombstones;
+        return this;
+    }
+
     /**
      * Fetches the state
      *
@@ -214,8 +315,7 @@ public class ReplicatedHashMap<K, V> extends
     public V put(K key, V value) {
         V prev_val = get(key);
         try {
-            MethodCall call = new MethodCall(PUT, key, value);
-            disp.callRemoteMethods(null, call, call_options);
+            invoke(PUT, key, value);
         } catch (Exception e) {
             throw new RuntimeException("put(" + key + ", " + value + ") failed", e);
         }
@@ -229,8 +329,7 @@ public class ReplicatedHashMap<K, V> extends
     public V putIfAbsent(K key, V value) {
         V prev_val = get(key);
         try {
-            MethodCall call = new MethodCall(PUT_IF_ABSENT, key, value);
-            disp.callRemoteMethods(null, call, call_options);
+            invoke(PUT_IF_ABSENT, key, value);
         } catch (Exception e) {
             throw new RuntimeException("putIfAbsent(" + key + ", " + value + ") failed", e);
         }
@@ -246,8 +345,7 @@ public class ReplicatedHashMap<K, V> extends
      */
     public void putAll(Map<? extends K, ? extends V> m) {
         try {
-            MethodCall call = new MethodCall(PUT_ALL, m);
-            disp.callRemoteMethods(null, call, call_options);
+            invoke(PUT_ALL, m);
         } catch (Throwable t) {
             throw new RuntimeException("putAll() failed", t);
         }
@@ -258,8 +356,7 @@ public class ReplicatedHashMap<K, V> extends
      */
     public void clear() {
         try {
-            MethodCall call = new MethodCall(CLEAR);
-            disp.callRemoteMethods(null, call, call_options);
+            invoke(CLEAR);
         } catch (Exception e) {
             throw new RuntimeException("clear() failed", e);
         }
@@ -277,8 +374,7 @@ public class ReplicatedHashMap<K, V> extends
     public V remove(Object key) {
         V retval = get(key);
         try {
-            MethodCall call = new MethodCall(REMOVE, key);
-            disp.callRemoteMethods(null, call, call_options);
+            invoke(REMOVE, key);
         } catch (Exception e) {
             throw new RuntimeException("remove(" + key + ") failed", e);
         }
@@ -292,8 +388,7 @@ public class ReplicatedHashMap<K, V> extends
         Object val = get(key);
         boolean removed = val != null && value != null && val.equals(value);
         try {
-            MethodCall call = new MethodCall(REMOVE_IF_EQUALS, key, value);
-            disp.callRemoteMethods(null, call, call_options);
+            invoke(REMOVE_IF_EQUALS, key, value);
         } catch (Exception e) {
             throw new RuntimeException("remove(" + key + ", " + value + ") failed", e);
         }
@@ -307,8 +402,7 @@ public class ReplicatedHashMap<K, V> extends
         Object val = get(key);
         boolean replaced = val != null && oldValue != null && val.equals(oldValue);
         try {
-            MethodCall call = new MethodCall(REPLACE_IF_EQUALS, key, oldValue, newValue);
-            disp.callRemoteMethods(null, call, call_options);
+            invoke(REPLACE_IF_EQUALS, key, oldValue, newValue);
         } catch (Exception e) {
             throw new RuntimeException("replace(" + key
                                                + ", "
@@ -328,16 +422,76 @@ public class ReplicatedHashMap<K, V> extends
     public V replace(K key, V value) {
         V retval = get(key);
         try {
-            MethodCall call = new MethodCall(REPLACE_IF_EXISTS, key, value);
-            disp.callRemoteMethods(null, call, call_options);
+            invoke(REPLACE_IF_EXISTS, key, value);
         } catch (Exception e) {
             throw new RuntimeException("replace(" + key + ", " + value + ") failed", e);
         }
         return retval;
     }
 
+    /**
+     * Sends an update to all members. With delta state transfer, the update is tagged with the local address and the
+     * next seqno
+     */
+    protected void invoke(short method, Object... args) throws Exception {
+        MethodCall call = delta_state_transfer ?
+          new MethodCall(UPDATE, getLocalAddress(), seqno.incrementAndGet(), method, args) : new MethodCall(method, args);
+        disp.callRemoteMethods(null, call, call_options);
+    }
+
+    @SuppressWarnings("unchecked")
+    protected static <T> T cast(Object obj) {
+        return (T) obj;
+    }
+
     /*------------------------ Callbacks -----------------------*/
 
+    /**
+     * Applies an update and records its version (origin and seqno) for delta state transfer
+     */
+    public void _update(Address origin, long seqno, short method, Object[] args) {
+        Version version = new Version(origin, seqno);
+        synchronized (update_lock) {
+            switch (method) {
+                case PUT:
+                    _put(cast(args[0]), cast(args[1]));
+                    break;
+                case PUT_IF_ABSENT:
+                    _putIfAbsent(cast(args[0]), cast(args[1]));
+                    break;
+                case PUT_ALL:
+                    Map<K, V> m = cast(args[0]);
+                    _putAll(m);
+                    if (m != null)
+                        m.keySet().forEach(key -> recordVersion(key, version));
+                    break;
+                case REMOVE:
+                    _remove(cast(args[0]));
+                    break;
+                case REMOVE_IF_EQUALS:
+                    _remove(cast(args[0]), cast(args[1]));
+                    break;
+                case REPLACE_IF_EXISTS:
+                    _replace(cast(args[0]), cast(args[1]));
+                    break;
+                case REPLACE_IF_EQUALS:
+                    _replace(cast(args[0]), cast(args[1]), cast(args[2]));
+                    break;
+                case CLEAR:
+                    _clear();
+                    versions.clear();
+                    tombstones.clear();
+                    clear_version = version;
+                    break;
+                default:
+                    throw new IllegalArgumentException("method " + method + " not known");
+            }
+            if (method != PUT_ALL && method != CLEAR)
+                recordVersion(cast(args[0]), version);
+            advance(version_vector, version);
+        }
+    }
+
     public V _put(K key, V value) {
         V retval = map.put(key, value);
         for (Notification notif : notifs)
@@ -416,6 +570,10 @@ public class ReplicatedHashMap<K, V> extends
 
     /*-------------------- State Exchange ----------------------*/
     public void getState(OutputStream ostream) throws Exception {
+        if (delta_state_transfer) {
+            writeState(null, ostream);
+            return;
+        }
         HashMap<K, V> copy = new HashMap<>();
         for (Entry<K, V> entry : entrySet()) {
             K key = entry.getKey();
@@ -428,14 +586,216 @@ public class ReplicatedHashMap<K, V> extends
     }
 
     public void setState(InputStream istream) throws Exception {
-        HashMap<K, V> new_copy = null;
+        if (!delta_state_transfer) {
+            HashMap<K, V> new_copy = null;
+            try (ObjectInputStream ois = new ObjectInputStream(istream)) {
+                new_copy = cast(ois.readObject());
+            }
+            if (new_copy != null) {
+                _putAll(new_copy);
+            }
+            log.debug("state received successfully");
+            return;
+        }
+        boolean delta;
+        Map<Address, Long> vv, dropped;
+        Version clear;
+        Map<K, V> entries = new HashMap<>();
+        Map<K, Version> entry_versions = new HashMap<>(), removed = new LinkedHashMap<>();
         try (ObjectInputStream ois = new ObjectInputStream(istream)) {
-            new_copy = (HashMap<K, V>) ois.readObject();
+            delta = ois.readByte() == DELTA_STATE;
+            vv = readVersionVector(ois);
+            dropped = readVersionVector(ois);
+            clear = readVersion(ois);
+            for (int i = 0, size = ois.readInt(); i < size; i++) {
+                K key = cast(ois.readObject());
+                entries.put(key, cast(ois.readObject()));
+                Version version = readVersion(ois);
+                if (version != null)
+                    entry_versions.put(key, version);
+            }
+            for (int i = 0, size = ois.readInt(); i < size; i++)
+                removed.put(cast(ois.readObject()), readVersion(ois));
+        }
+        synchronized (update_lock) {
+            if (!delta) { // full state: remove the keys we have, but the provider doesn't
+                for (K key : new ArrayList<>(map.keySet()))
+                    if (!entries.containsKey(key))
+                        _remove(key);
+                versions.clear();
+                tombstones.clear();
+                clear_version = clear;
+            }
+            _putAll(entries);
+            entry_versions.forEach(this::recordVersion);
+            for (Entry<K, Version> e : removed.entrySet()) {
+                _remove(e.getKey());
+                recordVersion(e.getKey(), e.getValue());
+            }
+            vv.forEach((mbr, s) -> version_vector.merge(mbr, s, Math::max));
+            dropped.forEach((mbr, s) -> dropped_tombstones.merge(mbr, s, Math::max));
+            has_state = true;
+        }
+        log.debug("%s received successfully (%d entries, %d removed keys)", delta ? "delta state" : "state",
+                  entries.size(), removed.size());
+    }
+
+    public byte[] getStateVersion() throws Exception {
+        if (!delta_state_transfer || !has_state || version_vector.isEmpty())
+            return null;
+        ByteArrayDataOutputStream out = new ByteArrayDataOutputStream(version_vector.size() * 32);
+        writeVersionVector(version_vector, out);
+        return out.buffer();
+    }
+
+    public void getState(byte[] version, OutputStream ostream) throws Exception {
+        if (!delta_state_transfer) {
+            getState(ostream);
+            return;
+        }
+        Map<Address, Long> vv = readVersionVector(new ByteArrayDataInputStream(version));
+        boolean delta = canSendDelta(vv);
+        if (!delta)
+            log.debug("version of state requester is too old, sending full state");
+        writeState(delta ? vv : null, ostream);
+    }
+
+    /**
+     * Writes a snapshot of the state to a stream, e.g. a file. The snapshot can be loaded after a restart with
+     * {@link #loadSnapshot(InputStream)}; with delta state transfer, the snapshot includes the versions and
+     * {@link #start(long)} then only fetches the changes since the snapshot was taken
+     */
+    public void saveSnapshot(OutputStream out) throws Exception {
+        getState(out);
+    }
+
+    /**
+     * Loads a snapshot written by {@link #saveSnapshot(OutputStream)}. Needs to be called before {@link #start(long)}
+     */
+    public void loadSnapshot(InputStream in) throws Exception {
+        setState(in);
+    }
+
+    /**
+     * Writes the state: all entries if since is null, or else only the entries and removed keys whose versions are
+     * not covered by since
+     */
+    protected void writeState(Map<Address, Long> since, OutputStream ostream) throws Exception {
+        // read the version vector first: updates applied after that will be re-sent to the requester by NAKACK
+        Map<Address, Long> vv = new HashMap<>(version_vector);
+        Map<K, V> entries = new HashMap<>();
+        for (Entry<K, V> entry : map.entrySet()) {
+            Version version = versions.get(entry.getKey());
+            if (since == null || version == null || !version.coveredBy(since))
+                entries.put(entry.getKey(), entry.getValue());
+        }
+        Map<K, Version> removed = new LinkedHashMap<>();
+        synchronized (tombstones) {
+            for (Entry<K, Version> e : tombstones.entrySet())
+                if (since == null || !e.getValue().coveredBy(since))
+                    removed.put(e.getKey(), e.getValue());
         }
-        if (new_copy != null) {
-            _putAll(new_copy);
+        try (ObjectOutputStream oos = new ObjectOutputStream(new BufferedOutputStream(ostream, 1024))) {
+            oos.writeByte(since == null ? FULL_STATE : DELTA_STATE);
+            writeVersionVector(vv, oos);
+            writeVersionVector(dropped_tombstones, oos);
+            writeVersion(clear_version, oos);
+            oos.writeInt(entries.size());
+            for (Entry<K, V> entry : entries.entrySet()) {
+                oos.writeObject(entry.getKey());
+                oos.writeObject(entry.getValue());
+                writeVersion(versions.get(entry.getKey()), oos);
+            }
+            oos.writeInt(removed.size());
+            for (Entry<K, Version> e : removed.entrySet()) {
+                oos.writeObject(e.getKey());
+                writeVersion(e.getValue(), oos);
+            }
+        }
+    }
+
+    /**
+     * A delta can be sent if the requester has seen the last clear() and all removals whose tombstones were dropped
+     */
+    protected boolean canSendDelta(Map<Address, Long> vv) {
+        Version clear = clear_version;
+        if (clear != null && !clear.coveredBy(vv))
+            return false;
+        for (Entry<Address, Long> e : dropped_tombstones.entrySet()) {
+            Long seq = vv.get(e.getKey());
+            if (seq == null || seq < e.getValue())
+                return false;
+        }
+        return true;
+    }
+
+    protected void recordVersion(K key, Version version) {
+        if (map.containsKey(key)) {
+            tombstones.remove(key);
+            versions.put(key, version);
+        } else {
+            versions.remove(key);
+            tombstones.remove(key); // re-insert at the end (newest)
+            tombstones.put(key, version);
+        }
+    }
+
+    protected static void advance(ConcurrentMap<Address, Long> vv, Version version) {
+        vv.merge(version.origin, version.seqno, Math::max);
+    }
+
+    protected static void writeVersionVector(Map<Address, Long> vv, DataOutput out) throws Exception {
+        Map<Address, Long> copy = new HashMap<>(vv);
+        out.writeInt(copy.size());
+        for (Entry<Address, Long> e : copy.entrySet()) {
+            Util.writeAddress(e.getKey(), out);
+            out.writeLong(e.getValue());
+        }
+    }
+
+    protected static Map<Address, Long> readVersionVector(DataInput in) throws Exception {
+        int size = in.readInt();
+        Map<Address, Long> vv = new HashMap<>(size);
+        for (int i = 0; i < size; i++)
+            vv.put(Util.readAddress(in), in.readLong());
+        return vv;
+    }
+
+    protected static void writeVersion(Version version, DataOutput out) throws Exception {
+        out.writeBoolean(version != null);
+        if (version != null) {
+            Util.writeAddress(version.origin, out);
+            out.writeLong(version.seqno);
+        }
+    }
+
+    protected static Version readVersion(DataInput in) throws Exception {
+        return in.readBoolean() ? new Version(Util.readAddress(in), in.readLong()) : null;
+    }
+
+    /**
+     * The version of an update: the originating member and its seqno
+     */
+    protected static class Version {
+        protected final Address origin;
+        protected final long seqno;
+
+        protected Version(Address origin, long seqno) {
+            this.origin = origin;
+            this.seqno = seqno;
+        }
+
+        /**
+         * Whether the update has been applied by a member with the given version vector
+         */
+        protected boolean coveredBy(Map<Address, Long> vv) {
+            Long seq = vv.get(origin);
+            return seq != null && seq >= seqno;
+        }
+
+        public String toString() {
+            return origin + "#" + seqno;
         }
-        log.debug("state received successfully");
     }
 
     /*------------------- Membership Changes ----------------------*/
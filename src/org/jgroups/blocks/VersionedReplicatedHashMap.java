@@ -0,0 +1,415 @@
+package org.jgroups.blocks;
+
+import org.jgroups.*;
+import org.jgroups.logging.Log;
+import org.jgroups.logging.LogFactory;
+import org.jgroups.util.*;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A replicated map which resolves concurrent updates deterministically, without total order. Every update carries a
+ * version per key (a Lamport timestamp and the address of the updater), and a member applies an update only if its
+ * version is higher than the version of the current value of that key. All members therefore end up with the same
+ * value for a key, regardless of the order in which they receive concurrent updates. Removals are kept as tombstones
+ * for {@link #getTombstoneTTL()} ms, so that an older put received after a removal doesn't resurrect the key.
+ * <p>
+ * Local updates are applied immediately and collected for {@link #getFlushInterval()} ms; all updates of an interval
+ * are then multicast in a single message, and of multiple updates to the same key only the last one is sent.
+ * {@link #putAll(Map)} sends all of its entries in one message. Keys and values are serialized with a
+ * {@link Marshaller}; the default uses {@link Util#objectToStream(Object, DataOutput)}, which avoids Java
+ * serialization for primitives, strings, byte arrays and {@link Streamable}s.
+ * <p>
+ * Unlike {@link ReplicatedHashMap}, conditional operations (putIfAbsent(), replace() etc) are not supported, as they
+ * would require a total order of the updates. The state fetched by {@link #start(long)} is merged by version, too.
+ * @since  4.1.2
+ */
+public class VersionedReplicatedHashMap<K,V> extends AbstractMap<K,V> implements RequestHandler, StateListener, Closeable {
+    protected final JChannel                       channel;
+    protected MessageDispatcher                    disp;
+    protected final Log                            log=LogFactory.getLog(this.getClass());
+
+    /** Values are null for removed keys (tombstones) */
+    protected final ConcurrentMap<K,Versioned<V>>  map=new ConcurrentHashMap<>();
+
+    /** Number of keys with a value (excluding tombstones) */
+    protected final AtomicInteger                  size=new AtomicInteger();
+
+    /** Lamport clock: incremented on local updates and advanced to the highest timestamp received */
+    protected final AtomicLong                     clock=new AtomicLong();
+
+    /** Local updates which haven't yet been sent, guarded by itself */
+    protected final Map<K,Versioned<V>>            pending=new LinkedHashMap<>();
+
+    /** Tombstones in the order in which they were created, guarded by itself */
+    protected final Deque<Tuple<K,Versioned<V>>>   tombstones=new ArrayDeque<>();
+
+    protected long                                 flush_interval=50;
+    protected int                                  max_batch_size=10_000;
+    protected long                                 tombstone_ttl=60_000;
+    protected Marshaller                           marshaller=DEFAULT_MARSHALLER;
+    protected Future<?>                            flush_task;
+    protected final RequestOptions                 call_options=new RequestOptions(ResponseMode.GET_NONE, 0)
+      .transientFlags(Message.TransientFlag.DONT_LOOPBACK);
+
+    protected final LongAdder                      num_batches_sent=new LongAdder();
+    protected final LongAdder                      num_updates_sent=new LongAdder();
+    protected final LongAdder                      num_updates_rejected=new LongAdder();
+
+    protected static final Marshaller DEFAULT_MARSHALLER=new Marshaller() {
+        public void objectToStream(Object obj, DataOutput out) throws IOException {
+            Util.objectToStream(obj, out);
+        }
+
+        public Object objectFromStream(DataInput in) throws IOException, ClassNotFoundException {
+            return Util.objectFromStream(in);
+        }
+    };
+
+
+    /** Creates a new map. The channel has to be connected, then {@link #start(long)} needs to be called */
+    public VersionedReplicatedHashMap(JChannel channel) {
+        if(channel == null)
+            throw new IllegalArgumentException("Cannot create VersionedReplicatedHashMap with null channel");
+        this.channel=channel;
+        disp=new MessageDispatcher(channel, this).setStateListener(this);
+    }
+
+    public long       getFlushInterval()         {return flush_interval;}
+    public int        getMaxBatchSize()          {return max_batch_size;}
+    public long       getTombstoneTTL()          {return tombstone_ttl;}
+    public Marshaller getMarshaller()            {return marshaller;}
+    public long       getNumBatchesSent()        {return num_batches_sent.sum();}
+    public long       getNumUpdatesSent()        {return num_updates_sent.sum();}
+    public long       getNumUpdatesRejected()    {return num_updates_rejected.sum();}
+    public int        getNumTombstones()         {synchronized(tombstones) {return tombstones.size();}}
+    public JChannel   getChannel()               {return channel;}
+
+    /**
+     * Sets the interval (in ms) at which local updates are sent. 0 sends every update (or putAll()) immediately.
+     * Needs to be set before {@link #start(long)} is called
+     */
+    public VersionedReplicatedHashMap<K,V> setFlushInterval(long interval) {
+        this.flush_interval=interval; return this;
+    }
+
+    /** Sets the max number of pending updates; when reached, the updates are sent before the flush interval elapses */
+    public VersionedReplicatedHashMap<K,V> setMaxBatchSize(int size) {
+        this.max_batch_size=size; return this;
+    }
+
+    /** Sets the time (in ms) for which removed keys are remembered */
+    public VersionedReplicatedHashMap<K,V> setTombstoneTTL(long ttl) {
+        this.tombstone_ttl=ttl; return this;
+    }
+
+    /** Sets the marshaller used to serialize keys and values. Needs to be the same on all members */
+    public VersionedReplicatedHashMap<K,V> setMarshaller(Marshaller m) {
+        this.marshaller=m != null? m : DEFAULT_MARSHALLER; return this;
+    }
+
+    /** Starts the flush task and fetches the state from the coordinator */
+    public void start(long state_timeout) throws Exception {
+        if(flush_interval > 0) {
+            TimeScheduler timer=channel.getProtocolStack().getTransport().getTimer();
+            flush_task=timer.scheduleWithFixedDelay(this::flushAndPurge, flush_interval, flush_interval,
+                                                    TimeUnit.MILLISECONDS, false);
+        }
+        channel.getState(null, state_timeout);
+    }
+
+    public void stop() {
+        if(flush_task != null) {
+            flush_task.cancel(false);
+            flush_task=null;
+        }
+        flush();
+        if(disp != null) {
+            disp.stop();
+            disp=null;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        stop();
+    }
+
+
+    public V get(Object key) {
+        Versioned<V> v=map.get(key);
+        return v != null? v.value : null;
+    }
+
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    public int size() {
+        return size.get();
+    }
+
+    /**
+     * Maps key to value on all members
+     * @return the previous value, or null if there was none
+     */
+    public V put(K key, V value) {
+        if(key == null || value == null)
+            throw new NullPointerException("key and value must not be null");
+        return update(Collections.singletonMap(key, value)).get(key);
+    }
+
+    /** Adds all entries to the map; the entries are sent in one message */
+    public void putAll(Map<? extends K, ? extends V> m) {
+        if(m.isEmpty())
+            return;
+        for(Map.Entry<? extends K,? extends V> e: m.entrySet())
+            if(e.getKey() == null || e.getValue() == null)
+                throw new NullPointerException("keys and values must not be null");
+        update(m);
+    }
+
+    /**
+     * Removes a key from all members
+     * @return the previous value, or null if there was none
+     */
+    public V remove(Object key) {
+        if(!containsKey(key))
+            return null;
+        @SuppressWarnings("unchecked") K k=(K)key;
+        return update(Collections.singletonMap(k, null)).get(k);
+    }
+
+    /** Removes all keys; the removals are sent in one message */
+    public void clear() {
+        Map<K,V> removals=new HashMap<>();
+        map.forEach((k,v) -> {
+            if(v.value != null)
+                removals.put(k, null);
+        });
+        if(!removals.isEmpty())
+            update(removals);
+    }
+
+    public Set<Entry<K,V>> entrySet() {
+        return new AbstractSet<Entry<K,V>>() {
+            public Iterator<Entry<K,V>> iterator() {
+                Iterator<Entry<K,Versioned<V>>> it=map.entrySet().iterator();
+                return new Iterator<Entry<K,V>>() {
+                    Entry<K,V> next=advance();
+
+                    public boolean hasNext() {
+                        return next != null;
+                    }
+
+                    public Entry<K,V> next() {
+                        if(next == null)
+                            throw new NoSuchElementException();
+                        Entry<K,V> retval=next;
+                        next=advance();
+                        return retval;
+                    }
+
+                    protected Entry<K,V> advance() {
+                        while(it.hasNext()) {
+                            Entry<K,Versioned<V>> e=it.next();
+                            V val=e.getValue().value;
+                            if(val != null)
+                                return new SimpleImmutableEntry<>(e.getKey(), val);
+                        }
+                        return null;
+                    }
+                };
+            }
+
+            public int size() {
+                return VersionedReplicatedHashMap.this.size();
+            }
+        };
+    }
+
+    /** Sends all pending updates */
+    public void flush() {
+        Map<K,Versioned<V>> batch;
+        synchronized(pending) {
+            if(pending.isEmpty())
+                return;
+            batch=new LinkedHashMap<>(pending);
+            pending.clear();
+        }
+        send(batch);
+    }
+
+
+    /** Applies local updates (a null value removes a key), queues them for sending and returns the previous values */
+    protected Map<K,V> update(Map<? extends K, ? extends V> updates) {
+        Address local_addr=channel.getAddress();
+        if(local_addr == null)
+            throw new IllegalStateException("channel is not connected");
+        Map<K,V> prev_values=new HashMap<>(updates.size());
+        Map<K,Versioned<V>> applied=new LinkedHashMap<>(updates.size());
+        for(Map.Entry<? extends K,? extends V> e: updates.entrySet()) {
+            Versioned<V> v=new Versioned<>(e.getValue(), clock.incrementAndGet(), local_addr);
+            Versioned<V> prev=apply(e.getKey(), v);
+            if(prev == v) // a concurrent update with a higher version was received: all members will drop v, too
+                continue;
+            applied.put(e.getKey(), v);
+            if(prev != null && prev.value != null)
+                prev_values.put(e.getKey(), prev.value);
+        }
+        boolean flush_now;
+        synchronized(pending) {
+            pending.putAll(applied);
+            flush_now=flush_interval <= 0 || pending.size() >= max_batch_size;
+        }
+        if(flush_now)
+            flush();
+        return prev_values;
+    }
+
+    /**
+     * Applies an update if it has a higher version than the current value of the key
+     * @return the previous version (null if the key was not present), or v itself if v was not applied
+     */
+    protected Versioned<V> apply(K key, Versioned<V> v) {
+        clock.accumulateAndGet(v.timestamp, Math::max);
+        for(;;) {
+            Versioned<V> cur=map.get(key);
+            if(cur == null) {
+                if(map.putIfAbsent(key, v) != null)
+                    continue;
+            }
+            else {
+                if(!v.isNewerThan(cur)) {
+                    num_updates_rejected.increment();
+                    return v;
+                }
+                if(!map.replace(key, cur, v))
+                    continue;
+            }
+            boolean was_present=cur != null && cur.value != null;
+            if(v.value != null && !was_present)
+                size.incrementAndGet();
+            else if(v.value == null) {
+                if(was_present)
+                    size.decrementAndGet();
+                synchronized(tombstones) {
+                    tombstones.add(new Tuple<>(key, v));
+                }
+            }
+            return cur;
+        }
+    }
+
+    protected void send(Map<K,Versioned<V>> batch) {
+        if(disp == null || channel.getView() == null || channel.getView().size() < 2)
+            return;
+        try {
+            ByteArrayDataOutputStream out=new ByteArrayDataOutputStream(batch.size() * 32);
+            out.writeInt(batch.size());
+            for(Map.Entry<K,Versioned<V>> e: batch.entrySet())
+                writeEntry(e.getKey(), e.getValue(), out);
+            disp.castMessage(null, out.getBuffer(), call_options);
+            num_batches_sent.increment();
+            num_updates_sent.add(batch.size());
+        }
+        catch(Exception ex) {
+            log.error("%s: failed sending %d updates: %s", channel.getAddress(), batch.size(), ex);
+        }
+    }
+
+    protected void flushAndPurge() {
+        flush();
+        purgeTombstones();
+    }
+
+    /** Removes tombstones older than tombstone_ttl */
+    protected void purgeTombstones() {
+        long expired=System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(tombstone_ttl);
+        synchronized(tombstones) {
+            Tuple<K,Versioned<V>> t;
+            while((t=tombstones.peek()) != null && t.getVal2().created - expired <= 0) {
+                tombstones.poll();
+                map.remove(t.getVal1(), t.getVal2());
+            }
+        }
+    }
+
+
+    /** Applies a batch of updates received from a different member */
+    public Object handle(Message msg) throws Exception {
+        ByteArrayDataInputStream in=new ByteArrayDataInputStream(msg.getRawBuffer(), msg.getOffset(), msg.getLength());
+        for(int i=0, num=in.readInt(); i < num; i++)
+            readAndApplyEntry(in);
+        return null;
+    }
+
+    public void getState(OutputStream ostream) throws Exception {
+        DataOutputStream out=new DataOutputStream(new BufferedOutputStream(ostream, 8192));
+        for(Map.Entry<K,Versioned<V>> e: map.entrySet()) {
+            out.writeBoolean(true);
+            writeEntry(e.getKey(), e.getValue(), out);
+        }
+        out.writeBoolean(false);
+        out.flush();
+    }
+
+    public void setState(InputStream istream) throws Exception {
+        DataInputStream in=new DataInputStream(new BufferedInputStream(istream, 8192));
+        int num=0;
+        while(in.readBoolean()) {
+            readAndApplyEntry(in);
+            num++;
+        }
+        log.debug("%s: merged state of %d entries", channel.getAddress(), num);
+    }
+
+    protected void writeEntry(K key, Versioned<V> v, DataOutput out) throws Exception {
+        marshaller.objectToStream(key, out);
+        Bits.writeLong(v.timestamp, out);
+        Util.writeAddress(v.origin, out);
+        out.writeBoolean(v.value != null);
+        if(v.value != null)
+            marshaller.objectToStream(v.value, out);
+    }
+
+    @SuppressWarnings("unchecked")
+    protected void readAndApplyEntry(DataInput in) throws Exception {
+        K key=(K)marshaller.objectFromStream(in);
+        long timestamp=Bits.readLong(in);
+        Address origin=Util.readAddress(in);
+        V value=in.readBoolean()? (V)marshaller.objectFromStream(in) : null;
+        apply(key, new Versioned<>(value, timestamp, origin));
+    }
+
+
+    /** A value (null for a removed key) and its version */
+    protected static class Versioned<V> {
+        protected final V       value;
+        protected final long    timestamp;
+        protected final Address origin;
+        protected final long    created=System.nanoTime(); // used to expire tombstones
+
+        protected Versioned(V value, long timestamp, Address origin) {
+            this.value=value;
+            this.timestamp=timestamp;
+            this.origin=origin;
+        }
+
+        protected boolean isNewerThan(Versioned<V> other) {
+            return timestamp > other.timestamp || (timestamp == other.timestamp && origin.compareTo(other.origin) > 0);
+        }
+
+        public String toString() {
+            return String.format("%s (%s#%d)", value, origin, timestamp);
+        }
+    }
+}
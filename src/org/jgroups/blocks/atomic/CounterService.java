@@ -34,6 +34,18 @@ public class CounterService {
         return counter_prot.getOrCreateCounter(name, initial_value);
     }
 
+    /**
+     * Returns a counter which reserves ranges of values from the coordinator and serves increments locally. Values
+     * are unique across the cluster, but only increasing per member. Used e.g. for ID generation
+     * @param name Name of the counter
+     * @param initial_value The initial value of a new counter if there is no existing counter
+     * @param range_size The number of values reserved from the coordinator at a time
+     * @return The counter implementation
+     */
+    public Counter getOrCreateRangeCounter(String name, long initial_value, int range_size) {
+        return counter_prot.getOrCreateRangeCounter(name, initial_value, range_size);
+    }
+
   
     /**
      * Deletes a counter instance (on the coordinator)
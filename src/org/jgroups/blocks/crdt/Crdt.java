@@ -0,0 +1,73 @@
+package org.jgroups.blocks.crdt;
+
+import org.jgroups.Address;
+import org.jgroups.util.Streamable;
+
+/**
+ * Base class of all conflict-free replicated data types (CRDTs). Updates are applied to the local replica and the
+ * resulting delta is handed to a {@link Replicator}, which disseminates it to the other members. Deltas and full states
+ * are merged via {@link #merge(Crdt)}, which has to be commutative, associative and idempotent, so replicas converge
+ * regardless of the order in which deltas are received, or how often.
+ * @since  4.1.2
+ */
+public abstract class Crdt<T extends Crdt<T>> implements Streamable {
+    protected String     name;
+    protected Replicator replicator;
+
+    public static final byte PN_COUNTER   = 1;
+    public static final byte LWW_REGISTER = 2;
+    public static final byte OR_MAP       = 3;
+
+    /** Disseminates deltas of local updates to the other members */
+    public interface Replicator {
+        /** The address of the local member, used to tag updates. Throws an exception if not connected */
+        Address localAddress();
+        void    replicate(Crdt<?> delta);
+    }
+
+
+    protected Crdt() {
+    }
+
+    protected Crdt(String name) {
+        this.name=name;
+    }
+
+    public String  getName()                    {return name;}
+    public T       name(String n)               {this.name=n; return self();}
+    public T       replicator(Replicator r)     {this.replicator=r; return self();}
+
+    /** Returns the type, used to create the right instance when a delta or state is received */
+    public abstract byte type();
+
+    /** Merges a delta or a full state into this replica */
+    public abstract void merge(T other);
+
+    /** Returns a copy of the full state, to be sent to other members */
+    public abstract T copy();
+
+    public static Crdt<?> create(byte type) {
+        switch(type) {
+            case PN_COUNTER:   return new PNCounter();
+            case LWW_REGISTER: return new LWWRegister<>();
+            case OR_MAP:       return new ORMap<>();
+        }
+        throw new IllegalArgumentException("type " + type + " not known");
+    }
+
+    protected Address localAddress() {
+        if(replicator == null)
+            throw new IllegalStateException(String.format("%s is not bound to a replicator", name));
+        return replicator.localAddress();
+    }
+
+    protected void replicate(T delta) {
+        if(replicator != null)
+            replicator.replicate(delta);
+    }
+
+    @SuppressWarnings("unchecked")
+    protected T self() {
+        return (T)this;
+    }
+}
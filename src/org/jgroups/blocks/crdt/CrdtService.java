@@ -0,0 +1,51 @@
+package org.jgroups.blocks.crdt;
+
+import org.jgroups.JChannel;
+import org.jgroups.protocols.CRDT;
+
+/**
+ * Provides conflict-free replicated data types (counters, registers and maps), which are updated locally without
+ * contacting a coordinator, and replicated asynchronously to all members. Replicas converge to the same state once
+ * all updates have been received. Requires protocol {@link CRDT} in the stack.
+ * @since 4.1.2
+ */
+public class CrdtService {
+    protected JChannel ch;
+    protected CRDT     crdt_prot;
+
+    public CrdtService(JChannel ch) {
+        setChannel(ch);
+    }
+
+    public void setChannel(JChannel ch) {
+        this.ch=ch;
+        crdt_prot=ch.getProtocolStack().findProtocol(CRDT.class);
+        if(crdt_prot == null)
+            throw new IllegalStateException("channel configuration must include the CRDT protocol");
+    }
+
+    /**
+     * Returns an existing counter, or creates a new one (with a value of 0) if none exists
+     * @param name The name of the counter. Names are shared by all types, so a counter and a map cannot have the
+     *             same name
+     */
+    public PNCounter getCounter(String name) {
+        return crdt_prot.getOrCreate(name, PNCounter.class);
+    }
+
+    /** Returns an existing register, or creates a new one (with a null value) if none exists */
+    @SuppressWarnings("unchecked")
+    public <V> LWWRegister<V> getRegister(String name) {
+        return crdt_prot.getOrCreate(name, LWWRegister.class);
+    }
+
+    /** Returns an existing map, or creates a new (empty) one if none exists */
+    @SuppressWarnings("unchecked")
+    public <K,V> ORMap<K,V> getMap(String name) {
+        return crdt_prot.getOrCreate(name, ORMap.class);
+    }
+
+    public String print() {
+        return crdt_prot.print();
+    }
+}
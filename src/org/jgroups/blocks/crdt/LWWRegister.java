@@ -0,0 +1,93 @@
+package org.jgroups.blocks.crdt;
+
+import org.jgroups.Address;
+import org.jgroups.util.Bits;
+import org.jgroups.util.Util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * A register holding a single value (last-writer-wins register). Every write is tagged with a timestamp and the
+ * address of the writer; on merge, the write with the highest timestamp wins, and the writer's address breaks ties.
+ * Timestamps are taken from the local clock, but are always higher than the timestamp of the current value, so a
+ * write always overrides the value it has seen.<p/>
+ * Values have to be serializable by {@link Util#objectToStream(Object, DataOutput)}.
+ * @since  4.1.2
+ */
+public class LWWRegister<V> extends Crdt<LWWRegister<V>> {
+    protected V       value;
+    protected long    timestamp;
+    protected Address writer;
+
+    public LWWRegister() {
+    }
+
+    public LWWRegister(String name) {
+        super(name);
+    }
+
+    public byte type() {return LWW_REGISTER;}
+
+    public synchronized V get() {
+        return value;
+    }
+
+    /** Sets a new value and returns the previous one */
+    public V set(V new_value) {
+        Address local_addr=localAddress();
+        LWWRegister<V> d;
+        V old_value;
+        synchronized(this) {
+            old_value=value;
+            value=new_value;
+            timestamp=Math.max(System.currentTimeMillis(), timestamp+1);
+            writer=local_addr;
+            d=copy();
+        }
+        replicate(d);
+        return old_value;
+    }
+
+    public synchronized void merge(LWWRegister<V> other) {
+        synchronized(other) {
+            if(other.writer == null)
+                return;
+            if(writer == null || other.timestamp > timestamp
+              || (other.timestamp == timestamp && other.writer.compareTo(writer) > 0)) {
+                value=other.value;
+                timestamp=other.timestamp;
+                writer=other.writer;
+            }
+        }
+    }
+
+    public synchronized LWWRegister<V> copy() {
+        LWWRegister<V> retval=new LWWRegister<>(name);
+        retval.value=value;
+        retval.timestamp=timestamp;
+        retval.writer=writer;
+        return retval;
+    }
+
+    public synchronized void writeTo(DataOutput out) throws IOException {
+        Util.writeAddress(writer, out);
+        if(writer == null)
+            return;
+        Bits.writeLong(timestamp, out);
+        Util.objectToStream(value, out);
+    }
+
+    public synchronized void readFrom(DataInput in) throws IOException, ClassNotFoundException {
+        writer=Util.readAddress(in);
+        if(writer == null)
+            return;
+        timestamp=Bits.readLong(in);
+        value=Util.objectFromStream(in);
+    }
+
+    public String toString() {
+        return String.format("%s: %s", name, get());
+    }
+}
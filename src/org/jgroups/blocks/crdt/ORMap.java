@@ -0,0 +1,218 @@
+package org.jgroups.blocks.crdt;
+
+import org.jgroups.Address;
+import org.jgroups.util.Bits;
+import org.jgroups.util.Util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * A map which can be updated concurrently by all members without coordination (observed-remove map). Every put() tags
+ * the value with a unique dot (address of the writer and a seqno) and removes the dots it has observed for that key;
+ * remove() removes all observed dots. Removed dots are kept as tombstones, so a merge can tell a removed entry from one
+ * that was not yet received. A put() concurrent to a remove() of the same key survives (add wins); of concurrent puts,
+ * the value with the highest dot is returned.<p/>
+ * Keys and values have to be serializable by {@link Util#objectToStream(Object, DataOutput)}. Tombstones are never
+ * discarded, so this map is not suited for keys which are added and removed at a high rate.
+ * @since  4.1.2
+ */
+public class ORMap<K,V> extends Crdt<ORMap<K,V>> {
+    protected final Map<K,Entry<V>> entries=new HashMap<>();
+    protected long                  seqno; // used to create dots for local updates
+
+    public ORMap() {
+    }
+
+    public ORMap(String name) {
+        super(name);
+    }
+
+    public byte type() {return OR_MAP;}
+
+    public synchronized V get(K key) {
+        Entry<V> e=entries.get(key);
+        return e != null? e.value() : null;
+    }
+
+    public synchronized boolean containsKey(K key) {
+        Entry<V> e=entries.get(key);
+        return e != null && !e.live.isEmpty();
+    }
+
+    public synchronized int size() {
+        return (int)entries.values().stream().filter(e -> !e.live.isEmpty()).count();
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /** Returns a snapshot of the current contents */
+    public synchronized Map<K,V> toMap() {
+        Map<K,V> retval=new HashMap<>(entries.size());
+        entries.forEach((k,e) -> {
+            if(!e.live.isEmpty())
+                retval.put(k, e.value());
+        });
+        return retval;
+    }
+
+    /** Adds or replaces a value, and returns the previous value (null if none) */
+    public V put(K key, V value) {
+        Address local_addr=localAddress();
+        ORMap<K,V> d;
+        V old_value;
+        synchronized(this) {
+            Entry<V> e=entries.computeIfAbsent(key, k -> new Entry<>());
+            old_value=e.value();
+            Dot dot=new Dot(local_addr, ++seqno);
+            Entry<V> delta=new Entry<>();
+            delta.removed.addAll(e.live.keySet());
+            delta.live.put(dot, value);
+            e.merge(delta);
+            d=new ORMap<>(name);
+            d.entries.put(key, delta);
+        }
+        replicate(d);
+        return old_value;
+    }
+
+    /** Removes the value for key and returns it (null if there was no value) */
+    public V remove(K key) {
+        ORMap<K,V> d;
+        V old_value;
+        synchronized(this) {
+            Entry<V> e=entries.get(key);
+            if(e == null || e.live.isEmpty())
+                return null;
+            old_value=e.value();
+            Entry<V> delta=new Entry<>();
+            delta.removed.addAll(e.live.keySet());
+            e.merge(delta);
+            d=new ORMap<>(name);
+            d.entries.put(key, delta);
+        }
+        replicate(d);
+        return old_value;
+    }
+
+    public synchronized void merge(ORMap<K,V> other) {
+        synchronized(other) {
+            other.entries.forEach((k,v) -> entries.computeIfAbsent(k, x -> new Entry<>()).merge(v));
+        }
+    }
+
+    public synchronized ORMap<K,V> copy() {
+        ORMap<K,V> retval=new ORMap<>(name);
+        entries.forEach((k,v) -> retval.entries.put(k, v.copy()));
+        return retval;
+    }
+
+    public synchronized void writeTo(DataOutput out) throws IOException {
+        out.writeInt(entries.size());
+        for(Map.Entry<K,Entry<V>> entry: entries.entrySet()) {
+            Util.objectToStream(entry.getKey(), out);
+            Entry<V> e=entry.getValue();
+            out.writeInt(e.live.size());
+            for(Map.Entry<Dot,V> live: e.live.entrySet()) {
+                live.getKey().writeTo(out);
+                Util.objectToStream(live.getValue(), out);
+            }
+            out.writeInt(e.removed.size());
+            for(Dot dot: e.removed)
+                dot.writeTo(out);
+        }
+    }
+
+    public synchronized void readFrom(DataInput in) throws IOException, ClassNotFoundException {
+        int size=in.readInt();
+        for(int i=0; i < size; i++) {
+            K key=Util.objectFromStream(in);
+            Entry<V> e=new Entry<>();
+            int num_live=in.readInt();
+            for(int j=0; j < num_live; j++) {
+                Dot dot=Dot.readFrom(in);
+                e.live.put(dot, Util.objectFromStream(in));
+            }
+            int num_removed=in.readInt();
+            for(int j=0; j < num_removed; j++)
+                e.removed.add(Dot.readFrom(in));
+            entries.put(key, e);
+        }
+    }
+
+    public String toString() {
+        return String.format("%s: %s", name, toMap());
+    }
+
+
+    /** The live values of a key (normally one, more after concurrent puts) and the removed dots */
+    protected static class Entry<V> {
+        protected final Map<Dot,V> live=new HashMap<>(2);
+        protected final Set<Dot>   removed=new HashSet<>(2);
+
+        protected V value() {
+            return live.isEmpty()? null : live.get(Collections.max(live.keySet()));
+        }
+
+        protected void merge(Entry<V> other) {
+            removed.addAll(other.removed);
+            other.live.forEach((dot,val) -> {
+                if(!removed.contains(dot))
+                    live.put(dot, val);
+            });
+            live.keySet().removeAll(removed);
+        }
+
+        protected Entry<V> copy() {
+            Entry<V> retval=new Entry<>();
+            retval.live.putAll(live);
+            retval.removed.addAll(removed);
+            return retval;
+        }
+    }
+
+
+    /** Uniquely identifies an update: the address of the member which made the update and a seqno */
+    protected static class Dot implements Comparable<Dot> {
+        protected final Address addr;
+        protected final long    seqno;
+
+        protected Dot(Address addr, long seqno) {
+            this.addr=addr;
+            this.seqno=seqno;
+        }
+
+        public int compareTo(Dot o) {
+            int rc=Long.compare(seqno, o.seqno);
+            return rc != 0? rc : addr.compareTo(o.addr);
+        }
+
+        public boolean equals(Object obj) {
+            if(!(obj instanceof Dot))
+                return false;
+            Dot other=(Dot)obj;
+            return seqno == other.seqno && addr.equals(other.addr);
+        }
+
+        public int hashCode() {
+            return addr.hashCode() * 31 + Long.hashCode(seqno);
+        }
+
+        protected void writeTo(DataOutput out) throws IOException {
+            Util.writeAddress(addr, out);
+            Bits.writeLong(seqno, out);
+        }
+
+        protected static Dot readFrom(DataInput in) throws IOException, ClassNotFoundException {
+            return new Dot(Util.readAddress(in), Bits.readLong(in));
+        }
+
+        public String toString() {
+            return addr + "#" + seqno;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package org.jgroups.blocks.crdt;
+
+import org.jgroups.Address;
+import org.jgroups.util.Bits;
+import org.jgroups.util.Util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A counter which can be incremented and decremented without coordination (PN-counter). Every member keeps the sum of
+ * its own increments and decrements; the value of the counter is the sum of all increments minus the sum of all
+ * decrements. Merging takes the max of each member's sums.<p/>
+ * Updates are applied locally and replicated asynchronously, so members may see different values until all deltas
+ * have been received.
+ * @since  4.1.2
+ */
+public class PNCounter extends Crdt<PNCounter> {
+    /** The increments ([0]) and decrements ([1]) of each member */
+    protected final Map<Address,long[]> entries=new HashMap<>();
+
+    public PNCounter() {
+    }
+
+    public PNCounter(String name) {
+        super(name);
+    }
+
+    public byte type() {return PN_COUNTER;}
+
+    public synchronized long get() {
+        long retval=0;
+        for(long[] e: entries.values())
+            retval+=e[0] - e[1];
+        return retval;
+    }
+
+    public long incrementAndGet() {return addAndGet(1);}
+    public long decrementAndGet() {return addAndGet(-1);}
+
+    public long addAndGet(long delta) {
+        Address local_addr=localAddress();
+        PNCounter d;
+        long retval;
+        synchronized(this) {
+            long[] e=entries.computeIfAbsent(local_addr, k -> new long[2]);
+            if(delta >= 0)
+                e[0]+=delta;
+            else
+                e[1]-=delta;
+            retval=get();
+            d=new PNCounter(name);
+            d.entries.put(local_addr, e.clone());
+        }
+        replicate(d);
+        return retval;
+    }
+
+    public synchronized void merge(PNCounter other) {
+        synchronized(other) {
+            for(Map.Entry<Address,long[]> entry: other.entries.entrySet()) {
+                long[] e=entries.computeIfAbsent(entry.getKey(), k -> new long[2]), o=entry.getValue();
+                e[0]=Math.max(e[0], o[0]);
+                e[1]=Math.max(e[1], o[1]);
+            }
+        }
+    }
+
+    public synchronized PNCounter copy() {
+        PNCounter retval=new PNCounter(name);
+        entries.forEach((k,v) -> retval.entries.put(k, v.clone()));
+        return retval;
+    }
+
+    public synchronized void writeTo(DataOutput out) throws IOException {
+        out.writeInt(entries.size());
+        for(Map.Entry<Address,long[]> entry: entries.entrySet()) {
+            Util.writeAddress(entry.getKey(), out);
+            Bits.writeLong(entry.getValue()[0], out);
+            Bits.writeLong(entry.getValue()[1], out);
+        }
+    }
+
+    public synchronized void readFrom(DataInput in) throws IOException, ClassNotFoundException {
+        int size=in.readInt();
+        for(int i=0; i < size; i++) {
+            Address addr=Util.readAddress(in);
+            entries.put(addr, new long[]{Bits.readLong(in), Bits.readLong(in)});
+        }
+    }
+
+    public String toString() {
+        return String.format("%s: %d", name, get());
+    }
+}
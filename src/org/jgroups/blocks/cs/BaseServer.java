@@ -25,7 +25,9 @@ import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
- * Abstract class for a server handling sending, receiving and connection management.
+ * Abstract class for a server handling sending, receiving and connection management.<p/>
+ * If conns_per_peer is greater than 1, up to conns_per_peer connections (lanes) are established to each peer. Lane 0
+ * is stored in conns, the other lanes in lanes. Messages are assigned to lanes by {@link #lane(int)}.
  * @since 3.6.5
  */
 @MBean(description="Server used to accept connections from other servers (or clients) and send data to servers")
@@ -33,6 +35,7 @@ public abstract class BaseServer implements Closeable, ConnectionListener {
     protected Address                         local_addr; // typically the address of the server socket or channel
     protected final List<ConnectionListener>  conn_listeners=new CopyOnWriteArrayList<>();
     protected final Map<Address,Connection>   conns=new HashMap<>();
+    protected final Map<Address,Connection[]> lanes=new HashMap<>(); // connections for lanes > 0 (index 0 is unused)
     protected final Lock                      sock_creation_lock=new ReentrantLock(true); // syncs socket establishment
     protected final ThreadFactory             factory;
     protected SocketFactory                   socket_factory=new DefaultSocketFactory();
@@ -58,6 +61,14 @@ public abstract class BaseServer implements Closeable, ConnectionListener {
     protected int                             linger=-1;
     protected TimeService                     time_service;
 
+    @ManagedAttribute(description="Number of connections (lanes) to each peer. Messages are assigned to lanes by " +
+      "sending thread, and messages >= large_msg_size are sent over the last lane")
+    protected int                             conns_per_peer=1;
+
+    @ManagedAttribute(description="Messages whose size is >= large_msg_size are sent over the last lane " +
+      "(if conns_per_peer > 1), so they don't delay smaller messages. 0 disables this")
+    protected int                             large_msg_size;
+
 
     protected BaseServer(ThreadFactory f, SocketFactory sf) {
         this.factory=f;
@@ -98,13 +109,29 @@ public abstract class BaseServer implements Closeable, ConnectionListener {
     public BaseServer       linger(int linger)                      {this.linger=linger; return this;}
     public boolean          tcpNodelay()                            {return tcp_nodelay;}
     public BaseServer       tcpNodelay(boolean tcp_nodelay)         {this.tcp_nodelay = tcp_nodelay; return this;}
+    public int              connsPerPeer()                          {return conns_per_peer;}
+    public int              largeMsgSize()                          {return large_msg_size;}
+    public BaseServer       largeMsgSize(int size)                  {this.large_msg_size=size; return this;}
+
+    public BaseServer connsPerPeer(int num) {
+        if(num < 1 || num > Connection.MAX_LANES)
+            throw new IllegalArgumentException(String.format("conns_per_peer (%d) must be in range [1..%d]",
+                                                             num, Connection.MAX_LANES));
+        this.conns_per_peer=num;
+        return this;
+    }
     @ManagedAttribute(description="True if the server is running, else false")
     public boolean          running()                               {return running.get();}
 
 
     @ManagedAttribute(description="Number of connections")
     public synchronized int getNumConnections() {
-        return conns.size();
+        int retval=conns.size();
+        for(Connection[] arr: lanes.values())
+            for(Connection conn: arr)
+                if(conn != null)
+                    retval++;
+        return retval;
     }
 
     @ManagedAttribute(description="Number of currently open connections")
@@ -113,6 +140,10 @@ public abstract class BaseServer implements Closeable, ConnectionListener {
         for(Connection conn: conns.values())
             if(conn.isOpen())
                 retval++;
+        for(Connection[] arr: lanes.values())
+            for(Connection conn: arr)
+                if(conn != null && conn.isOpen())
+                    retval++;
         return retval;
     }
 
@@ -139,6 +170,8 @@ public abstract class BaseServer implements Closeable, ConnectionListener {
             for(Map.Entry<Address,Connection> entry: conns.entrySet())
                 Util.close(entry.getValue());
             conns.clear();
+            lanes.values().forEach(Util::close);
+            lanes.clear();
         }
         conn_listeners.clear();
     }
@@ -194,7 +227,7 @@ public abstract class BaseServer implements Closeable, ConnectionListener {
         // Get a connection (or create one if not yet existent) and send the data
         Connection conn=null;
         try {
-            conn=getConnection(dest);
+            conn=getConnection(dest, lane(length));
             conn.send(data, offset, length);
         }
         catch(Exception ex) {
@@ -221,7 +254,7 @@ public abstract class BaseServer implements Closeable, ConnectionListener {
         // Get a connection (or create one if not yet existent) and send the data
         Connection conn=null;
         try {
-            conn=getConnection(dest);
+            conn=getConnection(dest, lane(data.remaining()));
             conn.send(data);
         }
         catch(Exception ex) {
@@ -231,6 +264,32 @@ public abstract class BaseServer implements Closeable, ConnectionListener {
     }
 
 
+    /**
+     * Sends multiple buffers to dest, each as a separate message. Connections may send them with a single write
+     * @param dest The destination, must not be null
+     */
+    public void send(Address dest, List<ByteBuffer> bufs) throws Exception {
+        if(dest == null || bufs == null || bufs.isEmpty())
+            return;
+
+        if(dest.equals(local_addr)) {
+            for(ByteBuffer buf: bufs)
+                receive(dest, buf);
+            return;
+        }
+
+        Connection conn=null;
+        try {
+            conn=getConnection(dest);
+            conn.send(bufs);
+        }
+        catch(Exception ex) {
+            removeConnectionIfPresent(dest, conn);
+            throw ex;
+        }
+    }
+
+
     @Override
     public void connectionClosed(Connection conn, String reason) {
         removeConnectionIfPresent(conn.peerAddress(), conn);
@@ -248,6 +307,10 @@ public abstract class BaseServer implements Closeable, ConnectionListener {
         return conns.containsKey(address);
     }
 
+    public synchronized boolean hasConnection(Address address, int lane) {
+        return get(address, lane) != null;
+    }
+
     public synchronized boolean connectionEstablishedTo(Address address) {
         Connection conn=conns.get(address);
         return conn != null && conn.isConnected();
@@ -255,9 +318,14 @@ public abstract class BaseServer implements Closeable, ConnectionListener {
 
     /** Creates a new connection to dest, or returns an existing one */
     public Connection getConnection(Address dest) throws Exception {
+        return getConnection(dest, 0);
+    }
+
+    /** Creates a new connection to dest in the given lane, or returns an existing one */
+    public Connection getConnection(Address dest, int lane) throws Exception {
         Connection conn;
         synchronized(this) {
-            if((conn=conns.get(dest)) != null
+            if((conn=get(dest, lane)) != null
               && (conn.isConnected() || conn.isConnectionPending())) // keep FAST path on the most common case
                 return conn;
         }
@@ -269,12 +337,12 @@ public abstract class BaseServer implements Closeable, ConnectionListener {
             // extra check in conn map and closing the new connection, w/ sock_creation_lock it looks much simpler
             // (slow path, so not important)
             synchronized(this) {
-                conn=conns.get(dest); // check again after obtaining sock_creation_lock
+                conn=get(dest, lane); // check again after obtaining sock_creation_lock
                 if(conn != null && (conn.isConnected() || conn.isConnectionPending()))
                     return conn;
 
                 // create conn stub
-                conn=createConnection(dest);
+                conn=createConnection(dest).lane(lane);
                 replaceConnection(dest, conn);
             }
 
@@ -290,7 +358,7 @@ public abstract class BaseServer implements Closeable, ConnectionListener {
             }
 
             synchronized(this) {
-                Connection existing_conn=conns.get(dest); // check again after obtaining sock_creation_lock
+                Connection existing_conn=get(dest, lane); // check again after obtaining sock_creation_lock
                 // added by a successful accept()
                 if(existing_conn != null && (existing_conn.isConnected() || existing_conn.isConnectionPending())
                   && existing_conn != conn) {
@@ -314,7 +382,7 @@ public abstract class BaseServer implements Closeable, ConnectionListener {
 
     @GuardedBy("this")
     public void replaceConnection(Address address, Connection conn) {
-        Connection previous=conns.put(address, conn);
+        Connection previous=put(address, conn);
         Util.close(previous); // closes previous connection (if present)
     }
 
@@ -326,7 +394,7 @@ public abstract class BaseServer implements Closeable, ConnectionListener {
 
 
     public synchronized void addConnection(Address peer_addr, Connection conn) throws Exception {
-        boolean conn_exists=hasConnection(peer_addr),
+        boolean conn_exists=hasConnection(peer_addr, conn.lane()),
           replace=conn_exists && local_addr.compareTo(peer_addr) < 0; // bigger conn wins
 
         if(!conn_exists || replace) {
@@ -357,6 +425,12 @@ public abstract class BaseServer implements Closeable, ConnectionListener {
         synchronized(this) {
             for(Map.Entry<Address,Connection> entry: conns.entrySet())
                 sb.append(entry.getKey()).append(": ").append(entry.getValue()).append("\n");
+            for(Map.Entry<Address,Connection[]> entry: lanes.entrySet()) {
+                Connection[] arr=entry.getValue();
+                for(int i=1; i < arr.length; i++)
+                    if(arr[i] != null)
+                        sb.append(entry.getKey()).append(" [lane ").append(i).append("]: ").append(arr[i]).append("\n");
+            }
         }
         return sb.toString();
     }
@@ -368,9 +442,9 @@ public abstract class BaseServer implements Closeable, ConnectionListener {
             return;
         Connection tmp=null;
         synchronized(this) {
-            Connection existing=conns.get(address);
+            Connection existing=get(address, conn.lane());
             if(conn == existing) {
-                tmp=conns.remove(address);
+                tmp=remove(address, conn.lane());
             }
         }
         if(tmp != null) { // Moved conn close outside of sync block (https://issues.jboss.org/browse/JGRP-2053)
@@ -383,6 +457,8 @@ public abstract class BaseServer implements Closeable, ConnectionListener {
     public synchronized void clearConnections() {
         conns.values().forEach(Util::close);
         conns.clear();
+        lanes.values().forEach(Util::close);
+        lanes.clear();
     }
 
     /** Removes all connections which are not in current_mbrs */
@@ -391,14 +467,23 @@ public abstract class BaseServer implements Closeable, ConnectionListener {
             return;
 
         Map<Address,Connection> copy=null;
+        Map<Address,Connection[]> lanes_copy=null;
         synchronized(this) {
             copy=new HashMap<>(conns);
             conns.keySet().retainAll(current_mbrs);
+            if(!lanes.isEmpty()) {
+                lanes_copy=new HashMap<>(lanes);
+                lanes.keySet().retainAll(current_mbrs);
+            }
         }
         copy.keySet().removeAll(current_mbrs);
         for(Map.Entry<Address,Connection> entry: copy.entrySet())
             Util.close(entry.getValue());
         copy.clear();
+        if(lanes_copy != null) {
+            lanes_copy.keySet().removeAll(current_mbrs);
+            lanes_copy.values().forEach(Util::close);
+        }
     }
 
     public void notifyConnectionClosed(Connection conn, String cause) {
@@ -460,6 +545,63 @@ public abstract class BaseServer implements Closeable, ConnectionListener {
     }
 
 
+    /**
+     * Picks the lane (connection) to a peer for a message of the given size. Messages >= large_msg_size are sent over
+     * the last lane, so they don't delay smaller messages. The other messages are assigned to lanes by sending thread:
+     * all messages sent by the same thread use the same connection, and are received in the order in which they were
+     * sent. Reliable protocols (e.g. UNICAST3) restore the order of messages sent over different lanes.<p/>
+     * Note that the sending thread is the thread calling the transport: with a bundler which sends on a single thread
+     * (e.g. the default transfer-queue bundler), all bundled messages use the same lane, and only messages which are
+     * not bundled (e.g. DONT_BUNDLE) and large messages use other lanes
+     */
+    protected int lane(int length) {
+        int num=conns_per_peer;
+        if(num <= 1)
+            return 0;
+        if(large_msg_size > 0) {
+            if(length >= large_msg_size)
+                return num-1;
+            num--;
+        }
+        return num == 1? 0 : (int)(Thread.currentThread().getId() % num);
+    }
+
+    @GuardedBy("this")
+    protected Connection get(Address addr, int lane) {
+        if(lane == 0)
+            return conns.get(addr);
+        Connection[] arr=lanes.get(addr);
+        return arr != null && lane < arr.length? arr[lane] : null;
+    }
+
+    /** Adds conn to the lane given by conn.lane() and returns the previous connection in that lane (if any) */
+    @GuardedBy("this")
+    protected Connection put(Address addr, Connection conn) {
+        int lane=conn.lane();
+        if(lane == 0)
+            return conns.put(addr, conn);
+        Connection[] arr=lanes.get(addr);
+        if(arr == null || lane >= arr.length)
+            lanes.put(addr, arr=arr == null? new Connection[Math.max(conns_per_peer, lane+1)] : Arrays.copyOf(arr, lane+1));
+        Connection previous=arr[lane];
+        arr[lane]=conn;
+        return previous;
+    }
+
+    @GuardedBy("this")
+    protected Connection remove(Address addr, int lane) {
+        if(lane == 0)
+            return conns.remove(addr);
+        Connection[] arr=lanes.get(addr);
+        if(arr == null || lane >= arr.length)
+            return null;
+        Connection previous=arr[lane];
+        arr[lane]=null;
+        if(Arrays.stream(arr).allMatch(Objects::isNull))
+            lanes.remove(addr);
+        return previous;
+    }
+
     protected static org.jgroups.Address localAddress(InetAddress bind_addr, int local_port, InetAddress external_addr, int external_port) {
         if(external_addr != null)
             return new IpAddress(external_addr, external_port > 0? external_port : local_port);
@@ -533,6 +675,14 @@ public abstract class BaseServer implements Closeable, ConnectionListener {
                             it.remove();                           
                         }
                     }
+                    for(Map.Entry<Address,Connection[]> entry: new ArrayList<>(lanes.entrySet())) {
+                        for(Connection c: entry.getValue()) {
+                            if(c != null && c.isExpired(System.nanoTime())) {
+                                Util.close(c);
+                                remove(entry.getKey(), c.lane());
+                            }
+                        }
+                    }
                 }
                 Util.sleep(reaperInterval);
             }           
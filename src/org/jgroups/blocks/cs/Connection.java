@@ -4,15 +4,20 @@ import org.jgroups.Address;
 
 import java.io.Closeable;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
 
 
 /**
- * Represents a connection to a peer
+ * Represents a connection to a peer. If there are multiple connections to the same peer, each connection has a
+ * different lane; the lane is sent as part of the cookie when the connection is established
  */
 public abstract class Connection implements Closeable {
     public static final byte[]    cookie= { 'b', 'e', 'l', 'a' };
+    public static final int       MAX_LANES=16;
     protected Address             peer_addr;    // address of the 'other end' of the connection
     protected long                last_access;  // timestamp of the last access to this connection (read or write)
+    protected int                 lane;         // index of this connection among the connections to the same peer
 
     abstract public boolean isOpen();
     abstract public boolean isConnected();
@@ -25,4 +30,36 @@ public abstract class Connection implements Closeable {
     abstract public void    send(byte[] buf, int offset, int length) throws Exception;
     abstract public void    send(ByteBuffer buf) throws Exception;
     abstract public String  status();
+
+    public int              lane()                                  {return lane;}
+    public Connection       lane(int l)                             {this.lane=l; return this;}
+
+    /** Sends multiple buffers, each as a separate message. Subclasses may do this with a single write */
+    public void send(List<ByteBuffer> bufs) throws Exception {
+        for(ByteBuffer buf: bufs)
+            send(buf);
+    }
+
+    /**
+     * Returns the cookie sent by a connection of the given lane. Lane 0 sends the regular cookie, so a single
+     * connection to a peer is compatible with previous versions
+     */
+    public static byte[] cookie(int lane) {
+        if(lane == 0)
+            return cookie;
+        byte[] retval=Arrays.copyOf(cookie, cookie.length);
+        retval[retval.length-1]+=lane;
+        return retval;
+    }
+
+    /** Returns the lane encoded in a received cookie, or -1 if the cookie is invalid */
+    public static int laneOf(byte[] input_cookie) {
+        if(input_cookie == null || input_cookie.length != cookie.length)
+            return -1;
+        for(int i=0; i < cookie.length-1; i++)
+            if(input_cookie[i] != cookie[i])
+                return -1;
+        int lane=input_cookie[cookie.length-1] - cookie[cookie.length-1];
+        return lane >= 0 && lane < MAX_LANES? lane : -1;
+    }
 }
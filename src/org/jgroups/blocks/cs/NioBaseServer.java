@@ -9,10 +9,14 @@ import org.jgroups.util.ThreadFactory;
 import java.nio.channels.*;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
+ * Base class for NIO servers and clients. A single selector thread (the acceptor) accepts new connections. If
+ * num_selectors is greater than 1, reads, writes and connects of the connections are handled by num_selectors
+ * selector threads, and connections are assigned to them round-robin.
  * @author Bela Ban
  * @since  3.6.5
  */
@@ -32,6 +36,17 @@ public abstract class NioBaseServer extends BaseServer {
 
     protected long              reader_idle_time=20000;
 
+    @ManagedAttribute(description="Number of selector threads handling the connections. Connections are assigned " +
+      "round-robin. If 1, the acceptor thread handles all connections. Changing this value requires a restart")
+    protected int               num_selectors=1;
+
+    @ManagedAttribute(description="Max number of messages read from a connection and passed to the receiver in one " +
+      "call. 1 disables read batching. Changing this value affects new connections only",writable=true)
+    protected int               max_read_batch_size=1;
+
+    protected SelectorLoop[]    selector_loops; // null if num_selectors <= 1
+    protected final AtomicInteger next_selector=new AtomicInteger();
+
 
 
     protected NioBaseServer(ThreadFactory f, SocketFactory sf) {
@@ -48,6 +63,10 @@ public abstract class NioBaseServer extends BaseServer {
     public boolean        copyOnPartialWrite()          {return copy_on_partial_write;}
     public long           readerIdleTime()              {return reader_idle_time;}
     public NioBaseServer  readerIdleTime(long t)        {reader_idle_time=t; return this;}
+    public int            numSelectors()                {return num_selectors;}
+    public NioBaseServer  numSelectors(int n)           {num_selectors=n; return this;}
+    public int            maxReadBatchSize()            {return max_read_batch_size;}
+    public NioBaseServer  maxReadBatchSize(int size)    {max_read_batch_size=size; return this;}
 
     public NioBaseServer  copyOnPartialWrite(boolean b) {
         this.copy_on_partial_write=b;
@@ -56,6 +75,10 @@ public abstract class NioBaseServer extends BaseServer {
                 NioConnection conn=(NioConnection)c;
                 conn.copyOnPartialWrite(b);
             }
+            for(Connection[] arr: lanes.values())
+                for(Connection c: arr)
+                    if(c != null)
+                        ((NioConnection)c).copyOnPartialWrite(b);
         }
         return this;
     }
@@ -66,6 +89,10 @@ public abstract class NioBaseServer extends BaseServer {
             NioConnection conn=(NioConnection)c;
             retval+=conn.numPartialWrites();
         }
+        for(Connection[] arr: lanes.values())
+            for(Connection c: arr)
+                if(c != null)
+                    retval+=((NioConnection)c).numPartialWrites();
         return retval;
     }
 
@@ -88,6 +115,11 @@ public abstract class NioBaseServer extends BaseServer {
 
 
     protected SelectionKey register(SelectableChannel ch, int interest_ops, NioConnection conn) throws Exception {
+        SelectorLoop[] loops=selector_loops;
+        if(loops != null) {
+            SelectorLoop loop=loops[(next_selector.getAndIncrement() & Integer.MAX_VALUE) % loops.length];
+            return loop.register(ch, interest_ops, conn);
+        }
         reg_lock.lock();
         try {
             registration=true;
@@ -112,6 +144,28 @@ public abstract class NioBaseServer extends BaseServer {
 
     }
 
+    /** Creates and starts the selector loops if num_selectors > 1 */
+    protected void startSelectorLoops(String name) throws Exception {
+        if(num_selectors <= 1)
+            return;
+        SelectorLoop[] loops=new SelectorLoop[num_selectors];
+        for(int i=0; i < loops.length; i++) {
+            loops[i]=new SelectorLoop(Selector.open());
+            loops[i].start(String.format("%s-%d", name, i+1));
+        }
+        selector_loops=loops;
+    }
+
+    /** Wakes up the selector loops, which terminate as running is false */
+    protected void stopSelectorLoops() {
+        SelectorLoop[] loops=selector_loops;
+        if(loops == null)
+            return;
+        for(SelectorLoop loop: loops)
+            loop.sel.wakeup();
+        selector_loops=null;
+    }
+
 
 
     protected class Acceptor implements Runnable {
@@ -120,7 +174,7 @@ public abstract class NioBaseServer extends BaseServer {
             Iterator<SelectionKey> it=null;
             while(running.get() && doSelect()) {
                 try {
-                    it=selector.selectedKeys().iterator();
+                    it=selector().selectedKeys().iterator();
                 }
                 catch(Throwable ex) {
                     continue;
@@ -152,13 +206,19 @@ public abstract class NioBaseServer extends BaseServer {
                     }
                 }
             }
+            done();
+        }
+
+        protected Selector selector() {return selector;}
+
+        protected void done() {
             acceptorDone();
         }
 
 
         protected boolean doSelect() {
             try {
-                int num=selector.select();
+                int num=selector().select();
                 num_selects++;
                 checkforPendingRegistrations();
                 if(num == 0) return true;
@@ -188,4 +248,55 @@ public abstract class NioBaseServer extends BaseServer {
         }
     }
 
+    /** A selector and the thread calling select() on it, handling the connections registered with the selector */
+    protected class SelectorLoop extends Acceptor {
+        protected final Selector   sel;
+        protected final Lock       lock=new ReentrantLock(); // for registrations
+        protected volatile boolean pending_registration;
+
+        protected SelectorLoop(Selector sel) {
+            this.sel=sel;
+        }
+
+        protected void start(String name) {
+            Thread thread=factory.newThread(this, name);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        protected SelectionKey register(SelectableChannel ch, int interest_ops, NioConnection conn) throws Exception {
+            lock.lock();
+            try {
+                pending_registration=true;
+                sel.wakeup(); // needed because registration will block until selector.select() returns
+                return ch.register(sel, interest_ops, conn);
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+
+        @Override protected Selector selector() {return sel;}
+
+        @Override protected void done() {
+            try {
+                sel.close();
+            }
+            catch(Exception ignored) {
+            }
+        }
+
+        @Override protected void checkforPendingRegistrations() {
+            if(pending_registration) {
+                lock.lock();
+                try {
+                    pending_registration=false;
+                }
+                finally {
+                    lock.unlock();
+                }
+            }
+        }
+    }
+
 }
@@ -16,7 +16,8 @@ import java.net.SocketException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -43,6 +44,7 @@ public class NioConnection extends Connection {
     protected Reader              reader=new Reader(); // manages the thread which receives messages
     protected long                reader_idle_time=20000; // number of ms a reader can be idle (no msgs) until it terminates
     protected boolean             connected;
+    protected final List<ByteBuffer> read_batch; // messages read but not yet passed to the receiver (null: no batching)
 
 
 
@@ -53,6 +55,7 @@ public class NioConnection extends Connection {
             throw new IllegalArgumentException("Invalid parameter peer_addr="+ peer_addr);
         this.peer_addr=peer_addr;
         send_buf=new Buffers(server.maxSendBuffers() *2); // space for actual bufs and length bufs!
+        read_batch=server.maxReadBatchSize() > 1? new ArrayList<>(server.maxReadBatchSize()) : null;
         channel=server.socketFactory().createSocketChannel("jgroups.nio.client");
         channel.configureBlocking(false);
         setSocketParameters(channel.socket());
@@ -66,6 +69,7 @@ public class NioConnection extends Connection {
         channel.configureBlocking(false);
         this.connected=channel.isConnected();
         send_buf=new Buffers(server.maxSendBuffers() *2); // space for actual bufs and length bufs!
+        read_batch=server.maxReadBatchSize() > 1? new ArrayList<>(server.maxReadBatchSize()) : null;
         this.peer_addr=server.usePeerConnections()? null /* read by first receive() */
           : new IpAddress((InetSocketAddress)channel.getRemoteAddress());
         last_access=getTimestamp(); // last time a message was sent or received (ns)
@@ -140,8 +144,11 @@ public class NioConnection extends Connection {
         try {
             if(!server.deferClientBinding())
                 this.channel.bind(new InetSocketAddress(server.clientBindAddress(), server.clientBindPort()));
+            // initiate the connection before registering: on some platforms, the selector reports an unconnected
+            // channel as connectable, and finishConnect() would then throw a NoConnectionPendingException
+            boolean connected_now=Util.connect(channel, destAddr);
             this.key=server.register(channel, SelectionKey.OP_CONNECT | SelectionKey.OP_READ, this);
-            if(Util.connect(channel, destAddr) && channel.finishConnect()) {
+            if(connected_now && channel.finishConnect()) {
                 clearSelectionKey(SelectionKey.OP_CONNECT);
                 this.connected=channel.isConnected();
             }
@@ -226,6 +233,38 @@ public class NioConnection extends Connection {
         }
     }
 
+    /**
+     * Adds all buffers to the send buffers and writes them with as few (gathering) writes as possible. As with
+     * {@link #send(ByteBuffer)}, buffers which cannot be added because a previous write didn't complete are dropped
+     */
+    @Override
+    public void send(List<ByteBuffer> bufs) throws Exception {
+        send_lock.lock();
+        try {
+            boolean success=true;
+            for(ByteBuffer buf: bufs) {
+                if(send_buf.size() + 2 > send_buf.capacity()) { // full: write the buffers added so far
+                    if(!(success=send_buf.write(channel)))
+                        break;
+                }
+                send_buf.add(makeLengthBuffer(buf), buf);
+            }
+            if(success)
+                success=send_buf.write(channel);
+            writeInterest(!success);
+            if(success)
+                updateLastAccessed();
+            else {
+                if(copy_on_partial_write)
+                    send_buf.copy();
+                partial_writes++;
+            }
+        }
+        finally {
+            send_lock.unlock();
+        }
+    }
+
     protected boolean _receive(boolean update) throws Exception {
         ByteBuffer msg;
         Receiver   receiver=server.receiver();
@@ -238,13 +277,37 @@ public class NioConnection extends Connection {
 
         if((msg=recv_buf.readLengthAndData(channel)) == null)
             return false;
-        if(receiver != null)
+        if(read_batch != null) {
+            recv_buf.remove(1); // msg is owned by the batch: the next message is read into a new buffer
+            read_batch.add(msg);
+            if(read_batch.size() >= server.maxReadBatchSize())
+                deliverReadBatch();
+        }
+        else if(receiver != null)
             receiver.receive(peer_addr, msg);
         if(update)
             updateLastAccessed();
         return true;
     }
 
+    /** Passes the messages read so far to the receiver */
+    protected void deliverReadBatch() {
+        if(read_batch == null || read_batch.isEmpty())
+            return;
+        Receiver receiver=server.receiver();
+        try {
+            if(receiver != null) {
+                if(read_batch.size() == 1)
+                    receiver.receive(peer_addr, read_batch.get(0));
+                else
+                    receiver.receive(peer_addr, read_batch);
+            }
+        }
+        finally {
+            read_batch.clear();
+        }
+    }
+
 
     @Override
     public void close() throws IOException {
@@ -334,7 +397,7 @@ public class NioConnection extends Connection {
             int addr_size=local_addr.serializedSize();
             int expected_size=cookie.length + Global.SHORT_SIZE*2 + addr_size;
             ByteArrayDataOutputStream out=new ByteArrayDataOutputStream(expected_size +2);
-            out.write(cookie, 0, cookie.length);
+            out.write(cookie(lane), 0, cookie.length); // the cookie contains the lane
             out.writeShort(Version.version);
             out.writeShort(addr_size); // address size
             local_addr.writeTo(out);
@@ -360,7 +423,7 @@ public class NioConnection extends Connection {
             switch(current_position) {
                 case 0:      // cookie
                     byte[] cookie_buf=getBuffer(buf);
-                    if(!Arrays.equals(cookie, cookie_buf))
+                    if((lane=laneOf(cookie_buf)) < 0)
                         throw new IllegalStateException("BaseServer.NioConnection.readPeerAddress(): cookie read by "
                                                           + server.localAddress() + " does not match own cookie; terminating connection");
                     recv_buf.add(ByteBuffer.allocate(Global.SHORT_SIZE));
@@ -474,11 +537,13 @@ public class NioConnection extends Connection {
                             break;
                     }
                     catch(Exception ex) {
+                        deliverReadBatch();
                         server.closeConnection(NioConnection.this, ex);
                         state(State.done);
                         return;
                     }
                 }
+                deliverReadBatch();
                 updateLastAccessed();
 
                 // Transition to state waiting_to_terminate and wait for server.readerIdleTime() ms
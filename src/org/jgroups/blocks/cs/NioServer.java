@@ -12,8 +12,9 @@ import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 
 /**
- * Server for sending and receiving messages via NIO channels. Uses only a single thread to accept, connect, write and
- * read connections. Read messages are passed to a receiver, which typically uses a thread pool to process messages.<p/>
+ * Server for sending and receiving messages via NIO channels. Uses a single thread to accept, connect, write and
+ * read connections, or - if num_selectors is greater than 1 - a thread to accept connections and num_selectors
+ * threads to connect, write and read them. Read messages are passed to a receiver, which typically uses a thread pool to process messages.<p/>
  * Note that writes can get dropped, e.g. in the case where we have a previous write pending and a new write is received.
  * This is typically not an issue as JGroups retransmits messages, but might become one when using NioServer standalone,
  * ie. outside of JGroups.
@@ -90,7 +91,8 @@ public class NioServer extends NioBaseServer {
         if(client_channel == null) return; // can happen if no connection is available to accept
         try {
             conn=new NioConnection(client_channel, NioServer.this);
-            SelectionKey client_key=client_channel.register(selector, SelectionKey.OP_READ, conn);
+            SelectionKey client_key=selector_loops != null? register(client_channel, SelectionKey.OP_READ, conn)
+              : client_channel.register(selector, SelectionKey.OP_READ, conn);
             conn.key(client_key); // we need to set the selection key of the client channel *not* the server channel
             Address peer_addr=conn.peerAddress();
             if(use_peer_connections)
@@ -114,6 +116,7 @@ public class NioServer extends NioBaseServer {
     @ManagedOperation(description="Starts the server")
     public synchronized void start() throws Exception {
         if(running.compareAndSet(false, true)) {
+            startSelectorLoops("NioServer.Selector [" + channel.getLocalAddress() + "]");
             acceptor.start();
             super.start();
         }
@@ -127,6 +130,7 @@ public class NioServer extends NioBaseServer {
             // Util.close(selector); // closing the selector also stops the acceptor thread
             // socket_factory.close(channel);
             selector.wakeup();
+            stopSelectorLoops();
         }
     }
 
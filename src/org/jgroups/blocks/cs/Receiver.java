@@ -4,6 +4,7 @@ import org.jgroups.Address;
 
 import java.io.DataInput;
 import java.nio.ByteBuffer;
+import java.util.List;
 
 /**
  * Receiver interface to be used with {@link BaseServer} instances
@@ -34,4 +35,15 @@ public interface Receiver {
     void receive(Address sender, ByteBuffer buf); // should be a default method in Java 8
 
     void receive(Address sender, DataInput in) throws Exception;
+
+    /**
+     * Delivers multiple messages from a given sender, e.g. all messages read from a connection in one go. The list is
+     * reused after this callback returns, but the buffers are not, so they don't need to be copied
+     * @param sender The sender of the messages
+     * @param bufs The buffers, one per message
+     */
+    default void receive(Address sender, List<ByteBuffer> bufs) {
+        for(ByteBuffer buf: bufs)
+            receive(sender, buf);
+    }
 }
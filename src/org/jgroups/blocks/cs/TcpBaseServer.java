@@ -1,17 +1,41 @@
 package org.jgroups.blocks.cs;
 
 import org.jgroups.Address;
+import org.jgroups.annotations.ManagedAttribute;
+import org.jgroups.annotations.ManagedOperation;
 import org.jgroups.util.SocketFactory;
 import org.jgroups.util.ThreadFactory;
 
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
 /**
- * Common base class for TCP based clients and servers
+ * Common base class for TCP based clients and servers.<p/>
+ * If send_queue_size is greater than 0, every {@link TcpConnection} has a bounded send queue, drained by a writer
+ * thread, and senders don't write to the socket themselves. When a queue is full (e.g. because the peer is slow),
+ * senders block for up to send_queue_block_time ms (forever if -1), after which the message is dropped.
  * @author Bela Ban
  * @since  3.6.5
  */
 public abstract class TcpBaseServer extends BaseServer {
     protected int               peer_addr_read_timeout=2000; // max time in milliseconds to block on reading peer address
 
+    @ManagedAttribute(description="Max number of messages in the send queue of a connection. 0 disables send queues. " +
+      "Changing this value affects new connections only",writable=true)
+    protected int               send_queue_size;
+
+    @ManagedAttribute(description="Max time (ms) a sender blocks when the send queue of a connection is full. " +
+      "The message is dropped when the time has elapsed. 0 drops the message immediately, -1 blocks until there " +
+      "is space in the queue",writable=true)
+    protected long              send_queue_block_time=-1;
+
+    protected final LongAdder   num_send_queue_drops=new LongAdder();
+    protected final LongAdder   num_send_queue_blocks=new LongAdder();
+    protected final LongAdder   send_queue_block_time_total=new LongAdder(); // ns
+    protected final LongAdder   num_send_queue_writes=new LongAdder();
+    protected final LongAdder   num_send_queue_msgs_written=new LongAdder();
+
     protected TcpBaseServer(ThreadFactory f, SocketFactory sf) {
         super(f, sf);
     }
@@ -24,5 +48,53 @@ public abstract class TcpBaseServer extends BaseServer {
 
     public int           peerAddressReadTimeout()                {return peer_addr_read_timeout;}
     public TcpBaseServer peerAddressReadTimeout(int timeout)     {this.peer_addr_read_timeout=timeout; return this;}
+    public int           sendQueueSize()                         {return send_queue_size;}
+    public TcpBaseServer sendQueueSize(int size)                 {this.send_queue_size=size; return this;}
+    public long          sendQueueBlockTime()                    {return send_queue_block_time;}
+    public TcpBaseServer sendQueueBlockTime(long time)           {this.send_queue_block_time=time; return this;}
+
+    @ManagedAttribute(description="Number of messages dropped because the send queue of a connection was full")
+    public long getNumSendQueueDrops()          {return num_send_queue_drops.sum();}
+
+    @ManagedAttribute(description="Number of times a sender blocked because the send queue of a connection was full")
+    public long getNumSendQueueBlocks()         {return num_send_queue_blocks.sum();}
+
+    @ManagedAttribute(description="Average time (ms) a sender blocked on a full send queue")
+    public double getAvgSendQueueBlockTime() {
+        long blocks=num_send_queue_blocks.sum();
+        return blocks == 0? 0 : TimeUnit.NANOSECONDS.toMicros(send_queue_block_time_total.sum() / blocks) / 1000.0;
+    }
+
+    @ManagedAttribute(description="Number of (coalesced) writes by the send queues")
+    public long getNumSendQueueWrites()         {return num_send_queue_writes.sum();}
+
+    @ManagedAttribute(description="Number of messages written by the send queues")
+    public long getNumSendQueueMessagesWritten() {return num_send_queue_msgs_written.sum();}
+
+    @ManagedAttribute(description="Average number of messages per write by the send queues")
+    public double getAvgMessagesPerWrite() {
+        long writes=num_send_queue_writes.sum();
+        return writes == 0? 0 : num_send_queue_msgs_written.sum() / (double)writes;
+    }
+
+    @ManagedOperation(description="Prints the number of queued messages for all connections")
+    public String printSendQueues() {
+        StringBuilder sb=new StringBuilder();
+        synchronized(this) {
+            conns.forEach((k,v) -> sb.append(String.format("%s: %d\n", k, ((TcpConnection)v).sendQueueSize())));
+            lanes.forEach((k,arr) -> {
+                for(Connection c: arr)
+                    if(c != null)
+                        sb.append(String.format("%s [lane %d]: %d\n", k, c.lane(), ((TcpConnection)c).sendQueueSize()));
+            });
+        }
+        return sb.toString();
+    }
+
+    @ManagedOperation(description="Resets the send queue statistics")
+    public void resetSendQueueStats() {
+        Stream.of(num_send_queue_drops, num_send_queue_blocks, send_queue_block_time_total,
+                  num_send_queue_writes, num_send_queue_msgs_written).forEach(LongAdder::reset);
+    }
 
 }
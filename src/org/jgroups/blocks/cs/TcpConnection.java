@@ -10,13 +10,20 @@ import java.io.*;
 import java.net.*;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Blocking IO (BIO) connection. Starts 1 reader thread for the peer socket and blocks until data is available.
- * Calls {@link TcpServer#receive(Address,byte[],int,int)} when data has been received.
+ * Calls {@link TcpServer#receive(Address,byte[],int,int)} when data has been received.<p/>
+ * If send queues are enabled ({@link TcpBaseServer#sendQueueSize()} > 0), messages are added to a {@link SendQueue}
+ * and written by its writer thread, so a slow peer doesn't block the senders.
  * @author Bela Ban
  * @since  3.6.5
  */
@@ -29,6 +36,7 @@ public class TcpConnection extends Connection {
     protected final TcpBaseServer    server;
     protected final AtomicInteger    writers=new AtomicInteger(0); // to determine the last writer to flush
     protected boolean                connected;
+    protected final SendQueue        send_queue; // null if send queues are disabled
 
     /** Creates a connection stub and binds it, use {@link #connect(Address)} to connect */
     public TcpConnection(Address peer_addr, TcpBaseServer server) throws Exception {
@@ -37,6 +45,7 @@ public class TcpConnection extends Connection {
             throw new IllegalArgumentException("Invalid parameter peer_addr="+ peer_addr);
         this.peer_addr=peer_addr;
         this.sock=server.socketFactory().createSocket("jgroups.tcp.sock");
+        this.send_queue=server.sendQueueSize() > 0? new SendQueue(server.sendQueueSize()) : null;
         setSocketParameters(sock);
         last_access=getTimestamp(); // last time a message was sent or received (ns)
     }
@@ -46,6 +55,7 @@ public class TcpConnection extends Connection {
         this.server=server;
         if(s == null)
             throw new IllegalArgumentException("Invalid parameter s=" + s);
+        this.send_queue=server.sendQueueSize() > 0? new SendQueue(server.sendQueueSize()) : null;
         setSocketParameters(s);
         this.out=new DataOutputStream(createBufferedOutputStream(s.getOutputStream()));
         this.in=new DataInputStream(createBufferedInputStream(s.getInputStream()));
@@ -112,6 +122,13 @@ public class TcpConnection extends Connection {
         if(receiver != null)
             receiver.stop();
         receiver=new Receiver(server.factory).start();
+        if(send_queue != null)
+            send_queue.start();
+    }
+
+    /** Returns the number of messages in the send queue, or -1 if send queues are disabled */
+    public int sendQueueSize() {
+        return send_queue != null? send_queue.size() : -1;
     }
 
 
@@ -125,6 +142,10 @@ public class TcpConnection extends Connection {
     public void send(byte[] data, int offset, int length) throws Exception {
         if(out == null)
             return;
+        if(send_queue != null) {
+            send_queue.add(data, offset, length);
+            return;
+        }
         writers.incrementAndGet();
         send_lock.lock();
         try {
@@ -156,6 +177,36 @@ public class TcpConnection extends Connection {
     }
 
 
+    /** Writes all buffers while holding the lock, and flushes them with a single write */
+    @Override
+    public void send(List<ByteBuffer> bufs) throws Exception {
+        if(out == null)
+            return;
+        if(send_queue != null) {
+            super.send(bufs);
+            return;
+        }
+        writers.incrementAndGet();
+        send_lock.lock();
+        try {
+            for(ByteBuffer buf: bufs) {
+                if(buf.hasArray())
+                    doSend(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+                else {
+                    byte[] tmp=new byte[buf.remaining()];
+                    buf.duplicate().get(tmp);
+                    doSend(tmp, 0, tmp.length);
+                }
+            }
+            updateLastAccessed();
+        }
+        finally {
+            if(writers.decrementAndGet() == 0)
+                flush();
+            send_lock.unlock();
+        }
+    }
+
     protected void doSend(byte[] data, int offset, int length) throws Exception {
         out.writeInt(length); // write the length of the data buffer first
         out.write(data,offset,length);
@@ -214,8 +265,9 @@ public class TcpConnection extends Connection {
      */
     protected void sendLocalAddress(Address local_addr) throws Exception {
         try {
-            // write the cookie
-            out.write(cookie, 0, cookie.length);
+            // write the cookie (contains the lane)
+            byte[] lane_cookie=cookie(lane);
+            out.write(lane_cookie, 0, lane_cookie.length);
 
             // write the version
             out.writeShort(Version.version);
@@ -243,7 +295,7 @@ public class TcpConnection extends Connection {
             // read the cookie first
             byte[] input_cookie=new byte[cookie.length];
             in.readFully(input_cookie, 0, input_cookie.length);
-            if(!Arrays.equals(cookie, input_cookie))
+            if((lane=laneOf(input_cookie)) < 0)
                 throw new SocketException(String.format("%s: BaseServer.TcpConnection.readPeerAddress(): cookie sent by " +
                                                           "%s:%d does not match own cookie; terminating connection",
                                                         server.localAddress(), client_sock.getInetAddress(), client_sock.getPort()));
@@ -313,6 +365,170 @@ public class TcpConnection extends Connection {
     }
 
 
+    /**
+     * Bounded queue of messages to be sent to the peer, drained by a writer thread. Adding a message is lock-free
+     * unless the queue is full; then the sender blocks for up to {@link TcpBaseServer#sendQueueBlockTime()} ms (or
+     * until there is space if -1), and the message is dropped if the queue is still full. The writer writes all queued
+     * messages to the buffered output stream and flushes it once, so small messages are coalesced into larger writes.
+     */
+    protected class SendQueue implements Runnable {
+        protected final Queue<byte[]>  queue=new ConcurrentLinkedQueue<>();
+        protected final int            capacity;
+        protected final AtomicInteger  count=new AtomicInteger(); // number of reserved or queued messages
+        protected final ReentrantLock  lock=new ReentrantLock(); // only used by blocked senders
+        protected final Condition      not_full=lock.newCondition();
+        protected final AtomicInteger  blocked_senders=new AtomicInteger();
+        protected volatile Thread      writer;
+        protected volatile boolean     running, parked, closed;
+
+        protected SendQueue(int capacity) {
+            this.capacity=capacity;
+        }
+
+        protected int size() {return count.get();}
+
+        protected void start() {
+            running=true;
+            writer=server.factory.newThread(this, "Connection.Sender [" + getSockAddress() + "]");
+            writer.setDaemon(true);
+            writer.start();
+        }
+
+        protected void stop() {
+            running=false;
+            closed=true;
+            LockSupport.unpark(writer);
+            lock.lock();
+            try {
+                not_full.signalAll();
+            }
+            finally {
+                lock.unlock();
+            }
+            queue.clear();
+        }
+
+        /** Copies the data (the caller may reuse the buffer) and adds it to the queue */
+        protected void add(byte[] data, int offset, int length) throws Exception {
+            if(!reserve()) {
+                server.num_send_queue_drops.increment();
+                return;
+            }
+            queue.add(Arrays.copyOfRange(data, offset, offset+length));
+            if(parked)
+                LockSupport.unpark(writer);
+        }
+
+        /** Reserves a slot in the queue, blocking if the queue is full. Returns false if the message should be dropped */
+        protected boolean reserve() throws Exception {
+            long block_time=server.sendQueueBlockTime(), start=0;
+            try {
+                for(;;) {
+                    if(closed)
+                        throw new SocketException(String.format("connection to %s is closed", peer_addr));
+                    int cnt=count.get();
+                    if(cnt < capacity) {
+                        if(count.compareAndSet(cnt, cnt+1))
+                            return true;
+                        continue;
+                    }
+                    if(block_time == 0)
+                        return false;
+                    long now=System.nanoTime(), wait_time=0;
+                    if(start == 0) {
+                        start=now;
+                        server.num_send_queue_blocks.increment();
+                    }
+                    if(block_time > 0 && (wait_time=TimeUnit.MILLISECONDS.toNanos(block_time) - (now - start)) <= 0)
+                        return false;
+                    blocked_senders.incrementAndGet();
+                    lock.lock();
+                    try {
+                        if(count.get() >= capacity && !closed) {
+                            if(block_time > 0)
+                                not_full.awaitNanos(wait_time);
+                            else
+                                not_full.await();
+                        }
+                    }
+                    finally {
+                        lock.unlock();
+                        blocked_senders.decrementAndGet();
+                    }
+                }
+            }
+            finally {
+                if(start > 0)
+                    server.send_queue_block_time_total.add(System.nanoTime() - start);
+            }
+        }
+
+        protected void release() {
+            count.decrementAndGet();
+            if(blocked_senders.get() > 0) {
+                lock.lock();
+                try {
+                    not_full.signal();
+                }
+                finally {
+                    lock.unlock();
+                }
+            }
+        }
+
+        public void run() {
+            while(running) {
+                if(drain() > 0)
+                    continue;
+                parked=true;
+                if(queue.isEmpty() && running)
+                    LockSupport.park(this);
+                parked=false;
+            }
+        }
+
+        /**
+         * Writes all queued messages and flushes the output stream once. Returns the number of messages written. On
+         * failure, the connection is closed after send_lock has been released: closing it acquires the server's
+         * lock, and a thread holding that lock (e.g. stopping the server) may be waiting for send_lock in close()
+         */
+        protected int drain() {
+            int num=0;
+            Throwable failure=null;
+            send_lock.lock();
+            try {
+                byte[] buf;
+                while((buf=queue.poll()) != null) {
+                    try {
+                        doSend(buf, 0, buf.length);
+                        num++;
+                    }
+                    finally {
+                        release();
+                    }
+                }
+                if(num > 0) {
+                    out.flush();
+                    updateLastAccessed();
+                    server.num_send_queue_writes.increment();
+                    server.num_send_queue_msgs_written.add(num);
+                }
+            }
+            catch(Throwable t) {
+                failure=t;
+            }
+            finally {
+                send_lock.unlock();
+            }
+            if(failure != null && running) {
+                stop();
+                server.closeConnection(TcpConnection.this, failure);
+            }
+            return num;
+        }
+    }
+
+
     public String toString() {
         Socket tmp_sock=sock;
         if(tmp_sock == null)
@@ -320,10 +536,11 @@ public class TcpConnection extends Connection {
         InetAddress local=tmp_sock.getLocalAddress(), remote=tmp_sock.getInetAddress();
         String local_str=local != null? Util.shortName(local) : "<null>";
         String remote_str=remote != null? Util.shortName(remote) : "<null>";
-        return String.format("%s:%s --> %s:%s (%d secs old) [%s] [recv_buf=%d]",
+        return String.format("%s:%s --> %s:%s (%d secs old) [%s] [recv_buf=%d%s]",
                              local_str, tmp_sock.getLocalPort(), remote_str, tmp_sock.getPort(),
                              TimeUnit.SECONDS.convert(getTimestamp() - last_access, TimeUnit.NANOSECONDS),
-                             status(), receiver != null? receiver.bufferSize() : 0);
+                             status(), receiver != null? receiver.bufferSize() : 0,
+                             send_queue != null? ", send_queue=" + send_queue.size() : "");
     }
 
     @Override
@@ -358,6 +575,8 @@ public class TcpConnection extends Connection {
                 receiver.stop();
                 receiver=null;
             }
+            if(send_queue != null)
+                send_queue.stop();
             Util.close(out,in);
         }
         finally {
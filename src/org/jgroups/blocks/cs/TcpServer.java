@@ -126,13 +126,13 @@ public class TcpServer extends TcpBaseServer {
                 conn=new TcpConnection(client_sock, TcpServer.this);
                 Address peer_addr=conn.peerAddress();
                 synchronized(this) {
-                    boolean conn_exists=hasConnection(peer_addr),
+                    boolean conn_exists=hasConnection(peer_addr, conn.lane()),
                       replace=conn_exists && use_peer_connections && local_addr.compareTo(peer_addr) < 0; // bigger conn wins
 
                     if(!conn_exists || replace) {
                         replaceConnection(peer_addr, conn); // closes old conn
                         conn.start();
-                        log.trace("%s: accepted connection from %s", local_addr, peer_addr);
+                        log.trace("%s: accepted connection from %s (lane %d)", local_addr, peer_addr, conn.lane());
                     }
                     else {
                         log.trace("%s: rejected connection from %s %s", local_addr, peer_addr, explanation(conn_exists, replace));
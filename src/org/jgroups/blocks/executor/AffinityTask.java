@@ -0,0 +1,13 @@
+package org.jgroups.blocks.executor;
+
+/**
+ * Implemented by tasks (runnables or callables) submitted to an {@link ExecutionService} which should preferably run
+ * on the same member as other tasks with the same affinity key, e.g. because they access the same data. The key is
+ * mapped to one of the current members; if that member has no idle consumers, the task is run by an idle consumer
+ * on a different member.
+ * @since  4.1.2
+ */
+public interface AffinityTask {
+    /** Returns the affinity key, or null if the task can run on any member */
+    Object getAffinityKey();
+}
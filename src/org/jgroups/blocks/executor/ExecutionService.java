@@ -159,6 +159,12 @@ public class ExecutionService extends AbstractExecutorService {
         public Callable<V> getCallable() {
             return sync.callable;
         }
+
+        /** Returns the task submitted by the user: the runnable or callable */
+        public Object getTask() {
+            Callable<V> callable=sync.callable;
+            return callable instanceof RunnableAdapter? ((RunnableAdapter<?>)callable).task : callable;
+        }
         
         public boolean isCancelled() {
             return sync.innerIsCancelled();
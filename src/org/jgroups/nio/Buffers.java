@@ -54,6 +54,7 @@ public class Buffers implements Iterable<ByteBuffer> {
     public int     position()              {return position;}
     public Buffers position(int new_pos)   {this.position=toPositiveUnsignedShort(new_pos); nextToCopy(new_pos); return this;}
     public int     limit()                 {return limit;}
+    public int     capacity()              {return bufs.length;}
     public Buffers limit(int new_limit)    {this.limit=toPositiveUnsignedShort(new_limit); return this;}
     public int     nextToCopy()            {return next_to_copy;}
     public Buffers nextToCopy(int next)    {next_to_copy=toPositiveUnsignedShort(next); return this;}
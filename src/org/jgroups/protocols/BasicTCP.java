@@ -6,6 +6,7 @@ import org.jgroups.Global;
 import org.jgroups.PhysicalAddress;
 import org.jgroups.annotations.LocalAddress;
 import org.jgroups.annotations.Property;
+import org.jgroups.blocks.cs.Connection;
 import org.jgroups.blocks.cs.Receiver;
 import org.jgroups.util.Util;
 
@@ -64,6 +65,16 @@ public abstract class BasicTCP extends TP implements Receiver {
     @Property(description="If true, client sockets will not explicitly bind to bind_addr but will defer to the native socket")
     protected boolean     defer_client_bind_addr;
 
+    @Property(description="Number of connections to each member. Messages are assigned to connections by sending " +
+      "thread, so messages sent by the same thread are received in order. With a bundler that sends on a single " +
+      "thread (e.g. the default transfer-queue bundler), bundled messages all use the same connection. " +
+      "1 uses a single connection per member")
+    protected int         conns_per_peer=1;
+
+    @Property(description="Messages (or message bundles) whose size is >= large_msg_size are sent over a separate " +
+      "connection (the last of conns_per_peer), so they don't delay smaller messages. 0 disables this")
+    protected int         large_msg_size;
+
 
     /* --------------------------------------------- Fields ------------------------------------------------------ */
     
@@ -79,6 +90,10 @@ public abstract class BasicTCP extends TP implements Receiver {
     public long     getConnExpireTime()              {return conn_expire_time;}
     public BasicTCP setConnExpireTime(long time)     {this.conn_expire_time=time; return this;}
     public BasicTCP connExpireTime(long time)        {this.conn_expire_time=time; return this;}
+    public int      getConnsPerPeer()                {return conns_per_peer;}
+    public BasicTCP setConnsPerPeer(int num)         {this.conns_per_peer=num; return this;}
+    public int      getLargeMsgSize()                {return large_msg_size;}
+    public BasicTCP setLargeMsgSize(int size)        {this.large_msg_size=size; return this;}
 
 
     public void init() throws Exception {
@@ -99,6 +114,11 @@ public abstract class BasicTCP extends TP implements Receiver {
                 log.warn("conn_expire_time (%d) is set but reaper_interval is 0; setting it to %d", conn_expire_time, reaper_interval);
             }
         }
+        if(conns_per_peer < 1 || conns_per_peer > Connection.MAX_LANES)
+            throw new IllegalArgumentException(String.format("conns_per_peer (%d) must be in range [1..%d]",
+                                                             conns_per_peer, Connection.MAX_LANES));
+        if(large_msg_size > 0 && conns_per_peer == 1)
+            log.warn("%s: large_msg_size (%d) has no effect as conns_per_peer is 1", local_addr, large_msg_size);
     }
 
 
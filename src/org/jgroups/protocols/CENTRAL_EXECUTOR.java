@@ -6,10 +6,7 @@ import org.jgroups.annotations.ManagedAttribute;
 import org.jgroups.annotations.Property;
 import org.jgroups.util.Util;
 
-import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.List;
-import java.util.Set;
+import java.util.*;
 
 
 /**
@@ -80,8 +77,8 @@ public class CENTRAL_EXECUTOR extends Executing {
         // okay in that an extra consumer will reject and an extra task will just
         // be ran and return nowhere, but at least we won't lose data.
         if (oldCoord != coord) {
-            for (Long requests : _requestId.values()) {
-                sendToCoordinator(Type.RUN_REQUEST, requests, local_addr);
+            for (Map.Entry<Runnable, Long> entry : _requestId.entrySet()) {
+                sendRunRequest(entry.getKey(), entry.getValue());
             }
             
             for (Long requests : _consumerId.keySet()) {
@@ -183,6 +180,9 @@ public class CENTRAL_EXECUTOR extends Executing {
             case RUN_REQUEST:
                 handleTaskRequest(requestId, value);
                 break;
+            case RUN_REQUEST_AFFINITY:
+                handleTaskRequest(requestId, local_addr, value);
+                break;
             case CONSUMER_READY:
                 handleConsumerReadyRequest(requestId, value);
                 break;
@@ -2,6 +2,7 @@ package org.jgroups.protocols;
 
 import org.jgroups.Address;
 import org.jgroups.View;
+import org.jgroups.annotations.GuardedBy;
 import org.jgroups.annotations.ManagedAttribute;
 import org.jgroups.annotations.Property;
 import org.jgroups.blocks.locking.LockNotification;
@@ -9,6 +10,9 @@ import org.jgroups.util.Owner;
 import org.jgroups.util.Util;
 
 import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.stream.Collectors;
 
 
 /**
@@ -22,7 +26,14 @@ import java.util.*;
  * Say we have a cluster of {A,B,C,D,E} and num_backups=1. A is the coordinator, and A updates all locks (and released
  * locks) in B as well. When A crashes, everybody falls over to B for sending lock and unlock requests.
  * B in turn copies all existing locks over to C and - when locks are acquired or released - forwards this
- * information to C as well.
+ * information to C as well.</p>
+ * When num_lock_servers is greater than 1, lock ownership is sharded across the first num_lock_servers members of the
+ * view: a lock is handled by the member at index hash(lock name) % num_lock_servers (modulo the view size). Each
+ * lock server backs up its locks to the num_backups members following it in the view, so when a lock server crashes,
+ * its shard moves to the next member, which is also its first backup. When the mapping changes as a result of a view
+ * change between live members (e.g. on a join when the view was smaller than num_lock_servers), the previous lock
+ * server hands its locks over to the new lock server and its backups. Until the hand-over has been received (or
+ * hand_over_timeout ms have elapsed), the new lock server defers the lock requests for the locks of the moved shards.
  * @author Bela Ban
  * @since 2.12
  * @see Locking
@@ -36,13 +47,37 @@ public class CENTRAL_LOCK extends Locking implements LockNotification {
       "See https://issues.jboss.org/browse/JGRP-1886 for details")
     protected boolean             use_thread_id_for_lock_owner=true;
 
+    @Property(description="Number of lock servers. Locks are sharded across the first num_lock_servers members by " +
+      "the hash of the lock name. 1 means the coordinator handles all locks")
+    protected int                 num_lock_servers=1;
+
+    @Property(description="Max time (ms) a new lock server defers the lock requests for a shard which moved to it from " +
+      "a live member, waiting for that member to hand over its locks")
+    protected long                hand_over_timeout=5000;
+
     protected Address             coord;
 
+    // the first min(num_lock_servers, view size) members of the view
+    protected volatile List<Address> lock_servers=Collections.emptyList();
+
     @ManagedAttribute
     protected boolean             is_coord;
 
     protected final List<Address> backups=new ArrayList<>();
 
+    // shards which moved to me, and the previous lock servers which haven't yet handed over their locks
+    protected final Map<Integer,Address> pending_hand_overs=new HashMap<>();
+
+    // requests for locks of a shard in pending_hand_overs, processed when the hand-over completes
+    protected final List<Request>        deferred_reqs=new ArrayList<>();
+
+    // members whose HAND_OVER_DONE was received before I installed the view in which their shards moved to me
+    protected final Set<Address>         early_hand_overs=new HashSet<>();
+
+    // client requests which are deferred while a hand-over is pending
+    protected static final Set<Type>     DEFERRABLE=EnumSet.of(Type.GRANT_LOCK, Type.RELEASE_LOCK, Type.LOCK_AWAIT,
+                                                               Type.COND_SIG, Type.COND_SIG_ALL, Type.DELETE_LOCK_AWAIT);
+
 
     public CENTRAL_LOCK() {
         super();
@@ -74,22 +109,70 @@ public class CENTRAL_LOCK extends Locking implements LockNotification {
         this.num_backups=num_backups;
     }
 
+    public int          getNumLockServers()      {return num_lock_servers;}
+    public CENTRAL_LOCK setNumLockServers(int n) {this.num_lock_servers=n; return this;}
+    public long         getHandOverTimeout()     {return hand_over_timeout;}
+    public CENTRAL_LOCK setHandOverTimeout(long t) {this.hand_over_timeout=t; return this;}
+
+    @ManagedAttribute(description="Number of requests deferred until a pending hand-over of locks completes")
+    public int getNumDeferredRequests() {
+        synchronized(pending_hand_overs) {
+            return deferred_reqs.size();
+        }
+    }
+
+    @ManagedAttribute(description="The members acting as lock servers")
+    public String getLockServers() {
+        return lock_servers.toString();
+    }
+
+    @ManagedAttribute(description="True if this member is a lock server for at least one shard")
+    public boolean isLockServer() {
+        return lock_servers.contains(local_addr);
+    }
+
+    /** Returns the member handling the given lock */
+    public Address getLockServer(String lock_name) {
+        return serverFor(lock_servers, lock_name);
+    }
+
+    protected boolean isLockServerFor(String lock_name) {
+        return Objects.equals(local_addr, getLockServer(lock_name));
+    }
+
+    protected Address serverFor(List<Address> servers, String lock_name) {
+        return serverForShard(servers, shard(lock_name));
+    }
+
+    protected static Address serverForShard(List<Address> servers, int shard) {
+        if(servers == null || servers.isEmpty())
+            return null;
+        return servers.get(shard % servers.size());
+    }
+
+    protected int shard(String lock_name) {
+        return lock_name == null || num_lock_servers <= 1? 0 : (lock_name.hashCode() & Integer.MAX_VALUE) % num_lock_servers;
+    }
+
+    protected Address lockServer(String lock_name, String req_type) {
+        Address dest=getLockServer(lock_name);
+        if(dest == null)
+            throw new IllegalStateException(String.format("No lock server available, cannot send %s request", req_type));
+        return dest;
+    }
+
     @ManagedAttribute
     public String getBackups() {
         return backups != null? backups.toString() : null;
     }
 
     protected void sendGrantLockRequest(String lock_name, int lock_id, Owner owner, long timeout, boolean is_trylock) {
-        Address dest=coord;
-        if(dest == null)
-            throw new IllegalStateException("No coordinator available, cannot send GRANT-LOCK request");
+        Address dest=lockServer(lock_name, "GRANT-LOCK");
         sendRequest(dest, Type.GRANT_LOCK, lock_name, lock_id, owner, timeout, is_trylock);
     }
 
     protected void sendReleaseLockRequest(String lock_name, int lock_id, Owner owner) {
-        Address dest=coord;
-        if(dest == null)
-            throw new IllegalStateException("No coordinator available, cannot send RELEASE-LOCK request");
+        Address dest=lockServer(lock_name, "RELEASE-LOCK");
         sendRequest(dest, Type.RELEASE_LOCK, lock_name, lock_id, owner, 0, false);
     }
 
@@ -103,35 +186,52 @@ public class CENTRAL_LOCK extends Locking implements LockNotification {
 
     @Override
     protected void sendAwaitConditionRequest(String lock_name, Owner owner) {
-        sendRequest(coord, Type.LOCK_AWAIT, lock_name, owner, 0, false);
+        sendRequest(getLockServer(lock_name), Type.LOCK_AWAIT, lock_name, owner, 0, false);
     }
 
     @Override
     protected void sendSignalConditionRequest(String lock_name, boolean all) {
-        sendRequest(coord, all ? Type.COND_SIG_ALL : Type.COND_SIG, lock_name, null, 0, false);
+        sendRequest(getLockServer(lock_name), all ? Type.COND_SIG_ALL : Type.COND_SIG, lock_name, null, 0, false);
     }
     
     @Override
     protected void sendDeleteAwaitConditionRequest(String lock_name, Owner owner) {
-        sendRequest(coord, Type.DELETE_LOCK_AWAIT, lock_name, owner, 0, false);
+        sendRequest(getLockServer(lock_name), Type.DELETE_LOCK_AWAIT, lock_name, owner, 0, false);
     }
 
     public void handleView(View view) {
         super.handleView(view);
-        Address old_coord=coord;
+        List<Address> old_servers=lock_servers;
         if(view.size() > 0) {
             coord=view.getCoord();
             is_coord=coord.equals(local_addr);
-            log.debug("[%s] coord=%s, is_coord=%b", local_addr, coord, is_coord);
+            List<Address> mbrs=view.getMembers();
+            lock_servers=new ArrayList<>(mbrs.subList(0, Math.min(Math.max(num_lock_servers, 1), mbrs.size())));
+            log.debug("[%s] coord=%s, is_coord=%b, lock servers=%s", local_addr, coord, is_coord, lock_servers);
         }
-
-        if(is_coord && num_backups > 0) {
+        List<Address> new_servers=lock_servers;
+        boolean mapping_changed=!old_servers.isEmpty() && !old_servers.equals(new_servers);
+
+        // hand over the locks for which I was the lock server but am not anymore
+        if(mapping_changed && old_servers.contains(local_addr))
+            handOverLocks(old_servers, view.getMembers());
+        List<Address> prev_servers=mapping_changed? old_servers : null;
+        if(old_servers.isEmpty() && view.size() > 1) // I just joined: my shards were handled by the other members
+            prev_servers=view.getMembers().stream().filter(m -> !m.equals(local_addr))
+              .limit(Math.max(num_lock_servers, 1)).collect(Collectors.toList());
+        awaitHandOvers(prev_servers, view.getMembers());
+
+        if(new_servers.contains(local_addr) && num_backups > 0) {
             List<Address> new_backups=Util.pickNext(view.getMembers(), local_addr, num_backups);
             List<Address> copy_locks_list=null;
             synchronized(backups) {
-                if(!backups.equals(new_backups)) {
+                // a shard moved to me: my existing backups don't have its locks yet
+                boolean took_over=mapping_changed && server_locks.keySet().stream()
+                  .anyMatch(name -> isLockServerFor(name) && !Objects.equals(local_addr, serverFor(old_servers, name)));
+                if(took_over || !backups.equals(new_backups)) {
                     copy_locks_list=new ArrayList<>(new_backups);
-                    copy_locks_list.removeAll(backups);
+                    if(!took_over)
+                        copy_locks_list.removeAll(backups);
                     backups.clear();
                     backups.addAll(new_backups);
                 }
@@ -140,10 +240,19 @@ public class CENTRAL_LOCK extends Locking implements LockNotification {
             if(copy_locks_list != null && !copy_locks_list.isEmpty())
                 copyLocksTo(copy_locks_list);
         }
+        else {
+            synchronized(backups) {
+                backups.clear();
+            }
+        }
+
+        if(num_lock_servers > 1)
+            removeStaleLocks(view.getMembers());
 
-        // For all non-acquired client locks, send the GRANT_LOCK request to the new coordinator (if changed)
-        if(old_coord != null && !old_coord.equals(coord))
-            client_lock_table.resendPendingLockRequests();
+        // For all non-acquired client locks, send the GRANT_LOCK request to the new lock server (if changed)
+        if(mapping_changed)
+            client_lock_table.resendPendingLockRequests(name -> !Objects.equals(serverFor(old_servers, name),
+                                                                                getLockServer(name)));
     }
 
     public void lockCreated(String name) {
@@ -153,12 +262,12 @@ public class CENTRAL_LOCK extends Locking implements LockNotification {
     }
 
     public void locked(String lock_name, Owner owner) {
-        if(is_coord)
+        if(isLockServerFor(lock_name))
             updateBackups(Type.CREATE_LOCK, lock_name, owner);
     }
 
     public void unlocked(String lock_name, Owner owner) {
-        if(is_coord)
+        if(isLockServerFor(lock_name))
             updateBackups(Type.DELETE_LOCK, lock_name, owner);
     }
 
@@ -167,20 +276,24 @@ public class CENTRAL_LOCK extends Locking implements LockNotification {
     }
 
     public void awaiting(String lock_name, Owner owner) {
-        if(is_coord)
+        if(isLockServerFor(lock_name))
             updateBackups(Type.CREATE_AWAITER, lock_name, owner);
     }
 
     public void awaited(String lock_name, Owner owner) {
-        if(is_coord)
+        if(isLockServerFor(lock_name))
             updateBackups(Type.DELETE_AWAITER, lock_name, owner);
     }
 
     protected void updateBackups(Type type, String lock_name, Owner owner) {
+        List<Address> tmp;
         synchronized(backups) {
-            for(Address backup: backups)
-                sendRequest(backup, type, lock_name, owner, 0, false);
+            if(backups.isEmpty())
+                return;
+            tmp=new ArrayList<>(backups);
         }
+        for(Address backup: tmp) // send outside of the lock: sending may block
+            sendRequest(backup, type, lock_name, owner, 0, false);
     }
 
 
@@ -194,18 +307,198 @@ public class CENTRAL_LOCK extends Locking implements LockNotification {
 
         log.trace("[%s] copying locks to %s", local_addr, new_joiners);
         for(Map.Entry<String,ServerLock> entry: copy.entrySet()) {
+            if(!isLockServerFor(entry.getKey())) // only copy the locks of my own shard(s)
+                continue;
             for(Address joiner: new_joiners) {
                 ServerLock lock = entry.getValue();
                 if (lock.owner != null) {
                     sendCreateLockRequest(joiner, entry.getKey(), entry.getValue().owner);
                 }
+                List<Owner> awaiters;
                 synchronized (lock.condition) {
-                    Queue<Owner> queue = lock.condition.queue;
-                    for (Owner owner : queue) {
-                        sendAwaitConditionRequest(lock.lock_name, owner);
+                    awaiters=new ArrayList<>(lock.condition.queue);
+                }
+                for (Owner owner : awaiters) {
+                    sendRequest(joiner, Type.CREATE_AWAITER, lock.lock_name, owner, 0, false);
+                }
+            }
+        }
+    }
+
+    protected void requestReceived(Request req) {
+        if(req.type == Type.HAND_OVER_DONE)
+            handOverDone(req.sender, false);
+        else if(!defer(req))
+            super.requestReceived(req);
+    }
+
+    /** Handles the requests in order; a HAND_OVER_DONE is only processed after the requests preceding it */
+    protected void requestsReceived(List<Request> reqs) {
+        List<Request> list=new ArrayList<>(reqs.size());
+        for(Request req: reqs) {
+            if(req.type == Type.HAND_OVER_DONE) {
+                if(!list.isEmpty())
+                    super.requestsReceived(list);
+                list=new ArrayList<>();
+                handOverDone(req.sender, false);
+            }
+            else if(!defer(req))
+                list.add(req);
+        }
+        if(!list.isEmpty())
+            super.requestsReceived(list);
+    }
+
+    /** Defers a client request for a lock whose shard is waiting for a hand-over; returns true if deferred */
+    protected boolean defer(Request req) {
+        if(!DEFERRABLE.contains(req.type))
+            return false;
+        synchronized(pending_hand_overs) {
+            if(!pending_hand_overs.containsKey(shard(req.lock_name)))
+                return false;
+            deferred_reqs.add(req);
+        }
+        log.trace("%s: deferred %s until the locks of its shard have been handed over", local_addr, req);
+        return true;
+    }
+
+    /**
+     * Records the shards which moved to me from a previous lock server that is still a member: requests for the locks
+     * of these shards are deferred until the previous lock server has handed over its locks, otherwise a lock could
+     * be granted before the hand-over shows that it is still held. Hand-overs from members which left are dropped.
+     * @param old_servers The previous lock servers, or null if the mapping of shards to lock servers didn't change
+     */
+    protected void awaitHandOvers(List<Address> old_servers, List<Address> members) {
+        Set<Address> await=new HashSet<>();
+        List<Request> ready;
+        synchronized(pending_hand_overs) {
+            pending_hand_overs.values().removeIf(prev -> !members.contains(prev));
+            if(old_servers != null) {
+                for(int shard=0; shard < Math.max(num_lock_servers, 1); shard++) {
+                    Address prev=serverForShard(old_servers, shard);
+                    if(!Objects.equals(local_addr, serverForShard(lock_servers, shard)))
+                        pending_hand_overs.remove(shard);
+                    else if(prev != null && !prev.equals(local_addr) && members.contains(prev)
+                      && !early_hand_overs.contains(prev)) {
+                        pending_hand_overs.put(shard, prev);
+                        await.add(prev);
                     }
                 }
             }
+            early_hand_overs.clear();
+            ready=removeReadyRequests();
+        }
+        if(!await.isEmpty()) {
+            log.debug("%s: waiting for %s to hand over their locks", local_addr, await);
+            if(hand_over_timeout > 0)
+                await.forEach(prev -> getTransport().getTimer()
+                  .schedule(() -> handOverDone(prev, true), hand_over_timeout, TimeUnit.MILLISECONDS, false));
+        }
+        if(!ready.isEmpty())
+            super.requestsReceived(ready);
+    }
+
+    /** Called when prev has handed over its locks (or the hand-over timed out): processes the deferred requests */
+    protected void handOverDone(Address prev, boolean timeout) {
+        List<Request> ready;
+        synchronized(pending_hand_overs) {
+            if(!pending_hand_overs.values().removeIf(prev::equals)) {
+                if(!timeout) // the hand-over overtook the view which moves prev's shards to me
+                    early_hand_overs.add(prev);
+                return;
+            }
+            ready=removeReadyRequests();
+        }
+        if(timeout)
+            log.warn("%s: %s didn't hand over its locks within %d ms; processing %d deferred requests",
+                     local_addr, prev, hand_over_timeout, ready.size());
+        else
+            log.debug("%s: %s handed over its locks; processing %d deferred requests", local_addr, prev, ready.size());
+        if(!ready.isEmpty())
+            super.requestsReceived(ready);
+    }
+
+    /** Removes and returns the deferred requests whose shard is not waiting for a hand-over anymore */
+    @GuardedBy("pending_hand_overs")
+    protected List<Request> removeReadyRequests() {
+        if(deferred_reqs.isEmpty())
+            return Collections.emptyList();
+        List<Request> ready=new ArrayList<>();
+        for(Iterator<Request> it=deferred_reqs.iterator(); it.hasNext();) {
+            Request req=it.next();
+            if(!pending_hand_overs.containsKey(shard(req.lock_name))) {
+                ready.add(req);
+                it.remove();
+            }
+        }
+        return ready;
+    }
+
+    /**
+     * Sends the locks for which I was the lock server in old_servers, but which are now handled by a different member,
+     * to the new lock server and its backups, followed by a HAND_OVER_DONE to the new lock server. Pending lock
+     * requests are resent to the new lock server by the clients.
+     */
+    protected void handOverLocks(List<Address> old_servers, List<Address> members) {
+        Map<Address,List<Request>> reqs=new HashMap<>();
+        for(Map.Entry<String,ServerLock> entry: server_locks.entrySet()) {
+            String lock_name=entry.getKey();
+            Address new_server=getLockServer(lock_name);
+            if(!Objects.equals(local_addr, serverFor(old_servers, lock_name)) || Objects.equals(local_addr, new_server))
+                continue;
+            List<Address> targets=Util.pickNext(members, new_server, num_backups);
+            targets.add(0, new_server);
+            targets.remove(local_addr);
+            ServerLock lock=entry.getValue();
+            Lock stripe=_getLock(lock_name);
+            stripe.lock();
+            try {
+                lock.queue.clear(); // clients resend pending requests to the new lock server
+                for(Address target: targets) {
+                    List<Request> list=reqs.computeIfAbsent(target, k -> new ArrayList<>());
+                    if(lock.owner != null)
+                        list.add(new Request(Type.CREATE_LOCK, lock_name, lock.owner, 0));
+                    for(Owner owner: lock.condition.queue)
+                        list.add(new Request(Type.CREATE_AWAITER, lock_name, owner, 0));
+                }
+            }
+            finally {
+                stripe.unlock();
+            }
+        }
+        reqs.entrySet().removeIf(e -> e.getValue().isEmpty());
+
+        // the new lock servers defer requests for the moved shards until they receive HAND_OVER_DONE
+        for(int shard=0; shard < Math.max(num_lock_servers, 1); shard++) {
+            Address new_server=serverForShard(lock_servers, shard);
+            if(Objects.equals(local_addr, serverForShard(old_servers, shard)) && new_server != null
+              && !local_addr.equals(new_server) && members.contains(new_server)) {
+                List<Request> list=reqs.computeIfAbsent(new_server, k -> new ArrayList<>());
+                if(list.isEmpty() || list.get(list.size()-1).type != Type.HAND_OVER_DONE)
+                    list.add(new Request(Type.HAND_OVER_DONE, null, null, 0));
+            }
+        }
+        if(!reqs.isEmpty()) {
+            log.debug("%s: handing over locks to %s", local_addr, reqs.keySet());
+            reqs.forEach(this::send);
+        }
+    }
+
+    /** Removes the server locks for which I'm neither the lock server nor a backup of the lock server */
+    protected void removeStaleLocks(List<Address> members) {
+        for(Iterator<String> it=server_locks.keySet().iterator(); it.hasNext();) {
+            String lock_name=it.next();
+            Address server=getLockServer(lock_name);
+            if(Objects.equals(local_addr, server) || Util.pickNext(members, server, num_backups).contains(local_addr))
+                continue;
+            Lock stripe=_getLock(lock_name);
+            stripe.lock();
+            try {
+                it.remove();
+            }
+            finally {
+                stripe.unlock();
+            }
         }
     }
 }
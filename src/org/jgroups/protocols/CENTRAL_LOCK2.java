@@ -9,6 +9,7 @@ import org.jgroups.annotations.ManagedOperation;
 import org.jgroups.annotations.Property;
 import org.jgroups.util.*;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 import java.util.Objects;
@@ -116,6 +117,7 @@ public class CENTRAL_LOCK2 extends Locking {
             case LOCK_INFO_REQ:
             case LOCK_INFO_RSP:
             case LOCK_REVOKED:
+            case RECALL_LEASE:
                 if(log.isTraceEnabled())
                     log.trace("%s <-- %s: %s", local_addr, req.sender, req);
                 handleRequest(req);
@@ -127,20 +129,28 @@ public class CENTRAL_LOCK2 extends Locking {
         }
     }
 
+    @Override
+    protected void requestsReceived(List<Request> reqs) {
+        reqs.forEach(this::requestReceived);
+    }
+
+    /** Takes all requests from the queue and handles them in one pass (see {@link #handleRequests(List)}) */
     protected void processQueue() {
-        Request req=null;
+        List<Request> reqs=new ArrayList<>();
         try {
-            req=req_queue.take();
+            reqs.add(req_queue.take());
         }
         catch(InterruptedException e) {
         }
+        if(batch_lock_requests)
+            req_queue.drainTo(reqs);
         try {
-            if(req != null && log.isTraceEnabled())
-                log.trace("%s <-- %s: %s", local_addr, req.sender, req);
-            handleRequest(req);
+            if(log.isTraceEnabled())
+                reqs.forEach(req -> log.trace("%s <-- %s: %s", local_addr, req.sender, req));
+            handleRequests(reqs);
         }
         catch(Throwable t) {
-            log.error("%s: failed handling request %s: %s", local_addr, req, t);
+            log.error("%s: failed handling requests %s: %s", local_addr, reqs, t);
         }
     }
 
@@ -9,6 +9,10 @@ import org.jgroups.util.*;
 import java.io.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.Supplier;
 
 
@@ -32,6 +36,17 @@ public class COUNTER extends Protocol {
     @Property(description="Number of backup coordinators. Modifications are asynchronously sent to all backup coordinators")
     protected int num_backups=1;
 
+    @Property(description="If true, concurrent addAndGet() calls on the same counter are folded into a single request " +
+      "to the coordinator per round. Every caller still gets the value it would have gotten had the calls been " +
+      "applied one after the other")
+    protected boolean batch_adds;
+
+    @ManagedAttribute(description="Number of addAndGet() calls which were folded into a request sent by another thread")
+    protected final LongAdder num_folded_adds=new LongAdder();
+
+    @ManagedAttribute(description="Number of ranges reserved by range counters")
+    protected final LongAdder num_range_reservations=new LongAdder();
+
     protected Address local_addr;
 
     /** Set to true during reconciliation process, will cause all requests to be discarded */
@@ -110,6 +125,17 @@ public class COUNTER extends Protocol {
         this.bypass_bundling=bypass_bundling;
     }
 
+    public boolean batchAdds()                 {return batch_adds;}
+    public COUNTER batchAdds(boolean b)        {this.batch_adds=b; return this;}
+    public long    getNumFoldedAdds()          {return num_folded_adds.sum();}
+    public long    getNumRangeReservations()   {return num_range_reservations.sum();}
+
+    public void resetStats() {
+        super.resetStats();
+        num_folded_adds.reset();
+        num_range_reservations.reset();
+    }
+
 
     @ManagedAttribute
     public String getAddress() {
@@ -148,6 +174,17 @@ public class COUNTER extends Protocol {
         }
     }
 
+    /**
+     * Returns a counter which reserves ranges of range_size values from the coordinator and serves increments from the
+     * reserved range locally. The values returned by a range counter are unique across the cluster, and increasing
+     * for a given member, but not across members. See {@link RangeCounter} for details
+     */
+    public Counter getOrCreateRangeCounter(String name, long initial_value, int range_size) {
+        if(range_size <= 0)
+            throw new IllegalArgumentException("range_size needs to be positive: " + range_size);
+        return new RangeCounter((CounterImpl)getOrCreateCounter(name, initial_value), range_size);
+    }
+
     /** Sent asynchronously - we don't wait for an ack */
     public void deleteCounter(String name) {
         Owner owner=getOwner();
@@ -628,6 +665,7 @@ public class COUNTER extends Protocol {
 
     protected class CounterImpl implements Counter {
         protected final String  name;
+        protected final Adder   adder=new Adder(this);
 
         protected CounterImpl(String name) {
             this.name = name;
@@ -722,6 +760,11 @@ public class COUNTER extends Protocol {
                     updateBackups(name, val.value, val.version);
                 return retval;
             }
+            return batch_adds? adder.addAndGet(delta) : _addAndGet(delta);
+        }
+
+        /** Sends an ADD_AND_GET request to the coordinator and waits for the response */
+        protected long _addAndGet(long delta) {
             Owner owner=getOwner();
             Request req=new AddAndGetRequest(owner, name, delta);
             Promise<long[]> promise=new Promise<>();
@@ -751,6 +794,239 @@ public class COUNTER extends Protocol {
     }
 
 
+    /**
+     * Folds concurrent addAndGet() calls on the same counter into one ADD_AND_GET request per round: the first caller
+     * sends the sum of all deltas queued so far; callers arriving while the request is in flight are queued for the
+     * next round. On the response, every caller gets the previous value plus the deltas up to and including its own,
+     * which is the same result as if the calls had been applied one after the other. Leadership for the next round is
+     * handed to the first queued caller.
+     */
+    protected class Adder {
+        protected final CounterImpl     counter;
+        protected final List<PendingAdd> queue=new ArrayList<>();
+        protected boolean               in_flight; // true while a round is in progress
+        protected final Lock            lock=new ReentrantLock(); // not a monitor: waiters would pin virtual threads
+        protected final Condition       round_done=lock.newCondition();
+
+        protected Adder(CounterImpl counter) {
+            this.counter=counter;
+        }
+
+        protected long addAndGet(long delta) {
+            PendingAdd add=new PendingAdd(delta);
+            boolean interrupted=false;
+            lock.lock();
+            try {
+                queue.add(add);
+                if(!in_flight) {
+                    in_flight=true;
+                    add.lead=true;
+                }
+                while(!add.lead && !add.done) {
+                    try {
+                        round_done.await();
+                    }
+                    catch(InterruptedException e) {
+                        interrupted=true;
+                    }
+                }
+            }
+            finally {
+                lock.unlock();
+            }
+            if(interrupted)
+                Thread.currentThread().interrupt();
+            if(!add.done)
+                runRound();
+            else
+                num_folded_adds.increment();
+            if(add.error != null)
+                throw add.error;
+            return add.result;
+        }
+
+        /** Sends the sum of all queued deltas to the coordinator and completes the queued calls */
+        protected void runRound() {
+            List<PendingAdd> round;
+            lock.lock();
+            try {
+                round=new ArrayList<>(queue);
+                queue.clear();
+            }
+            finally {
+                lock.unlock();
+            }
+            long sum=0;
+            for(PendingAdd add: round)
+                sum+=add.delta;
+            RuntimeException error=null;
+            long value=0;
+            try {
+                value=counter._addAndGet(sum) - sum; // the value before this round
+            }
+            catch(RuntimeException ex) {
+                error=ex;
+            }
+            lock.lock();
+            try {
+                for(PendingAdd add: round) {
+                    value+=add.delta;
+                    add.result=value;
+                    add.error=error;
+                    add.done=true;
+                }
+                if(queue.isEmpty())
+                    in_flight=false;
+                else
+                    queue.get(0).lead=true;
+                round_done.signalAll();
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    protected static class PendingAdd {
+        protected final long       delta;
+        protected long             result;
+        protected RuntimeException error;
+        protected boolean          lead, done;
+
+        protected PendingAdd(long delta) {
+            this.delta=delta;
+        }
+    }
+
+
+    /**
+     * A counter for ID allocation: reserves ranges of range_size values from the coordinator (by adding range_size to
+     * the counter) and serves incrementAndGet() / addAndGet() from the reserved range, without contacting the
+     * coordinator. Values are unique across the cluster and increasing per member, but members hand out values from
+     * different ranges, so values are not increasing across members, and unused values of a range are lost when a
+     * member leaves.<p/>
+     * Only positive deltas are supported. get(), set() and compareAndSet() operate on the coordinator's value, which is
+     * the end of the highest reserved range; set() and compareAndSet() also discard the local range.
+     */
+    protected class RangeCounter implements Counter {
+        protected final CounterImpl counter;
+        protected final int         range_size;
+        protected final Lock        lock=new ReentrantLock(); // not held while a range is reserved
+        protected final Condition   reserved=lock.newCondition(); // signalled when a reservation completes
+        protected long              next=1, end; // the local range: [next .. end]
+        protected long              epoch;       // incremented when the range is discarded
+        protected boolean           reserving;   // true while a caller reserves a new range
+
+        protected RangeCounter(CounterImpl counter, int range_size) {
+            this.counter=counter;
+            this.range_size=range_size;
+        }
+
+        public String getName() {
+            return counter.getName();
+        }
+
+        public long get() {
+            return counter.get();
+        }
+
+        public void set(long new_value) {
+            counter.set(new_value);
+            discardRange();
+        }
+
+        public boolean compareAndSet(long expect, long update) {
+            boolean retval=counter.compareAndSet(expect, update);
+            if(retval)
+                discardRange();
+            return retval;
+        }
+
+        public long incrementAndGet() {
+            return addAndGet(1);
+        }
+
+        public long decrementAndGet() {
+            throw new UnsupportedOperationException("range counters can only be incremented");
+        }
+
+        /**
+         * Allocates delta consecutive values and returns the last one. When the local range is exhausted, a new range
+         * is reserved from the coordinator. The lock is not held during the reservation; concurrent callers which
+         * cannot be served from the current range wait until the new range has been installed
+         */
+        public long addAndGet(long delta) {
+            if(delta == 0)
+                return get();
+            if(delta < 0)
+                throw new UnsupportedOperationException("range counters can only be incremented");
+            long ep;
+            lock.lock();
+            try {
+                for(;;) {
+                    if(end - next + 1 >= delta) {
+                        next+=delta;
+                        return next-1;
+                    }
+                    if(!reserving)
+                        break;
+                    reserved.awaitUninterruptibly();
+                }
+                reserving=true;
+                ep=epoch;
+            }
+            finally {
+                lock.unlock();
+            }
+
+            long size=Math.max(range_size, delta), new_end=0;
+            boolean success=false;
+            try {
+                new_end=counter.addAndGet(size); // blocking round trip to the coordinator
+                success=true;
+                num_range_reservations.increment();
+            }
+            finally {
+                lock.lock();
+                try {
+                    if(success && ep == epoch) { // don't install a range reserved before set() or compareAndSet()
+                        next=new_end - size + 1 + delta;
+                        end=new_end;
+                    }
+                    reserving=false;
+                    reserved.signalAll();
+                }
+                finally {
+                    lock.unlock();
+                }
+            }
+            return new_end - size + delta;
+        }
+
+        protected void discardRange() {
+            lock.lock();
+            try {
+                next=1;
+                end=0;
+                epoch++;
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+
+        public String toString() {
+            lock.lock();
+            try {
+                return String.format("%s (range: %d-%d)", counter, next, end);
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+    }
+
+
 
 
     protected interface Request extends Streamable {
@@ -0,0 +1,271 @@
+package org.jgroups.protocols;
+
+import org.jgroups.*;
+import org.jgroups.annotations.MBean;
+import org.jgroups.annotations.ManagedAttribute;
+import org.jgroups.annotations.ManagedOperation;
+import org.jgroups.annotations.Property;
+import org.jgroups.blocks.crdt.Crdt;
+import org.jgroups.stack.Protocol;
+import org.jgroups.util.*;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+/**
+ * Protocol which is used by {@link org.jgroups.blocks.crdt.CrdtService} to replicate conflict-free replicated data
+ * types (CRDTs). Local updates are multicast as deltas (relying on NAKACK2 for reliable delivery); no coordinator is
+ * involved. When new members join, the existing members send them their full state; after a merge, the coordinator of
+ * each subgroup multicasts its full state, so the replicas of all subgroups converge.
+ * @since  4.1.2
+ */
+@MBean(description="Protocol to replicate conflict-free replicated data types")
+public class CRDT extends Protocol implements Crdt.Replicator {
+
+    @Property(description="Bypasses message bundling if true")
+    protected boolean bypass_bundling;
+
+    @ManagedAttribute(description="Number of deltas sent")
+    protected final LongAdder num_deltas_sent=new LongAdder();
+
+    @ManagedAttribute(description="Number of deltas received")
+    protected final LongAdder num_deltas_received=new LongAdder();
+
+    @ManagedAttribute(description="Number of times the full state was sent to joiners or after a merge")
+    protected final LongAdder num_states_sent=new LongAdder();
+
+    @ManagedAttribute(description="Number of times the full state was received")
+    protected final LongAdder num_states_received=new LongAdder();
+
+    protected Address         local_addr;
+
+    protected volatile View   view;
+
+    protected final ConcurrentMap<String,Crdt<?>> crdts=Util.createConcurrentMap(20);
+
+
+    public boolean bypassBundling()          {return bypass_bundling;}
+    public CRDT    bypassBundling(boolean b) {this.bypass_bundling=b; return this;}
+    public long    getNumDeltasSent()        {return num_deltas_sent.sum();}
+    public long    getNumDeltasReceived()    {return num_deltas_received.sum();}
+    public long    getNumStatesSent()        {return num_states_sent.sum();}
+    public long    getNumStatesReceived()    {return num_states_received.sum();}
+
+    @ManagedAttribute(description="Number of CRDTs")
+    public int     getNumCrdts()             {return crdts.size();}
+
+    public void resetStats() {
+        super.resetStats();
+        num_deltas_sent.reset();
+        num_deltas_received.reset();
+        num_states_sent.reset();
+        num_states_received.reset();
+    }
+
+    public Address localAddress() {
+        if(local_addr == null)
+            throw new IllegalStateException("channel is not connected");
+        return local_addr;
+    }
+
+    /**
+     * Returns the CRDT with the given name, or creates a new one if none exists
+     * @throws IllegalArgumentException If a CRDT with the same name but a different type exists
+     */
+    public <T extends Crdt<T>> T getOrCreate(String name, Class<T> type) {
+        Crdt<?> crdt=crdts.computeIfAbsent(name, n -> {
+            try {
+                return type.getDeclaredConstructor().newInstance().name(n).replicator(this);
+            }
+            catch(Exception ex) {
+                throw new IllegalArgumentException(String.format("failed creating %s %s", type.getSimpleName(), n), ex);
+            }
+        });
+        if(!type.isInstance(crdt))
+            throw new IllegalArgumentException(String.format("%s is a %s, not a %s", name,
+                                                             crdt.getClass().getSimpleName(), type.getSimpleName()));
+        return type.cast(crdt);
+    }
+
+    @ManagedOperation(description="Prints all CRDTs")
+    public String print() {
+        return crdts.values().stream().map(Object::toString).collect(Collectors.joining("\n"));
+    }
+
+    public void replicate(Crdt<?> delta) {
+        View v=view;
+        if(v == null || v.size() < 2)
+            return;
+        send(null, Collections.singletonList(delta), CrdtHeader.DELTA);
+        num_deltas_sent.increment();
+    }
+
+
+    public Object down(Event evt) {
+        switch(evt.getType()) {
+            case Event.SET_LOCAL_ADDRESS:
+                local_addr=evt.getArg();
+                break;
+        }
+        return down_prot.down(evt);
+    }
+
+    public Object up(Event evt) {
+        switch(evt.getType()) {
+            case Event.VIEW_CHANGE:
+                handleView(evt.getArg());
+                break;
+        }
+        return up_prot.up(evt);
+    }
+
+    public Object up(Message msg) {
+        CrdtHeader hdr=msg.getHeader(id);
+        if(hdr == null)
+            return up_prot.up(msg);
+        handle(msg, hdr);
+        return null;
+    }
+
+    public void up(MessageBatch batch) {
+        for(Message msg: batch) {
+            CrdtHeader hdr=msg.getHeader(id);
+            if(hdr != null) {
+                batch.remove(msg);
+                handle(msg, hdr);
+            }
+        }
+        if(!batch.isEmpty())
+            up_prot.up(batch);
+    }
+
+
+    protected void handle(Message msg, CrdtHeader hdr) {
+        try {
+            ByteArrayDataInputStream in=new ByteArrayDataInputStream(msg.getRawBuffer(), msg.getOffset(), msg.getLength());
+            int num=in.readInt();
+            for(int i=0; i < num; i++) {
+                Crdt<?> crdt=readCrdt(in);
+                if(log.isTraceEnabled())
+                    log.trace("%s: received %s from %s", local_addr, crdt, msg.getSrc());
+                merge(crdt);
+            }
+            if(hdr.type == CrdtHeader.DELTA)
+                num_deltas_received.increment();
+            else
+                num_states_received.increment();
+        }
+        catch(Exception ex) {
+            log.error("%s: failed handling message from %s: %s", local_addr, msg.getSrc(), ex);
+        }
+    }
+
+    protected void merge(Crdt<?> received) {
+        Crdt<?> existing=crdts.computeIfAbsent(received.getName(), n -> Crdt.create(received.type()).name(n).replicator(this));
+        if(existing.getClass() != received.getClass()) {
+            log.warn("%s: dropping %s of type %s as the local replica is a %s", local_addr, received.getName(),
+                     received.getClass().getSimpleName(), existing.getClass().getSimpleName());
+            return;
+        }
+        mergeInto(existing, received);
+    }
+
+    /** Merges received into existing, which must be of the same class */
+    @SuppressWarnings("unchecked")
+    protected static <T extends Crdt<T>> void mergeInto(Crdt<T> existing, Crdt<?> received) {
+        existing.merge((T)received);
+    }
+
+    protected void handleView(View v) {
+        View old_view=view;
+        view=v;
+        if(crdts.isEmpty())
+            return;
+        if(v instanceof MergeView) {
+            // the coordinator of each subgroup sends the state of its subgroup to all members
+            for(View subgroup: ((MergeView)v).getSubgroups()) {
+                if(Objects.equals(local_addr, subgroup.getCoord())) {
+                    sendState(null);
+                    break;
+                }
+            }
+            return;
+        }
+        if(old_view == null)
+            return;
+        // every existing member sends its state to the joiners, so that updates which are still in transit to the
+        // other members are not lost
+        List<Address> joiners=Util.newElements(old_view.getMembers(), v.getMembers());
+        for(Address joiner: joiners)
+            if(!Objects.equals(joiner, local_addr))
+                sendState(joiner);
+    }
+
+    protected void sendState(Address dest) {
+        List<Crdt<?>> state=crdts.values().stream().map(Crdt::copy).collect(Collectors.toList());
+        if(state.isEmpty())
+            return;
+        if(log.isTraceEnabled())
+            log.trace("%s: sending state of %d CRDTs to %s", local_addr, state.size(), dest == null? "all" : dest);
+        send(dest, state, CrdtHeader.STATE);
+        num_states_sent.increment();
+    }
+
+    protected void send(Address dest, Collection<? extends Crdt<?>> list, byte type) {
+        try {
+            ByteArrayDataOutputStream out=new ByteArrayDataOutputStream(64);
+            out.writeInt(list.size());
+            for(Crdt<?> crdt: list)
+                writeCrdt(crdt, out);
+            Message msg=new Message(dest, out.buffer(), 0, out.position()).putHeader(id, new CrdtHeader(type));
+            if(dest == null)
+                msg.setTransientFlag(Message.TransientFlag.DONT_LOOPBACK);
+            if(bypass_bundling)
+                msg.setFlag(Message.Flag.DONT_BUNDLE);
+            down_prot.down(msg);
+        }
+        catch(Exception ex) {
+            log.error(Util.getMessage("FailedSendingMessageTo") + (dest == null? "all" : dest) + ": " + ex);
+        }
+    }
+
+    protected static void writeCrdt(Crdt<?> crdt, DataOutput out) throws Exception {
+        out.writeByte(crdt.type());
+        Bits.writeString(crdt.getName(), out);
+        crdt.writeTo(out);
+    }
+
+    protected static Crdt<?> readCrdt(DataInput in) throws Exception {
+        Crdt<?> crdt=Crdt.create(in.readByte());
+        crdt.name(Bits.readString(in));
+        crdt.readFrom(in);
+        return crdt;
+    }
+
+
+    public static class CrdtHeader extends Header {
+        public static final byte DELTA=1; // an update to a single CRDT
+        public static final byte STATE=2; // the full state (all CRDTs) of the sender
+
+        protected byte type;
+
+        public CrdtHeader() {}
+        public CrdtHeader(byte type) {this.type=type;}
+        public Supplier<? extends Header> create() {return CrdtHeader::new;}
+        public short getMagicId() {return 94;}
+        public byte  getType()    {return type;}
+        @Override
+        public int serializedSize() {return Global.BYTE_SIZE;}
+        @Override
+        public void writeTo(DataOutput out) throws IOException {out.writeByte(type);}
+        @Override
+        public void readFrom(DataInput in) throws IOException {type=in.readByte();}
+        public String toString() {return type == DELTA? "DELTA" : "STATE";}
+    }
+}
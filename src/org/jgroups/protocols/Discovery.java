@@ -11,9 +11,13 @@ import org.jgroups.stack.Protocol;
 import org.jgroups.util.*;
 import org.jgroups.util.UUID;
 
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
 import java.util.concurrent.ConcurrentSkipListSet;
 import java.util.concurrent.Future;
@@ -84,11 +88,27 @@ public abstract class Discovery extends Protocol {
       "(https://issues.jboss.org/browse/JGRP-2317)")
     protected int                        num_discovery_runs=1;
 
+    @Property(description="Directory in which the last installed view (members, coordinator and physical addresses) " +
+      "is persisted. On a (re)join, a JOIN is first sent directly to the cached coordinator, and a full discovery " +
+      "is only run if that JOIN fails. Null disables the discovery cache")
+    protected String                     discovery_cache_dir;
+
+    @Property(description="If true, multiple discovery responses to the same member (e.g. with return_entire_cache " +
+      "or send_cache_on_join) are sent as a single batch rather than one message per response. Needs to be false " +
+      "if members running older versions (which don't understand batched responses) are present")
+    protected boolean                    batch_discovery_responses;
+
     /* ---------------------------------------------   JMX      ------------------------------------------------------ */
 
     @ManagedAttribute(description="Total number of discovery requests sent ")
     protected int                        num_discovery_requests;
 
+    @ManagedAttribute(description="Number of times the initial discovery was answered from the discovery cache")
+    protected int                        num_discovery_cache_hits;
+
+    @ManagedAttribute(description="Number of batches of discovery responses sent")
+    protected int                        num_discovery_rsp_batches_sent;
+
     /* --------------------------------------------- Fields ------------------------------------------------------ */
 
     protected volatile boolean           is_server;
@@ -108,6 +128,8 @@ public abstract class Discovery extends Protocol {
     @ManagedAttribute(description="True if sending a message can block at the transport level")
     protected boolean                    sends_can_block=true;
     protected Consumer<PingData>         discovery_rsp_callback; // called when a discovery response is received
+    protected volatile boolean           discovery_cache_used; // set when the discovery cache was used for the current join
+    protected ViewId                     cached_view_id;       // the ID of the view last written to the discovery cache
     protected static final byte[]        WHITESPACE=" \t".getBytes();
 
 
@@ -118,6 +140,11 @@ public abstract class Discovery extends Protocol {
             throw new IllegalArgumentException("stagger_timeout cannot be negative");
         if(num_discovery_runs < 1)
             throw new IllegalArgumentException("num_discovery_runs must be >= 1");
+        if(discovery_cache_dir != null) {
+            File dir=new File(discovery_cache_dir);
+            if(!dir.exists() && !dir.mkdirs())
+                throw new IllegalArgumentException("failed creating discovery_cache_dir " + discovery_cache_dir);
+        }
         transport_supports_multicasting=tp.supportsMulticasting();
         sends_can_block=getTransport() instanceof TCP; // UDP and TCP_NIO2 won't block
         use_ip_addrs=tp.getUseIpAddresses();
@@ -158,6 +185,11 @@ public abstract class Discovery extends Protocol {
     public boolean                 useDiskCache()                     {return use_disk_cache;}
     public <T extends Discovery> T useDiskCache(boolean flag)         {use_disk_cache=flag; return (T)this;}
     public <T extends Discovery> T discoveryRspExpiryTime(long t)     {this.discovery_rsp_expiry_time=t; return (T)this;}
+    public String                  discoveryCacheDir()                {return discovery_cache_dir;}
+    public <T extends Discovery> T discoveryCacheDir(String dir)      {discovery_cache_dir=dir; return (T)this;}
+    public boolean                 batchDiscoveryResponses()          {return batch_discovery_responses;}
+    public <T extends Discovery> T batchDiscoveryResponses(boolean b) {batch_discovery_responses=b; return (T)this;}
+    public int                     getNumDiscoveryCacheHits()         {return num_discovery_cache_hits;}
 
 
 
@@ -188,7 +220,7 @@ public abstract class Discovery extends Protocol {
 
     public void resetStats() {
         super.resetStats();
-        num_discovery_requests=0;
+        num_discovery_requests=num_discovery_cache_hits=num_discovery_rsp_batches_sent=0;
     }
 
 
@@ -217,6 +249,12 @@ public abstract class Discovery extends Protocol {
 
 
     public Responses findMembers(final List<Address> members, final boolean initial_discovery, boolean async, long timeout) {
+        if(initial_discovery && discovery_cache_dir != null && !discovery_cache_used) {
+            discovery_cache_used=true; // the next initial discovery (e.g. when the JOIN failed) will be a full one
+            Responses cached=readDiscoveryCache();
+            if(cached != null)
+                return cached;
+        }
         num_discovery_requests++;
         int num_expected=members != null? members.size() : 0;
         int capacity=members != null? members.size() : 16;
@@ -298,6 +336,16 @@ public abstract class Discovery extends Protocol {
         if(is_leaving)
             return null; // prevents merging back a leaving member (https://issues.jboss.org/browse/JGRP-1336)
 
+        if(hdr.type == PingHeader.GET_MBRS_RSP_BATCH) {
+            List<PingData> list=readPingDataList(msg.getRawBuffer(), msg.getOffset(), msg.getLength());
+            if(list != null) {
+                log.trace("%s: received GET_MBRS_RSP_BATCH from %s: %s", local_addr, msg.src(), list);
+                for(PingData rsp: list)
+                    handleDiscoveryResponse(rsp, msg.src());
+            }
+            return null;
+        }
+
         PingData data=readPingData(msg.getRawBuffer(), msg.getOffset(), msg.getLength());
         Address logical_addr=data != null? data.getAddress() : msg.src();
 
@@ -327,14 +375,16 @@ public abstract class Discovery extends Protocol {
                 if(return_entire_cache) {
                     Map<Address,PhysicalAddress> cache=(Map<Address,PhysicalAddress>)down(new Event(Event.GET_LOGICAL_PHYSICAL_MAPPINGS));
                     if(cache != null) {
+                        List<PingData> rsps=new ArrayList<>(cache.size());
                         for(Map.Entry<Address,PhysicalAddress> entry: cache.entrySet()) {
                             Address addr=entry.getKey();
                             // JGRP-1492: only return our own address, and addresses in view.
                             if(addr.equals(local_addr) || (view != null && view.containsMember(addr))) {
                                 PhysicalAddress physical_addr=entry.getValue();
-                                sendDiscoveryResponse(addr, physical_addr, NameCache.get(addr), msg.getSrc(), isCoord(addr));
+                                rsps.add(new PingData(addr, is_server, NameCache.get(addr), physical_addr).coord(isCoord(addr)));
                             }
                         }
+                        sendDiscoveryResponses(rsps, msg.getSrc());
                     }
                     return null;
                 }
@@ -398,6 +448,10 @@ public abstract class Discovery extends Protocol {
                     new_mbrs=View.newMembers(old_view, view);
                     startCacheDissemination(curr_mbrs, left_mbrs, new_mbrs); // separate task
                 }
+                if(discovery_cache_dir != null) {
+                    final View v=view;
+                    timer.execute(() -> writeDiscoveryCache(v), true);
+                }
                 return retval;
 
             case Event.BECOME_SERVER: // called after client has joined and is fully working group member
@@ -414,6 +468,7 @@ public abstract class Discovery extends Protocol {
             case Event.CONNECT_USE_FLUSH:
             case Event.CONNECT_WITH_STATE_TRANSFER_USE_FLUSH:
                 is_leaving=false;
+                discovery_cache_used=false;
                 cluster_name=evt.getArg();
                 Object ret=down_prot.down(evt);
                 handleConnect();
@@ -583,6 +638,43 @@ public abstract class Discovery extends Protocol {
         return Util.streamableToBuffer(data);
     }
 
+    /** Marshals a list of PingData as number of elements followed by the elements */
+    public static Buffer marshal(Collection<PingData> list) {
+        int size=Global.INT_SIZE;
+        for(PingData data: list)
+            size+=data.serializedSize();
+        ByteArrayDataOutputStream out=new ByteArrayDataOutputStream(size);
+        try {
+            out.writeInt(list.size());
+            for(PingData data: list)
+                data.writeTo(out);
+            return out.getBuffer();
+        }
+        catch(Exception ex) {
+            return null;
+        }
+    }
+
+    protected List<PingData> readPingDataList(byte[] buffer, int offset, int length) {
+        if(buffer == null)
+            return null;
+        try {
+            ByteArrayDataInputStream in=new ByteArrayDataInputStream(buffer, offset, length);
+            int size=in.readInt();
+            List<PingData> list=new ArrayList<>(size);
+            for(int i=0; i < size; i++) {
+                PingData data=new PingData();
+                data.readFrom(in);
+                list.add(data);
+            }
+            return list;
+        }
+        catch(Exception ex) {
+            log.error("%s: failed reading list of PingData from message: %s", local_addr, ex);
+            return null;
+        }
+    }
+
     protected PingData readPingData(byte[] buffer, int offset, int length) {
         try {
             return buffer != null? Util.streamableFromBuffer(PingData::new, buffer, offset, length) : null;
@@ -598,7 +690,28 @@ public abstract class Discovery extends Protocol {
         final PingData data=new PingData(logical_addr, is_server, logical_name, physical_addr).coord(coord);
         final Message rsp_msg=new Message(sender).setFlag(Message.Flag.INTERNAL, Message.Flag.OOB, Message.Flag.DONT_BUNDLE)
           .putHeader(this.id, new PingHeader(PingHeader.GET_MBRS_RSP)).setBuffer(marshal(data));
+        sendDiscoveryResponse(rsp_msg, sender, data);
+    }
+
+    /**
+     * Sends a list of discovery responses to a member. If {@link #batch_discovery_responses} is true, all responses
+     * are sent in a single message, otherwise one message per response is sent
+     */
+    protected void sendDiscoveryResponses(List<PingData> rsps, final Address sender) {
+        if(rsps == null || rsps.isEmpty())
+            return;
+        if(!batch_discovery_responses || rsps.size() == 1) {
+            for(PingData data: rsps)
+                sendDiscoveryResponse(data.getAddress(), data.getPhysicalAddr(), data.getLogicalName(), sender, data.isCoord());
+            return;
+        }
+        final Message rsp_msg=new Message(sender).setFlag(Message.Flag.INTERNAL, Message.Flag.OOB, Message.Flag.DONT_BUNDLE)
+          .putHeader(this.id, new PingHeader(PingHeader.GET_MBRS_RSP_BATCH)).setBuffer(marshal(rsps));
+        num_discovery_rsp_batches_sent++;
+        sendDiscoveryResponse(rsp_msg, sender, rsps);
+    }
 
+    protected void sendDiscoveryResponse(final Message rsp_msg, final Address sender, final Object data) {
         if(stagger_timeout > 0) {
             int view_size=view != null? view.size() : 10;
             int rank=Util.getRank(view, local_addr); // returns 0 if view or local_addr are null
@@ -640,30 +753,97 @@ public abstract class Discovery extends Protocol {
             current_mbrs.removeAll(left_mbrs);
 
         // 1. Send information about <everyone - self - left_mbrs> to new_mbrs
-        Set<Address> info=new HashSet<>(current_mbrs);
-        for(Address addr : info) {
-            PhysicalAddress phys_addr=(PhysicalAddress)down_prot.down(new Event(Event.GET_PHYSICAL_ADDRESS,addr));
-            if(phys_addr == null)
-                continue;
-            boolean is_coordinator=isCoord(addr);
-            for(Address target : new_mbrs)
-                sendDiscoveryResponse(addr,phys_addr,NameCache.get(addr),target,is_coordinator);
-        }
+        List<PingData> info=getPingData(new HashSet<Address>(current_mbrs));
+        for(Address target : new_mbrs)
+            sendDiscoveryResponses(info, target);
 
         // 2. Send information about new_mbrs to <everyone - self - left_mbrs - new_mbrs>
         Set<Address> targets=new HashSet<>(current_mbrs);
         targets.removeAll(new_mbrs);
 
         if(!targets.isEmpty()) {
-            for(Address addr : new_mbrs) {
-                PhysicalAddress phys_addr=(PhysicalAddress)down_prot.down(new Event(Event.GET_PHYSICAL_ADDRESS,addr));
-                if(phys_addr == null)
-                    continue;
-                boolean is_coordinator=isCoord(addr);
-                for(Address target : targets)
-                    sendDiscoveryResponse(addr,phys_addr,NameCache.get(addr),target,is_coordinator);
-            }
+            List<PingData> new_info=getPingData(new_mbrs);
+            for(Address target : targets)
+                sendDiscoveryResponses(new_info, target);
+        }
+    }
+
+    /** Returns the discovery information (logical name, physical address, coord flag) for all members that have one */
+    protected List<PingData> getPingData(Collection<Address> mbrs) {
+        List<PingData> list=new ArrayList<>(mbrs.size());
+        for(Address addr : mbrs) {
+            PhysicalAddress phys_addr=(PhysicalAddress)down_prot.down(new Event(Event.GET_PHYSICAL_ADDRESS,addr));
+            if(phys_addr != null)
+                list.add(new PingData(addr, is_server, NameCache.get(addr), phys_addr).coord(isCoord(addr)));
+        }
+        return list;
+    }
+
+    protected File discoveryCacheFile() {
+        return discovery_cache_dir != null && cluster_name != null? new File(discovery_cache_dir, cluster_name + ".cache") : null;
+    }
+
+    /**
+     * Persists the members of the given view, plus their logical names and physical addresses, to the discovery cache.
+     * The file is written to a temp file first and then renamed, so that readers never see a partially written file.
+     */
+    protected synchronized void writeDiscoveryCache(View v) {
+        File file=discoveryCacheFile();
+        if(v == null || file == null || (cached_view_id != null && cached_view_id.compareToIDs(v.getViewId()) >= 0))
+            return;
+        Address coord=v.getCoord();
+        List<PingData> list=new ArrayList<>(v.size());
+        for(Address mbr: v) {
+            PhysicalAddress phys_addr=(PhysicalAddress)down_prot.down(new Event(Event.GET_PHYSICAL_ADDRESS, mbr));
+            if(phys_addr != null)
+                list.add(new PingData(mbr, true, NameCache.get(mbr), phys_addr).coord(mbr.equals(coord)));
+        }
+        File tmp=new File(file.getParentFile(), file.getName() + "." + addressAsString(local_addr) + ".tmp");
+        try {
+            write(list, new FileOutputStream(tmp));
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            cached_view_id=v.getViewId();
+            log.trace("%s: wrote view %s to discovery cache %s", local_addr, cached_view_id, file);
+        }
+        catch(Exception ex) {
+            log.warn("%s: failed writing discovery cache %s: %s", local_addr, file, ex);
+            tmp.delete();
+        }
+    }
+
+    /**
+     * Reads the discovery cache and adds its contents to the local caches. Returns the cached members (including the
+     * coordinator) as completed responses, or null if there is no cache, or the cached coordinator was a previous
+     * incarnation of ourselves (same physical address)
+     */
+    protected Responses readDiscoveryCache() {
+        File file=discoveryCacheFile();
+        if(file == null || !file.exists())
+            return null;
+        List<PingData> list;
+        try {
+            list=read(new FileInputStream(file));
+        }
+        catch(Exception ex) {
+            log.warn("%s: failed reading discovery cache %s: %s", local_addr, file, ex);
+            return null;
+        }
+        if(list == null)
+            return null;
+        PhysicalAddress my_phys_addr=(PhysicalAddress)down_prot.down(new Event(Event.GET_PHYSICAL_ADDRESS, local_addr));
+        PingData coord=list.stream().filter(PingData::isCoord).findFirst().orElse(null);
+        if(coord == null || Objects.equals(coord.getPhysicalAddr(), my_phys_addr))
+            return null;
+        Responses rsps=new Responses(0, false, list.size());
+        for(PingData data: list) {
+            if(Objects.equals(data.getPhysicalAddr(), my_phys_addr))
+                continue; // a previous incarnation of ourselves
+            addDiscoveryResponseToCaches(data.getAddress(), data.getLogicalName(), data.getPhysicalAddr());
+            rsps.addResponse(data, true);
         }
+        num_discovery_cache_hits++;
+        log.debug("%s: found coordinator %s in discovery cache %s, skipping discovery", local_addr, coord.getAddress(), file);
+        return rsps.done();
     }
 
 
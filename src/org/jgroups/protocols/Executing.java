@@ -4,6 +4,7 @@ import org.jgroups.*;
 import org.jgroups.annotations.MBean;
 import org.jgroups.annotations.ManagedAttribute;
 import org.jgroups.annotations.Property;
+import org.jgroups.blocks.executor.AffinityTask;
 import org.jgroups.blocks.executor.ExecutionService.DistributedFuture;
 import org.jgroups.blocks.executor.ExecutorEvent;
 import org.jgroups.blocks.executor.ExecutorNotification;
@@ -18,6 +19,7 @@ import java.util.Map.Entry;
 import java.util.concurrent.*;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.Supplier;
@@ -35,6 +37,13 @@ abstract public class Executing extends Protocol {
     @Property(description="bypasses message bundling if set")
     protected boolean bypass_bundling=true;
 
+    @ManagedAttribute(description="Number of tasks with an affinity key which were run on their preferred member")
+    protected final LongAdder num_affinity_hits=new LongAdder();
+
+    @ManagedAttribute(description="Number of tasks with an affinity key which were run on a different member, as " +
+      "their preferred member had no idle consumer")
+    protected final LongAdder num_affinity_misses=new LongAdder();
+
 
     protected Address local_addr;
 
@@ -123,6 +132,29 @@ abstract public class Executing extends Protocol {
      * elements the run request queue must be empty.
      */
     protected Queue<Owner> _consumersAvailable = new ArrayDeque<>();
+
+    /**
+     * This is stored on the coordinator side.  This maps the task requests
+     * in {@link #_runRequests} which have an affinity key to the member
+     * they would preferably run on.  Protected by {@link #_consumerLock}
+     */
+    protected final Map<Owner, Address> _affinity = new HashMap<>();
+
+    /**
+     * This is stored on the coordinator side.  The number of requests in
+     * {@link #_affinity} per preferred member, so that {@link #_runRequests}
+     * is only searched if it contains a request for a given member.
+     * Protected by {@link #_consumerLock}
+     */
+    protected final Map<Address, Integer> _affinityRequests = new HashMap<>();
+
+    /**
+     * This is stored on the coordinator side.  The number of consumers in
+     * {@link #_consumersAvailable} per member, so that it is only searched
+     * if it contains a consumer of a given member.  Protected by
+     * {@link #_consumerLock}
+     */
+    protected final Map<Address, Integer> _idleConsumers = new HashMap<>();
     
     protected enum Type {
         RUN_REQUEST,            // request to coordinator from client to tell of a new task request
@@ -137,7 +169,9 @@ abstract public class Executing extends Protocol {
         CREATE_RUN_REQUEST,     // request to backups from coordinator to create a new task request. Used by CENTRAL_LOCKING
         CREATE_CONSUMER_READY,  // request to backups from coordinator to create a new consumer ready. Used by CENTRAL_LOCKING
         DELETE_RUN_REQUEST,     // request to backups from coordinator to delete a task request. Used by CENTRAL_LOCKING
-        DELETE_CONSUMER_READY   // request to backups from coordinator to delete a consumer ready. Used by CENTRAL_LOCKING
+        DELETE_CONSUMER_READY,  // request to backups from coordinator to delete a consumer ready. Used by CENTRAL_LOCKING
+        RUN_REQUEST_AFFINITY,   // like RUN_REQUEST, but carries the member the task should preferably run on
+        CONSUMER_FOUND_FOR      // like CONSUMER_FOUND, but for a given task request. Sent for RUN_REQUEST_AFFINITY
     }
     
     public Executing() {
@@ -154,6 +188,37 @@ abstract public class Executing extends Protocol {
         this.bypass_bundling=bypass_bundling;
     }
 
+    public long      getNumAffinityHits()     {return num_affinity_hits.sum();}
+    public long      getNumAffinityMisses()   {return num_affinity_misses.sum();}
+
+    @ManagedAttribute(description="Number of idle consumers (coordinator side)")
+    public int getNumIdleConsumers() {
+        _consumerLock.lock();
+        try {
+            return _consumersAvailable.size();
+        }
+        finally {
+            _consumerLock.unlock();
+        }
+    }
+
+    @ManagedAttribute(description="Number of tasks waiting for a consumer (coordinator side)")
+    public int getNumQueuedTasks() {
+        _consumerLock.lock();
+        try {
+            return _runRequests.size();
+        }
+        finally {
+            _consumerLock.unlock();
+        }
+    }
+
+    public void resetStats() {
+        super.resetStats();
+        num_affinity_hits.reset();
+        num_affinity_misses.reset();
+    }
+
     public void addExecutorListener(Future<?> future,
                                     ExecutorNotification listener) {
         if(listener != null)
@@ -194,7 +259,7 @@ abstract public class Executing extends Protocol {
 
                 _awaitingConsumer.add(runnable);
 
-                sendToCoordinator(RUN_REQUEST, requestId, local_addr);
+                sendRunRequest(runnable, requestId);
                 break;
             case ExecutorEvent.CONSUMER_READY:
                 Thread currentThread = Thread.currentThread();
@@ -476,6 +541,9 @@ abstract public class Executing extends Protocol {
             case RUN_REQUEST:
                 handleTaskRequest(req.request, (Address)req.object);
                 break;
+            case RUN_REQUEST_AFFINITY:
+                handleTaskRequest(req.request, msg.getSrc(), (Address)req.object);
+                break;
             case CONSUMER_READY:
                 handleConsumerReadyRequest(req.request, (Address)req.object);
                 break;
@@ -485,6 +553,9 @@ abstract public class Executing extends Protocol {
             case CONSUMER_FOUND:
                 handleConsumerFoundResponse(req.request, (Address)req.object);
                 break;
+            case CONSUMER_FOUND_FOR:
+                handleConsumerFoundResponse(((RequestWithThread)req).threadId, (Address)req.object, req.request);
+                break;
             case RUN_SUBMITTED:
                 RequestWithThread reqWT = (RequestWithThread)req;
                 Object objectToRun = reqWT.object;
@@ -558,6 +629,7 @@ abstract public class Executing extends Protocol {
                 Owner owner = iterator.next();
                 if (!members.contains(owner.getAddress())) {
                     iterator.remove();
+                    count(_idleConsumers, owner.getAddress(), -1);
                     sendRemoveConsumerRequest(owner);
                 }
             }
@@ -568,6 +640,7 @@ abstract public class Executing extends Protocol {
                 Owner owner = iterator.next();
                 if (!members.contains(owner.getAddress())) {
                     iterator.remove();
+                    removeAffinity(owner);
                     sendRemoveRunRequest(owner);
                 }
             }
@@ -584,8 +657,7 @@ abstract public class Executing extends Protocol {
                         // in case if our task gets picked up since another was removed
                         _requestId.put(runnable, owner.getRequestId());
                         _awaitingConsumer.add(runnable);
-                        sendToCoordinator(RUN_REQUEST, owner.getRequestId(),
-                                          local_addr);
+                        sendRunRequest(runnable, owner.getRequestId());
                     }
                 }
             }
@@ -601,16 +673,51 @@ abstract public class Executing extends Protocol {
     abstract protected void sendNewConsumerRequest(Owner source);
     abstract protected void sendRemoveConsumerRequest(Owner source);
 
+    /**
+     * Sends a request for a consumer to the coordinator.  If the task has an
+     * affinity key, the request also carries the member the task should
+     * preferably run on
+     */
+    protected void sendRunRequest(Runnable runnable, long requestId) {
+        Address preferred = getPreferredMember(runnable);
+        if (preferred != null)
+            sendToCoordinator(Type.RUN_REQUEST_AFFINITY, requestId, preferred);
+        else
+            sendToCoordinator(RUN_REQUEST, requestId, local_addr);
+    }
+
+    /**
+     * Returns the member a task should preferably run on: the affinity key
+     * of the task (if it implements {@link AffinityTask}) is mapped to one of
+     * the current members, or null if the task has no affinity key
+     */
+    protected Address getPreferredMember(Runnable runnable) {
+        Object task = runnable instanceof DistributedFuture ?
+          ((DistributedFuture<?>)runnable).getTask() : runnable;
+        Object key = task instanceof AffinityTask ? ((AffinityTask)task).getAffinityKey() : null;
+        View tmp = view;
+        if (key == null || tmp == null || tmp.size() == 0)
+            return null;
+        List<Address> members = tmp.getMembers();
+        return members.get((key.hashCode() & Integer.MAX_VALUE) % members.size());
+    }
+
     protected void handleTaskRequest(long requestId, Address address) {
+        handleTaskRequest(requestId, address, null);
+    }
+
+    protected void handleTaskRequest(long requestId, Address address, Address preferred) {
         final Owner consumer;
         Owner source = new Owner(address, requestId);
         _consumerLock.lock();
         try {
-            consumer = _consumersAvailable.poll();
+            consumer = pickConsumer(preferred);
             // We don't add duplicate run requests - this allows for resubmission
             // if it is thought the message may have been dropped
             if (consumer == null && !_runRequests.contains(source)) {
                 _runRequests.add(source);
+                if (preferred != null && _affinity.put(source, preferred) == null)
+                    count(_affinityRequests, preferred, 1);
             }
         }
         finally {
@@ -618,8 +725,7 @@ abstract public class Executing extends Protocol {
         }
         
         if (consumer != null) {
-            sendRequest(source.getAddress(), Type.CONSUMER_FOUND, 
-                consumer.getRequestId(), consumer.getAddress());
+            sendConsumerFound(source, consumer, preferred != null);
             sendRemoveConsumerRequest(consumer);
         }
         else {
@@ -629,14 +735,18 @@ abstract public class Executing extends Protocol {
 
     protected void handleConsumerReadyRequest(long requestId, Address address) {
         Owner requestor;
+        boolean affinity = false;
         final Owner source = new Owner(address, requestId);
         _consumerLock.lock();
         try {
-            requestor = _runRequests.poll();
+            requestor = pickRunRequest(address);
+            if (requestor != null)
+                affinity = removeAffinity(requestor) != null;
             // We don't add duplicate consumers - this allows for resubmission
             // if it is thought the message may have been dropped
             if (requestor == null && !_consumersAvailable.contains(source)) {
                 _consumersAvailable.add(source);
+                count(_idleConsumers, address, 1);
             }
         }
         finally {
@@ -644,8 +754,7 @@ abstract public class Executing extends Protocol {
         }
         
         if (requestor != null) {
-            sendRequest(requestor.getAddress(), Type.CONSUMER_FOUND, 
-                source.getRequestId(), source.getAddress());
+            sendConsumerFound(requestor, source, affinity);
             sendRemoveRunRequest(requestor);
         }
         else {
@@ -653,11 +762,98 @@ abstract public class Executing extends Protocol {
         }
     }
     
+    /**
+     * Removes and returns the consumer to run a task on, or null if there
+     * are no idle consumers.  A consumer on the preferred member is picked if
+     * there is one, else the consumer which has been idle the longest.  The
+     * idle consumers are only searched if the preferred member has one.
+     * Needs to be called with {@link #_consumerLock} held
+     */
+    protected Owner pickConsumer(Address preferred) {
+        if (_consumersAvailable.isEmpty())
+            return null;
+        Owner consumer = null;
+        if (preferred != null) {
+            if (_idleConsumers.containsKey(preferred)) {
+                for (Iterator<Owner> it = _consumersAvailable.iterator(); it.hasNext();) {
+                    Owner tmp = it.next();
+                    if (preferred.equals(tmp.getAddress())) {
+                        it.remove();
+                        consumer = tmp;
+                        break;
+                    }
+                }
+            }
+            (consumer != null ? num_affinity_hits : num_affinity_misses).increment();
+        }
+        if (consumer == null)
+            consumer = _consumersAvailable.poll();
+        count(_idleConsumers, consumer.getAddress(), -1);
+        return consumer;
+    }
+
+    /**
+     * Removes and returns the task request to hand to a consumer on the
+     * given member, or null if there are no task requests.  Requests which
+     * prefer the consumer's member are picked first; otherwise the oldest
+     * request is picked, even if it prefers a different member.  The queued
+     * requests are only searched if one of them prefers the consumer's
+     * member.  Needs to be called with {@link #_consumerLock} held
+     */
+    protected Owner pickRunRequest(Address consumer) {
+        if (_affinityRequests.containsKey(consumer)) {
+            for (Iterator<Owner> it = _runRequests.iterator(); it.hasNext();) {
+                Owner requestor = it.next();
+                if (consumer.equals(_affinity.get(requestor))) {
+                    it.remove();
+                    num_affinity_hits.increment();
+                    return requestor;
+                }
+            }
+        }
+        Owner requestor = _runRequests.poll();
+        if (requestor != null && _affinity.containsKey(requestor))
+            num_affinity_misses.increment();
+        return requestor;
+    }
+
+    /**
+     * Tells the requestor which consumer to send its task to.  A request with
+     * an affinity key may not be the oldest request of the requestor, so the
+     * response names the request the consumer was picked for
+     */
+    protected void sendConsumerFound(Owner requestor, Owner consumer, boolean affinity) {
+        if (affinity)
+            sendThreadRequest(requestor.getAddress(), consumer.getRequestId(),
+                Type.CONSUMER_FOUND_FOR, requestor.getRequestId(), consumer.getAddress());
+        else
+            sendRequest(requestor.getAddress(), Type.CONSUMER_FOUND,
+                consumer.getRequestId(), consumer.getAddress());
+    }
+
+    /**
+     * Removes the preferred member of a task request, returning it (or null
+     * if the request has no affinity key).  Needs to be called with
+     * {@link #_consumerLock} held
+     */
+    protected Address removeAffinity(Owner requestor) {
+        Address preferred = _affinity.remove(requestor);
+        if (preferred != null)
+            count(_affinityRequests, preferred, -1);
+        return preferred;
+    }
+
+    /** Adds delta to the count of a member, removing the member when the count drops to 0 */
+    protected static void count(Map<Address, Integer> counts, Address member, int delta) {
+        counts.merge(member, delta, (a, b) -> a + b <= 0 ? null : a + b);
+    }
+
     protected void handleConsumerUnreadyRequest(long requestId, Address address) {
         Owner consumer = new Owner(address, requestId);
         _consumerLock.lock();
         try {
-            _consumersAvailable.remove(consumer);
+            if (_consumersAvailable.remove(consumer))
+                count(_idleConsumers, address, -1);
         }
         finally {
             _consumerLock.unlock();
@@ -666,7 +862,26 @@ abstract public class Executing extends Protocol {
     }
 
     protected void handleConsumerFoundResponse(long threadId, Address address) {
-        final Runnable runnable = _awaitingConsumer.poll();
+        handleConsumerFound(_awaitingConsumer.poll(), threadId, address);
+    }
+
+    /**
+     * Handles {@link Type#CONSUMER_FOUND_FOR}: the consumer was picked for
+     * the task with the given request id, rather than for the task which has
+     * been waiting the longest
+     */
+    protected void handleConsumerFoundResponse(long threadId, Address address, long requestId) {
+        Runnable runnable = null;
+        for (Entry<Runnable, Long> entry : _requestId.entrySet()) {
+            if (entry.getValue() == requestId && _awaitingConsumer.remove(entry.getKey())) {
+                runnable = entry.getKey();
+                break;
+            }
+        }
+        handleConsumerFound(runnable, threadId, address);
+    }
+
+    protected void handleConsumerFound(final Runnable runnable, long threadId, Address address) {
         // This is a representation of the server side owner running our task.
         Owner owner;
         if (runnable == null) {
@@ -781,7 +996,7 @@ abstract public class Executing extends Protocol {
             if (taskRequestId != requestId) {
                 log.warn("Task Request Id doesn't match in rejection");
             }
-            sendToCoordinator(RUN_REQUEST, taskRequestId, local_addr);
+            sendRunRequest(runnable, taskRequestId);
         }
         else {
             log.error(Util.getMessage("ErrorResubmittingTaskForRequestId") + requestId);
@@ -861,6 +1076,7 @@ abstract public class Executing extends Protocol {
         _consumerLock.lock();
         try {
             _runRequests.remove(sender);
+            removeAffinity(sender);
         }
         finally {
             _consumerLock.unlock();
@@ -872,6 +1088,7 @@ abstract public class Executing extends Protocol {
         try {
             if (!_consumersAvailable.contains(sender)) {
                 _consumersAvailable.add(sender);
+                count(_idleConsumers, sender.getAddress(), 1);
             }
         }
         finally {
@@ -882,7 +1099,8 @@ abstract public class Executing extends Protocol {
     protected void handleRemoveConsumer(Owner sender) {
         _consumerLock.lock();
         try {
-            _consumersAvailable.remove(sender);
+            if (_consumersAvailable.remove(sender))
+                count(_idleConsumers, sender.getAddress(), -1);
         }
         finally {
             _consumerLock.unlock();
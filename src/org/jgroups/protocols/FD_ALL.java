@@ -21,7 +21,10 @@ import java.util.function.Supplier;
  * Failure detection based on simple heartbeat protocol. Every member periodically multicasts a heartbeat.
  * Every member also maintains a table of all members (minus itself). When data or a heartbeat from P is received,
  * we reset the timestamp for P to the current time. Periodically, we check for expired members, and suspect those.</p>
- * Reduced number of messages exchanged on suspect event: https://jira.jboss.org/browse/JGRP-1241
+ * Reduced number of messages exchanged on suspect event: https://jira.jboss.org/browse/JGRP-1241<p/>
+ * When use_phi_accrual is true, a member P is also suspected when the phi of P (computed over a sliding window of
+ * inter-arrival times of P's heartbeats, see {@link PhiAccrual}) exceeds phi_threshold. This adapts the suspicion
+ * to P's observed jitter; timeout is then only the upper bound.
  * 
  * @author Bela Ban
  */
@@ -47,6 +50,24 @@ public class FD_ALL extends Protocol {
       "removed soon, don't use !")
     protected boolean                                use_time_service=true;
 
+    @Property(description="Suspect a member when its phi (computed from the inter-arrival times of its heartbeats) " +
+      "exceeds phi_threshold. If false, only timeout is used")
+    protected boolean                                use_phi_accrual;
+
+    @Property(description="The phi value above which a member is suspected. 1: ~10% chance of a false suspicion, " +
+      "2: ~1%, 3: ~0.1% etc")
+    protected double                                 phi_threshold=8.0;
+
+    @Property(description="Number of heartbeat inter-arrival times to keep per member")
+    protected int                                    phi_window_size=100;
+
+    @Property(description="Min standard deviation (ms) of the inter-arrival times, prevents phi from being too " +
+      "sensitive when heartbeats arrive very regularly")
+    protected long                                   phi_min_std_deviation=500;
+
+    @Property(description="Min number of inter-arrival times needed before phi is used; until then timeout applies")
+    protected int                                    phi_min_samples=3;
+
     /* ---------------------------------------------   JMX      ------------------------------------------------------ */
     @ManagedAttribute(description="Number of heartbeats sent")
     protected int                                    num_heartbeats_sent;
@@ -62,6 +83,9 @@ public class FD_ALL extends Protocol {
     // Map of addresses and timestamps of last updates (ns)
     protected final ConcurrentMap<Address, Long>     timestamps=Util.createConcurrentMap();
 
+    // Inter-arrival times of heartbeats per member, only used when use_phi_accrual is true
+    protected final ConcurrentMap<Address,PhiAccrual> arrivals=Util.createConcurrentMap();
+
     protected Address                                local_addr;
     
     protected final List<Address>                    members=new ArrayList<>();
@@ -112,6 +136,10 @@ public class FD_ALL extends Protocol {
     public FD_ALL interval(long i)             {this.interval=i; return this;}
     public FD_ALL timeout(long t)              {this.timeout=t; return this;}
     public FD_ALL timeoutCheckInterval(long i) {timeout_check_interval=i; return this;}
+    public boolean usePhiAccrual()             {return use_phi_accrual;}
+    public FD_ALL usePhiAccrual(boolean b)     {use_phi_accrual=b; return this;}
+    public double phiThreshold()               {return phi_threshold;}
+    public FD_ALL phiThreshold(double t)       {phi_threshold=t; return this;}
 
     @ManagedAttribute(description="Are heartbeat tasks running")
     public boolean isRunning() {
@@ -138,6 +166,17 @@ public class FD_ALL extends Protocol {
         return _printTimestamps();
     }
 
+    @ManagedOperation(description="Prints the phi values of all members")
+    public String printPhi() {
+        return PhiAccrual.print(arrivals, getTimestamp());
+    }
+
+    /** Returns the current phi of member mbr, or 0 if not enough heartbeats have been received from mbr */
+    public double phi(Address mbr) {
+        PhiAccrual pa=mbr != null? arrivals.get(mbr) : null;
+        return pa != null? pa.phi(getTimestamp()) : 0.0;
+    }
+
     @ManagedOperation(description="Stops checking for crashed members")
     public void stopFailureDetection() {
         stopTimeoutChecker();
@@ -171,6 +210,8 @@ public class FD_ALL extends Protocol {
         }
         if(interval > timeout)
             log.warn("interval (%d) is bigger than timeout (%d); this will lead to false suspicions", interval, timeout);
+        if(use_phi_accrual && phi_window_size <= 0)
+            throw new IllegalArgumentException("phi_window_size has to be > 0: " + phi_window_size);
         suspected_mbrs.clear();
         has_suspected_mbrs=false;
     }
@@ -189,6 +230,7 @@ public class FD_ALL extends Protocol {
         Header hdr=msg.getHeader(this.id);
         if(hdr != null) {
             update(sender); // updates the heartbeat entry for 'sender'
+            addArrival(sender);
             num_heartbeats_received++;
             unsuspect(sender);
             return null; // consume heartbeat message, do not pass to the layer above
@@ -207,6 +249,8 @@ public class FD_ALL extends Protocol {
         int matching_msgs=batch.replaceIf(HAS_HEADER, null, true);
         if(matching_msgs > 0 || msg_counts_as_heartbeat) {
             update(batch.sender());
+            if(matching_msgs > 0)
+                addArrival(batch.sender());
             num_heartbeats_received++;
             if(has_suspected_mbrs)
                 unsuspect(batch.sender());
@@ -230,6 +274,7 @@ public class FD_ALL extends Protocol {
                 Address mbr=evt.getArg();
                 unsuspect(mbr);
                 update(mbr);
+                resetArrivals(mbr);
                 break;
         }
         return down_prot.down(evt);
@@ -301,6 +346,19 @@ public class FD_ALL extends Protocol {
         if (log.isTraceEnabled()) log.trace("Received heartbeat from %s", sender);
     }
 
+    /** Records the arrival of a heartbeat from sender. Data messages are not recorded as they'd skew the mean */
+    protected void addArrival(Address sender) {
+        if(use_phi_accrual && sender != null && !sender.equals(local_addr))
+            PhiAccrual.addArrival(arrivals, sender, getTimestamp(), phi_window_size, phi_min_std_deviation, phi_min_samples);
+    }
+
+    /** Discards the inter-arrival times of mbr; timeout applies until enough new heartbeats have been received */
+    protected void resetArrivals(Address mbr) {
+        PhiAccrual pa=mbr != null? arrivals.get(mbr) : null;
+        if(pa != null)
+            pa.reset(getTimestamp());
+    }
+
     protected void addIfAbsent(Address mbr) {
         if(mbr != null && !mbr.equals(local_addr))
             timestamps.putIfAbsent(mbr, getTimestamp());
@@ -320,6 +378,7 @@ public class FD_ALL extends Protocol {
             if(suspected_mbrs.retainAll(mbrs))
                 has_suspected_mbrs=!suspected_mbrs.isEmpty();
             timestamps.keySet().retainAll(mbrs);
+            arrivals.keySet().retainAll(mbrs);
         }
 
         mbrs.forEach(this::addIfAbsent);
@@ -444,6 +503,16 @@ public class FD_ALL extends Protocol {
                     log.debug("haven't received a heartbeat from " + key + " for " + diff +
                                 " ms, adding it to suspect list");
                     suspects.add(key);
+                    continue;
+                }
+                if(use_phi_accrual) {
+                    PhiAccrual pa=arrivals.get(key);
+                    double phi=pa != null? pa.phi(current_time) : 0.0;
+                    if(phi > phi_threshold) {
+                        log.debug("%s: phi of %s is %.2f (threshold: %.2f, %s), adding it to suspect list",
+                                  local_addr, key, phi, phi_threshold, pa);
+                        suspects.add(key);
+                    }
                 }
             }
             if(!suspects.isEmpty())
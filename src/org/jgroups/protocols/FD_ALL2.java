@@ -23,6 +23,8 @@ import java.util.function.Supplier;
  * Every member also maintains a table of all members (minus itself). When data or a heartbeat from P is received,
  * we set the flag associated with P to true. Periodically, we check for expired members, and suspect those whose flag
  * is false (no heartbeat or message received within timeout ms).</p>
+ * When use_phi_accrual is true, the check runs every interval ms and a member P is suspected when the phi of P
+ * (see {@link PhiAccrual}) exceeds phi_threshold, or when no heartbeat was received from P for timeout ms.
  *
  * @author  Bela Ban
  * @version 3.5
@@ -43,6 +45,24 @@ public class FD_ALL2 extends Protocol {
             "a value in a hashmap every time a message is passing up the stack through FD_ALL2, which is costly. Default is false")
     protected boolean                          msg_counts_as_heartbeat;
 
+    @Property(description="Suspect a member when its phi (computed from the inter-arrival times of its heartbeats) " +
+      "exceeds phi_threshold. If false, only timeout is used")
+    protected boolean                          use_phi_accrual;
+
+    @Property(description="The phi value above which a member is suspected. 1: ~10% chance of a false suspicion, " +
+      "2: ~1%, 3: ~0.1% etc")
+    protected double                           phi_threshold=8.0;
+
+    @Property(description="Number of heartbeat inter-arrival times to keep per member")
+    protected int                              phi_window_size=100;
+
+    @Property(description="Min standard deviation (ms) of the inter-arrival times, prevents phi from being too " +
+      "sensitive when heartbeats arrive very regularly")
+    protected long                             phi_min_std_deviation=500;
+
+    @Property(description="Min number of inter-arrival times needed before phi is used; until then timeout applies")
+    protected int                              phi_min_samples=3;
+
     /* ---------------------------------------------   JMX      ------------------------------------------------------ */
     @ManagedAttribute(description="Number of heartbeats sent")
     protected int                              num_heartbeats_sent;
@@ -59,6 +79,9 @@ public class FD_ALL2 extends Protocol {
     // Map of addresses and timestamps of last updates
     protected final ConcurrentMap<Address,AtomicBoolean> timestamps=Util.createConcurrentMap();
 
+    // Inter-arrival times of heartbeats per member, only used when use_phi_accrual is true
+    protected final ConcurrentMap<Address,PhiAccrual> arrivals=Util.createConcurrentMap();
+
     protected Address                          local_addr;
     
     protected final List<Address>              members=new ArrayList<>();
@@ -103,6 +126,10 @@ public class FD_ALL2 extends Protocol {
     public void setTimeout(long timeout) {this.timeout=timeout;}
     public long getInterval() {return interval;}
     public void setInterval(long interval) {this.interval=interval;}
+    public boolean usePhiAccrual()         {return use_phi_accrual;}
+    public FD_ALL2 usePhiAccrual(boolean b) {use_phi_accrual=b; return this;}
+    public double phiThreshold()           {return phi_threshold;}
+    public FD_ALL2 phiThreshold(double t)  {phi_threshold=t; return this;}
 
     @ManagedAttribute(description="Are heartbeat tasks running")
     public boolean isRunning() {
@@ -129,6 +156,17 @@ public class FD_ALL2 extends Protocol {
         return _printTimestamps();
     }
 
+    @ManagedOperation(description="Prints the phi values of all members")
+    public String printPhi() {
+        return PhiAccrual.print(arrivals, System.nanoTime());
+    }
+
+    /** Returns the current phi of member mbr, or 0 if not enough heartbeats have been received from mbr */
+    public double phi(Address mbr) {
+        PhiAccrual pa=mbr != null? arrivals.get(mbr) : null;
+        return pa != null? pa.phi(System.nanoTime()) : 0.0;
+    }
+
     @ManagedOperation(description="Stops checking for crashed members")
     public void stopFailureDetection() {
         stopTimeoutChecker();
@@ -150,6 +188,8 @@ public class FD_ALL2 extends Protocol {
         timer=getTransport().getTimer();
         if(timer == null)
             throw new Exception("timer not set");
+        if(use_phi_accrual && phi_window_size <= 0)
+            throw new IllegalArgumentException("phi_window_size has to be > 0: " + phi_window_size);
         suspected_mbrs.clear();
         has_suspected_mbrs=false;
     }
@@ -168,6 +208,7 @@ public class FD_ALL2 extends Protocol {
         Header hdr=msg.getHeader(this.id);
         if(hdr != null) {
             update(sender); // updates the heartbeat entry for 'sender'
+            addArrival(sender);
             num_heartbeats_received++;
             unsuspect(sender);
             return null; // consume heartbeat message, do not pass to the layer above
@@ -186,6 +227,8 @@ public class FD_ALL2 extends Protocol {
         int matched_msgs=batch.replaceIf(HAS_HEADER, null, true);
         if(matched_msgs > 0 || msg_counts_as_heartbeat) {
             update(batch.sender());
+            if(matched_msgs > 0)
+                addArrival(batch.sender());
             num_heartbeats_received++;
             if(has_suspected_mbrs)
                 unsuspect(batch.sender());
@@ -209,6 +252,7 @@ public class FD_ALL2 extends Protocol {
                 Address mbr=evt.getArg();
                 unsuspect(mbr);
                 update(mbr);
+                resetArrivals(mbr);
                 break;
         }
         return down_prot.down(evt);
@@ -218,7 +262,9 @@ public class FD_ALL2 extends Protocol {
         lock.lock();
         try {
             if(!isTimeoutCheckerRunning()) {
-                timeout_checker_future=timer.scheduleWithFixedDelay(new TimeoutChecker(), timeout, timeout, TimeUnit.MILLISECONDS, false);
+                long check_interval=use_phi_accrual? interval : timeout;
+                timeout_checker_future=timer.scheduleWithFixedDelay(new TimeoutChecker(), check_interval, check_interval,
+                                                                    TimeUnit.MILLISECONDS, false);
             }
         }
         finally {
@@ -287,6 +333,19 @@ public class FD_ALL2 extends Protocol {
     }
 
 
+    /** Records the arrival of a heartbeat from sender. Data messages are not recorded as they'd skew the mean */
+    protected void addArrival(Address sender) {
+        if(use_phi_accrual && sender != null && !sender.equals(local_addr))
+            PhiAccrual.addArrival(arrivals, sender, System.nanoTime(), phi_window_size, phi_min_std_deviation, phi_min_samples);
+    }
+
+    /** Discards the inter-arrival times of mbr; timeout applies until enough new heartbeats have been received */
+    protected void resetArrivals(Address mbr) {
+        PhiAccrual pa=mbr != null? arrivals.get(mbr) : null;
+        if(pa != null)
+            pa.reset(System.nanoTime());
+    }
+
     protected void handleViewChange(View v) {
         List<Address> mbrs=v.getMembers();
 
@@ -296,6 +355,7 @@ public class FD_ALL2 extends Protocol {
             if(suspected_mbrs.retainAll(mbrs))
                 has_suspected_mbrs=!suspected_mbrs.isEmpty();
             timestamps.keySet().retainAll(mbrs);
+            arrivals.keySet().retainAll(mbrs);
         }
 
         mbrs.forEach(this::update);
@@ -404,6 +464,12 @@ public class FD_ALL2 extends Protocol {
 
         public void run() {                        
             List<Address> suspects=new LinkedList<>();
+            if(use_phi_accrual) {
+                checkPhi(suspects);
+                if(!suspects.isEmpty())
+                    suspect(suspects);
+                return;
+            }
             for(Iterator<Entry<Address,AtomicBoolean>> it=timestamps.entrySet().iterator(); it.hasNext();) {
                 Entry<Address,AtomicBoolean> entry=it.next();
                 Address key=entry.getKey();
@@ -422,6 +488,29 @@ public class FD_ALL2 extends Protocol {
                 suspect(suspects);
         }
 
+        /**
+         * Suspects members whose phi exceeds phi_threshold. Members with too few samples are suspected when no
+         * heartbeat has been received for timeout ms (measured from the time they were first checked)
+         */
+        protected void checkPhi(List<Address> suspects) {
+            long current_time=System.nanoTime();
+            for(Address key: timestamps.keySet()) {
+                PhiAccrual pa=arrivals.get(key);
+                if(pa == null) { // no heartbeat received from key yet: start measuring the time until the first one
+                    arrivals.putIfAbsent(key, new PhiAccrual(phi_window_size, phi_min_std_deviation, phi_min_samples)
+                      .reset(current_time));
+                    continue;
+                }
+                double phi=pa.phi(current_time);
+                long elapsed=pa.elapsed(current_time);
+                if(phi > phi_threshold || elapsed > timeout) {
+                    log.debug("%s: phi of %s is %.2f (threshold: %.2f), %d ms since last heartbeat, adding it to suspect list",
+                              local_addr, key, phi, phi_threshold, elapsed);
+                    suspects.add(key);
+                }
+            }
+        }
+
         public String toString() {
             return FD_ALL2.class.getSimpleName() + ": " + getClass().getSimpleName() + " (timeout=" + timeout + " ms)";
         }
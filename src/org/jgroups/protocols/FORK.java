@@ -123,6 +123,11 @@ public class FORK extends Protocol {
                 getStateFromMainAndForkChannels(evt);
                 return null;
 
+            case Event.STATE_TRANSFER_DELTA_OUTPUTSTREAM:
+                if(!process_state_events)
+                    break;
+                return null; // the state of the main and fork channels is always transferred in full
+
             case Event.STATE_TRANSFER_INPUTSTREAM:
                 if(!process_state_events)
                     break;
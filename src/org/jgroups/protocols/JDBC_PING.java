@@ -1,6 +1,7 @@
 package org.jgroups.protocols;
 
 import org.jgroups.Address;
+import org.jgroups.annotations.ManagedAttribute;
 import org.jgroups.annotations.Property;
 import org.jgroups.util.Responses;
 import org.jgroups.util.Util;
@@ -9,7 +10,12 @@ import javax.naming.InitialContext;
 import javax.naming.NamingException;
 import javax.sql.DataSource;
 import java.sql.*;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * <p>Discovery protocol using a JDBC connection to a shared database.
@@ -27,6 +33,12 @@ import java.util.List;
  * operation are not considered critical. Set the {@code initialize_sql}
  * to an empty value to prevent this initial table creation, or change it to
  * create a customized table.</p>
+ *
+ * <p>Unless a {@code DataSource} is used, connections are pooled ({@code connection_pool_size}). Writes of multiple
+ * entries are batched into a single transaction, and can use a database specific upsert statement
+ * ({@code upsert_single_sql}) instead of delete and insert. If {@code select_changed_pingdata_sql} is set, reads
+ * only fetch the rows which changed since the last read (watermark column), and a full read is done only every
+ * {@code full_read_interval} reads.</p>
  * 
  * @author Sanne Grinovero
  * @author Bela Ban
@@ -57,6 +69,7 @@ public class JDBC_PING extends FILE_PING {
         "own_addr varchar(200) NOT NULL, " +
         "cluster_name varchar(200) NOT NULL, " +
         "ping_data varbinary(5000) DEFAULT NULL, " +
+        "updated timestamp DEFAULT CURRENT_TIMESTAMP, " +
         "PRIMARY KEY (own_addr, cluster_name) )";
 
     @Property(description = "SQL used to insert a new row. Customizable, but keep the order of parameters and pick compatible types: " + 
@@ -67,6 +80,12 @@ public class JDBC_PING extends FILE_PING {
         "1)Own Address, as String 2)Cluster name, as String")
     protected String delete_single_sql = "DELETE FROM JGROUPSPING WHERE own_addr=? AND cluster_name=?";
 
+    @Property(description="SQL used to insert a new row or to update an existing one in a single statement, e.g. " +
+      "MERGE (H2), INSERT .. ON DUPLICATE KEY UPDATE (MySQL) or INSERT .. ON CONFLICT (PostgreSQL). Parameters are the " +
+      "same as for insert_single_sql. If empty, an existing row is deleted (delete_single_sql) before inserting the " +
+      "new one (insert_single_sql)")
+    protected String upsert_single_sql;
+
     @Property(description="SQL to clear the table")
     protected String clear_sql="DELETE from JGROUPSPING WHERE cluster_name=?";
     
@@ -75,6 +94,24 @@ public class JDBC_PING extends FILE_PING {
                 " it was stored by the insert_single_sql statement. Must select primary keys subsequently for cleanup to work properly")
     protected String select_all_pingdata_sql = "SELECT ping_data, own_addr, cluster_name FROM JGROUPSPING WHERE cluster_name=?";
 
+    @Property(description="SQL used to fetch only the PingData which changed since the last read. Parameters are " +
+      "1) the cluster name as String and 2) the watermark as Timestamp. Must return the same columns as " +
+      "select_all_pingdata_sql, plus the watermark (e.g. the time the row was last updated) as 4th column. " +
+      "select_all_pingdata_sql also needs to return the watermark as 4th column. If empty, every read is a full read")
+    protected String select_changed_pingdata_sql;
+
+    @Property(description="When select_changed_pingdata_sql is set, every Nth read is a full read (to detect " +
+      "removed rows). 0 disables full reads, except for the initial read")
+    protected int    full_read_interval=10;
+
+    @Property(description="Time (ms) subtracted from the watermark when reading changed rows. Compensates for rows " +
+      "with a given timestamp which become visible only after rows with a later timestamp (e.g. long transactions)")
+    protected long   watermark_lookback=2000;
+
+    @Property(description="Max number of idle connections kept for reuse. Ignored when a DataSource is used, as " +
+      "DataSources typically pool connections themselves. 0 disables pooling")
+    protected int    connection_pool_size=2;
+
     @Property(description="Finds a given entry by its address and cluster name, used to implement a contains()")
     protected String contains_sql="SELECT count(own_addr) as RECORDCOUNT from JGROUPSPING WHERE cluster_name=? AND own_addr=?";
 
@@ -83,9 +120,26 @@ public class JDBC_PING extends FILE_PING {
         "properties must be empty.")
     protected String datasource_jndi_name;
 
+    /* ---------------------------------------------   JMX      ------------------------------------------------------ */
+
+    @ManagedAttribute(description="Number of full reads of the table")
+    protected int        num_full_reads;
+
+    @ManagedAttribute(description="Number of reads which only fetched the changed rows")
+    protected int        num_incremental_reads;
+
+    @ManagedAttribute(description="Number of connections which were taken from the connection pool")
+    protected int        num_pooled_connections_reused;
+
     /* --------------------------------------------- Fields ------------------------------------------------------ */
 
-    protected DataSource dataSource;
+    protected DataSource                                   dataSource;
+    protected BlockingQueue<Connection>                    pool;        // idle connections, null if pooling is disabled
+    protected volatile Map<Address,PingData>               rows=new ConcurrentHashMap<>(); // contents as of the last read
+    protected volatile Timestamp                           watermark;   // highest watermark seen so far
+    protected int                                          reads_since_full_read;
+    protected volatile boolean                             missing_watermark_logged;
+    protected static final int                             VALIDATION_TIMEOUT=2; // secs
 
 
     @Override protected void createRootDir() {
@@ -108,6 +162,8 @@ public class JDBC_PING extends FILE_PING {
                 dataSource = getDataSourceFromJNDI(datasource_jndi_name.trim());
             }
         }
+        if(dataSource == null && connection_pool_size > 0)
+            pool=new ArrayBlockingQueue<>(connection_pool_size);
         attemptSchemaInitialization();
     }
 
@@ -119,32 +175,127 @@ public class JDBC_PING extends FILE_PING {
             removeAll(cluster_name);
     }
 
+    @Override
+    public void destroy() {
+        super.destroy();
+        if(pool != null) {
+            for(Connection conn; (conn=pool.poll()) != null;)
+                closeConnection(conn, false);
+        }
+    }
+
+    @Override
+    public void resetStats() {
+        super.resetStats();
+        num_full_reads=num_incremental_reads=num_pooled_connections_reused=0;
+    }
+
 
     protected void write(List<PingData> list, String clustername) {
-        for(PingData data: list)
-            writeToDB(data, clustername, true);
+        if(list == null || list.isEmpty())
+            return;
+        final Connection connection=getConnection();
+        if(connection == null) {
+            log.error(Util.getMessage("FailedToStorePingDataInDatabase"));
+            return;
+        }
+        try {
+            writeToDB(connection, list, clustername);
+        }
+        catch(SQLException e) {
+            log.error(Util.getMessage("ErrorUpdatingJDBCPINGTable"), e);
+        }
+        finally {
+            closeConnection(connection);
+        }
     }
 
+    /**
+     * Writes all entries in a single transaction, either as a batch of upserts (if upsert_single_sql is set), or as
+     * a batch of deletes followed by a batch of inserts. No lock is held while talking to the database: a concurrent
+     * delete and insert of the same row (by a different thread, or by a different member) can make the insert fail
+     * with a duplicate key; in this case the transaction is rolled back and retried once
+     */
+    protected void writeToDB(Connection connection, List<PingData> list, String clustername) throws SQLException {
+        try {
+            _writeToDB(connection, list, clustername);
+        }
+        catch(SQLException e) {
+            if(stringNotEmpty(upsert_single_sql))
+                throw e;
+            log.debug("%s: failed writing %d entries (%s); retrying", local_addr, list.size(), e.getMessage());
+            _writeToDB(connection, list, clustername);
+        }
+    }
 
-    // It's possible that multiple threads in the same cluster node invoke this concurrently;
-    // Since delete and insert operations are not atomic
-    // (and there is no SQL standard way to do this without introducing a transaction)
-    // we need the synchronization or risk a duplicate insertion on same primary key.
-    // This synchronization should not be a performance problem as this is just a Discovery protocol.
-    // Many SQL dialects have some "insert or update" expression, but that would need
-    // additional configuration and testing on each database. See JGRP-1440
-    protected synchronized void writeToDB(PingData data, String clustername, boolean overwrite) {
+    protected void _writeToDB(Connection connection, List<PingData> list, String clustername) throws SQLException {
+        boolean auto_commit=connection.getAutoCommit();
+        connection.setAutoCommit(false);
+        try {
+            if(stringNotEmpty(upsert_single_sql))
+                executeBatch(connection, upsert_single_sql, list, clustername, true);
+            else {
+                executeBatch(connection, delete_single_sql, list, clustername, false);
+                executeBatch(connection, insert_single_sql, list, clustername, true);
+            }
+            connection.commit();
+            writes++;
+            log.debug("%s: registered %d entries for clustername %s in database", local_addr, list.size(), clustername);
+        }
+        catch(SQLException e) {
+            try {
+                connection.rollback();
+            }
+            catch(SQLException ex) {
+                e.addSuppressed(ex);
+            }
+            throw e;
+        }
+        finally {
+            connection.setAutoCommit(auto_commit);
+        }
+    }
+
+    protected void executeBatch(Connection connection, String sql, List<PingData> list, String clustername,
+                                boolean include_ping_data) throws SQLException {
+        try(PreparedStatement ps=connection.prepareStatement(sql)) {
+            for(PingData data: list) {
+                ps.setString(1, addressAsString(data.getAddress()));
+                ps.setString(2, clustername);
+                if(include_ping_data)
+                    ps.setBytes(3, serializeWithoutView(data));
+                ps.addBatch();
+            }
+            if(log.isTraceEnabled())
+                log.trace("%s: SQL for batch of %d: %s", local_addr, list.size(), ps);
+            ps.executeBatch();
+        }
+    }
+
+
+    // It's possible that multiple threads in the same cluster node invoke this concurrently; since delete and insert
+    // operations are not atomic, this can lead to a duplicate insertion on the same primary key. Instead of holding
+    // a lock during DB I/O, a failed overwrite is retried (see writeToDB(Connection,List,String)) and a failed insert
+    // is ignored if the row was inserted concurrently. Many SQL dialects have some "insert or update" expression
+    // (see upsert_single_sql), but that needs additional configuration for each database. See JGRP-1440
+    protected void writeToDB(PingData data, String clustername, boolean overwrite) {
         final String ownAddress = addressAsString(data.getAddress());
         final Connection connection = getConnection();
         if (connection != null) {
             try {
-                if(overwrite)
-                    delete(connection, clustername, ownAddress);
-                else {
-                    if(contains(clustername, data.getAddress()))
-                        return;
+                if(overwrite) {
+                    writeToDB(connection, Collections.singletonList(data), clustername);
+                    return;
+                }
+                if(contains(clustername, data.getAddress()))
+                    return;
+                try {
+                    insert(connection, data, clustername, ownAddress);
+                }
+                catch(SQLException e) {
+                    if(!contains(clustername, data.getAddress())) // else: inserted concurrently
+                        throw e;
                 }
-                insert(connection, data, clustername, ownAddress);
             } catch (SQLException e) {
                 log.error(Util.getMessage("ErrorUpdatingJDBCPINGTable"), e);
             } finally {
@@ -159,7 +310,10 @@ public class JDBC_PING extends FILE_PING {
 
     protected boolean contains(String cluster_name, Address addr) {
         final String addressAsString = addressAsString(addr);
-        try(Connection conn=getConnection()) {
+        final Connection conn=getConnection();
+        if(conn == null)
+            return false;
+        try {
             try (PreparedStatement ps=conn.prepareStatement(contains_sql)) {
                 ps.setString(1, cluster_name);
                 ps.setString(2, addressAsString);
@@ -174,11 +328,16 @@ public class JDBC_PING extends FILE_PING {
         catch(SQLException e) {
             log.error(Util.getMessage("ErrorReadingTable"), e);
         }
+        finally {
+            closeConnection(conn);
+        }
         return false;
     }
 
     protected void remove(String clustername, Address addr) {
         final String addressAsString = addressAsString(addr);
+        if(addr != null)
+            rows.remove(addr);
         try {
             delete(clustername, addressAsString);
         } catch (SQLException e) {
@@ -187,6 +346,7 @@ public class JDBC_PING extends FILE_PING {
     }
 
     protected void removeAll(String clustername) {
+        rows.clear();
         clearTable(clustername);
     }
 
@@ -217,22 +377,37 @@ public class JDBC_PING extends FILE_PING {
 		}
 	}
 
+    /**
+     * Reads the PingData of the given cluster. If select_changed_pingdata_sql is set, only the rows changed since the
+     * last read are fetched and merged with the rows read previously; every full_read_interval reads (and for the
+     * first read), all rows are read
+     */
     protected void readAll(Connection connection, List<Address> members, String clustername, Responses rsps) throws SQLException {
-        try (PreparedStatement ps=prepareStatement(connection, select_all_pingdata_sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_UPDATABLE)) {
+        boolean incremental=useIncrementalRead();
+        String sql=incremental? select_changed_pingdata_sql : select_all_pingdata_sql;
+        Map<Address,PingData> map=incremental? rows : new ConcurrentHashMap<>();
+        Timestamp max=watermark;
+        try (PreparedStatement ps=prepareStatement(connection, sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_UPDATABLE)) {
             ps.setString(1, clustername);
+            if(incremental)
+                ps.setTimestamp(2, new Timestamp(watermark.getTime() - watermark_lookback));
             if(log.isTraceEnabled())
                 log.trace("%s: SQL for reading: %s", local_addr, ps);
             try (ResultSet resultSet=ps.executeQuery()) {
+                boolean has_watermark=stringNotEmpty(select_changed_pingdata_sql) && hasWatermarkColumn(resultSet);
 	            while(resultSet.next()) {
 	                byte[] bytes=resultSet.getBytes(1);
 	                try {
 	                    PingData data=deserialize(bytes);
                         reads++;
-	                    if(data == null || (members != null && !members.contains(data.getAddress())))
+	                    if(data == null)
 	                        continue;
-	                    rsps.addResponse(data, false);
-	                    if(local_addr != null && !local_addr.equals(data.getAddress()))
-	                        addDiscoveryResponseToCaches(data.getAddress(), data.getLogicalName(), data.getPhysicalAddr());
+	                    map.put(data.getAddress(), data);
+	                    if(has_watermark) {
+	                        Timestamp ts=resultSet.getTimestamp(4);
+	                        if(ts != null && (max == null || ts.after(max)))
+	                            max=ts;
+	                    }
 	                }
 	                catch(Exception e) {
 	                    int row=resultSet.getRow();
@@ -247,6 +422,46 @@ public class JDBC_PING extends FILE_PING {
 	            }
             }
         }
+        if(incremental)
+            num_incremental_reads++;
+        else {
+            num_full_reads++;
+            rows=map;
+        }
+        watermark=max;
+        for(PingData data: map.values()) {
+            if(members != null && !members.contains(data.getAddress()))
+                continue;
+            rsps.addResponse(data, false);
+            if(local_addr != null && !local_addr.equals(data.getAddress()))
+                addDiscoveryResponseToCaches(data.getAddress(), data.getLogicalName(), data.getPhysicalAddr());
+        }
+    }
+
+    /**
+     * Returns true if the result set has the watermark as 4th column. Logs a warning (once) if not, e.g. when
+     * select_changed_pingdata_sql is set, but select_all_pingdata_sql is still the default (which has only 3 columns):
+     * in this case, the watermark is never set and every read is a full read
+     */
+    protected boolean hasWatermarkColumn(ResultSet rs) throws SQLException {
+        if(rs.getMetaData().getColumnCount() >= 4)
+            return true;
+        if(!missing_watermark_logged) {
+            missing_watermark_logged=true;
+            log.warn("%s: select_changed_pingdata_sql is set, but the result of %s has no watermark (4th column); " +
+                       "incremental reads are disabled", local_addr, select_all_pingdata_sql);
+        }
+        return false;
+    }
+
+    protected synchronized boolean useIncrementalRead() {
+        if(stringIsEmpty(select_changed_pingdata_sql) || watermark == null)
+            return false;
+        if(full_read_interval > 0 && ++reads_since_full_read >= full_read_interval) {
+            reads_since_full_read=0;
+            return false;
+        }
+        return true;
     }
 
 
@@ -292,6 +507,19 @@ public class JDBC_PING extends FILE_PING {
     }
 
     protected Connection getConnection() {
+        if(pool != null) {
+            for(Connection conn; (conn=pool.poll()) != null;) {
+                try {
+                    if(conn.isValid(VALIDATION_TIMEOUT)) {
+                        num_pooled_connections_reused++;
+                        return conn;
+                    }
+                }
+                catch(SQLException e) {
+                }
+                closeConnection(conn, false);
+            }
+        }
         if (dataSource == null) {
             Connection connection;
             try {
@@ -317,7 +545,7 @@ public class JDBC_PING extends FILE_PING {
 
 
 
-    protected synchronized void insert(Connection connection, PingData data, String clustername, String address) throws SQLException {
+    protected void insert(Connection connection, PingData data, String clustername, String address) throws SQLException {
         final byte[] serializedPingData = serializeWithoutView(data);
         try (PreparedStatement ps=connection.prepareStatement(insert_single_sql)) {
             ps.setString(1, address);
@@ -330,7 +558,7 @@ public class JDBC_PING extends FILE_PING {
         }
     }
 
-    protected synchronized void delete(Connection connection, String clustername, String addressToDelete) throws SQLException {
+    protected void delete(Connection connection, String clustername, String addressToDelete) throws SQLException {
         try(PreparedStatement ps=connection.prepareStatement(delete_single_sql)) {
             ps.setString(1, addressToDelete);
             ps.setString(2, clustername);
@@ -358,7 +586,10 @@ public class JDBC_PING extends FILE_PING {
 
 
     protected void clearTable(String clustername) {
-        try(Connection conn=getConnection()) {
+        final Connection conn=getConnection();
+        if(conn == null)
+            return;
+        try {
             try (PreparedStatement ps=conn.prepareStatement(clear_sql)) {
 				// check presence of cluster_name parameter for backwards compatibility
 				if (clear_sql.indexOf('?') >= 0) {
@@ -374,11 +605,21 @@ public class JDBC_PING extends FILE_PING {
         catch(SQLException e) {
             log.error(Util.getMessage("ErrorClearingTable"), e);
         }
+        finally {
+            closeConnection(conn);
+        }
     }
 
     
+    /** Returns the connection to the pool if pooling is enabled and the pool isn't full, otherwise closes it */
     protected void closeConnection(final Connection connection) {
+        closeConnection(connection, true);
+    }
+
+    protected void closeConnection(final Connection connection, boolean return_to_pool) {
         try {
+            if(return_to_pool && pool != null && !connection.isClosed() && pool.offer(connection))
+                return;
             connection.close();
         } catch (SQLException e) {
             log.error(Util.getMessage("ErrorClosingConnectionToJDBCPINGDatabase"), e);
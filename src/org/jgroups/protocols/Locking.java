@@ -18,14 +18,17 @@ import java.util.*;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ConcurrentSkipListSet;
 import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.LockSupport;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
 import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
@@ -48,6 +51,29 @@ abstract public class Locking extends Protocol {
     @Property(description="Number of locks to be used for lock striping (for synchronized access to the server_lock entries)")
     protected int                                    lock_striping_size=10;
 
+    @Property(description="If true, lock and unlock requests received in the same message batch are processed in one " +
+      "pass (acquiring each lock stripe only once) and the responses to the same member are sent in a single message. " +
+      "Members running a version which doesn't support batching cannot read batched messages, so this must only be " +
+      "enabled when all members support it")
+    protected boolean                                batch_lock_requests;
+
+    @Property(description="Max time (ms) an idle lock lease is kept. While a member holds the lease for a lock, its threads " +
+      "acquire and release the lock locally, without contacting the lock server. The lease is recalled when a different " +
+      "member requests the lock. Conditions are not supported on leased locks. 0 disables lock leases")
+    protected long                                   lock_lease_time;
+
+    @ManagedAttribute(description="Number of lock acquisitions served locally from a lease")
+    protected final LongAdder                        num_lease_hits=new LongAdder();
+
+    @ManagedAttribute(description="Number of lock leases recalled by the lock server")
+    protected final LongAdder                        num_lease_recalls=new LongAdder();
+
+    @ManagedAttribute(description="Number of batches of lock/unlock requests processed in one pass")
+    protected final LongAdder                        num_lock_batches=new LongAdder();
+
+    @ManagedAttribute(description="Number of lock/unlock requests processed as part of a batch")
+    protected final LongAdder                        num_batched_lock_requests=new LongAdder();
+
 
     protected Address                                local_addr;
 
@@ -65,6 +91,12 @@ abstract public class Locking extends Protocol {
     protected final Set<LockNotification>            lock_listeners=new CopyOnWriteArraySet<>();
 
     protected final static AtomicInteger             current_lock_id=new AtomicInteger(1);
+
+    // Thread ID of an owner which is a lease held by a member rather than a thread
+    protected static final long                      LEASE_THREAD_ID=-2;
+
+    // releases idle leases
+    protected Future<?>                              lease_expiry_task;
     
 
 
@@ -87,7 +119,9 @@ abstract public class Locking extends Protocol {
 
         LOCK_INFO_REQ,     // request to get information about all acquired locks and all pending lock/unlock requests
         LOCK_INFO_RSP,     // response to LOCK_INFO_REQ
-        LOCK_REVOKED       // sent on reconciliation when a lock is already present (possible on a merge when both sides hold the same lock)
+        LOCK_REVOKED,      // sent on reconciliation when a lock is already present (possible on a merge when both sides hold the same lock)
+        RECALL_LEASE,      // sent by the lock server to the holder of a lease when a different member requests the lock
+        HAND_OVER_DONE     // sent by the previous lock server to the new lock server after handing over its locks
     }
 
 
@@ -104,6 +138,13 @@ abstract public class Locking extends Protocol {
         this.bypass_bundling=bypass_bundling;
     }
 
+    public boolean batchLockRequests()                      {return batch_lock_requests;}
+    public Locking batchLockRequests(boolean b)             {this.batch_lock_requests=b; return this;}
+    public long    lockLeaseTime()                          {return lock_lease_time;}
+    public Locking lockLeaseTime(long t)                    {this.lock_lease_time=t; return this;}
+    public long    getNumLeaseHits()                        {return num_lease_hits.sum();}
+    public long    getNumLeaseRecalls()                     {return num_lease_recalls.sum();}
+
     public void addLockListener(LockNotification listener) {
         if(listener != null)
             lock_listeners.add(listener);
@@ -130,6 +171,20 @@ abstract public class Locking extends Protocol {
     @ManagedAttribute(description="Number of client locks")
     public int getNumClientLocks() {return client_lock_table.numLocks();}
 
+    @ManagedAttribute(description="Average number of lock/unlock requests processed in one pass")
+    public double getAvgLockBatchSize() {
+        long batches=num_lock_batches.sum();
+        return batches > 0? num_batched_lock_requests.sum() / (double)batches : 0;
+    }
+
+    public void resetStats() {
+        super.resetStats();
+        num_lock_batches.reset();
+        num_batched_lock_requests.reset();
+        num_lease_hits.reset();
+        num_lease_recalls.reset();
+    }
+
     public void init() throws Exception {
         super.init();
         lock_stripes=new Lock[lock_striping_size];
@@ -137,6 +192,21 @@ abstract public class Locking extends Protocol {
             lock_stripes[i]=new ReentrantLock();
     }
 
+    public void start() throws Exception {
+        super.start();
+        if(lock_lease_time > 0)
+            lease_expiry_task=getTransport().getTimer().scheduleWithFixedDelay(this::releaseIdleLeases, lock_lease_time,
+                                                                                lock_lease_time, TimeUnit.MILLISECONDS, false);
+    }
+
+    public void stop() {
+        if(lease_expiry_task != null) {
+            lease_expiry_task.cancel(false);
+            lease_expiry_task=null;
+        }
+        super.stop();
+    }
+
     public Object down(Event evt) {
         switch(evt.getType()) {
             case Event.LOCK:
@@ -245,7 +315,54 @@ abstract public class Locking extends Protocol {
         if(hdr == null)
             return up_prot.up(msg);
 
-        Request req=null;
+        if(hdr.numRequests() <= 1) {
+            Request req=readRequest(msg);
+            if(req != null)
+                requestReceived(req);
+        }
+        else {
+            List<Request> reqs=new ArrayList<>(hdr.numRequests());
+            readRequests(msg, hdr, reqs);
+            if(!reqs.isEmpty())
+                requestsReceived(reqs);
+        }
+        return null;
+    }
+
+    public void up(MessageBatch batch) {
+        if(!batch_lock_requests) {
+            super.up(batch);
+            return;
+        }
+        Collection<Message> msgs=batch.getMatchingMessages(id, true);
+        if(msgs != null && !msgs.isEmpty()) {
+            List<Request> reqs=new ArrayList<>(msgs.size());
+            for(Message msg: msgs) {
+                LockingHeader hdr=msg.getHeader(id); // header is not null at this point
+                readRequests(msg, hdr, reqs);
+            }
+            if(!reqs.isEmpty())
+                requestsReceived(reqs);
+        }
+        if(!batch.isEmpty())
+            up_prot.up(batch);
+    }
+
+    protected void requestReceived(Request req) {
+        if(log.isTraceEnabled())
+            log.trace("%s <-- %s: %s", local_addr, req.sender, req);
+        handleRequest(req);
+    }
+
+    /** Called with all requests received in the same message (batch), in the order in which they were received */
+    protected void requestsReceived(List<Request> reqs) {
+        if(log.isTraceEnabled())
+            reqs.forEach(req -> log.trace("%s <-- %s: %s", local_addr, req.sender, req));
+        handleRequests(reqs);
+    }
+
+    protected Request readRequest(Message msg) {
+        Request req;
         try {
             req=Util.streamableFromBuffer(Request::new, msg.getRawBuffer(), msg.getOffset(), msg.getLength())
               .sender(msg.src());
@@ -254,21 +371,67 @@ abstract public class Locking extends Protocol {
             log.error("%s: failed deserializing request", local_addr, ex);
             return null;
         }
+        return isValidRequest(req, msg.src())? req : null;
+    }
+
+    /** Reads the request(s) contained in msg and adds the valid ones to reqs */
+    protected void readRequests(Message msg, LockingHeader hdr, List<Request> reqs) {
+        if(hdr.numRequests() <= 1) {
+            Request req=readRequest(msg);
+            if(req != null)
+                reqs.add(req);
+            return;
+        }
+        try {
+            DataInput in=new ByteArrayDataInputStream(msg.getRawBuffer(), msg.getOffset(), msg.getLength());
+            for(int i=0; i < hdr.numRequests(); i++) {
+                Request req=Util.readStreamable(Request::new, in).sender(msg.src());
+                if(isValidRequest(req, msg.src()))
+                    reqs.add(req);
+            }
+        }
+        catch(Exception ex) {
+            log.error("%s: failed deserializing requests", local_addr, ex);
+        }
+    }
 
+    protected boolean isValidRequest(Request req, Address sender) {
         if(req.type != Type.LOCK_INFO_REQ && req.type != Type.LOCK_INFO_RSP && req.type != Type.LOCK_REVOKED
-          && null != view && !view.containsMember(msg.getSrc())) {
+          && null != view && !view.containsMember(sender)) {
             log.error("%s: received request from '%s' but member is not present in the current view - ignoring request",
-                      local_addr, msg.src());
-            return null;
+                      local_addr, sender);
+            return false;
         }
-        requestReceived(req);
-        return null;
+        return true;
     }
 
-    protected void requestReceived(Request req) {
-        if(log.isTraceEnabled())
-            log.trace("%s <-- %s: %s", local_addr, req.sender, req);
-        handleRequest(req);
+    /**
+     * Handles a list of requests. Consecutive lock and unlock requests are handled in one pass by
+     * {@link #handleLockRequests(List)}, all other requests are handled one by one, preserving the order of the list
+     */
+    protected void handleRequests(List<Request> reqs) {
+        if(reqs.size() == 1) {
+            handleRequest(reqs.get(0));
+            return;
+        }
+        List<Request> lock_reqs=null;
+        for(Request req: reqs) {
+            if(req == null)
+                continue;
+            if(req.type == Type.GRANT_LOCK || req.type == Type.RELEASE_LOCK) {
+                if(lock_reqs == null)
+                    lock_reqs=new ArrayList<>(reqs.size());
+                lock_reqs.add(req);
+                continue;
+            }
+            if(lock_reqs != null && !lock_reqs.isEmpty()) {
+                handleLockRequests(lock_reqs);
+                lock_reqs.clear();
+            }
+            handleRequest(req);
+        }
+        if(lock_reqs != null && !lock_reqs.isEmpty())
+            handleLockRequests(lock_reqs);
     }
 
     protected void handleRequest(Request req) {
@@ -322,6 +485,9 @@ abstract public class Locking extends Protocol {
             case LOCK_REVOKED:
                 handleLockRevoked(req);
                 break;
+            case RECALL_LEASE:
+                handleRecallLease(req.lock_name);
+                break;
             default:
                 log.error("%s: request of type %s not known", local_addr, req.type);
                 break;
@@ -399,9 +565,26 @@ abstract public class Locking extends Protocol {
 
 
     protected ClientLock createLock(String lock_name, Owner owner) {
+        if(lock_lease_time > 0)
+            return isLease(owner)? new LockLease(lock_name) : new LeasedClientLock(lock_name, owner);
         return new ClientLock(lock_name, owner);
     }
 
+    protected Owner getLeaseOwner() {
+        return new Owner(local_addr, LEASE_THREAD_ID);
+    }
+
+    protected static boolean isLease(Owner owner) {
+        return owner != null && owner.getThreadId() == LEASE_THREAD_ID;
+    }
+
+    /** Releases the leases which have not been used for lock_lease_time ms */
+    protected void releaseIdleLeases() {
+        long max_idle=TimeUnit.NANOSECONDS.convert(lock_lease_time, TimeUnit.MILLISECONDS), now=System.nanoTime();
+        for(LockLease lease: client_lock_table.getLeases())
+            lease.releaseIfIdle(now, max_idle);
+    }
+
     /** Gets a lock from locks based on the hash of the lock name */
     protected Lock _getLock(String lock_name) {
         int index=lock_name != null? Math.abs(lock_name.hashCode() % lock_stripes.length) : 0;
@@ -435,6 +618,54 @@ abstract public class Locking extends Protocol {
         send(dest.getAddress(), new Request(Type.SIG_RET, lock_name, dest, 0));
     }
 
+    /** Sends the responses, grouping the responses to the same member into one message */
+    protected void sendLockResponses(List<Response> rsps) {
+        if(rsps.isEmpty())
+            return;
+        if(rsps.size() == 1) {
+            Response rsp=rsps.get(0);
+            sendLockResponse(rsp.type, rsp.owner, rsp.lock_name, rsp.lock_id);
+            return;
+        }
+        Map<Address,List<Request>> map=new LinkedHashMap<>();
+        for(Response rsp: rsps)
+            map.computeIfAbsent(rsp.owner.getAddress(), k -> new ArrayList<>())
+              .add(new Request(rsp.type, rsp.lock_name, rsp.owner, 0).lockId(rsp.lock_id));
+        map.forEach(this::send);
+    }
+
+    /** Sends a number of requests to dest in a single message, or in separate messages if batching is disabled */
+    protected void send(Address dest, List<Request> reqs) {
+        if(reqs.size() == 1 || !batch_lock_requests) {
+            reqs.forEach(req -> send(dest, req));
+            return;
+        }
+        if(reqs.size() > Short.MAX_VALUE) { // the number of requests is sent as a short
+            for(int i=0; i < reqs.size(); i+=Short.MAX_VALUE)
+                send(dest, reqs.subList(i, Math.min(i + Short.MAX_VALUE, reqs.size())));
+            return;
+        }
+        ByteArrayDataOutputStream out=new ByteArrayDataOutputStream(reqs.size() * 64);
+        try {
+            for(Request req: reqs)
+                Util.writeStreamable(req, out);
+        }
+        catch(Exception ex) {
+            log.error("%s: failed serializing %d requests: %s", local_addr, reqs.size(), ex);
+            return;
+        }
+        Message msg=new Message(dest, out.getBuffer()).putHeader(id, new LockingBatchHeader(reqs.size()));
+        if(bypass_bundling)
+            msg.setFlag(Message.Flag.DONT_BUNDLE);
+        log.trace("%s --> %s: %s", local_addr, dest == null? "ALL" : dest, reqs);
+        try {
+            down_prot.down(msg);
+        }
+        catch(Exception ex) {
+            log.error("%s: failed sending %d requests: %s", local_addr, reqs.size(), ex);
+        }
+    }
+
     protected void send(Address dest, Request req) {
         Message msg=new Message(dest, Util.streamableToBuffer(req)).putHeader(id, new LockingHeader());
         if(bypass_bundling)
@@ -454,18 +685,7 @@ abstract public class Locking extends Protocol {
         Lock lock=_getLock(req.lock_name);
         lock.lock();
         try {
-            ServerLock server_lock=server_locks.get(req.lock_name);
-            if(server_lock == null) {
-                server_lock=new ServerLock(req.lock_name);
-                ServerLock tmp=server_locks.putIfAbsent(req.lock_name, server_lock);
-                if(tmp != null)
-                    server_lock=tmp;
-                else
-                    notifyLockCreated(req.lock_name);
-            }
-            rsp=server_lock.handleRequest(req);
-            if(server_lock.isEmpty() && server_lock.owner == null && server_lock.condition.queue.isEmpty())
-                server_locks.remove(req.lock_name);
+            rsp=handleLockRequest(req, null);
         }
         finally {
             lock.unlock();
@@ -476,6 +696,59 @@ abstract public class Locking extends Protocol {
             sendLockResponse(rsp.type, rsp.owner, rsp.lock_name, rsp.lock_id);
     }
 
+    /**
+     * Handles a number of lock and unlock requests in one pass: the requests are grouped by lock stripe and each stripe
+     * is acquired only once. All responses are sent after the stripes have been released, responses to the same member
+     * are sent in a single message.
+     */
+    protected void handleLockRequests(List<Request> reqs) {
+        if(reqs.size() == 1) {
+            handleLockRequest(reqs.get(0));
+            return;
+        }
+        num_lock_batches.increment();
+        num_batched_lock_requests.add(reqs.size());
+
+        // group by stripe; the order of requests for the same lock is preserved
+        Map<Lock,List<Request>> stripes=new LinkedHashMap<>();
+        for(Request req: reqs)
+            stripes.computeIfAbsent(_getLock(req.lock_name), k -> new ArrayList<>()).add(req);
+
+        List<Response> rsps=new ArrayList<>(reqs.size());
+        for(Map.Entry<Lock,List<Request>> entry: stripes.entrySet()) {
+            Lock lock=entry.getKey();
+            lock.lock();
+            try {
+                for(Request req: entry.getValue()) {
+                    Response rsp=handleLockRequest(req, rsps);
+                    if(rsp != null)
+                        rsps.add(rsp);
+                }
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+        sendLockResponses(rsps);
+    }
+
+    /** Handles a lock or unlock request. The lock stripe for req.lock_name must be held by the caller */
+    protected Response handleLockRequest(Request req, Collection<Response> rsps) {
+        ServerLock server_lock=server_locks.get(req.lock_name);
+        if(server_lock == null) {
+            server_lock=new ServerLock(req.lock_name);
+            ServerLock tmp=server_locks.putIfAbsent(req.lock_name, server_lock);
+            if(tmp != null)
+                server_lock=tmp;
+            else
+                notifyLockCreated(req.lock_name);
+        }
+        Response rsp=server_lock.handleRequest(req, rsps);
+        if(server_lock.isEmpty() && server_lock.owner == null && server_lock.condition.queue.isEmpty())
+            server_locks.remove(req.lock_name);
+        return rsp;
+    }
+
 
     protected void handleLockGrantedResponse(String lock_name, int lock_id, Owner owner) {
         ClientLock lock=client_lock_table.getLock(lock_name,owner,false);
@@ -506,6 +779,12 @@ abstract public class Locking extends Protocol {
     protected void handleLockRevoked(Request rsp) {
 
     }
+
+    protected void handleRecallLease(String lock_name) {
+        ClientLock lock=client_lock_table.getLock(lock_name, getLeaseOwner(), false);
+        if(lock instanceof LockLease)
+            ((LockLease)lock).recall();
+    }
     
     protected void handleAwaitRequest(String lock_name, Owner owner) {
         Lock lock=_getLock(lock_name);
@@ -723,6 +1002,7 @@ abstract public class Locking extends Protocol {
         protected Owner                 owner;
         protected final List<Request>   queue=new ArrayList<>();
         protected final ServerCondition condition;
+        protected boolean               lease_recalled; // true if a RECALL_LEASE has been sent to the (lease) owner
 
         public ServerLock(String lock_name) {
             this.lock_name=lock_name;
@@ -736,6 +1016,14 @@ abstract public class Locking extends Protocol {
         }
 
         protected Response handleRequest(Request req) {
+            return handleRequest(req, null);
+        }
+
+        /**
+         * Handles a request. If rsps is non-null, additional responses (e.g. RELEASE_LOCK_OK) are added to it rather
+         * than being sent immediately
+         */
+        protected Response handleRequest(Request req, Collection<Response> rsps) {
             switch(req.type) {
                 case GRANT_LOCK:
                     if(owner == null) {
@@ -745,6 +1033,10 @@ abstract public class Locking extends Protocol {
                     if(owner.equals(req.owner))
                         return new Response(Type.LOCK_GRANTED, req.owner, req.lock_name, req.lock_id);
 
+                    // a different member wants the lock: ask the lease holder to give it back
+                    if(isLease(owner) && !lease_recalled)
+                        recallLease(rsps);
+
                     if(req.is_trylock && req.timeout <= 0)
                         return new Response(Type.LOCK_DENIED, req.owner, req.lock_name, req.lock_id);
                     addToQueue(req);
@@ -754,7 +1046,7 @@ abstract public class Locking extends Protocol {
                     if(Objects.equals(owner, req.owner)) {
                         setOwner(null);
                         if(req.type == Type.RELEASE_LOCK)
-                            sendLockResponse(Type.RELEASE_LOCK_OK, req.owner, req.lock_name, req.lock_id);
+                            addOrSend(new Response(Type.RELEASE_LOCK_OK, req.owner, req.lock_name, req.lock_id), rsps);
                     }
                     else
                         addToQueue(req);
@@ -772,6 +1064,18 @@ abstract public class Locking extends Protocol {
             return processQueue();
         }
 
+        protected void recallLease(Collection<Response> rsps) {
+            lease_recalled=true;
+            addOrSend(new Response(Type.RECALL_LEASE, owner, lock_name, 0), rsps);
+        }
+
+        protected void addOrSend(Response rsp, Collection<Response> rsps) {
+            if(rsps != null)
+                rsps.add(rsp);
+            else
+                sendLockResponse(rsp.type, rsp.owner, rsp.lock_name, rsp.lock_id);
+        }
+
         protected Response handleView(List<Address> members) {
             if(owner != null && !members.contains(owner.getAddress())) {
                 Owner tmp=owner;
@@ -844,6 +1148,8 @@ abstract public class Locking extends Protocol {
                 switch(req.type) {
                     case GRANT_LOCK:
                         setOwner(req.owner);
+                        if(isLease(owner) && !isEmpty()) // others are waiting: the lease is returned after first use
+                            recallLease(null);
                         return new Response(Type.LOCK_GRANTED, req.owner, req.lock_name, req.lock_id);
                     case RELEASE_LOCK:
                         if(owner == null)
@@ -857,6 +1163,7 @@ abstract public class Locking extends Protocol {
         }
 
         protected void setOwner(Owner owner) {
+            lease_recalled=false;
             if(owner == null) {
                 if(this.owner != null) {
                     Owner tmp=this.owner;
@@ -947,6 +1254,9 @@ abstract public class Locking extends Protocol {
         protected volatile boolean      is_trylock;
         protected long                  timeout;
         protected final ClientCondition condition;
+        // guards the state below: a monitor would pin the carrier thread of a virtual thread while waiting
+        protected final Lock            state_lock=new ReentrantLock();
+        protected final Condition       state_changed=state_lock.newCondition();
 
         // unique for locks for the same name:owner, can wrap around (that's ok)
         protected final int             lock_id=current_lock_id.getAndIncrement();
@@ -992,7 +1302,7 @@ abstract public class Locking extends Protocol {
             return acquireTryLock(TimeUnit.MILLISECONDS.convert(time, unit), true);
         }
 
-        public synchronized void unlock() {
+        public void unlock() {
             _unlock(false);
         }
 
@@ -1005,22 +1315,34 @@ abstract public class Locking extends Protocol {
             return String.format("%s (id=%d, locked=%b, owner=%s)", name, lock_id, acquired, owner != null? owner : "n/a");
         }
 
-        protected synchronized void lockGranted(int lock_id) {
-            if(this.lock_id != lock_id) {
-                log.error(Util.getMessage("DiscardedLOCKGRANTEDResponseWithLockId") + lock_id + ", my lock-id=" + this.lock_id);
-                return;
+        protected void lockGranted(int lock_id) {
+            state_lock.lock();
+            try {
+                if(this.lock_id != lock_id) {
+                    log.error(Util.getMessage("DiscardedLOCKGRANTEDResponseWithLockId") + lock_id + ", my lock-id=" + this.lock_id);
+                    return;
+                }
+                acquired=true;
+                state_changed.signalAll();
+            }
+            finally {
+                state_lock.unlock();
             }
-            acquired=true;
-            this.notifyAll();
         }
 
-        protected synchronized void lockDenied(int lock_id) {
-            if(this.lock_id != lock_id) {
-                log.error(Util.getMessage("DiscardedLOCKDENIEDResponseWithLockId") + lock_id + ", my lock_id=" + this.lock_id);
-                return;
+        protected void lockDenied(int lock_id) {
+            state_lock.lock();
+            try {
+                if(this.lock_id != lock_id) {
+                    log.error(Util.getMessage("DiscardedLOCKDENIEDResponseWithLockId") + lock_id + ", my lock_id=" + this.lock_id);
+                    return;
+                }
+                denied=true;
+                state_changed.signalAll();
+            }
+            finally {
+                state_lock.unlock();
             }
-            denied=true;
-            this.notifyAll();
         }
 
         protected void handleLockGrantedResponse(int lock_id) {
@@ -1035,133 +1357,421 @@ abstract public class Locking extends Protocol {
             _unlockOK();
         }
 
-        protected synchronized void acquire(boolean throwInterrupt) throws InterruptedException {
-            if(acquired)
-                return;
-            if(throwInterrupt && Thread.interrupted())
-                throw new InterruptedException();
-            owner=getOwner();
-            sendGrantLockRequest(name, lock_id, owner, 0, false);
-            boolean interrupted=false;
-            while(!acquired) {
-                try {
-                    this.wait();
+        protected void acquire(boolean throwInterrupt) throws InterruptedException {
+            state_lock.lock();
+            try {
+                if(acquired)
+                    return;
+                if(throwInterrupt && Thread.interrupted())
+                    throw new InterruptedException();
+                owner=getOwner();
+                sendGrantLockRequest(name, lock_id, owner, 0, false);
+                boolean interrupted=false;
+                while(!acquired) {
+                    try {
+                        state_changed.await();
+                    }
+                    catch(InterruptedException e) {
+                        if(throwInterrupt && !acquired) {
+                            _unlock(true);
+                            throw e;
+                        }
+                        // If we don't throw exceptions then we just set the interrupt flag and let it loop around
+                        interrupted=true;
+                    }
                 }
-                catch(InterruptedException e) {
-                    if(throwInterrupt && !acquired) {
-                        _unlock(true);
-                        throw e;
+                if(interrupted)
+                    Thread.currentThread().interrupt();
+            }
+            finally {
+                state_lock.unlock();
+            }
+        }
+
+        protected void _unlock(boolean force) {
+            state_lock.lock();
+            try {
+                if(!acquired && !denied && !force)
+                    return;
+                this.timeout=0;
+                this.is_trylock=false;
+                if(!denied) {
+                    if(!force)
+                        client_lock_table.addToPendingReleaseRequests(this);
+                    sendReleaseLockRequest(name, lock_id, owner); // lock will be released on RELEASE_LOCK_OK response
+                    if(force && client_lock_table.removeClientLock(name,owner))
+                        notifyLockDeleted(name);
+
+                    if(!force) {
+                        //unlock will return only when get RELEASE_LOCK_OK or timeLeft after some seconds
+                        long time_left=10000;
+                        while(acquired || denied) {
+                            long start=System.currentTimeMillis();
+                            try {
+                                state_changed.await(time_left, TimeUnit.MILLISECONDS);
+                            }
+                            catch(InterruptedException ie) {
+                                break;
+                            }
+                            long duration=System.currentTimeMillis() - start;
+                            if(duration > 0)
+                                time_left-=duration;
+                            if(time_left <= 0) {
+                                log.warn("%s: timeout waiting for RELEASE_LOCK_OK response for lock %s", local_addr, this);
+                                break;
+                            }
+                        }
                     }
-                    // If we don't throw exceptions then we just set the interrupt flag and let it loop around
-                    interrupted=true;
                 }
+                else
+                    _unlockOK();
+            }
+            finally {
+                state_lock.unlock();
             }
-            if(interrupted)
-                Thread.currentThread().interrupt();
         }
 
-        protected synchronized void _unlock(boolean force) {
-            if(!acquired && !denied && !force)
-                return;
-            this.timeout=0;
-            this.is_trylock=false;
-            if(!denied) {
-                if(!force)
-                    client_lock_table.addToPendingReleaseRequests(this);
-                sendReleaseLockRequest(name, lock_id, owner); // lock will be released on RELEASE_LOCK_OK response
-                if(force && client_lock_table.removeClientLock(name,owner))
+        protected void _unlockOK() {
+            state_lock.lock();
+            try {
+                acquired=denied=false;
+                state_changed.signalAll();
+                if(client_lock_table.removeClientLock(name,owner))
                     notifyLockDeleted(name);
+                owner=null;
+            }
+            finally {
+                state_lock.unlock();
+            }
+        }
 
-                if(!force) {
-                    //unlock will return only when get RELEASE_LOCK_OK or timeLeft after some seconds
-                    long time_left=10000;
-                    while(acquired || denied) {
-                        long start=System.currentTimeMillis();
-                        try {
-                            wait(time_left);
-                        }
-                        catch(InterruptedException ie) {
+        protected boolean acquireTryLock(long timeout, boolean use_timeout) throws InterruptedException {
+            state_lock.lock();
+            try {
+                if(denied)
+                    return false;
+                if(!acquired) {
+                    if(use_timeout && Thread.interrupted())
+                        throw new InterruptedException();
+                    is_trylock=true;
+                    this.timeout=timeout;
+                    if(owner == null)
+                        owner=getOwner();
+                    sendGrantLockRequest(name, lock_id, owner, timeout, true);
+
+                    boolean interrupted = false;
+                    while(!acquired && !denied) {
+                        if(use_timeout) {
+                            long timeout_ns=TimeUnit.NANOSECONDS.convert(timeout, TimeUnit.MILLISECONDS),
+                              wait_time=timeout_ns,
+                              start=System.nanoTime();
+
+                            while(wait_time > 0 && !acquired && !denied) {
+                                try {
+                                    long wait_ms=TimeUnit.MILLISECONDS.convert(wait_time, TimeUnit.NANOSECONDS);
+                                    if(wait_ms <= 0)
+                                        break;
+                                    state_changed.await(wait_ms, TimeUnit.MILLISECONDS);
+                                }
+                                catch(InterruptedException e) {
+                                    interrupted=true;
+                                }
+                                finally {
+                                    wait_time=timeout_ns - (System.nanoTime() - start);
+                                    this.timeout=TimeUnit.MILLISECONDS.convert(wait_time, TimeUnit.NANOSECONDS);
+                                }
+                            }
                             break;
                         }
-                        long duration=System.currentTimeMillis() - start;
-                        if(duration > 0)
-                            time_left-=duration;
-                        if(time_left <= 0) {
-                            log.warn("%s: timeout waiting for RELEASE_LOCK_OK response for lock %s", local_addr, this);
-                            break;
+                        else {
+                            try {
+                                state_changed.await();
+                            }
+                            catch(InterruptedException e) {
+                                interrupted = true;
+                            }
                         }
                     }
+                    if(interrupted)
+                        Thread.currentThread().interrupt();
                 }
+                boolean retval=acquired && !denied;
+                if(!acquired || denied)
+                    _unlock(true);
+                return retval;
+            }
+            finally {
+                state_lock.unlock();
+            }
+        }
+
+        public int compareTo(ClientLock o) {
+            int rc=owner.compareTo(o.owner);
+            return rc != 0? rc : name.compareTo(o.name);
+        }
+    }
+
+    /**
+     * A client lock which is acquired and released locally, as long as this member holds the {@link LockLease} for the
+     * lock. Only when the lease is not held (or has been recalled) is a request sent to the lock server.
+     */
+    protected class LeasedClientLock extends ClientLock {
+        protected LockLease lease; // the lease under which this lock was acquired
+
+        public LeasedClientLock(String name, Owner owner) {
+            super(name, owner);
+        }
+
+        public void lock() {
+            try {
+                acquireLocally(-1, false);
+            }
+            catch(InterruptedException e) { // should never happen
+                Thread.currentThread().interrupt();
             }
-            else
-                _unlockOK();
         }
 
-    protected synchronized void _unlockOK() {
-        acquired=denied=false;
-            notifyAll();
-            if(client_lock_table.removeClientLock(name,owner))
-                notifyLockDeleted(name);
-            owner=null;
+        public void lockInterruptibly() throws InterruptedException {
+            acquireLocally(-1, true);
         }
 
-        protected synchronized boolean acquireTryLock(long timeout, boolean use_timeout) throws InterruptedException {
-            if(denied)
+        public boolean tryLock() {
+            try {
+                return acquireLocally(0, false);
+            }
+            catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
                 return false;
-            if(!acquired) {
-                if(use_timeout && Thread.interrupted())
-                    throw new InterruptedException();
-                is_trylock=true;
-                this.timeout=timeout;
-                if(owner == null)
-                    owner=getOwner();
-                sendGrantLockRequest(name, lock_id, owner, timeout, true);
+            }
+        }
 
-                boolean interrupted = false;
-                while(!acquired && !denied) {
-                    if(use_timeout) {
-                        long timeout_ns=TimeUnit.NANOSECONDS.convert(timeout, TimeUnit.MILLISECONDS),
-                          wait_time=timeout_ns,
-                          start=System.nanoTime();
+        public boolean tryLock(long time, TimeUnit unit) throws InterruptedException {
+            return acquireLocally(TimeUnit.MILLISECONDS.convert(time, unit), true);
+        }
 
-                        while(wait_time > 0 && !acquired && !denied) {
-                            try {
-                                long wait_ms=TimeUnit.MILLISECONDS.convert(wait_time, TimeUnit.NANOSECONDS);
-                                if(wait_ms <= 0)
-                                    break;
-                                this.wait(wait_ms);
-                            }
-                            catch(InterruptedException e) {
-                                interrupted=true;
-                            }
-                            finally {
-                                wait_time=timeout_ns - (System.nanoTime() - start);
-                                this.timeout=TimeUnit.MILLISECONDS.convert(wait_time, TimeUnit.NANOSECONDS);
-                            }
-                        }
-                        break;
+        public Condition newCondition() {
+            throw new UnsupportedOperationException("conditions are not supported with lock leases (lock_lease_time > 0)");
+        }
+
+        /** Acquires the lock from the lease. A negative timeout waits forever, 0 doesn't wait at all */
+        protected boolean acquireLocally(long timeout, boolean interruptibly) throws InterruptedException {
+            if(acquired)
+                return true;
+            if(interruptibly && Thread.interrupted())
+                throw new InterruptedException();
+            if(owner == null)
+                owner=getOwner();
+            long deadline=timeout < 0? -1 : System.nanoTime() + TimeUnit.NANOSECONDS.convert(timeout, TimeUnit.MILLISECONDS);
+            for(;;) {
+                LockLease l=client_lock_table.getLease(name);
+                Boolean rc=l.acquire(owner, deadline, interruptibly);
+                if(rc == null) // the lease was released in the meantime: try again with a new one
+                    continue;
+                state_lock.lock();
+                try {
+                    if(rc) {
+                        lease=l;
+                        acquired=true;
                     }
-                    else {
-                        try {
-                            this.wait();
-                        }
-                        catch(InterruptedException e) {
-                            interrupted = true;
+                    else if(client_lock_table.removeClientLock(name, owner))
+                        notifyLockDeleted(name);
+                }
+                finally {
+                    state_lock.unlock();
+                }
+                return rc;
+            }
+        }
+
+        protected void _unlock(boolean force) {
+            state_lock.lock();
+            try {
+                LockLease l=lease;
+                boolean was_acquired=acquired;
+                acquired=false;
+                lease=null;
+                if(was_acquired && l != null)
+                    l.release(owner);
+                if(client_lock_table.removeClientLock(name, owner))
+                    notifyLockDeleted(name);
+            }
+            finally {
+                state_lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * A lease for a lock, granted by the lock server to this member (owner is local_addr::{@link #LEASE_THREAD_ID}).
+     * While the lease is held, local threads acquire and release the lock by passing it among themselves. When the
+     * lock server recalls the lease, the lease is released (and the lock is granted to the requester) as soon as the
+     * local holder unlocks it.
+     */
+    protected class LockLease extends ClientLock {
+        protected Owner   holder;      // the local thread currently holding the lock, null if free
+        protected boolean requested;   // true when a GRANT_LOCK request has been sent to the lock server
+        protected boolean recalled;    // true when the lock server recalled the lease
+        protected boolean used;        // true if a local thread acquired the lock since the lease was granted
+        protected boolean releasing;   // true when a RELEASE_LOCK request has been sent to the lock server
+        protected boolean released;    // true when the lease has been released (RELEASE_LOCK_OK received)
+        protected int     waiters;     // number of local threads waiting for the lock
+        protected long    last_access; // time (ns) of the last grant or unlock
+
+        public LockLease(String name) {
+            super(name, getLeaseOwner());
+        }
+
+        /**
+         * Acquires the lock for a local thread
+         * @return true if acquired, false if the deadline has elapsed, null if the lease has been released and the
+         * caller needs to retry with a new lease
+         */
+        protected Boolean acquire(Owner thread, long deadline, boolean interruptibly) throws InterruptedException {
+            boolean interrupted=false, first=true;
+            state_lock.lock();
+            waiters++;
+            try {
+                for(;;) {
+                    if(released)
+                        return null;
+                    if(!releasing && acquired && holder == null && (!recalled || !used)) {
+                        holder=thread;
+                        used=true;
+                        if(first)
+                            num_lease_hits.increment();
+                        return true;
+                    }
+                    first=false;
+                    if(!releasing && !acquired && !requested) {
+                        sendGrantLockRequest(name, lock_id, owner, 0, false);
+                        requested=true;
+                    }
+                    try {
+                        if(deadline < 0)
+                            state_changed.await();
+                        else {
+                            long wait_time=deadline - System.nanoTime();
+                            if(wait_time <= 0)
+                                return false;
+                            state_changed.awaitNanos(wait_time);
                         }
                     }
+                    catch(InterruptedException e) {
+                        if(interruptibly)
+                            throw e;
+                        interrupted=true;
+                    }
                 }
+            }
+            finally {
+                waiters--;
+                if(holder == null && recalled && waiters == 0)
+                    releaseLease();
+                state_lock.unlock();
                 if(interrupted)
                     Thread.currentThread().interrupt();
             }
-            boolean retval=acquired && !denied;
-            if(!acquired || denied)
-                _unlock(true);
-            return retval;
         }
 
-        public int compareTo(ClientLock o) {
-            int rc=owner.compareTo(o.owner);
-            return rc != 0? rc : name.compareTo(o.name);
+        /** Called when a local thread unlocks the lock */
+        protected void release(Owner thread) {
+            state_lock.lock();
+            try {
+                if(!Objects.equals(holder, thread))
+                    return;
+                holder=null;
+                last_access=System.nanoTime();
+                if(recalled)
+                    releaseLease();
+                state_changed.signalAll();
+            }
+            finally {
+                state_lock.unlock();
+            }
+        }
+
+        protected void recall() {
+            state_lock.lock();
+            try {
+                num_lease_recalls.increment();
+                recalled=true;
+                if(holder == null && acquired && waiters == 0)
+                    releaseLease();
+                state_changed.signalAll();
+            }
+            finally {
+                state_lock.unlock();
+            }
+        }
+
+        protected void releaseIfIdle(long now, long max_idle) {
+            state_lock.lock();
+            try {
+                if(holder == null && acquired && waiters == 0 && now - last_access >= max_idle)
+                    releaseLease();
+            }
+            finally {
+                state_lock.unlock();
+            }
+        }
+
+        /** Sends a RELEASE_LOCK to the lock server. Other than {@link #unlock()}, this doesn't wait for the response */
+        protected void releaseLease() {
+            state_lock.lock();
+            try {
+                if(releasing || !acquired)
+                    return;
+                releasing=true;
+                client_lock_table.addToPendingReleaseRequests(this);
+                sendReleaseLockRequest(name, lock_id, owner);
+            }
+            finally {
+                state_lock.unlock();
+            }
+        }
+
+        public void unlock() { // e.g. called by unlockAll()
+            state_lock.lock();
+            try {
+                if(holder == null)
+                    releaseLease();
+            }
+            finally {
+                state_lock.unlock();
+            }
+        }
+
+        public Condition newCondition() {
+            throw new UnsupportedOperationException("conditions are not supported with lock leases (lock_lease_time > 0)");
+        }
+
+        protected void lockGranted(int lock_id) {
+            state_lock.lock();
+            try {
+                super.lockGranted(lock_id);
+                last_access=System.nanoTime();
+                if(recalled && waiters == 0)
+                    releaseLease();
+            }
+            finally {
+                state_lock.unlock();
+            }
+        }
+
+        protected void _unlockOK() {
+            state_lock.lock();
+            try {
+                released=true;
+                super._unlockOK(); // removes the lease from the client lock table and wakes up all waiters
+            }
+            finally {
+                state_lock.unlock();
+            }
+        }
+
+        public String toString() {
+            return String.format("%s (lease, id=%d, locked=%b, holder=%s%s)", name, lock_id, acquired, holder,
+                                 recalled? ", recalled" : "");
         }
     }
 
@@ -1193,6 +1803,18 @@ abstract public class Locking extends Protocol {
             return lock;
         }
 
+        /** Returns the lease for the given lock, creating it if absent */
+        protected LockLease getLease(String name) {
+            return (LockLease)getLock(name, getLeaseOwner(), true);
+        }
+
+        protected synchronized List<LockLease> getLeases() {
+            List<LockLease> l=new ArrayList<>();
+            table.values().forEach(map -> map.values().stream().filter(cl -> cl instanceof LockLease)
+              .forEach(cl -> l.add((LockLease)cl)));
+            return l;
+        }
+
         protected synchronized boolean removeClientLock(String lock_name, Owner owner) {
             pending_release_reqs.removeIf(cl -> Objects.equals(cl.name, lock_name) && Objects.equals(cl.owner, owner));
             Map<Owner,ClientLock> owners=table.get(lock_name);
@@ -1223,10 +1845,16 @@ abstract public class Locking extends Protocol {
         }
 
         protected void resendPendingLockRequests() {
+            resendPendingLockRequests(name -> true);
+        }
+
+        /** Resends the pending lock and unlock requests for all locks whose names are accepted by filter */
+        protected void resendPendingLockRequests(Predicate<String> filter) {
             final List<ClientLock> pending_lock_reqs=new ArrayList<>();
             synchronized(this) {
                 if(!table.isEmpty()) {
-                    table.values().forEach(map -> map.values().stream().filter(lock -> !lock.acquired && !lock.denied)
+                    table.values().forEach(map -> map.values().stream()
+                      .filter(lock -> !lock.acquired && !lock.denied && filter.test(lock.name))
                       .forEach(pending_lock_reqs::add));
                 }
             }
@@ -1243,7 +1871,8 @@ abstract public class Locking extends Protocol {
                     String tmp=pending_release_reqs.stream().map(ClientLock::toString).collect(Collectors.joining(", "));
                     log.trace("%s: resending pending unlock requests: %s", local_addr, tmp);
                 }
-                pending_release_reqs.forEach(cl -> sendReleaseLockRequest(cl.name, cl.lock_id, cl.owner));
+                pending_release_reqs.stream().filter(cl -> filter.test(cl.name))
+                  .forEach(cl -> sendReleaseLockRequest(cl.name, cl.lock_id, cl.owner));
             }
         }
 
@@ -1648,6 +2277,9 @@ abstract public class Locking extends Protocol {
             return LockingHeader::new;
         }
 
+        /** The number of requests in the message's payload */
+        public int numRequests() {return 1;}
+
         @Override
         public int serializedSize() {
             return 0;
@@ -1662,6 +2294,47 @@ abstract public class Locking extends Protocol {
         }
     }
 
+    /**
+     * Header of a message containing multiple requests; only sent when batch_lock_requests is true. Messages with a
+     * single request use {@link LockingHeader}, so they can be read by members which don't support batching.
+     */
+    public static class LockingBatchHeader extends LockingHeader {
+        protected short num_requests;
+
+        public LockingBatchHeader() {
+        }
+
+        public LockingBatchHeader(int num_requests) {
+            this.num_requests=(short)num_requests;
+        }
+
+        public short getMagicId() {return 95;}
+        public Supplier<? extends Header> create() {
+            return LockingBatchHeader::new;
+        }
+
+        public int numRequests() {return num_requests;}
+
+        @Override
+        public int serializedSize() {
+            return Global.SHORT_SIZE;
+        }
+
+        @Override
+        public void writeTo(DataOutput out) throws IOException {
+            out.writeShort(num_requests);
+        }
+
+        @Override
+        public void readFrom(DataInput in) throws IOException, ClassNotFoundException {
+            num_requests=in.readShort();
+        }
+
+        public String toString() {
+            return String.format("%d requests", num_requests);
+        }
+    }
+
 
     protected static class LockInfoResponse implements Streamable {
         protected List<Tuple<String,Owner>> existing_locks; // lock name and owner
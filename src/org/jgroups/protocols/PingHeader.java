@@ -18,6 +18,7 @@ import java.util.function.Supplier;
 public class PingHeader extends Header {
     public static final byte GET_MBRS_REQ=1;
     public static final byte GET_MBRS_RSP=2;
+    public static final byte GET_MBRS_RSP_BATCH=3; // list of responses in a single message
 
     protected byte    type;
     protected String  cluster_name;
@@ -52,6 +53,7 @@ public class PingHeader extends Header {
         switch(t) {
             case GET_MBRS_REQ: return "GET_MBRS_REQ";
             case GET_MBRS_RSP: return "GET_MBRS_RSP";
+            case GET_MBRS_RSP_BATCH: return "GET_MBRS_RSP_BATCH";
             default:           return "<unkown type (" + t + ")>";
         }
     }
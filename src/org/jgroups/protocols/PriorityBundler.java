@@ -0,0 +1,378 @@
+package org.jgroups.protocols;
+
+import org.jgroups.Message;
+import org.jgroups.annotations.ManagedAttribute;
+import org.jgroups.util.AverageMinMax;
+import org.jgroups.util.Util;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bundler with a separate queue for each traffic class: internal messages (e.g. heartbeats, GMS or STABLE messages),
+ * OOB messages and regular messages. A single thread takes messages from the queues and bundles them.<p/>
+ * With policy "strict", internal messages are always taken before OOB messages, and OOB messages before regular
+ * messages. With policy "wfq" (weighted fair queuing, implemented as deficit round robin), the number of bytes taken
+ * from a queue is proportional to its weight, so no traffic class is starved.<p/>
+ * Internal messages are sent as soon as they have been taken from their queue (together with the messages bundled so
+ * far), so they don't wait behind a bundle of application data, and a sender only blocks when the queue of its own
+ * traffic class is full. Messages of the same class are sent in FIFO order; regular and internal messages may be
+ * reordered relative to each other, which is handled by the reliable protocols (e.g. UNICAST3 and NAKACK2).
+ * @since  4.1.2
+ */
+public class PriorityBundler extends BaseBundler implements Runnable {
+    public static final int            INTERNAL=0, OOB=1, REGULAR=2;
+    protected static final String[]    NAMES={"internal", "oob", "regular"};
+    protected static final String      THREAD_NAME="Priority-Bundler";
+    protected final TrafficClass[]     classes=new TrafficClass[NAMES.length];
+    protected int                      capacity;
+    protected boolean                  strict=true;
+    protected int[]                    weights={8, 4, 1};
+    protected int                      quantum; // bytes added to the deficit of a class per weight and round (wfq)
+    protected volatile Thread          bundler_thread;
+    protected volatile boolean         running, parked;
+    protected long                     num_sends_because_full_queue, num_sends_because_no_msgs, num_internal_flushes;
+    protected final AverageMinMax      fill_count=new AverageMinMax(); // avg number of bytes when a batch is sent
+
+
+    public PriorityBundler() {
+    }
+
+    public PriorityBundler(int capacity) {
+        this.capacity=assertPositive(capacity, "bundler capacity cannot be " + capacity);
+    }
+
+    public String          policy()               {return strict? "strict" : "wfq";}
+    public int[]           weights()              {return weights;}
+    public Thread          getThread()            {return bundler_thread;}
+
+    /** Sets the scheduling policy: "strict" (strict priority) or "wfq" (weighted fair queuing) */
+    public PriorityBundler policy(String policy) {
+        if(policy == null || policy.equalsIgnoreCase("strict"))
+            strict=true;
+        else if(policy.equalsIgnoreCase("wfq"))
+            strict=false;
+        else
+            throw new IllegalArgumentException(String.format("policy \"%s\" is invalid; use \"strict\" or \"wfq\"", policy));
+        return this;
+    }
+
+    /** Sets the weights of internal, OOB and regular messages, e.g. "8,4,1". Only used by policy "wfq" */
+    public PriorityBundler weights(String weights) {
+        return weights(Util.parseCommaDelimitedInts(weights));
+    }
+
+    public PriorityBundler weights(int ... weights) {
+        if(weights == null || weights.length != NAMES.length)
+            throw new IllegalArgumentException(String.format("%d weights (internal, oob, regular) are required",
+                                                             NAMES.length));
+        for(int w: weights)
+            assertPositive(w, "weight cannot be " + w);
+        this.weights=weights;
+        for(int i=0; i < classes.length; i++)
+            if(classes[i] != null)
+                classes[i].weight=weights[i];
+        computeQuantum();
+        return this;
+    }
+
+    @ManagedAttribute(description="Number of internal messages in the queue")
+    public int getInternalQueueSize() {return queueSize(INTERNAL);}
+
+    @ManagedAttribute(description="Number of OOB messages in the queue")
+    public int getOobQueueSize()      {return queueSize(OOB);}
+
+    @ManagedAttribute(description="Number of regular messages in the queue")
+    public int getRegularQueueSize()  {return queueSize(REGULAR);}
+
+    @Override
+    public Map<String,Object> getStats() {
+        Map<String,Object> retval=new HashMap<>();
+        retval.put("policy", policy());
+        retval.put("sends_because_full", num_sends_because_full_queue);
+        retval.put("sends_because_no_msgs", num_sends_because_no_msgs);
+        retval.put("internal_flushes", num_internal_flushes);
+        retval.put("avg_fill_count", fill_count);
+        for(TrafficClass tc: classes) {
+            if(tc == null)
+                continue;
+            retval.put(tc.name + "_queue_size", tc.queue.size());
+            retval.put(tc.name + "_msgs", tc.num_msgs.sum());
+            retval.put(tc.name + "_blocked_sends", tc.num_blocked.sum());
+            retval.put(tc.name + "_queue_time (us)", tc.queue_time);
+        }
+        return retval;
+    }
+
+    @Override
+    public void resetStats() {
+        num_sends_because_full_queue=num_sends_because_no_msgs=num_internal_flushes=0;
+        fill_count.clear();
+        for(TrafficClass tc: classes) {
+            if(tc != null)
+                tc.resetStats();
+        }
+    }
+
+    public void init(TP tp) {
+        super.init(tp);
+        if(capacity <= 0)
+            capacity=assertPositive(tp.getBundlerCapacity(), "bundler capacity cannot be " + tp.getBundlerCapacity());
+        for(int i=0; i < classes.length; i++)
+            classes[i]=new TrafficClass(NAMES[i], capacity, weights[i]);
+        computeQuantum();
+    }
+
+    public synchronized void start() {
+        if(running)
+            stop();
+        bundler_thread=transport.getThreadFactory().newThread(this, THREAD_NAME);
+        running=true;
+        bundler_thread.start();
+    }
+
+    public synchronized void stop() {
+        running=false;
+        Thread tmp=bundler_thread;
+        bundler_thread=null;
+        if(tmp != null) {
+            tmp.interrupt();
+            if(tmp.isAlive()) {
+                try {tmp.join(500);} catch(InterruptedException e) {}
+            }
+        }
+        drain();
+    }
+
+    public int size() {
+        int retval=super.size();
+        for(TrafficClass tc: classes)
+            if(tc != null)
+                retval+=tc.queue.size();
+        return retval;
+    }
+
+    public void send(Message msg) throws Exception {
+        if(!running)
+            return;
+        TrafficClass tc=classes[trafficClass(msg)];
+        Entry entry=new Entry(msg);
+        if(!tc.queue.offer(entry)) {
+            tc.num_blocked.increment();
+            tc.queue.put(entry);
+        }
+        tc.num_msgs.increment();
+        if(parked)
+            LockSupport.unpark(bundler_thread);
+    }
+
+    public void run() {
+        while(running) {
+            try {
+                if(!process())
+                    waitForMessages();
+            }
+            catch(Throwable t) {
+            }
+        }
+    }
+
+    /** Takes messages from the queues until all queues are empty, then sends the bundled messages */
+    protected boolean process() {
+        boolean processed=false;
+        while((strict? processStrict() : processWeighted()) > 0)
+            processed=true;
+        if(count > 0) {
+            num_sends_because_no_msgs++;
+            fill_count.add(count);
+            _sendBundledMessages();
+        }
+        return processed;
+    }
+
+    /**
+     * Takes all internal messages and sends them, or else up to max_bundle_size bytes of OOB messages, or else
+     * regular messages. This is called repeatedly, so internal messages are checked after every bundle
+     */
+    protected int processStrict() {
+        int num=take(classes[INTERNAL], Long.MAX_VALUE);
+        if(num > 0) {
+            flush();
+            return num;
+        }
+        if((num=take(classes[OOB], transport.getMaxBundleSize())) > 0)
+            return num;
+        return take(classes[REGULAR], transport.getMaxBundleSize());
+    }
+
+    /**
+     * One round of deficit round robin: every non-empty queue gets weight * quantum bytes of credit, and messages
+     * are taken from it as long as the credit suffices. The credit of an empty queue is reset
+     */
+    protected int processWeighted() {
+        int num=0;
+        for(TrafficClass tc: classes) {
+            Entry entry;
+            if((entry=tc.queue.peek()) == null) {
+                tc.deficit=0;
+                continue;
+            }
+            tc.deficit+=(long)tc.weight * quantum;
+            int taken=0;
+            long size;
+            while(entry != null && (size=entry.msg.size()) <= tc.deficit) {
+                tc.queue.poll(); // we're the only consumer, so this removes entry
+                tc.deficit-=size;
+                add(tc, entry, size);
+                taken++;
+                entry=tc.queue.peek();
+            }
+            if(entry == null)
+                tc.deficit=0;
+            if(taken > 0 && tc == classes[INTERNAL])
+                flush();
+            num+=taken;
+        }
+        return num;
+    }
+
+    /** Takes messages from the queue of the given class until the queue is empty or max_bytes have been taken */
+    protected int take(TrafficClass tc, long max_bytes) {
+        int num=0;
+        long bytes=0;
+        Entry entry;
+        while(bytes < max_bytes && (entry=tc.queue.poll()) != null) {
+            long size=entry.msg.size();
+            add(tc, entry, size);
+            bytes+=size;
+            num++;
+        }
+        return num;
+    }
+
+    protected void add(TrafficClass tc, Entry entry, long size) {
+        tc.queue_time.add(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - entry.time));
+        if(count + size >= transport.getMaxBundleSize()) {
+            num_sends_because_full_queue++;
+            fill_count.add(count);
+            _sendBundledMessages();
+        }
+        _addMessage(entry.msg, size);
+    }
+
+    /** Sends the bundled messages (including internal messages) right away */
+    protected void flush() {
+        if(count > 0) {
+            num_internal_flushes++;
+            fill_count.add(count);
+            _sendBundledMessages();
+        }
+    }
+
+    protected void waitForMessages() {
+        parked=true;
+        if(isEmpty() && running)
+            LockSupport.park(this);
+        parked=false;
+    }
+
+    protected boolean isEmpty() {
+        for(TrafficClass tc: classes)
+            if(!tc.queue.isEmpty())
+                return false;
+        return true;
+    }
+
+    /** Takes all messages from the queues (in priority order), adds them to the hashmap and sends them */
+    protected void drain() {
+        for(TrafficClass tc: classes) {
+            if(tc != null)
+                take(tc, Long.MAX_VALUE);
+        }
+        _sendBundledMessages();
+    }
+
+    protected void _sendBundledMessages() {
+        lock.lock();
+        try {
+            sendBundledMessages();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    protected void _addMessage(Message msg, long size) {
+        lock.lock();
+        try {
+            addMessage(msg, size);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    protected int queueSize(int traffic_class) {
+        TrafficClass tc=classes[traffic_class];
+        return tc != null? tc.queue.size() : 0;
+    }
+
+    /** The class with the highest weight can send max_bundle_size bytes per round */
+    protected void computeQuantum() {
+        if(transport == null)
+            return;
+        int max_weight=1;
+        for(int w: weights)
+            max_weight=Math.max(max_weight, w);
+        quantum=Math.max(1, transport.getMaxBundleSize() / max_weight);
+    }
+
+    protected static int trafficClass(Message msg) {
+        if(msg.isFlagSet(Message.Flag.INTERNAL))
+            return INTERNAL;
+        return msg.isFlagSet(Message.Flag.OOB)? OOB : REGULAR;
+    }
+
+    protected static int assertPositive(int value, String message) {
+        if(value <= 0) throw new IllegalArgumentException(message);
+        return value;
+    }
+
+
+    protected static class TrafficClass {
+        protected final String               name;
+        protected final BlockingQueue<Entry> queue;
+        protected int                        weight;
+        protected long                       deficit;  // bytes which can still be taken in the current round (wfq)
+        protected final LongAdder            num_msgs=new LongAdder();
+        protected final LongAdder            num_blocked=new LongAdder(); // sends which blocked on a full queue
+        protected final AverageMinMax        queue_time=new AverageMinMax(); // time (us) messages spent in the queue
+
+        protected TrafficClass(String name, int capacity, int weight) {
+            this.name=name;
+            this.queue=new ArrayBlockingQueue<>(capacity);
+            this.weight=weight;
+        }
+
+        protected void resetStats() {
+            num_msgs.reset();
+            num_blocked.reset();
+            queue_time.clear();
+        }
+    }
+
+    protected static class Entry {
+        protected final Message msg;
+        protected final long    time; // time (ns) at which the message was added
+
+        protected Entry(Message msg) {
+            this.msg=msg;
+            this.time=System.nanoTime();
+        }
+    }
+}
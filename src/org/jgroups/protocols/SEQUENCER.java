@@ -12,14 +12,14 @@ import org.jgroups.util.*;
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
-import java.util.List;
-import java.util.Map;
-import java.util.NavigableMap;
-import java.util.Objects;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -83,6 +83,25 @@ public class SEQUENCER extends Protocol {
       "dropped (https://issues.jboss.org/browse/JGRP-2268)")
     protected boolean                           flush_forward_table=true;
 
+    @Property(description="If true, messages are forwarded to the coordinator in batches, and the coordinator " +
+      "broadcasts each batch as a single message. Needs to be the same on all members")
+    protected boolean                           batch_forwards;
+
+    @Property(description="Max number of bytes of a batch of forwarded messages")
+    protected int                               max_batch_size=64000;
+
+    /** Messages to be forwarded in batches (if batch_forwards is true) */
+    protected final Queue<Message>              fwd_queue=new ConcurrentLinkedQueue<>();
+
+    /** Set while a thread drains fwd_queue */
+    protected final AtomicBoolean               draining=new AtomicBoolean();
+
+    @ManagedAttribute(description="Number of batches forwarded to the coordinator")
+    protected final LongAdder                   num_batches_forwarded=new LongAdder();
+
+    @ManagedAttribute(description="Number of messages forwarded to the coordinator in batches")
+    protected final LongAdder                   num_batched_msgs=new LongAdder();
+
     @ManagedAttribute protected int  num_acks;
     @ManagedAttribute protected long forwarded_msgs;
     @ManagedAttribute protected long bcast_msgs;
@@ -102,9 +121,24 @@ public class SEQUENCER extends Protocol {
 
     public void setDeliveryTableMaxSize(int size) {delivery_table_max_size=size;}
 
+    public boolean   batchForwards()                {return batch_forwards;}
+    public SEQUENCER batchForwards(boolean b)       {this.batch_forwards=b; return this;}
+    public int       maxBatchSize()                 {return max_batch_size;}
+    public SEQUENCER maxBatchSize(int size)         {this.max_batch_size=size; return this;}
+    public long      getNumBatchesForwarded()       {return num_batches_forwarded.sum();}
+    public long      getNumBatchedMessages()        {return num_batched_msgs.sum();}
+
+    @ManagedAttribute(description="Average number of messages in a forwarded batch")
+    public double getAvgBatchSize() {
+        long batches=num_batches_forwarded.sum();
+        return batches == 0? 0 : (double)num_batched_msgs.sum() / batches;
+    }
+
     @ManagedOperation
     public void resetStats() {
         forwarded_msgs=bcast_msgs=received_forwards=received_bcasts=delivered_bcasts=0L;
+        num_batches_forwarded.reset();
+        num_batched_msgs.reset();
     }
 
 
@@ -213,11 +247,33 @@ public class SEQUENCER extends Protocol {
                 received_forwards++;
                 break;
 
+            case SequencerHeader.FORWARD_BATCH:
+                if(!is_coord) {
+                    log.error("%s: non-coord; dropping FORWARD_BATCH request from %s", local_addr, msg.getSrc());
+                    return null;
+                }
+                if(view != null && !view.containsMember(msg.getSrc())) {
+                    log.error("%s: dropping FORWARD_BATCH request from non-member %s; view=%s", local_addr, msg.getSrc(), view);
+                    return null;
+                }
+                // the batch is broadcast as is: the payload (the serialized messages) is not unmarshalled
+                Message bcast_msg=new Message(null, msg.getRawBuffer(), msg.getOffset(), msg.getLength())
+                  .putHeader(this.id, new SequencerHeader(SequencerHeader.BCAST_BATCH));
+                down_prot.down(bcast_msg);
+                received_forwards++;
+                bcast_msgs++;
+                break;
+
             case SequencerHeader.BCAST:
                 deliver(msg, hdr);
                 received_bcasts++;
                 break;
 
+            case SequencerHeader.BCAST_BATCH:
+                unwrapAndDeliverBatch(msg);
+                received_bcasts++;
+                break;
+
             case SequencerHeader.WRAPPED_BCAST:
                 unwrapAndDeliver(msg, hdr.flush_ack);  // unwrap the original message (in the payload) and deliver it
                 received_bcasts++;
@@ -379,7 +435,10 @@ public class SEQUENCER extends Protocol {
 
     protected void forwardToCoord(long seqno, Message msg) {
         if(is_coord) {
-            forward(msg, seqno, false);
+            if(batch_forwards)
+                forwardBatched(msg);
+            else
+                forward(msg, seqno, false);
             return;
         }
 
@@ -390,7 +449,10 @@ public class SEQUENCER extends Protocol {
 
         if(!ack_mode) {
             forward_table.put(seqno, msg);
-            forward(msg, seqno, false);
+            if(batch_forwards)
+                forwardBatched(msg);
+            else
+                forward(msg, seqno, false);
             return;
         }
 
@@ -428,6 +490,57 @@ public class SEQUENCER extends Protocol {
         }
     }
 
+    /**
+     * Adds the message to fwd_queue and - unless a different thread is already doing this - forwards all queued
+     * messages to the coordinator in batches of up to max_batch_size bytes. The messages of a batch are delivered
+     * in the order in which they were queued.
+     */
+    protected void forwardBatched(Message msg) {
+        fwd_queue.add(msg);
+        while(!fwd_queue.isEmpty() && draining.compareAndSet(false, true)) {
+            try {
+                List<Message> batch=new ArrayList<>();
+                int size=0;
+                Message m;
+                while((m=fwd_queue.poll()) != null) {
+                    batch.add(m);
+                    size+=m.size();
+                    if(size >= max_batch_size) {
+                        forwardBatch(batch, size);
+                        batch.clear();
+                        size=0;
+                    }
+                }
+                if(!batch.isEmpty())
+                    forwardBatch(batch, size);
+            }
+            finally {
+                draining.set(false);
+            }
+        }
+    }
+
+    protected void forwardBatch(List<Message> batch, int size) {
+        Address target=coord;
+        if(target == null)
+            return;
+        try {
+            ByteArrayDataOutputStream out=new ByteArrayDataOutputStream(size + Global.INT_SIZE);
+            out.writeInt(batch.size());
+            for(Message msg: batch)
+                msg.writeTo(out);
+            Message forward_msg=new Message(target, out.buffer(), 0, out.position())
+              .putHeader(this.id, new SequencerHeader(SequencerHeader.FORWARD_BATCH));
+            down_prot.down(forward_msg);
+            forwarded_msgs+=batch.size();
+            num_batches_forwarded.increment();
+            num_batched_msgs.add(batch.size());
+        }
+        catch(Exception ex) {
+            log.error(Util.getMessage("FailedForwardingMessageTo") + target, ex);
+        }
+    }
+
     protected void broadcast(final Message msg, boolean copy, Address original_sender, long seqno, boolean resend) {
         Message bcast_msg=null;
 
@@ -470,6 +583,22 @@ public class SEQUENCER extends Protocol {
     }
 
 
+    /** Unmarshals the messages of a batch and delivers them in order */
+    protected void unwrapAndDeliverBatch(final Message msg) {
+        try {
+            ByteArrayDataInputStream in=new ByteArrayDataInputStream(msg.getRawBuffer(), msg.getOffset(), msg.getLength());
+            int num=in.readInt();
+            for(int i=0; i < num; i++) {
+                Message msg_to_deliver=new Message(false);
+                msg_to_deliver.readFrom(in);
+                deliver(msg_to_deliver, msg_to_deliver.getHeader(this.id));
+            }
+        }
+        catch(Exception ex) {
+            log.error(Util.getMessage("FailureUnmarshallingBuffer"), ex);
+        }
+    }
+
     protected void deliver(Message msg, SequencerHeader hdr) {
         Address sender=msg.getSrc();
         if(sender == null) {
@@ -596,6 +725,8 @@ public class SEQUENCER extends Protocol {
         protected static final byte FLUSH         = 2;
         protected static final byte BCAST         = 3;
         protected static final byte WRAPPED_BCAST = 4;
+        protected static final byte FORWARD_BATCH = 5;
+        protected static final byte BCAST_BATCH   = 6;
 
         protected byte    type=-1;
         protected long    seqno=-1;
@@ -637,6 +768,8 @@ public class SEQUENCER extends Protocol {
                 case FLUSH:          return "FLUSH";
                 case BCAST:          return "BCAST";
                 case WRAPPED_BCAST:  return "WRAPPED_BCAST";
+                case FORWARD_BATCH:  return "FORWARD_BATCH";
+                case BCAST_BATCH:    return "BCAST_BATCH";
                 default:             return "n/a";
             }
         }
@@ -41,6 +41,16 @@ public class TCP extends BasicTCP {
       " buffered until this size is exceeded or flush() is called. Bigger messages are sent immediately. 0: default size")
     protected int buffered_output_stream_size=8192;
 
+    @Property(description="Max number of messages in the send queue of a connection. If > 0, messages are added to " +
+      "the queue and written by a separate thread per connection, which coalesces them into fewer writes. This " +
+      "prevents a slow peer from blocking the senders. 0 disables send queues")
+    protected int send_queue_size;
+
+    @Property(description="Max time (ms) a sender blocks when the send queue of a connection is full. The message is " +
+      "dropped when the time has elapsed (retransmission will resend it). 0 drops the message immediately, " +
+      "-1 blocks until there is space in the queue")
+    protected long send_queue_block_time=-1;
+
     public int getBufferedInputStreamSize() {
         return buffered_input_stream_size;
     }
@@ -59,6 +69,35 @@ public class TCP extends BasicTCP {
         return this;
     }
 
+    public int  getSendQueueSize()                {return send_queue_size;}
+    public TCP  setSendQueueSize(int size)        {this.send_queue_size=size; return this;}
+    public long getSendQueueBlockTime()           {return send_queue_block_time;}
+    public TCP  setSendQueueBlockTime(long time)  {this.send_queue_block_time=time; return this;}
+
+    @ManagedAttribute(description="Number of messages dropped because the send queue was full")
+    public long getNumSendQueueDrops()            {return server != null? server.getNumSendQueueDrops() : 0;}
+
+    @ManagedAttribute(description="Number of times a sender blocked because the send queue was full")
+    public long getNumSendQueueBlocks()           {return server != null? server.getNumSendQueueBlocks() : 0;}
+
+    @ManagedAttribute(description="Average time (ms) a sender blocked on a full send queue")
+    public double getAvgSendQueueBlockTime()      {return server != null? server.getAvgSendQueueBlockTime() : 0;}
+
+    @ManagedAttribute(description="Number of writes (flushes) by the send queue writer threads")
+    public long getNumSendQueueWrites()           {return server != null? server.getNumSendQueueWrites() : 0;}
+
+    @ManagedAttribute(description="Average number of messages coalesced into a single write by the send queues")
+    public double getAvgMessagesPerWrite()        {return server != null? server.getAvgMessagesPerWrite() : 0;}
+
+    @ManagedOperation(description="Prints the number of messages in the send queue of each connection")
+    public String printSendQueues()               {return server != null? server.printSendQueues() : null;}
+
+    @Override public void resetStats() {
+        super.resetStats();
+        if(server != null)
+            server.resetSendQueueStats();
+    }
+
     @ManagedAttribute
     public int getOpenConnections() {
         return server.getNumConnections();
@@ -101,6 +140,8 @@ public class TCP extends BasicTCP {
           .peerAddressReadTimeout(peer_addr_read_timeout)
           .usePeerConnections(true)
           .socketFactory(getSocketFactory());
+        server.sendQueueSize(send_queue_size).sendQueueBlockTime(send_queue_block_time);
+        server.connsPerPeer(conns_per_peer).largeMsgSize(large_msg_size);
 
         if(reaper_interval > 0 || conn_expire_time > 0) {
             if(reaper_interval == 0) {
@@ -14,8 +14,8 @@ import java.util.Collection;
 
 /**
  * Protocol using TCP/IP to send and receive messages. Contrary to {@link TCP}, TCP_NIO uses non-blocking I/O (NIO),
- * which eliminates the thread per connection model. Instead, TCP_NIO uses a single selector to poll for incoming
- * messages and dispatches handling of those to a (configurable) thread pool.
+ * which eliminates the thread per connection model. Instead, TCP_NIO uses a single selector (or num_selectors
+ * selectors) to poll for incoming messages and dispatches handling of those to a (configurable) thread pool.
  * <p>
  * Most of the functionality is in {@link NioServer}. TCP_NIO sends
  * messages using {@link NioServer#send(Address,byte[],int,int)} and registers with the server
@@ -38,6 +38,14 @@ public class TCP_NIO2 extends BasicTCP {
       "until it terminates. New messages will start a new reader")
     protected long    reader_idle_time=5000;
 
+    @Property(description="Number of selector threads reading from and writing to connections. Connections are " +
+      "assigned to selector threads round-robin. If 1, a single thread accepts, reads and writes all connections")
+    protected int     num_selectors=1;
+
+    @Property(description="Max number of messages read from a connection in one go and passed up as message batches. " +
+      "1 passes up every message separately")
+    protected int     max_read_batch_size=1;
+
 
     public TCP_NIO2() {}
 
@@ -66,6 +74,9 @@ public class TCP_NIO2 extends BasicTCP {
     @ManagedAttribute(description="Number of times select() was called")
     public int     numSelects() {return server != null? server.numSelects() : -1;}
 
+    @ManagedAttribute(description="Number of selector threads")
+    public int     numSelectors() {return num_selectors;}
+
     @ManagedAttribute(description="Number of partial writes for all connections (not all bytes were written)")
     public int     numPartialWrites() {return server.numPartialWrites();}
 
@@ -105,6 +116,8 @@ public class TCP_NIO2 extends BasicTCP {
           .log(this.log);
         server.maxSendBuffers(max_send_buffers).usePeerConnections(true);
         server.copyOnPartialWrite(this.copy_on_partial_write).readerIdleTime(this.reader_idle_time);
+        server.numSelectors(num_selectors).maxReadBatchSize(max_read_batch_size);
+        server.connsPerPeer(conns_per_peer).largeMsgSize(large_msg_size);
 
         if(reaper_interval > 0 || conn_expire_time > 0) {
             if(reaper_interval == 0) {
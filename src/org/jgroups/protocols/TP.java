@@ -20,6 +20,7 @@ import java.lang.management.ManagementFactory;
 import java.net.InetAddress;
 import java.net.NetworkInterface;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.locks.ReentrantLock;
@@ -167,6 +168,12 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
     @Property(name="thread_pool.keep_alive_time",description="Timeout in milliseconds to remove idle threads from pool")
     protected long thread_pool_keep_alive_time=30000;
 
+    @Property(description="Runs the tasks of the thread pool, the internal thread pool and the timer on virtual " +
+      "threads (one per task, no max size) if the JDK supports them (21+), so that tasks blocking in protocols or " +
+      "RPC handlers don't tie up platform threads. Falls back to platform threads on earlier JDKs. Long-lived threads " +
+      "(e.g. receiver or bundler threads) remain platform threads")
+    protected boolean use_virtual_threads;
+
 
     @Property(description="Interval (in ms) at which the time service updates its timestamp. 0 disables the time service")
     protected long time_service_interval=500;
@@ -234,8 +241,8 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
     @Property(name="max_bundle_size", description="Maximum number of bytes for messages to be queued until they are sent")
     protected int max_bundle_size=64000;
 
-    @Property(description="The type of bundler used (\"ring-buffer\", \"transfer-queue\" (default), \"sender-sends\" or " +
-      "\"no-bundler\") or the fully qualified classname of a Bundler implementation")
+    @Property(description="The type of bundler used (\"ring-buffer\", \"transfer-queue\" (default), \"sender-sends\", " +
+      "\"priority\" or \"no-bundler\") or the fully qualified classname of a Bundler implementation")
     protected String bundler_type="transfer-queue";
 
     @Property(description="The max number of elements in a bundler if the bundler supports size limitations")
@@ -247,6 +254,15 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
     @Property(description="The wait strategy for a RingBuffer")
     protected String bundler_wait_strategy="park";
 
+    @Property(description="The scheduling policy of the priority bundler: \"strict\" sends internal messages before " +
+      "OOB messages and OOB messages before regular messages, \"wfq\" (weighted fair queuing) shares the bandwidth " +
+      "according to bundler_priority_weights")
+    protected String bundler_priority_policy="strict";
+
+    @Property(description="The weights of internal, OOB and regular messages, used by the priority bundler with " +
+      "policy \"wfq\"")
+    protected String bundler_priority_weights="8,4,1";
+
     @ManagedAttribute(description="Fully qualified classname of bundler")
     public String getBundlerClass() {
         return bundler != null? bundler.getClass().getName() : "null";
@@ -473,6 +489,9 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
 
     protected Executor                internal_pool; // only created if thread_pool is enabled, to handle internal msgs
 
+    /** Factory for the virtual threads of the thread pool (only used if use_virtual_threads is true) */
+    protected ThreadFactory           vthread_factory;
+
     // ================================== Timer thread pool  =========================
     protected TimeScheduler           timer;
 
@@ -712,6 +731,9 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
     public <T extends TP> T       setBindToAllInterfaces(boolean f) {this.receive_on_all_interfaces=f; return (T)this;}
     public boolean                isReceiveOnAllInterfaces()        {return receive_on_all_interfaces;}
     public List<NetworkInterface> getReceiveInterfaces()            {return receive_interfaces;}
+    public boolean                useVirtualThreads()               {return use_virtual_threads;}
+    /** Needs to be set before the transport is initialized */
+    public <T extends TP> T       useVirtualThreads(boolean b)      {use_virtual_threads=b; return (T)this;}
     public <T extends TP> T       setPortRange(int range)           {this.port_range=range; return (T)this;}
     public int                    getPortRange()                    {return port_range;}
 
@@ -844,6 +866,18 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
 
         if(internal_thread_factory == null)
             internal_thread_factory=new LazyThreadFactory("jgroups-int", false, true);
+
+        if(use_virtual_threads && !ThreadCreator.hasVirtualThreads()) {
+            log.warn("%s: virtual threads are not supported by this JDK (%s); using platform threads",
+                     getClass().getSimpleName(), System.getProperty("java.version"));
+            use_virtual_threads=false;
+        }
+        if(use_virtual_threads) {
+            if(vthread_factory == null)
+                vthread_factory=new LazyThreadFactory("jgroups-vt", true, true);
+            vthread_factory.useVirtualThreads(true);
+            internal_thread_factory.useVirtualThreads(true);
+        }
         
         // local_addr is null when shared transport, channel_name is not used
         setInAllThreadFactories(cluster_name != null? cluster_name.toString() : null, local_addr, thread_naming_pattern);
@@ -866,15 +900,22 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
             thread_pool_max_threads=Runtime.getRuntime().availableProcessors();
         if(thread_pool == null || (thread_pool instanceof ExecutorService && ((ExecutorService)thread_pool).isShutdown())) {
             if(thread_pool_enabled) {
-                int num_cores=Runtime.getRuntime().availableProcessors();
-                int max_internal_size=Math.max(4, num_cores);
-                log.debug("thread pool min/max/keep-alive: %d/%d/%d use_fork_join=%b, internal pool: %d/%d/%d (%d cores available)",
-                          thread_pool_min_threads, thread_pool_max_threads, thread_pool_keep_alive_time, use_fork_join_pool,
-                          0, max_internal_size, 30000, num_cores);
-                thread_pool=createThreadPool(thread_pool_min_threads, thread_pool_max_threads, thread_pool_keep_alive_time,
-                                             "abort", new SynchronousQueue<>(), thread_factory, log, use_fork_join_pool, use_common_fork_join_pool);
-                internal_pool=createThreadPool(0, max_internal_size, 30000, "abort",
-                                               new SynchronousQueue<>(), internal_thread_factory, log, false, false);
+                if(use_virtual_threads) {
+                    log.debug("thread pool and internal pool use virtual threads");
+                    thread_pool=ThreadCreator.createThreadPerTaskExecutor(vthread_factory);
+                    internal_pool=ThreadCreator.createThreadPerTaskExecutor(internal_thread_factory);
+                }
+                else {
+                    int num_cores=Runtime.getRuntime().availableProcessors();
+                    int max_internal_size=Math.max(4, num_cores);
+                    log.debug("thread pool min/max/keep-alive: %d/%d/%d use_fork_join=%b, internal pool: %d/%d/%d (%d cores available)",
+                              thread_pool_min_threads, thread_pool_max_threads, thread_pool_keep_alive_time, use_fork_join_pool,
+                              0, max_internal_size, 30000, num_cores);
+                    thread_pool=createThreadPool(thread_pool_min_threads, thread_pool_max_threads, thread_pool_keep_alive_time,
+                                                 "abort", new SynchronousQueue<>(), thread_factory, log, use_fork_join_pool, use_common_fork_join_pool);
+                    internal_pool=createThreadPool(0, max_internal_size, 30000, "abort",
+                                                   new SynchronousQueue<>(), internal_thread_factory, log, false, false);
+                }
             }
             else // otherwise use the caller's thread to unmarshal the byte buffer into a message
                 thread_pool=new DirectExecutor();
@@ -1190,6 +1231,9 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
             case "rqb": case "rq":
             case "remove-queue-bundler": case "remove-queue":
                 return new RemoveQueueBundler();
+            case "priority":
+            case "pb":
+                return new PriorityBundler(bundler_capacity).policy(bundler_priority_policy).weights(bundler_priority_weights);
         }
 
         try {
@@ -1351,6 +1395,74 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
     }
 
 
+    /**
+     * Receives multiple messages from the same sender, e.g. read from a connection in one go. Single messages are
+     * passed up as message batches (grouped by sender, cluster and OOB/internal flags), message lists are handled as
+     * in {@link #receive(Address,byte[],int,int)}.
+     */
+    public void receive(Address sender, List<ByteBuffer> bufs) {
+        if(bufs == null || Objects.equals(local_physical_addr, sender))
+            return;
+        MessageBatch[] batches=new MessageBatch[4]; // [0]: reg, [1]: OOB, [2]: internal-oob, [3]: internal
+        for(ByteBuffer buf: bufs) {
+            byte[] data;
+            int offset, length=buf.remaining();
+            if(buf.hasArray()) {
+                data=buf.array();
+                offset=buf.arrayOffset() + buf.position();
+            }
+            else {
+                data=new byte[length];
+                offset=0;
+                buf.duplicate().get(data);
+            }
+            if(length < Global.SHORT_SIZE + Global.BYTE_SIZE) // JGRP-2210
+                continue;
+            short version=Bits.readShort(data, offset);
+            if(!versionMatch(version, sender))
+                continue;
+            byte flags=data[offset + Global.SHORT_SIZE];
+            boolean is_message_list=(flags & LIST) == LIST, multicast=(flags & MULTICAST) == MULTICAST;
+            int hdr_len=Global.SHORT_SIZE + Global.BYTE_SIZE;
+            ByteArrayDataInputStream in=new ByteArrayDataInputStream(data, offset + hdr_len, length - hdr_len);
+            if(is_message_list) {
+                handleMessageBatch(in, multicast);
+                continue;
+            }
+            try {
+                Message msg=new Message(false); // don't create headers, readFrom() will do this
+                msg.readFrom(in);
+                if(!multicast && unicastDestMismatch(msg.getDest()))
+                    continue;
+                TpHeader hdr=msg.getHeader(this.id);
+                byte[] cname=hdr != null? hdr.getClusterName() : null;
+                boolean oob=msg.isFlagSet(Message.Flag.OOB), internal=msg.isFlagSet(Message.Flag.INTERNAL);
+                int index=oob? (internal? 2 : 1) : (internal? 3 : 0);
+                MessageBatch batch=batches[index];
+                if(batch != null && (batch.multicast() != multicast || !Objects.equals(batch.sender(), msg.getSrc())
+                  || batch.clusterName() == null || !batch.clusterName().equals(cname))) {
+                    processBatch(batch, oob, internal); // preserves the order of the messages
+                    batch=null;
+                }
+                if(batch == null) {
+                    MessageBatch.Mode mode=oob? MessageBatch.Mode.OOB : internal? MessageBatch.Mode.INTERNAL : MessageBatch.Mode.REG;
+                    batch=batches[index]=new MessageBatch(multicast? null : msg.getDest(), msg.getSrc(),
+                                                          cname != null? new AsciiString(cname) : null,
+                                                          multicast, mode, bufs.size());
+                }
+                batch.add(msg);
+            }
+            catch(Throwable t) {
+                log.error(String.format(Util.getMessage("IncomingMsgFailure"), local_addr), t);
+            }
+        }
+        processBatch(batches[1], true,  false);
+        processBatch(batches[0], false, false);
+        processBatch(batches[2], true,  true);
+        processBatch(batches[3], false, true);
+    }
+
+
     protected void handleMessageBatch(DataInput in, boolean multicast) {
         try {
             final MessageBatch[] batches=Util.readMessageBatch(in, multicast);
@@ -1730,9 +1842,11 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
     }
 
     protected void setInAllThreadFactories(String cluster_name, Address local_address, String pattern) {
-        ThreadFactory[] factories= {thread_factory,internal_thread_factory};
+        ThreadFactory[] factories= {thread_factory,internal_thread_factory,vthread_factory};
 
         for(ThreadFactory factory: factories) {
+            if(factory == null)
+                continue;
             if(pattern != null)
                 factory.setPattern(pattern);
             if(cluster_name != null) // if we have a shared transport, use singleton_name as cluster_name
@@ -19,6 +19,7 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Objects;
+import java.util.function.Consumer;
 
 /**
  * Replacement for UDP. Instead of sending packets via UDP, a TCP connection is opened to a Router
@@ -56,6 +57,11 @@ public class TUNNEL extends TP implements RouterStub.StubReceiver {
       "this needs to be false; if GossipRouterNio is used, it needs to be true")
     protected boolean use_nio;
 
+    @Property(description="If true, all members of a cluster send their messages via the same GossipRouter (picked " +
+      "by hashing the cluster name), and different clusters are spread over the GossipRouters. Otherwise, a " +
+      "GossipRouter is picked randomly for every message")
+    protected boolean consistent_router_selection;
+
     /* ------------------------------------------ Fields ----------------------------------------------------- */
 
     protected final List<InetSocketAddress> gossip_router_hosts = new ArrayList<>();
@@ -228,9 +234,16 @@ public class TUNNEL extends TP implements RouterStub.StubReceiver {
 
     private class DefaultTUNNELPolicy implements TUNNELPolicy {
 
+        protected void pick(Consumer<RouterStub> action) {
+            if(consistent_router_selection)
+                stubManager.forCluster(action);
+            else
+                stubManager.forAny(action);
+        }
+
         public void sendToAllMembers(final String group, Address sender,
                                      final byte[] data, final int offset, final int length) throws Exception {
-            stubManager.forAny( stub -> {
+            pick( stub -> {
                 try {
                     if(log.isTraceEnabled())
                         log.trace("%s: sending a message to all members, GR used %s", local_addr, stub.gossipRouterAddress());
@@ -245,7 +258,7 @@ public class TUNNEL extends TP implements RouterStub.StubReceiver {
 
         public void sendToSingleMember(final String group, final Address dest, Address sender,
                                        final byte[] data, final int offset, final int length) throws Exception {
-            stubManager.forAny( stub -> {
+            pick( stub -> {
                 try {
                     if(log.isTraceEnabled())
                         log.trace("%s: sending a message to %s (router used %s)", local_addr, dest, stub.gossipRouterAddress());
@@ -148,7 +148,7 @@ public class ClientGmsImpl extends GmsImpl {
         }
         finally {
             if(success)
-                gms.sendViewAck(rsp.getView().getCreator());
+                gms.sendViewAck(rsp.getView().getCreator(), rsp.getView().getViewId());
         }
     }
 
@@ -0,0 +1,56 @@
+package org.jgroups.protocols.pbcast;
+
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+/**
+ * Application state which lives in files, used by {@link STATE_SOCK} (with zero_copy enabled) to transfer the state
+ * with {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)} and
+ * {@link FileChannel#transferFrom(java.nio.channels.ReadableByteChannel, long, long)}, without copying the state
+ * through user space. The file channels are owned by the application and are not closed by the protocol.
+ * @since  4.1.2
+ */
+public interface FileState {
+
+    /** Returns the file regions making up the state (in the state provider). The regions are sent in list order */
+    List<Region> getRegions() throws Exception;
+
+    /**
+     * Returns the file channel into which the given region is written (in the state requester), starting at
+     * position 0
+     * @param name the name of the region, as returned by {@link Region#name()} in the state provider
+     * @param length the number of bytes of the region
+     */
+    FileChannel openRegion(String name, long length) throws Exception;
+
+    /** Called in the state requester when all regions have been received */
+    void regionsReceived(List<String> names) throws Exception;
+
+
+    /** A region of a file: the bytes [position .. position+length) of a file channel */
+    class Region {
+        protected final String      name;
+        protected final FileChannel channel;
+        protected final long        position, length;
+
+        public Region(String name, FileChannel channel, long position, long length) {
+            this.name=name;
+            this.channel=channel;
+            this.position=position;
+            this.length=length;
+        }
+
+        public Region(String name, FileChannel channel) throws java.io.IOException {
+            this(name, channel, 0, channel.size());
+        }
+
+        public String      name()     {return name;}
+        public FileChannel channel()  {return channel;}
+        public long        position() {return position;}
+        public long        length()   {return length;}
+
+        public String toString() {
+            return String.format("%s [%d .. %d]", name, position, position + length);
+        }
+    }
+}
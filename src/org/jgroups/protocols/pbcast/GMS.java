@@ -56,6 +56,11 @@ public class GMS extends Protocol implements DiagnosticsHandler.ProbeHandler {
     @Property(description="Timeout (in ms) to complete merge")
     protected long merge_timeout=5000; // time to wait for all MERGE_RSPS
 
+    @Property(description="Fraction (0-1] of the members of all subgroups which need to be covered by the MERGE_RSPs " +
+      "of their subgroup coordinators before the merge leader installs the MergeView. Subgroups which haven't " +
+      "responded by then are excluded (and merged later). 1 waits for all responses (or merge_timeout)")
+    protected double merge_quorum=1.0;
+
     @Property(description="Number of join attempts before we give up and become a singleton. 0 means 'never give up'.")
     protected long max_join_attempts=10;
 
@@ -92,6 +97,20 @@ public class GMS extends Protocol implements DiagnosticsHandler.ProbeHandler {
     @Property(description="Time in ms to wait for all VIEW acks (0 == wait forever. Default is 2000 msec" )
     protected long view_ack_collection_timeout=2000;
 
+    @Property(description="Fraction (0-1] of the members from which VIEW_ACKs need to be received before the " +
+      "coordinator moves on to the next view. The remaining acks are not waited for. 1 waits for all acks " +
+      "(or view_ack_collection_timeout). Not used for MergeViews")
+    protected double view_ack_quorum=1.0;
+
+    @Property(description="Time (ms) the coordinator waits for more JOIN requests after receiving a JOIN request, so " +
+      "that they're all handled by a single view (and digest). The wait is repeated as long as new requests arrive, " +
+      "but for no longer than max_join_coalescing_time ms. 0 disables coalescing")
+    protected long join_coalescing_time;
+
+    @Property(description="Max time (ms) to coalesce JOIN requests. Should be less than join_timeout, or else " +
+      "joiners will resend their JOIN requests")
+    protected long max_join_coalescing_time=500;
+
     @Property(description="Use flush for view changes. Default is true")
     protected boolean use_flush_if_present=true;
 
@@ -116,6 +135,10 @@ public class GMS extends Protocol implements DiagnosticsHandler.ProbeHandler {
 
     protected int                 num_views;
 
+    @ManagedAttribute(description="Number of views for which the coordinator stopped waiting for VIEW_ACKs " +
+      "after view_ack_quorum acks were received")
+    protected int                 num_view_ack_quorums;
+
     /** Stores the last 20 views */
     protected BoundedList<String> prev_views;
 
@@ -162,6 +185,9 @@ public class GMS extends Protocol implements DiagnosticsHandler.ProbeHandler {
     /** To collect VIEW_ACKs from all members */
     protected final AckCollector        ack_collector=new AckCollector();
 
+    /** The id of the view for which VIEW_ACKs are collected by ack_collector; acks for other views are dropped */
+    protected volatile ViewId           ack_view_id;
+
     //[JGRP-700] - FLUSH: flushing should span merge
     protected final AckCollector        merge_ack_collector=new AckCollector();
 
@@ -200,6 +226,13 @@ public class GMS extends Protocol implements DiagnosticsHandler.ProbeHandler {
     public GMS leaveTimeout(long timeout) {this.leave_timeout=timeout; return this;}
     public long getMergeTimeout() {return merge_timeout;}
     public GMS setMergeTimeout(long timeout) {merge_timeout=timeout; return this;}
+    public double getMergeQuorum() {return merge_quorum;}
+    public GMS setMergeQuorum(double q) {
+        if(q <= 0 || q > 1)
+            throw new IllegalArgumentException("merge_quorum has to be in range (0-1]: " + q);
+        merge_quorum=q;
+        return this;
+    }
     public long getMaxJoinAttempts() {return max_join_attempts;}
     public GMS setMaxJoinAttempts(long t) {max_join_attempts=t; return this;}
 
@@ -233,6 +266,24 @@ public class GMS extends Protocol implements DiagnosticsHandler.ProbeHandler {
     @ManagedAttribute(description="Is a merge currently running")
     public boolean isMergeInProgress() {return merger.isMergeInProgress();}
 
+    @ManagedAttribute(description="Progress of the merge currently run by this member as merge leader")
+    public String getMergeProgress() {return merger.getMergeProgress();}
+
+    @ManagedAttribute(description="Number of merges completed by this member as merge leader")
+    public int getNumMerges() {return merger.getNumMerges();}
+
+    @ManagedAttribute(description="Number of merges cancelled by this member as merge leader")
+    public int getNumMergesCancelled() {return merger.getNumMergesCancelled();}
+
+    @ManagedAttribute(description="Number of merges which were completed without responses from all subgroups")
+    public int getNumPartialMerges() {return merger.getNumPartialMerges();}
+
+    @ManagedAttribute(description="Time (ms) of the merges completed by this member as merge leader")
+    public String getMergeTimes() {return merger.getMergeTimes().toString();}
+
+    @ManagedAttribute(description="Time (ms) to collect the MERGE_RSPs from all subgroup coordinators")
+    public String getMergeResponseTimes() {return merger.getMergeResponseTimes().toString();}
+
     /** Only used for internal testing, don't use this method ! */
     public Merger getMerger() {return merger;}
 
@@ -276,6 +327,23 @@ public class GMS extends Protocol implements DiagnosticsHandler.ProbeHandler {
         return this;
     }
 
+    public double getViewAckQuorum() {return view_ack_quorum;}
+
+    public GMS setViewAckQuorum(double q) {
+        if(q <= 0 || q > 1)
+            throw new IllegalArgumentException("view_ack_quorum has to be in range (0-1]: " + q);
+        view_ack_quorum=q;
+        return this;
+    }
+
+    public long getJoinCoalescingTime()           {return join_coalescing_time;}
+    public GMS  setJoinCoalescingTime(long t)     {join_coalescing_time=t; configureViewHandler(); return this;}
+    public long getMaxJoinCoalescingTime()        {return max_join_coalescing_time;}
+    public GMS  setMaxJoinCoalescingTime(long t)  {max_join_coalescing_time=t; configureViewHandler(); return this;}
+
+    @ManagedAttribute(description="Number of times JOIN requests were coalesced")
+    public int getNumCoalescedJoins() {return view_handler.numCoalesced();}
+
     @ManagedAttribute
     public int getViewHandlerSize() {return view_handler.size();}
     @ManagedAttribute
@@ -332,8 +400,10 @@ public class GMS extends Protocol implements DiagnosticsHandler.ProbeHandler {
 
     public void resetStats() {
         super.resetStats();
-        num_views=0;
+        num_views=num_view_ack_quorums=0;
         prev_views.clear();
+        if(merger != null)
+            merger.resetStats();
     }
 
 
@@ -365,6 +435,14 @@ public class GMS extends Protocol implements DiagnosticsHandler.ProbeHandler {
             throw new IllegalArgumentException("view_ack_collection_timeout has to be greater than 0");
         if(merge_timeout <= 0)
             throw new IllegalArgumentException("merge_timeout has to be greater than 0");
+        if(merge_quorum <= 0 || merge_quorum > 1)
+            throw new IllegalArgumentException("merge_quorum has to be in range (0-1]: " + merge_quorum);
+        if(view_ack_quorum <= 0 || view_ack_quorum > 1)
+            throw new IllegalArgumentException("view_ack_quorum has to be in range (0-1]: " + view_ack_quorum);
+        if(join_coalescing_time > 0 && max_join_coalescing_time >= join_timeout)
+            log.warn("%s: max_join_coalescing_time (%d) should be less than join_timeout (%d)",
+                     local_addr, max_join_coalescing_time, join_timeout);
+        configureViewHandler();
         prev_members=new BoundedList<>(num_prev_mbrs);
         prev_views=new BoundedList<>(num_prev_views);
         TP transport=getTransport();
@@ -575,7 +653,10 @@ public class GMS extends Protocol implements DiagnosticsHandler.ProbeHandler {
         if(new_view instanceof MergeView) // https://issues.jboss.org/browse/JGRP-1484
             view_change_msg.setFlag(Message.Flag.NO_TOTAL_ORDER);
 
+        ack_view_id=new_view.getViewId();
         ack_collector.reset(expected_acks, local_addr); // exclude self, as we'll install the view locally
+        if(view_ack_quorum < 1.0 && !(new_view instanceof MergeView))
+            ack_collector.quorum((int)Math.ceil(ack_collector.expectedAcks() * view_ack_quorum));
         long start=System.currentTimeMillis();
         impl.handleViewChange(full_view, digest); // install the view locally first
         log.trace("%s: mcasting view %s", local_addr, new_view);
@@ -584,8 +665,16 @@ public class GMS extends Protocol implements DiagnosticsHandler.ProbeHandler {
         try {
             if(ack_collector.size() > 0) {
                 ack_collector.waitForAllAcks(view_ack_collection_timeout);
-                log.trace("%s: got all ACKs (%d) for view %s in %d ms",
-                          local_addr, ack_collector.expectedAcks(), new_view.getViewId(), System.currentTimeMillis()-start);
+                int missing=ack_collector.size();
+                if(missing > 0) {
+                    num_view_ack_quorums++;
+                    log.trace("%s: got quorum of ACKs (%d/%d) for view %s in %d ms, not waiting for %s",
+                              local_addr, ack_collector.received(), ack_collector.expectedAcks(), new_view.getViewId(),
+                              System.currentTimeMillis()-start, ack_collector.printMissing());
+                }
+                else
+                    log.trace("%s: got all ACKs (%d) for view %s in %d ms",
+                              local_addr, ack_collector.expectedAcks(), new_view.getViewId(), System.currentTimeMillis()-start);
             }
         }
         catch(TimeoutException e) {
@@ -598,6 +687,11 @@ public class GMS extends Protocol implements DiagnosticsHandler.ProbeHandler {
 
 
 
+    protected void configureViewHandler() {
+        view_handler.coalesce(join_coalescing_time > 0? r -> r.type == Request.JOIN : null,
+                              join_coalescing_time, max_join_coalescing_time);
+    }
+
     protected void sendJoinResponses(JoinRsp jr, Collection<Address> joiners) {
         if(jr == null || joiners == null || joiners.isEmpty())
             return;
@@ -895,17 +989,23 @@ public class GMS extends Protocol implements DiagnosticsHandler.ProbeHandler {
                 }
                 Address coord=msg.getSrc();
                 if(!new_view.containsMember(coord)) {
-                    sendViewAck(coord); // we need to send the ack first, otherwise the connection is removed
+                    sendViewAck(coord, new_view.getViewId()); // we need to send the ack first, otherwise the connection is removed
                     impl.handleViewChange(new_view, tuple.getVal2());
                 }
                 else {
                     impl.handleViewChange(new_view, tuple.getVal2());
-                    sendViewAck(coord); // send VIEW_ACK to sender of view
+                    sendViewAck(coord, new_view.getViewId()); // send VIEW_ACK to sender of view
                 }
                 break;
 
             case GmsHeader.VIEW_ACK:
                 Address sender=msg.getSrc();
+                ViewId acked_view=hdr.getViewId(), expected=ack_view_id;
+                // drop late acks for a previous view; acks without a view-id (from older members) are accepted
+                if(acked_view != null && expected != null && !acked_view.equals(expected)) {
+                    log.trace("%s: dropping VIEW_ACK from %s for %s (expected %s)", local_addr, sender, acked_view, expected);
+                    return null;
+                }
                 ack_collector.ack(sender);
                 return null; // don't pass further up
 
@@ -1094,9 +1194,9 @@ public class GMS extends Protocol implements DiagnosticsHandler.ProbeHandler {
     }
 
 
-    protected void sendViewAck(Address dest) {
+    protected void sendViewAck(Address dest, ViewId view_id) {
         Message view_ack=new Message(dest).setFlag(OOB, INTERNAL)
-          .putHeader(this.id, new GmsHeader(GmsHeader.VIEW_ACK));
+          .putHeader(this.id, new GmsHeader(GmsHeader.VIEW_ACK).viewId(view_id));
         down_prot.down(view_ack);
     }
 
@@ -1361,6 +1461,7 @@ public class GMS extends Protocol implements DiagnosticsHandler.ProbeHandler {
         public static final short MERGE_ID_PRESENT = 1 << 2;
         public static final short USE_FLUSH        = 1 << 3;
         public static final short MERGE_REJECTED   = 1 << 4;
+        public static final short VIEW_ID_PRESENT  = 1 << 5;
 
 
         protected byte    type;
@@ -1368,6 +1469,7 @@ public class GMS extends Protocol implements DiagnosticsHandler.ProbeHandler {
         protected MergeId merge_id;             // used when type=MERGE_REQ or MERGE_RSP or INSTALL_MERGE_VIEW or CANCEL_MERGE
         protected boolean useFlushIfPresent;    // used when type=JOIN_REQ
         protected boolean merge_rejected=false; // used when type=MERGE_RSP
+        protected ViewId  view_id;              // used when type=VIEW_ACK: the view which is acked
 
 
         public GmsHeader() { // used for Externalization
@@ -1399,6 +1501,8 @@ public class GMS extends Protocol implements DiagnosticsHandler.ProbeHandler {
         public void      setMergeId(MergeId merge_id)             {this.merge_id=merge_id;}
         public boolean   isMergeRejected()                        {return merge_rejected;}
         public GmsHeader setMergeRejected(boolean merge_rejected) {this.merge_rejected=merge_rejected; return this;}
+        public ViewId    getViewId()                              {return view_id;}
+        public GmsHeader viewId(ViewId view_id)                   {this.view_id=view_id; return this;}
 
         public Supplier<? extends Header> create() {return GmsHeader::new;}
 
@@ -1410,6 +1514,8 @@ public class GMS extends Protocol implements DiagnosticsHandler.ProbeHandler {
             Util.writeAddress(mbr, out);
             if(merge_id != null)
                 merge_id.writeTo(out);
+            if(view_id != null)
+                view_id.writeTo(out);
         }
 
         @Override
@@ -1421,6 +1527,10 @@ public class GMS extends Protocol implements DiagnosticsHandler.ProbeHandler {
                 merge_id=new MergeId();
                 merge_id.readFrom(in);
             }
+            if((flags & VIEW_ID_PRESENT) == VIEW_ID_PRESENT) {
+                view_id=new ViewId();
+                view_id.readFrom(in);
+            }
             merge_rejected=(flags & MERGE_REJECTED) == MERGE_REJECTED;
             useFlushIfPresent=(flags & USE_FLUSH) == USE_FLUSH;
         }
@@ -1432,6 +1542,8 @@ public class GMS extends Protocol implements DiagnosticsHandler.ProbeHandler {
               + Util.size(mbr);
             if(merge_id != null)
                 retval+=merge_id.size();
+            if(view_id != null)
+                retval+=view_id.serializedSize();
             return retval;
         }
 
@@ -1440,6 +1552,7 @@ public class GMS extends Protocol implements DiagnosticsHandler.ProbeHandler {
             if(merge_id != null)  retval|=MERGE_ID_PRESENT;
             if(useFlushIfPresent) retval|=USE_FLUSH;
             if(merge_rejected)    retval|=MERGE_REJECTED;
+            if(view_id != null)   retval|=VIEW_ID_PRESENT;
             return retval;
         }
 
@@ -1462,6 +1575,9 @@ public class GMS extends Protocol implements DiagnosticsHandler.ProbeHandler {
                 case CANCEL_MERGE:
                     sb.append(", merge_id=" + merge_id);
                     break;
+                case VIEW_ACK:
+                    if(view_id != null) sb.append(": view_id=" + view_id);
+                    break;
             }
             return sb.toString();
         }
@@ -11,7 +11,11 @@ import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
 /**
- * Handles merging. Called by CoordGmsImpl and ParticipantGmsImpl
+ * Handles merging. Called by CoordGmsImpl and ParticipantGmsImpl.<p/>
+ * The merge leader sends MERGE_REQs to all subgroup coordinators in parallel; each subgroup coordinator in turn
+ * fetches the digests of its members in parallel. If {@link GMS#merge_quorum} is less than 1, the leader installs
+ * the MergeView as soon as the responses received cover merge_quorum of all members; the remaining subgroups are sent
+ * a CANCEL_MERGE and will be merged in a subsequent merge.
  * @author Bela Ban
  */
 public class Merger {
@@ -32,6 +36,11 @@ public class Merger {
 
     protected Future<?>                          merge_killer=null;
 
+    // stats (only maintained by the merge leader)
+    protected int                                num_merges, num_merges_cancelled, num_partial_merges;
+    protected final AverageMinMax                merge_times=new AverageMinMax(); // ms
+    protected final AverageMinMax                merge_rsp_times=new AverageMinMax(); // ms
+
 
 
     public Merger(GMS gms) {
@@ -46,6 +55,29 @@ public class Merger {
     public synchronized MergeId getMergeId()               {return merge_id;} // only used for testing; do not use
     public synchronized boolean isMergeInProgress()        {return merge_id != null;}
     public synchronized boolean matchMergeId(MergeId id)   {return Util.match(this.merge_id, id);}
+    public int                  getNumMerges()             {return num_merges;}
+    public int                  getNumMergesCancelled()    {return num_merges_cancelled;}
+    public int                  getNumPartialMerges()      {return num_partial_merges;}
+    public AverageMinMax        getMergeTimes()            {return merge_times;}
+    public AverageMinMax        getMergeResponseTimes()    {return merge_rsp_times;}
+
+    /** Returns the number of MERGE_RSPs received so far if this member is running a merge as leader */
+    public String getMergeProgress() {
+        if(!merge_task.isRunning())
+            return "n/a";
+        return String.format("%d/%d merge responses (%s)", merge_rsps.numberOfValidResponses(), merge_rsps.size(),
+                             merge_id);
+    }
+
+    public void resetStats() {
+        num_merges=num_merges_cancelled=num_partial_merges=0;
+        synchronized(merge_times) {
+            merge_times.clear();
+        }
+        synchronized(merge_rsp_times) {
+            merge_rsp_times.clear();
+        }
+    }
 
 
     public synchronized boolean setMergeId(MergeId expected, MergeId new_value) {
@@ -521,9 +553,10 @@ public class Merger {
             final Collection<Address> coordsCopy=new ArrayList<>(coords.keySet());
 
             long start=System.currentTimeMillis();
+            boolean success=false;
 
             try {
-               _run(new_merge_id, coordsCopy); // might remove members from coordsCopy
+               success=_run(new_merge_id, coordsCopy); // might remove members from coordsCopy
             }
             catch(Throwable ex) {
                 if(ex instanceof Error || ex instanceof RuntimeException)
@@ -532,6 +565,7 @@ public class Merger {
                     log.warn("%s: merge is cancelled: %s", gms.local_addr, ex.getMessage());
                 sendMergeCancelledMessage(coordsCopy, new_merge_id);
                 cancelMerge(new_merge_id); // the message above cancels the merge, too, but this is a 2nd line of defense
+                num_merges_cancelled++;
             }
             finally {
                 /* 5. if flush is in stack stop the flush for entire cluster [JGRP-700] - FLUSH: flushing should span merge */
@@ -540,15 +574,21 @@ public class Merger {
                 thread=null;
             }
             long diff=System.currentTimeMillis() - start;
+            if(success) {
+                num_merges++;
+                synchronized(merge_times) {
+                    merge_times.add(diff);
+                }
+            }
             log.debug("%s: merge %s took %d ms", gms.local_addr, new_merge_id, diff);
         }
 
-        /** Runs the merge protocol as a leader */
-        protected void _run(MergeId new_merge_id, final Collection<Address> coordsCopy) throws Exception {
+        /** Runs the merge protocol as a leader. Returns true if a MergeView was sent, false otherwise */
+        protected boolean _run(MergeId new_merge_id, final Collection<Address> coordsCopy) throws Exception {
             boolean success=setMergeId(null, new_merge_id);
             if(!success) {
                 log.warn("%s: failed to set my own merge_id (%s) to %s", gms.local_addr, merge_id, new_merge_id);
-                return;
+                return false;
             }
 
             log.debug("%s: merge task %s started with %d participants", gms.local_addr, merge_id, coords.keySet().size());
@@ -567,8 +607,11 @@ public class Merger {
             // Remove null or rejected merge responses from merge_rsp and coords (so we'll send the new view
             // only to members who accepted the merge request)
             if(missing != null && !missing.isEmpty()) {
+                num_partial_merges++;
                 coords.keySet().removeAll(missing);
                 coordsCopy.removeAll(missing);
+                // the missing coords might still respond (e.g. if we returned early on merge_quorum): cancel their merge
+                sendMergeCancelledMessage(missing, new_merge_id);
             }
 
             removeRejectedMergeRequests(coords.keySet());
@@ -589,13 +632,15 @@ public class Merger {
             log.debug("%s: installing merge view %s (%d members) in %d coords",
                       gms.local_addr, combined_merge_data.view.getViewId(), combined_merge_data.view.size(), coords.keySet().size());
             sendMergeView(coords.keySet(), combined_merge_data, new_merge_id);
+            return true;
         }
 
 
 
         /**
          * Sends a MERGE_REQ to all coords and populates a list of MergeData (in merge_rsps). Returns after coords.size()
-         * response have been received, or timeout msecs have elapsed (whichever is first).<p>
+         * response have been received, or timeout msecs have elapsed (whichever is first). If merge_quorum is less than
+         * 1, returns as soon as the responses received cover merge_quorum of all members (including our own response).<p>
          * If a subgroup coordinator rejects the MERGE_REQ (e.g. because of participation in a different merge),
          * <em>that member will be removed from coords !</em>
          * @param coords A map of coordinatgor addresses and associated membership lists
@@ -617,15 +662,37 @@ public class Merger {
                 gms.getDownProtocol().down(msg);
             }
 
-            // wait until num_rsps_expected >= num_rsps or timeout elapsed
-            merge_rsps.waitForAllResponses(timeout);
+            // wait until num_rsps_expected >= num_rsps (or the quorum has been reached) or timeout elapsed
+            if(gms.merge_quorum < 1.0) {
+                Set<Address> all_mbrs=new HashSet<>();
+                coords.values().forEach(all_mbrs::addAll);
+                int quorum=(int)Math.ceil(all_mbrs.size() * gms.merge_quorum);
+                merge_rsps.waitForResponses(rsps -> rsps.contains(gms.local_addr)
+                  && numMembersCovered(coords, rsps) >= quorum, timeout);
+            }
+            else
+                merge_rsps.waitForAllResponses(timeout);
             gotAllResponses=merge_rsps.hasAllResponses();
             long time=System.currentTimeMillis() - start;
+            synchronized(merge_rsp_times) {
+                merge_rsp_times.add(time);
+            }
             log.trace("%s: collected %d merge response(s) in %d ms", gms.local_addr, merge_rsps.numberOfValidResponses(), time);
             return gotAllResponses;
         }
 
 
+        /** Returns the number of distinct members in the subgroups of the given coordinators */
+        protected int numMembersCovered(Map<Address,Collection<Address>> coords, Collection<Address> responders) {
+            Set<Address> covered=new HashSet<>();
+            for(Address responder: responders) {
+                Collection<Address> mbrs=coords.get(responder);
+                if(mbrs != null)
+                    covered.addAll(mbrs);
+            }
+            return covered.size();
+        }
+
         /** Removed rejected merge requests from merge_rsps and coords. This method has a lock on merge_rsps */
         protected void removeRejectedMergeRequests(Collection<Address> coords) {
             int num_removed=0;
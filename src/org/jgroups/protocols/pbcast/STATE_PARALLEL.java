@@ -0,0 +1,988 @@
+package org.jgroups.protocols.pbcast;
+
+import org.jgroups.*;
+import org.jgroups.annotations.MBean;
+import org.jgroups.annotations.ManagedAttribute;
+import org.jgroups.annotations.Property;
+import org.jgroups.stack.Protocol;
+import org.jgroups.stack.StateTransferInfo;
+import org.jgroups.util.*;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+
+/**
+ * State transfer protocol which fetches the state in segments, in parallel from multiple members (donors).
+ * <p/>
+ * The application registers a {@link SegmentedState} with {@link #setSegmentedState(SegmentedState)} on every
+ * member. The state requester asks the state provider (by default the coordinator) for its digest and the number of
+ * segments, and then requests segments from up to {@link #max_donors} members, one segment per donor at a time.
+ * A donor streams a segment in chunks of {@link #chunk_size} bytes, each carrying a CRC32 checksum. A segment is
+ * only set in the application when all of its chunks have been received and verified.
+ * <p/>
+ * If a chunk is corrupt, a donor fails or leaves, or doesn't send data for {@link #segment_timeout} ms, its
+ * segment is requested again (from a different donor if available). Segments which have already been set are not
+ * fetched again, so the transfer resumes where it left off.
+ * <p/>
+ * Every donor fetches its digest (with the barrier closed) before generating a segment and sends it with the segment,
+ * so a segment reflects at least all messages in the donor's digest. When all segments have been received, the
+ * requester installs the lowest seqno (per member) of all segment digests, so no update is lost. However, a donor may
+ * have been ahead of others, so messages already reflected in its segments may be delivered again: like with the
+ * other state transfer protocols, updates to the state need to be idempotent.
+ * @since  4.1.2
+ */
+@MBean(description="Parallel state transfer of segmented state from multiple members")
+public class STATE_PARALLEL extends Protocol {
+
+    /* ----------------------------------------------Properties ----------------------------------- */
+    @Property(description="Max number of members from which segments are fetched in parallel")
+    protected int  max_donors=3;
+
+    @Property(description="Size (in bytes) of the chunks in which a segment is sent")
+    protected int  chunk_size=64 * 1024;
+
+    @Property(description="Time (ms) without data for a segment after which the segment is requested from a " +
+      "different donor")
+    protected long segment_timeout=10000;
+
+    @Property(description="Max number of times a segment is requested before the state transfer fails")
+    protected int  max_segment_attempts=3;
+
+    @Property(description="Maximum number of pool threads serving segment requests")
+    protected int  max_pool=5;
+
+    @Property(description="Keep alive for pool threads serving segment requests")
+    protected long pool_thread_keep_alive=(long) 20 * 1000;
+
+
+    /* --------------------------------------------- JMX statistics ------------------------------- */
+    protected final LongAdder num_segments_sent=new LongAdder();
+    protected final LongAdder num_bytes_sent=new LongAdder();
+    protected final LongAdder num_segments_received=new LongAdder();
+    protected final LongAdder num_bytes_received=new LongAdder();
+    protected final LongAdder num_checksum_failures=new LongAdder();
+    protected final LongAdder num_segment_retries=new LongAdder();
+
+
+    /* --------------------------------------------- Fields --------------------------------------- */
+    protected Address                  local_addr;
+    protected volatile List<Address>   members=Collections.emptyList();
+    protected volatile boolean         flushProtocolInStack;
+    protected volatile SegmentedState  segmented_state;
+    protected TimeScheduler            timer;
+    protected ThreadPoolExecutor       thread_pool;
+
+    /** The current state transfer (on the state requester), null if none is in progress */
+    protected volatile Transfer        transfer;
+
+    /** Members to which we provided a digest and for which STABLE is suspended (on the state provider) */
+    protected final Set<Address>       requesters=new ConcurrentSkipListSet<>();
+
+    /** Serializes closing the barrier, fetching the digest and opening the barrier (on providers and donors) */
+    protected final Lock               digest_lock=new ReentrantLock();
+
+
+    @ManagedAttribute public long getNumSegmentsSent()       {return num_segments_sent.sum();}
+    @ManagedAttribute public long getNumBytesSent()          {return num_bytes_sent.sum();}
+    @ManagedAttribute public long getNumSegmentsReceived()   {return num_segments_received.sum();}
+    @ManagedAttribute public long getNumBytesReceived()      {return num_bytes_received.sum();}
+    @ManagedAttribute public long getNumChecksumFailures()   {return num_checksum_failures.sum();}
+    @ManagedAttribute public long getNumSegmentRetries()     {return num_segment_retries.sum();}
+
+    @ManagedAttribute(description="Progress of the current state transfer")
+    public String getTransferProgress() {
+        Transfer t=transfer;
+        return t != null? t.toString() : "n/a";
+    }
+
+    public SegmentedState  getSegmentedState()                  {return segmented_state;}
+    public STATE_PARALLEL  setSegmentedState(SegmentedState s)  {this.segmented_state=s; return this;}
+    public int             maxDonors()                          {return max_donors;}
+    public STATE_PARALLEL  maxDonors(int d)                     {this.max_donors=d; return this;}
+    public int             chunkSize()                          {return chunk_size;}
+    public STATE_PARALLEL  chunkSize(int s)                     {this.chunk_size=s; return this;}
+    public long            segmentTimeout()                     {return segment_timeout;}
+    public STATE_PARALLEL  segmentTimeout(long t)               {this.segment_timeout=t; return this;}
+
+    public List<Integer> requiredDownServices() {
+        return Arrays.asList(Event.GET_DIGEST, Event.OVERWRITE_DIGEST);
+    }
+
+    public void resetStats() {
+        super.resetStats();
+        for(LongAdder a: Arrays.asList(num_segments_sent, num_bytes_sent, num_segments_received, num_bytes_received,
+                                       num_checksum_failures, num_segment_retries))
+            a.reset();
+    }
+
+    public void init() throws Exception {
+        super.init();
+        if(max_donors < 1)
+            throw new IllegalArgumentException("max_donors has to be >= 1");
+        if(chunk_size <= 0)
+            throw new IllegalArgumentException("chunk_size has to be > 0");
+        if(max_segment_attempts < 1)
+            throw new IllegalArgumentException("max_segment_attempts has to be >= 1");
+        thread_pool=createThreadPool();
+    }
+
+    public void destroy() {
+        thread_pool.shutdown();
+        super.destroy();
+    }
+
+    public void start() throws Exception {
+        super.start();
+        timer=getTransport().getTimer();
+        Map<String,Object> map=new HashMap<>();
+        map.put("state_transfer", true);
+        map.put("protocol_class", getClass().getName());
+        up_prot.up(new Event(Event.CONFIG, map));
+    }
+
+    public void stop() {
+        super.stop();
+        Transfer t=transfer;
+        if(t != null)
+            t.abort(new IllegalStateException(local_addr + " was stopped"));
+    }
+
+    public Object down(Event evt) {
+        switch(evt.getType()) {
+            case Event.VIEW_CHANGE:
+                handleViewChange(evt.getArg());
+                break;
+
+            case Event.GET_STATE:
+                StateTransferInfo info=evt.getArg();
+                Address target=info.target;
+                if(Objects.equals(target, local_addr)) {
+                    log.error("%s: cannot fetch state from myself", local_addr);
+                    target=null;
+                }
+                if(target == null)
+                    target=determineCoordinator();
+                if(target == null) {
+                    log.debug("%s: first member (no state)", local_addr);
+                    up_prot.up(new Event(Event.STATE_TRANSFER_INPUTSTREAM_CLOSED, new StateTransferResult()));
+                }
+                else {
+                    Message state_req=new Message(target).putHeader(this.id, new SegmentHeader(SegmentHeader.STATE_REQ))
+                      .setFlag(Message.Flag.SKIP_BARRIER, Message.Flag.DONT_BUNDLE, Message.Flag.OOB);
+                    log.debug("%s: asking %s for digest and number of segments", local_addr, target);
+                    down_prot.down(state_req);
+                }
+                return null; // don't pass down any further !
+
+            case Event.CONFIG:
+                handleConfig(evt.getArg());
+                break;
+
+            case Event.SET_LOCAL_ADDRESS:
+                local_addr=evt.getArg();
+                break;
+        }
+        return down_prot.down(evt);
+    }
+
+    public Object up(Event evt) {
+        switch(evt.getType()) {
+            case Event.TMP_VIEW:
+            case Event.VIEW_CHANGE:
+                handleViewChange(evt.getArg());
+                break;
+            case Event.CONFIG:
+                handleConfig(evt.getArg());
+                break;
+        }
+        return up_prot.up(evt);
+    }
+
+    public Object up(Message msg) {
+        SegmentHeader hdr=msg.getHeader(this.id);
+        if(hdr == null)
+            return up_prot.up(msg);
+        Address sender=msg.getSrc();
+        Transfer t=transfer;
+        switch(hdr.type) {
+            case SegmentHeader.STATE_REQ:
+                handleStateReq(sender);
+                break;
+            case SegmentHeader.STATE_RSP:
+                handleStateRsp(sender, hdr);
+                break;
+            case SegmentHeader.STATE_DONE:
+                handleStateDone(sender);
+                break;
+            case SegmentHeader.STATE_EX:
+                handleException(readException(msg));
+                break;
+            case SegmentHeader.SEGMENT_REQ:
+                thread_pool.execute(() -> sendSegment(sender, hdr.segment));
+                break;
+            case SegmentHeader.SEGMENT_DATA:
+                if(t != null)
+                    t.chunkReceived(sender, hdr, msg.getRawBuffer(), msg.getOffset(), msg.getLength());
+                break;
+            case SegmentHeader.SEGMENT_EOF:
+                if(t != null)
+                    t.segmentReceived(sender, hdr);
+                break;
+            case SegmentHeader.SEGMENT_EX:
+                if(t != null)
+                    t.segmentFailed(sender, hdr.segment, readException(msg));
+                break;
+            default:
+                log.error("%s: type %d not known in SegmentHeader", local_addr, hdr.type);
+                break;
+        }
+        return null;
+    }
+
+
+    /* --------------------------- State provider ------------------------------------------------ */
+
+    /** Sends the digest and the number of segments to the state requester */
+    protected void handleStateReq(Address requester) {
+        log.debug("%s: received state request from %s", local_addr, requester);
+        SegmentedState state=segmented_state;
+        if(state == null) {
+            sendException(requester, new IllegalStateException(local_addr + ": no SegmentedState registered"));
+            return;
+        }
+        Digest digest=null;
+        if(isDigestNeeded()) {
+            digest_lock.lock();
+            try {
+                punchHoleFor(requester);
+                closeBarrierAndSuspendStable();
+                requesters.add(requester);
+                digest=(Digest)down_prot.down(Event.GET_DIGEST_EVT);
+            }
+            catch(Throwable t) {
+                sendException(requester, t);
+                handleStateDone(requester);
+                return;
+            }
+            finally {
+                openBarrier();
+                digest_lock.unlock();
+            }
+        }
+        SegmentHeader hdr=new SegmentHeader(SegmentHeader.STATE_RSP).digest(digest).numSegments(state.numSegments());
+        down_prot.down(new Message(requester).putHeader(this.id, hdr));
+    }
+
+    /** The requester is done (or failed): resume STABLE which was suspended when the digest was fetched */
+    protected void handleStateDone(Address requester) {
+        if(requesters.remove(requester) && isDigestNeeded()) {
+            resumeStable();
+            closeHoleFor(requester);
+        }
+    }
+
+    /**
+     * Invoked on a donor: streams the given segment to the requester in chunks. The donor's digest is fetched before
+     * the segment is generated and sent with the last message of the segment
+     */
+    protected void sendSegment(Address requester, int segment) {
+        SegmentedState state=segmented_state;
+        try {
+            if(state == null)
+                throw new IllegalStateException(local_addr + ": no SegmentedState registered");
+            log.trace("%s: sending segment %d to %s", local_addr, segment, requester);
+            SegmentOutputStream out=new SegmentOutputStream(requester, segment).digest(getDigest());
+            state.getSegment(segment, out);
+            out.close(); // sends the EOF; not done in a finally clause, as a failed segment must not be sent as complete
+            num_segments_sent.increment();
+        }
+        catch(Throwable t) {
+            log.warn("%s: failed sending segment %d to %s: %s", local_addr, segment, requester, t);
+            try {
+                Message ex_msg=new Message(requester).setBuffer(Util.exceptionToBuffer(t))
+                  .putHeader(id, new SegmentHeader(SegmentHeader.SEGMENT_EX).segment(segment));
+                down_prot.down(ex_msg);
+            }
+            catch(Throwable ex) {
+                log.error("%s: failed sending exception %s to %s", local_addr, t, requester);
+            }
+        }
+    }
+
+
+    /**
+     * Returns the digest after closing the barrier, so that all messages in the digest have been delivered to the
+     * application when this method returns. Returns null if no digest is needed (e.g. FLUSH is used)
+     */
+    protected Digest getDigest() throws Exception {
+        if(!isDigestNeeded())
+            return null;
+        digest_lock.lock(); // concurrent callers must not open the barrier closed by another caller
+        try {
+            down_prot.down(new Event(Event.CLOSE_BARRIER));
+            return (Digest)down_prot.down(Event.GET_DIGEST_EVT);
+        }
+        finally {
+            openBarrier();
+            digest_lock.unlock();
+        }
+    }
+
+
+    /* --------------------------- State requester ----------------------------------------------- */
+
+    protected void handleStateRsp(Address provider, SegmentHeader hdr) {
+        List<Address> donors=pickDonors(provider, Collections.emptySet());
+        if(isDigestNeeded()) {
+            try {
+                donors.forEach(this::punchHoleFor);
+                closeBarrierAndSuspendStable();
+                down_prot.down(new Event(Event.OVERWRITE_DIGEST, hdr.digest));
+            }
+            catch(Throwable t) {
+                openBarrierAndResumeStable();
+                donors.forEach(this::closeHoleFor);
+                sendStateDone(provider);
+                handleException(t);
+                return;
+            }
+        }
+        Transfer t=transfer=new Transfer(provider, hdr.num_segments, donors, hdr.digest);
+        log.debug("%s: fetching %d segments from %s", local_addr, hdr.num_segments, donors);
+        t.start();
+    }
+
+    protected void handleException(Throwable ex) {
+        up_prot.up(new Event(Event.STATE_TRANSFER_INPUTSTREAM_CLOSED, new StateTransferResult(ex)));
+    }
+
+    /**
+     * Merges the digests of all segments: for each member of base (the provider's digest), the lowest highest
+     * delivered seqno of all segment digests is picked. As every segment reflects at least the messages of its
+     * digest, installing the merged digest doesn't lose any updates. Members which are not in any segment digest keep
+     * the seqno of base
+     */
+    public static Digest mergeDigests(Digest base, Collection<Digest> segment_digests) {
+        MutableDigest retval=new MutableDigest(base.getMembersRaw());
+        for(Digest.Entry entry: base) {
+            Address mbr=entry.getMember();
+            long hd=-1;
+            for(Digest d: segment_digests) {
+                long[] seqnos=d != null? d.get(mbr) : null;
+                if(seqnos != null && (hd < 0 || seqnos[0] < hd))
+                    hd=seqnos[0];
+            }
+            if(hd < 0)
+                hd=entry.getHighestDeliveredSeqno();
+            retval.set(mbr, hd, hd);
+        }
+        return retval;
+    }
+
+    /** Returns up to max_donors members (excluding ourself and the excluded members), starting with the provider */
+    protected List<Address> pickDonors(Address provider, Collection<Address> excluded) {
+        List<Address> retval=new ArrayList<>(max_donors);
+        List<Address> mbrs=members;
+        if(provider != null && mbrs.contains(provider) && !excluded.contains(provider))
+            retval.add(provider);
+        for(Address mbr: mbrs) {
+            if(retval.size() >= max_donors)
+                break;
+            if(!mbr.equals(local_addr) && !retval.contains(mbr) && !excluded.contains(mbr))
+                retval.add(mbr);
+        }
+        return retval;
+    }
+
+    protected void sendStateDone(Address provider) {
+        down_prot.down(new Message(provider).putHeader(this.id, new SegmentHeader(SegmentHeader.STATE_DONE))
+                         .setFlag(Message.Flag.OOB));
+    }
+
+
+    /* --------------------------- Private Methods ------------------------------------------------ */
+
+    protected boolean isDigestNeeded() {
+        return !flushProtocolInStack;
+    }
+
+    protected void handleConfig(Map<String,Object> config) {
+        if(config != null && config.containsKey("flush_supported"))
+            flushProtocolInStack=true;
+        if(config != null && config.containsKey("state_transfer"))
+            throw new IllegalArgumentException("Protocol stack must have only one state transfer protocol");
+    }
+
+    protected void handleViewChange(View v) {
+        List<Address> mbrs=v.getMembers();
+        members=mbrs;
+        for(Address requester: requesters)
+            if(!mbrs.contains(requester))
+                handleStateDone(requester);
+        Transfer t=transfer;
+        if(t != null)
+            t.viewChanged(mbrs);
+    }
+
+    protected Address determineCoordinator() {
+        for(Address mbr: members)
+            if(!mbr.equals(local_addr))
+                return mbr;
+        return null;
+    }
+
+    protected Throwable readException(Message msg) {
+        try {
+            return Util.exceptionFromBuffer(msg.getRawBuffer(), msg.getOffset(), msg.getLength());
+        }
+        catch(Throwable t) {
+            return t;
+        }
+    }
+
+    protected void sendException(Address requester, Throwable exception) {
+        try {
+            Message ex_msg=new Message(requester).setBuffer(Util.exceptionToBuffer(exception))
+              .putHeader(getId(), new SegmentHeader(SegmentHeader.STATE_EX));
+            down_prot.down(ex_msg);
+        }
+        catch(Throwable t) {
+            log.error("%s: failed sending exception %s to %s", local_addr, exception.toString(), requester);
+        }
+    }
+
+    protected void closeBarrierAndSuspendStable() {
+        down_prot.down(new Event(Event.CLOSE_BARRIER));
+        down_prot.down(new Event(Event.SUSPEND_STABLE));
+    }
+
+    protected void openBarrierAndResumeStable() {
+        openBarrier();
+        resumeStable();
+    }
+
+    protected void openBarrier()                 {down_prot.down(new Event(Event.OPEN_BARRIER));}
+    protected void resumeStable()                {down_prot.down(new Event(Event.RESUME_STABLE));}
+    protected void punchHoleFor(Address member)  {down_prot.down(new Event(Event.PUNCH_HOLE, member));}
+    protected void closeHoleFor(Address member)  {down_prot.down(new Event(Event.CLOSE_HOLE, member));}
+
+    protected ThreadPoolExecutor createThreadPool() {
+        ThreadPoolExecutor pool=new ThreadPoolExecutor(0, max_pool, pool_thread_keep_alive,
+                                                       TimeUnit.MILLISECONDS, new SynchronousQueue<>());
+        AtomicInteger thread_id=new AtomicInteger(1);
+        pool.setRejectedExecutionHandler(new ShutdownRejectedExecutionHandler(new ThreadPoolExecutor.CallerRunsPolicy()));
+        pool.setThreadFactory(r -> getThreadFactory().newThread(r, "STATE_PARALLEL-sender-" + thread_id.getAndIncrement()));
+        return pool;
+    }
+
+
+    /**
+     * A state transfer in progress on the state requester. Keeps track of the segments still to be fetched, the
+     * segment currently fetched from each donor and the segments which have been set in the application
+     */
+    protected class Transfer {
+        protected final Address              provider;
+        protected final int                  num_segments;
+        protected final List<Address>        donors;
+        protected final Set<Address>         failed_donors=new HashSet<>();
+        protected final Deque<Integer>       pending=new ArrayDeque<>();
+        protected final Map<Address,Segment> in_flight=new HashMap<>(); // donor -> segment fetched from it
+        protected final BitSet               completed;
+        protected final Digest               provider_digest;
+        protected final Digest[]             digests; // the donor's digest for each segment which has been set
+        protected final int[]                attempts;
+        protected Future<?>                  timeout_checker;
+        protected boolean                    done;
+
+        protected Transfer(Address provider, int num_segments, List<Address> donors, Digest provider_digest) {
+            this.provider=provider;
+            this.provider_digest=provider_digest;
+            this.digests=new Digest[num_segments];
+            this.num_segments=num_segments;
+            this.donors=new ArrayList<>(donors);
+            this.completed=new BitSet(num_segments);
+            this.attempts=new int[num_segments];
+            for(int i=0; i < num_segments; i++)
+                pending.add(i);
+        }
+
+        protected void start() {
+            List<Tuple<Address,Integer>> reqs;
+            synchronized(this) {
+                if(num_segments == 0 || donors.isEmpty()) {
+                    reqs=null;
+                }
+                else {
+                    long interval=Math.max(segment_timeout / 2, 10);
+                    timeout_checker=timer.scheduleWithFixedDelay(this::checkTimeouts, interval, interval, TimeUnit.MILLISECONDS, false);
+                    reqs=assignSegments();
+                }
+            }
+            if(num_segments == 0)
+                finish(null);
+            else if(reqs == null)
+                finish(new EOFException("no donors available for state transfer"));
+            else
+                sendRequests(reqs);
+        }
+
+        /** A chunk of a segment was received: verify and append it */
+        protected void chunkReceived(Address donor, SegmentHeader hdr, byte[] buf, int offset, int length) {
+            List<Tuple<Address,Integer>> reqs=null;
+            synchronized(this) {
+                Segment seg=in_flight.get(donor);
+                if(done || seg == null || seg.id != hdr.segment)
+                    return; // e.g. from a donor whose segment was reassigned
+                CRC32 crc=new CRC32();
+                crc.update(buf, offset, length);
+                if(crc.getValue() != hdr.checksum || hdr.offset != seg.buf.position()) {
+                    num_checksum_failures.increment();
+                    log.warn("%s: chunk of segment %d from %s at offset %d is corrupt or out of order (expected " +
+                               "offset %d), requesting segment again", local_addr, seg.id, donor, hdr.offset, seg.buf.position());
+                    in_flight.remove(donor);
+                    if(!retry(seg.id, donor))
+                        return;
+                    reqs=assignSegments();
+                }
+                else {
+                    seg.buf.write(buf, offset, length);
+                    seg.last_update=System.nanoTime();
+                    num_bytes_received.add(length);
+                }
+            }
+            if(reqs != null)
+                sendRequests(reqs);
+        }
+
+        /** A segment was received completely: set it in the application and request the next segment */
+        protected void segmentReceived(Address donor, SegmentHeader hdr) {
+            Segment seg;
+            synchronized(this) {
+                seg=in_flight.get(donor);
+                if(done || seg == null || seg.id != hdr.segment)
+                    return;
+                if(hdr.offset != seg.buf.position()) {
+                    log.warn("%s: segment %d from %s has %d bytes, but %d were sent; requesting it again",
+                             local_addr, seg.id, donor, seg.buf.position(), hdr.offset);
+                    num_checksum_failures.increment();
+                    in_flight.remove(donor);
+                    if(retry(seg.id, donor))
+                        seg=null;
+                    else
+                        return;
+                }
+            }
+            if(seg != null) {
+                try {
+                    segmented_state.setSegment(seg.id, new ByteArrayInputStream(seg.buf.buffer(), 0, seg.buf.position()));
+                    num_segments_received.increment();
+                }
+                catch(Throwable t) {
+                    abort(t);
+                    return;
+                }
+            }
+            List<Tuple<Address,Integer>> reqs;
+            boolean all_done;
+            synchronized(this) {
+                if(done)
+                    return;
+                if(seg != null) {
+                    in_flight.remove(donor);
+                    completed.set(seg.id);
+                    digests[seg.id]=hdr.digest;
+                    log.trace("%s: set segment %d (%d bytes) from %s (%d/%d)",
+                              local_addr, seg.id, seg.buf.position(), donor, completed.cardinality(), num_segments);
+                }
+                all_done=completed.cardinality() == num_segments;
+                reqs=all_done? null : assignSegments();
+            }
+            if(all_done)
+                finish(null);
+            else
+                sendRequests(reqs);
+        }
+
+        /** A donor failed to provide a segment: request it again, excluding the donor */
+        protected void segmentFailed(Address donor, int segment, Throwable ex) {
+            List<Tuple<Address,Integer>> reqs;
+            synchronized(this) {
+                Segment seg=in_flight.get(donor);
+                if(done || seg == null || seg.id != segment)
+                    return;
+                log.warn("%s: donor %s failed providing segment %d: %s", local_addr, donor, segment, ex);
+                in_flight.remove(donor);
+                if(!retry(segment, donor))
+                    return;
+                reqs=assignSegments();
+            }
+            sendRequests(reqs);
+        }
+
+        protected void viewChanged(List<Address> mbrs) {
+            List<Tuple<Address,Integer>> reqs;
+            synchronized(this) {
+                if(done)
+                    return;
+                for(Address donor: new ArrayList<>(donors)) {
+                    if(!mbrs.contains(donor)) {
+                        Segment seg=in_flight.remove(donor);
+                        log.debug("%s: donor %s left%s", local_addr, donor, seg != null? ", requesting segment " + seg.id + " again" : "");
+                        if(seg != null) {
+                            if(!retry(seg.id, donor))
+                                return;
+                        }
+                        else if(!removeDonor(donor))
+                            return;
+                    }
+                }
+                reqs=assignSegments();
+            }
+            sendRequests(reqs);
+        }
+
+        protected void checkTimeouts() {
+            List<Tuple<Address,Integer>> reqs;
+            synchronized(this) {
+                if(done)
+                    return;
+                long now=System.nanoTime();
+                for(Iterator<Map.Entry<Address,Segment>> it=in_flight.entrySet().iterator(); it.hasNext();) {
+                    Map.Entry<Address,Segment> entry=it.next();
+                    Segment seg=entry.getValue();
+                    if(TimeUnit.MILLISECONDS.convert(now - seg.last_update, TimeUnit.NANOSECONDS) < segment_timeout)
+                        continue;
+                    Address donor=entry.getKey();
+                    log.warn("%s: no data for segment %d from %s in %d ms; requesting it again",
+                             local_addr, seg.id, donor, segment_timeout);
+                    it.remove();
+                    if(!retry(seg.id, donor))
+                        return;
+                }
+                reqs=assignSegments();
+            }
+            sendRequests(reqs);
+        }
+
+        /**
+         * Puts the segment back at the head of the pending segments. If donor is non-null, it won't be used anymore.
+         * Aborts the transfer and returns false if the segment has been requested too often or no donors are left.
+         * Needs to be called with the lock held
+         */
+        protected boolean retry(int segment, Address donor) {
+            num_segment_retries.increment();
+            if(donor != null && !removeDonor(donor))
+                return false;
+            if(++attempts[segment] >= max_segment_attempts) {
+                abort(new IllegalStateException(String.format("%s: segment %d could not be fetched after %d attempts",
+                                                              local_addr, segment, attempts[segment])));
+                return false;
+            }
+            pending.addFirst(segment);
+            return true;
+        }
+
+        /**
+         * Removes a donor and replaces it with another member, if available. Aborts the transfer and returns false if
+         * no donors are left. Needs to be called with the lock held
+         */
+        protected boolean removeDonor(Address donor) {
+            donors.remove(donor);
+            failed_donors.add(donor);
+            for(Address mbr: pickDonors(provider, failed_donors)) {
+                if(!donors.contains(mbr) && donors.size() < max_donors) {
+                    if(isDigestNeeded())
+                        punchHoleFor(mbr);
+                    donors.add(mbr);
+                }
+            }
+            if(donors.isEmpty()) {
+                abort(new EOFException(local_addr + ": no donors left for state transfer"));
+                return false;
+            }
+            return true;
+        }
+
+        /** Assigns pending segments to idle donors. Needs to be called with the lock held */
+        protected List<Tuple<Address,Integer>> assignSegments() {
+            List<Tuple<Address,Integer>> reqs=new ArrayList<>(donors.size());
+            for(Address donor: donors) {
+                if(pending.isEmpty())
+                    break;
+                if(in_flight.containsKey(donor))
+                    continue;
+                int segment=pending.poll();
+                in_flight.put(donor, new Segment(segment));
+                reqs.add(new Tuple<>(donor, segment));
+            }
+            return reqs;
+        }
+
+        protected void sendRequests(List<Tuple<Address,Integer>> reqs) {
+            for(Tuple<Address,Integer> req: reqs) {
+                log.trace("%s: requesting segment %d from %s", local_addr, req.getVal2(), req.getVal1());
+                Message msg=new Message(req.getVal1()).putHeader(id, new SegmentHeader(SegmentHeader.SEGMENT_REQ).segment(req.getVal2()))
+                  .setFlag(Message.Flag.OOB, Message.Flag.DONT_BUNDLE);
+                down_prot.down(msg);
+            }
+        }
+
+        protected void abort(Throwable ex) {
+            finish(ex);
+        }
+
+        protected void finish(Throwable ex) {
+            List<Address> holes;
+            synchronized(this) {
+                if(done)
+                    return;
+                done=true;
+                if(timeout_checker != null)
+                    timeout_checker.cancel(false);
+                in_flight.clear();
+                holes=new ArrayList<>(donors);
+                holes.addAll(failed_donors);
+            }
+            if(transfer == this)
+                transfer=null;
+            if(isDigestNeeded()) {
+                if(ex == null && provider_digest != null) {
+                    Digest merged=mergeDigests(provider_digest, Arrays.asList(digests));
+                    log.debug("%s: installing merged digest of %d segments: %s", local_addr, num_segments, merged);
+                    down_prot.down(new Event(Event.OVERWRITE_DIGEST, merged));
+                }
+                openBarrierAndResumeStable();
+                holes.forEach(STATE_PARALLEL.this::closeHoleFor);
+            }
+            sendStateDone(provider);
+            if(ex != null) {
+                log.warn("%s: state transfer failed: %s", local_addr, ex);
+                handleException(ex);
+            }
+            else {
+                log.debug("%s: received all %d segments", local_addr, num_segments);
+                up_prot.up(new Event(Event.STATE_TRANSFER_INPUTSTREAM_CLOSED, new StateTransferResult()));
+                down_prot.down(new Event(Event.GET_VIEW_FROM_COORD)); // https://issues.jboss.org/browse/JGRP-1751
+            }
+        }
+
+        public synchronized String toString() {
+            return String.format("%d/%d segments, in flight: %s, donors: %s",
+                                 completed.cardinality(), num_segments, in_flight, donors);
+        }
+    }
+
+    protected static class Segment {
+        protected final int                       id;
+        protected final ByteArrayDataOutputStream buf=new ByteArrayDataOutputStream(1024, true);
+        protected long                            last_update=System.nanoTime();
+
+        protected Segment(int id) {this.id=id;}
+
+        public String toString() {return String.format("%d (%d bytes)", id, buf.position());}
+    }
+
+
+    /** Buffers writes into chunks of chunk_size bytes and sends each chunk with its offset and checksum */
+    protected class SegmentOutputStream extends OutputStream {
+        protected final Address requester;
+        protected final int     segment;
+        protected final byte[]  chunk=new byte[chunk_size];
+        protected int           index;     // number of bytes in chunk
+        protected long          offset;    // number of bytes sent so far
+        protected boolean       closed;
+        protected Digest        digest;    // the donor's digest, sent with the EOF
+
+        protected SegmentOutputStream(Address requester, int segment) {
+            this.requester=requester;
+            this.segment=segment;
+        }
+
+        protected SegmentOutputStream digest(Digest d) {this.digest=d; return this;}
+
+        public void write(int b) throws IOException {
+            if(index == chunk.length)
+                sendChunk();
+            chunk[index++]=(byte)b;
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            while(len > 0) {
+                if(index == chunk.length)
+                    sendChunk();
+                int n=Math.min(len, chunk.length - index);
+                System.arraycopy(b, off, chunk, index, n);
+                index+=n; off+=n; len-=n;
+            }
+        }
+
+        public void flush() throws IOException {
+            if(index > 0)
+                sendChunk();
+        }
+
+        public void close() throws IOException {
+            if(closed)
+                return;
+            flush();
+            closed=true;
+            Message eof=new Message(requester)
+              .putHeader(id, new SegmentHeader(SegmentHeader.SEGMENT_EOF).segment(segment).offset(offset).digest(digest));
+            down_prot.down(eof);
+        }
+
+        protected void sendChunk() throws IOException {
+            if(closed)
+                throw new IOException("The output stream is closed");
+            if(Thread.interrupted())
+                throw new InterruptedIOException();
+            // copy the data: the chunk buffer is reused
+            byte[] data=Arrays.copyOf(chunk, index);
+            CRC32 crc=new CRC32();
+            crc.update(data, 0, data.length);
+            Message msg=new Message(requester, data)
+              .putHeader(id, new SegmentHeader(SegmentHeader.SEGMENT_DATA).segment(segment).offset(offset).checksum(crc.getValue()));
+            down_prot.down(msg);
+            offset+=index;
+            num_bytes_sent.add(index);
+            index=0;
+        }
+    }
+
+
+    public static class SegmentHeader extends Header {
+        public static final byte STATE_REQ    = 1; // requester -> provider: get digest and number of segments
+        public static final byte STATE_RSP    = 2; // provider -> requester: digest and number of segments
+        public static final byte STATE_DONE   = 3; // requester -> provider: transfer is done, resume STABLE
+        public static final byte STATE_EX     = 4; // provider -> requester: exception
+        public static final byte SEGMENT_REQ  = 5; // requester -> donor: request a segment
+        public static final byte SEGMENT_DATA = 6; // donor -> requester: chunk of a segment
+        public static final byte SEGMENT_EOF  = 7; // donor -> requester: segment is complete
+        public static final byte SEGMENT_EX   = 8; // donor -> requester: failed providing a segment
+
+        protected byte   type;
+        protected int    segment;
+        protected long   offset;       // offset of a chunk (SEGMENT_DATA) or size of a segment (SEGMENT_EOF)
+        protected long   checksum;     // CRC32 of a chunk
+        protected int    num_segments; // STATE_RSP
+        protected Digest digest;       // STATE_RSP (provider's digest), SEGMENT_EOF (donor's digest)
+
+        public SegmentHeader() {}
+        public SegmentHeader(byte type) {this.type=type;}
+
+        public short                      getMagicId()           {return 93;}
+        public Supplier<? extends Header> create()               {return SegmentHeader::new;}
+        public byte                       type()                 {return type;}
+        public SegmentHeader              segment(int s)         {segment=s; return this;}
+        public SegmentHeader              offset(long o)         {offset=o; return this;}
+        public SegmentHeader              checksum(long c)       {checksum=c; return this;}
+        public SegmentHeader              numSegments(int n)     {num_segments=n; return this;}
+        public SegmentHeader              digest(Digest d)       {digest=d; return this;}
+
+        public String toString() {
+            StringBuilder sb=new StringBuilder(type2Str(type));
+            switch(type) {
+                case STATE_RSP:
+                    sb.append(", segments=").append(num_segments);
+                    if(digest != null)
+                        sb.append(", digest=").append(digest);
+                    break;
+                case SEGMENT_REQ: case SEGMENT_EX:
+                    sb.append(", segment=").append(segment);
+                    break;
+                case SEGMENT_DATA: case SEGMENT_EOF:
+                    sb.append(", segment=").append(segment).append(", offset=").append(offset);
+                    if(digest != null)
+                        sb.append(", digest=").append(digest);
+                    break;
+            }
+            return sb.toString();
+        }
+
+        static String type2Str(byte t) {
+            switch(t) {
+                case STATE_REQ:    return "STATE_REQ";
+                case STATE_RSP:    return "STATE_RSP";
+                case STATE_DONE:   return "STATE_DONE";
+                case STATE_EX:     return "STATE_EX";
+                case SEGMENT_REQ:  return "SEGMENT_REQ";
+                case SEGMENT_DATA: return "SEGMENT_DATA";
+                case SEGMENT_EOF:  return "SEGMENT_EOF";
+                case SEGMENT_EX:   return "SEGMENT_EX";
+                default:           return "<unknown>";
+            }
+        }
+
+        public void writeTo(DataOutput out) throws IOException {
+            out.writeByte(type);
+            switch(type) {
+                case STATE_RSP:
+                    Bits.writeInt(num_segments, out);
+                    Util.writeStreamable(digest, out);
+                    break;
+                case SEGMENT_REQ: case SEGMENT_EX:
+                    Bits.writeInt(segment, out);
+                    break;
+                case SEGMENT_EOF:
+                    Bits.writeInt(segment, out);
+                    Bits.writeLong(offset, out);
+                    Util.writeStreamable(digest, out);
+                    break;
+                case SEGMENT_DATA:
+                    Bits.writeInt(segment, out);
+                    Bits.writeLong(offset, out);
+                    out.writeLong(checksum);
+                    break;
+            }
+        }
+
+        public void readFrom(DataInput in) throws IOException, ClassNotFoundException {
+            type=in.readByte();
+            switch(type) {
+                case STATE_RSP:
+                    num_segments=Bits.readInt(in);
+                    digest=Util.readStreamable(Digest::new, in);
+                    break;
+                case SEGMENT_REQ: case SEGMENT_EX:
+                    segment=Bits.readInt(in);
+                    break;
+                case SEGMENT_EOF:
+                    segment=Bits.readInt(in);
+                    offset=Bits.readLong(in);
+                    digest=Util.readStreamable(Digest::new, in);
+                    break;
+                case SEGMENT_DATA:
+                    segment=Bits.readInt(in);
+                    offset=Bits.readLong(in);
+                    checksum=in.readLong();
+                    break;
+            }
+        }
+
+        public int serializedSize() {
+            int retval=Global.BYTE_SIZE;
+            switch(type) {
+                case STATE_RSP:
+                    retval+=Bits.size(num_segments) + Global.BYTE_SIZE + (digest != null? digest.serializedSize(true) : 0);
+                    break;
+                case SEGMENT_REQ: case SEGMENT_EX:
+                    retval+=Bits.size(segment);
+                    break;
+                case SEGMENT_EOF:
+                    retval+=Bits.size(segment) + Bits.size(offset) + Global.BYTE_SIZE + (digest != null? digest.serializedSize(true) : 0);
+                    break;
+                case SEGMENT_DATA:
+                    retval+=Bits.size(segment) + Bits.size(offset) + Global.LONG_SIZE;
+                    break;
+            }
+            return retval;
+        }
+    }
+}
@@ -6,9 +6,11 @@ import org.jgroups.Global;
 import org.jgroups.View;
 import org.jgroups.annotations.LocalAddress;
 import org.jgroups.annotations.MBean;
+import org.jgroups.annotations.ManagedAttribute;
 import org.jgroups.annotations.Property;
 import org.jgroups.conf.PropertyConverters;
 import org.jgroups.stack.IpAddress;
+import org.jgroups.util.ByteArrayDataOutputStream;
 import org.jgroups.util.StateTransferResult;
 import org.jgroups.util.Tuple;
 import org.jgroups.util.Util;
@@ -18,9 +20,16 @@ import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * {@code STATE_SOCK} has the state provider create a server socket to which the state
@@ -34,6 +43,11 @@ import java.util.concurrent.RejectedExecutionException;
  * When implementing the {@link org.jgroups.MessageListener#setState(java.io.InputStream)} callback, there is no need to use a
  * {@link java.io.BufferedOutputStream}, as the input stream handed to the application already buffers incoming data
  * internally.
+ * <p/>
+ * If zero_copy is enabled and a {@link FileState} has been set ({@link #setFileState(FileState)}), state that lives in
+ * files is transferred with {@link FileChannel#transferTo(long,long,java.nio.channels.WritableByteChannel)} and
+ * {@link FileChannel#transferFrom(java.nio.channels.ReadableByteChannel,long,long)} instead of the
+ * getState()/setState() callbacks.
  * @author Vladimir Blagojevic
  * @author Bela Ban
  * @see STATE_TRANSFER
@@ -69,6 +83,19 @@ public class STATE_SOCK extends StreamingStateTransfer {
     @Property(description="The port listening for state requests. Default value of 0 binds to any (ephemeral) port")
     protected int bind_port=0;
 
+    @Property(description="Uses socket channels, so that the file regions of a FileState (if set) are transferred " +
+      "with FileChannel.transferTo() and transferFrom(). Needs to be the same in all members",writable=false)
+    protected boolean zero_copy;
+
+
+    /*
+     * --------------------------------------------- JMX statistics -------------------------------
+     */
+    protected final LongAdder num_zero_copy_transfers=new LongAdder();
+
+    @ManagedAttribute(description="Number of state transfers (as provider) using file regions")
+    public long getNumZeroCopyTransfers() {return num_zero_copy_transfers.sum();}
+
 
     /*
     * --------------------------------------------- Fields ---------------------------------------
@@ -79,11 +106,26 @@ public class STATE_SOCK extends StreamingStateTransfer {
      */
     protected volatile StateProviderAcceptor spawner;
 
+    /** The state kept in files, transferred with transferTo() / transferFrom() if zero_copy is true */
+    protected FileState file_state;
+
+    protected static final byte STREAM=1, FILES=2; // sent by the provider: how the state is transferred
+
 
     public STATE_SOCK() {
         super();
     }
 
+    public boolean   zeroCopy()                      {return zero_copy;}
+    public STATE_SOCK zeroCopy(boolean z)            {zero_copy=z; return this;}
+    public FileState getFileState()                  {return file_state;}
+    public STATE_SOCK setFileState(FileState fs)     {this.file_state=fs; return this;}
+
+    public void resetStats() {
+        super.resetStats();
+        num_zero_copy_transfers.reset();
+    }
+
 
     public void stop() {
         super.stop();
@@ -97,10 +139,22 @@ public class STATE_SOCK extends StreamingStateTransfer {
     */
 
     protected StateProviderAcceptor createAcceptor() {
-        StateProviderAcceptor retval=new StateProviderAcceptor(thread_pool,
-                                                               Util.createServerSocket(getSocketFactory(),
-                                                                                       "jgroups.streaming_state_transfer.srv_sock",
-                                                                                       bind_addr, bind_port));
+        ServerSocket srv_sock;
+        if(zero_copy) { // accepted sockets have a channel, needed for FileChannel.transferTo()
+            try {
+                ServerSocketChannel ch=Util.createServerSocketChannel(getSocketFactory(),
+                                                                      "jgroups.streaming_state_transfer.srv_sock",
+                                                                      bind_addr, bind_port, bind_port + 1000);
+                srv_sock=ch.socket();
+            }
+            catch(Exception e) {
+                throw new IllegalStateException("failed creating server socket channel", e);
+            }
+        }
+        else
+            srv_sock=Util.createServerSocket(getSocketFactory(), "jgroups.streaming_state_transfer.srv_sock",
+                                             bind_addr, bind_port);
+        StateProviderAcceptor retval=new StateProviderAcceptor(thread_pool, srv_sock);
         Thread t=getThreadFactory().newThread(retval, "STATE server socket acceptor");
         t.start();
         return retval;
@@ -117,13 +171,29 @@ public class STATE_SOCK extends StreamingStateTransfer {
         IpAddress address=hdr.bind_addr;
         Socket socket=null;
         try {
-            socket=getSocketFactory().createSocket("jgroups.state_sock.sock");
-            socket.bind(new InetSocketAddress(bind_addr, 0));
+            if(zero_copy) {
+                SocketChannel ch=getSocketFactory().createSocketChannel("jgroups.state_sock.sock",
+                                                                        new InetSocketAddress(bind_addr, 0));
+                socket=ch.socket();
+            }
+            else {
+                socket=getSocketFactory().createSocket("jgroups.state_sock.sock");
+                socket.bind(new InetSocketAddress(bind_addr, 0));
+            }
             socket.setReceiveBufferSize(buffer_size);
             Util.connect(socket, new InetSocketAddress(address.getIpAddress(), address.getPort()), 0);
             log.debug("%s: connected to state provider %s:%d", local_addr, address.getIpAddress(), address.getPort());
             DataOutputStream out=new DataOutputStream(socket.getOutputStream());
             Util.writeAddress(local_addr, out);
+            if(zero_copy) {
+                out.writeBoolean(file_state != null); // whether we can receive file regions
+                InputStream in=socket.getInputStream();
+                int mode=in.read();
+                if(mode < 0)
+                    throw new EOFException("state provider closed the connection");
+                if(mode == FILES) // the header is read from the (unbuffered) stream, the regions from the channel
+                    return new Tuple<>(in, new ZeroCopyTransfer(socket));
+            }
             return new Tuple<>(new BufferedInputStream(socket.getInputStream(), buffer_size), socket);
         }
         catch(Throwable t) {
@@ -137,6 +207,109 @@ public class STATE_SOCK extends StreamingStateTransfer {
     protected void close(Object resource) {
         if(resource instanceof Socket)
             Util.close((Socket)resource);
+        else if(resource instanceof ZeroCopyTransfer)
+            Util.close(((ZeroCopyTransfer)resource).socket);
+    }
+
+    protected void setStateInApplication(InputStream in, Object resource, Address provider) {
+        if(!(resource instanceof ZeroCopyTransfer)) {
+            super.setStateInApplication(in, resource, provider);
+            return;
+        }
+        log.debug("%s: receiving the state as file regions", local_addr);
+        try {
+            receiveRegions(new DataInputStream(in), ((ZeroCopyTransfer)resource).socket.getChannel());
+            up_prot.up(new Event(Event.STATE_TRANSFER_INPUTSTREAM_CLOSED, new StateTransferResult()));
+            down_prot.down(new Event(Event.GET_VIEW_FROM_COORD)); // https://issues.jboss.org/browse/JGRP-1751
+        }
+        catch(Throwable t) {
+            handleException(t);
+        }
+        finally {
+            Util.close(in);
+            close(resource);
+            if(isDigestNeeded()) {
+                openBarrierAndResumeStable();
+                closeHoleFor(provider);
+            }
+        }
+    }
+
+    /** Sends the file regions of the state to the requester with FileChannel.transferTo() */
+    protected void sendRegions(Address requester, SocketChannel ch) {
+        state_versions.remove(requester); // delta state transfer is not supported with file regions
+        try {
+            List<FileState.Region> regions=file_state.getRegions();
+            ByteArrayDataOutputStream hdr=new ByteArrayDataOutputStream(regions.size() * 32 + Global.INT_SIZE);
+            hdr.writeInt(regions.size());
+            for(FileState.Region r: regions) {
+                hdr.writeUTF(r.name());
+                hdr.writeLong(r.length());
+            }
+            ByteBuffer buf=ByteBuffer.wrap(hdr.buffer(), 0, hdr.position());
+            while(buf.hasRemaining())
+                ch.write(buf);
+
+            long total=0;
+            for(FileState.Region r: regions) {
+                FileChannel fc=r.channel();
+                long pos=r.position(), end=r.position() + r.length();
+                while(pos < end) {
+                    long num=fc.transferTo(pos, end - pos, ch);
+                    if(num <= 0 && pos >= fc.size())
+                        throw new EOFException(String.format("region %s: file has only %d bytes", r, fc.size()));
+                    pos+=num;
+                }
+                total+=r.length();
+            }
+            if(stats) {
+                num_bytes_sent.add(total);
+                num_zero_copy_transfers.increment();
+                avg_state_size=num_bytes_sent.sum() / num_state_reqs.doubleValue();
+            }
+            log.debug("%s: sent %d file regions (%s) to %s", local_addr, regions.size(), Util.printBytes(total), requester);
+            sendEof(requester);
+        }
+        catch(Throwable t) {
+            sendException(requester, t);
+        }
+        finally {
+            if(isDigestNeeded()) {
+                resumeStable();
+                closeHoleFor(requester);
+            }
+        }
+    }
+
+    /** Receives the file regions of the state from the provider with FileChannel.transferFrom() */
+    protected void receiveRegions(DataInputStream in, SocketChannel ch) throws Exception {
+        if(file_state == null)
+            throw new IllegalStateException("received file regions, but no FileState has been set");
+        int num_regions=in.readInt();
+        List<String> names=new ArrayList<>(num_regions);
+        List<Long>   lengths=new ArrayList<>(num_regions);
+        for(int i=0; i < num_regions; i++) {
+            names.add(in.readUTF());
+            lengths.add(in.readLong());
+        }
+        ByteBuffer one=ByteBuffer.allocate(1);
+        for(int i=0; i < num_regions; i++) {
+            String name=names.get(i);
+            long length=lengths.get(i), pos=0;
+            FileChannel fc=file_state.openRegion(name, length);
+            while(pos < length) {
+                long num=fc.transferFrom(ch, pos, length - pos);
+                if(num <= 0) { // transferFrom() doesn't distinguish EOF from no progress: read a single byte
+                    one.clear();
+                    if(ch.read(one) < 0)
+                        throw new EOFException(String.format("region %s: received only %d of %d bytes", name, pos, length));
+                    one.flip();
+                    num=fc.write(one, pos);
+                }
+                pos+=num;
+            }
+        }
+        file_state.regionsReceived(names);
     }
 
     protected void handleStateReq(Address requester) {
@@ -173,6 +346,15 @@ public class STATE_SOCK extends StreamingStateTransfer {
     * ------------------------ End of Private Methods --------------------------------------------
     */
 
+    /** Handback object for a state transfer using file regions */
+    protected static class ZeroCopyTransfer {
+        protected final Socket socket;
+
+        protected ZeroCopyTransfer(Socket socket) {
+            this.socket=socket;
+        }
+    }
+
     protected class StateProviderAcceptor implements Runnable {
         protected final ExecutorService pool;
         protected final ServerSocket    serverSocket;
@@ -221,6 +403,15 @@ public class STATE_SOCK extends StreamingStateTransfer {
 
                 DataInput in=new DataInputStream(socket.getInputStream());
                 Address stateRequester=Util.readAddress(in);
+                if(zero_copy) {
+                    boolean requester_accepts_files=in.readBoolean();
+                    boolean send_files=requester_accepts_files && file_state != null && socket.getChannel() != null;
+                    socket.getOutputStream().write(send_files? FILES : STREAM);
+                    if(send_files) {
+                        sendRegions(stateRequester, socket.getChannel());
+                        return;
+                    }
+                }
                 output=new BufferedOutputStream(socket.getOutputStream(), buffer_size);
                 getStateFromApplication(stateRequester, output, false);
             }
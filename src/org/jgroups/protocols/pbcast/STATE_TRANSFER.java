@@ -16,6 +16,7 @@ import java.io.DataOutput;
 import java.io.EOFException;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Supplier;
 
@@ -42,6 +43,9 @@ public class STATE_TRANSFER extends Protocol implements ProcessingQueue.Handler<
     /** List of members requesting state */
     protected final ProcessingQueue<Address> state_requesters=new ProcessingQueue<Address>().setHandler(this);
 
+    /** Versions of the state of the state requesters (delta state transfer), keyed by requester */
+    protected final Map<Address,byte[]>      state_versions=new ConcurrentHashMap<>();
+
     /** set to true while waiting for a STATE_RSP */
     protected volatile boolean               waiting_for_state_response=false;
 
@@ -130,6 +134,10 @@ public class STATE_TRANSFER extends Protocol implements ProcessingQueue.Handler<
 
         switch(hdr.type) {
             case StateHeader.STATE_REQ:
+                if(msg.getLength() > 0)
+                    state_versions.put(msg.getSrc(), msg.getBuffer());
+                else
+                    state_versions.remove(msg.getSrc());
                 state_requesters.add(msg.getSrc());
                 break;
             case StateHeader.STATE_RSP:
@@ -179,7 +187,9 @@ public class STATE_TRANSFER extends Protocol implements ProcessingQueue.Handler<
                 else {
                     Message state_req=new Message(target).putHeader(this.id, new StateHeader(StateHeader.STATE_REQ))
                       .setFlag(Message.Flag.DONT_BUNDLE, Message.Flag.OOB, Message.Flag.SKIP_BARRIER);
-                    log.debug("%s: asking %s for state", local_addr, target);
+                    if(info.version != null)
+                        state_req.setBuffer(info.version); // the provider only sends the changes since this version
+                    log.debug("%s: asking %s for state%s", local_addr, target, info.version != null? " (delta)" : "");
 
                     // suspend sending and handling of message garbage collection gossip messages,
                     // fixes bugs #943480 and #938584). Wake up when state has been received
@@ -272,6 +282,7 @@ public class STATE_TRANSFER extends Protocol implements ProcessingQueue.Handler<
 
         // remove non members from list of members requesting state
         state_requesters.retainAll(new_members);
+        state_versions.keySet().retainAll(new_members);
     }
 
     protected void handleException(Throwable exception) {
@@ -326,7 +337,8 @@ public class STATE_TRANSFER extends Protocol implements ProcessingQueue.Handler<
 
 
     protected void getStateFromApplication(Address requester, Digest digest) {
-        StateTransferInfo rsp=(StateTransferInfo)up_prot.up(new Event(Event.GET_APPLSTATE));
+        StateTransferInfo info=new StateTransferInfo(requester).version(state_versions.remove(requester));
+        StateTransferInfo rsp=(StateTransferInfo)up_prot.up(new Event(Event.GET_APPLSTATE, info));
         byte[] state=rsp.state;
 
         if(stats) {
@@ -0,0 +1,22 @@
+package org.jgroups.protocols.pbcast;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Application state split into a fixed number of addressable segments, used by {@link STATE_PARALLEL}. All members
+ * have to return the same number of segments. {@link #getSegment(int, OutputStream)} and
+ * {@link #setSegment(int, InputStream)} may be invoked concurrently for different segments.
+ * @since  4.1.2
+ */
+public interface SegmentedState {
+
+    /** Returns the number of segments of the state */
+    int numSegments();
+
+    /** Writes the given segment to the output stream */
+    void getSegment(int segment, OutputStream out) throws Exception;
+
+    /** Reads the given segment from the input stream and sets it */
+    void setSegment(int segment, InputStream in) throws Exception;
+}
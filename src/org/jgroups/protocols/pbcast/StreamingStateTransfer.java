@@ -13,6 +13,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
@@ -94,6 +95,9 @@ public abstract class StreamingStateTransfer extends Protocol implements Process
     /** List of members requesting state. Only a single state request is handled at any time */
     protected final ProcessingQueue<Address> state_requesters=new ProcessingQueue<Address>().setHandler(this);
 
+    /** Versions of the state of the state requesters (delta state transfer), keyed by requester */
+    protected final Map<Address,byte[]> state_versions=new ConcurrentHashMap<>();
+
 
     @ManagedAttribute public long   getNumberOfStateRequests()    {return num_state_reqs.sum();}
     @ManagedAttribute public long   getNumberOfStateBytesSent()   {return num_bytes_sent.sum();}
@@ -166,7 +170,9 @@ public abstract class StreamingStateTransfer extends Protocol implements Process
                     state_provider=target;
                     Message state_req=new Message(target).putHeader(this.id, new StateHeader(StateHeader.STATE_REQ))
                       .setFlag(Message.Flag.SKIP_BARRIER, Message.Flag.DONT_BUNDLE, Message.Flag.OOB);
-                    log.debug("%s: asking %s for state", local_addr, target);
+                    if(info.version != null)
+                        state_req.setBuffer(info.version); // the provider only sends the changes since this version
+                    log.debug("%s: asking %s for state%s", local_addr, target, info.version != null? " (delta)" : "");
                     down_prot.down(state_req);
                 }
                 return null; // don't pass down any further !
@@ -203,7 +209,11 @@ public abstract class StreamingStateTransfer extends Protocol implements Process
             Address sender=msg.getSrc();
             switch(hdr.type) {
                 case StateHeader.STATE_REQ:
-                    state_requesters.add(msg.getSrc());
+                    if(msg.getLength() > 0)
+                        state_versions.put(sender, msg.getBuffer());
+                    else
+                        state_versions.remove(sender);
+                    state_requesters.add(sender);
                     break;
                 case StateHeader.STATE_RSP:
                     handleStateRsp(sender, hdr);
@@ -270,7 +280,7 @@ public abstract class StreamingStateTransfer extends Protocol implements Process
         if(out == null || requester == null)
             throw new IllegalArgumentException("output stream and requester's address have to be non-null");
 
-        StateGetter state_getter=new StateGetter(requester, out);
+        StateGetter state_getter=new StateGetter(requester, out, state_versions.remove(requester));
         if(use_separate_thread)
             thread_pool.execute(state_getter);
         else
@@ -382,6 +392,7 @@ public abstract class StreamingStateTransfer extends Protocol implements Process
             members.addAll(new_members);
         }
         state_requesters.retainAll(new_members); // remove non members from list of members requesting state
+        state_versions.keySet().retainAll(new_members);
     }
 
     public void handle(Address state_requester) {
@@ -597,21 +608,27 @@ public abstract class StreamingStateTransfer extends Protocol implements Process
 
 
     /**
-     * Thread which invokes {@link MessageListener#getState(java.io.OutputStream)} in the application
+     * Thread which invokes {@link MessageListener#getState(java.io.OutputStream)} in the application, or
+     * {@link DeltaStateListener#getState(byte[],OutputStream)} if the requester sent the version of its state
      */
     protected class StateGetter implements Runnable {
         protected final Address      requester;
         protected final OutputStream output;
+        protected final byte[]       version;
 
-        public StateGetter(Address requester, OutputStream output) {
+        public StateGetter(Address requester, OutputStream output, byte[] version) {
             this.requester=requester;
             this.output=output;
+            this.version=version;
         }
 
         public void run() {
             try {
-                log.debug("%s: getting the state from the application", local_addr);
-                up_prot.up(new Event(Event.STATE_TRANSFER_OUTPUTSTREAM, output));
+                log.debug("%s: getting the %s from the application", local_addr, version != null? "delta state" : "state");
+                Object handled=version != null?
+                  up_prot.up(new Event(Event.STATE_TRANSFER_DELTA_OUTPUTSTREAM, new Tuple<>(version, output))) : null;
+                if(!Boolean.TRUE.equals(handled)) // the application doesn't support delta state transfer: send full state
+                    up_prot.up(new Event(Event.STATE_TRANSFER_OUTPUTSTREAM, output));
                 output.flush();
                 sendEof(requester); // send an EOF to the remote consumer
             }
@@ -3,6 +3,7 @@ package org.jgroups.protocols.pbcast;
 import org.jgroups.annotations.GuardedBy;
 import org.jgroups.logging.Log;
 import org.jgroups.util.BoundedList;
+import org.jgroups.util.ThreadFactory;
 import org.jgroups.util.Util;
 
 import java.util.*;
@@ -15,11 +16,16 @@ import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.BiPredicate;
 import java.util.function.Consumer;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
 /**
  * Responsible for dispatching JOIN/LEAVE/MERGE requests to the GMS protocol. Bundles multiple concurrent requests into
- * a request list
+ * a request list.<p/>
+ * If coalescing is enabled (see {@link #coalesce(Predicate,long,long)}) and the request at the head of the queue
+ * is coalescable (e.g. a JOIN), then processing is handed over to a separate handler thread, which waits for more
+ * requests to arrive before processing them. The window is extended as long as new requests keep arriving, up to a
+ * max time. The thread adding the request (e.g. the thread delivering a JOIN request) is therefore never blocked.
  * @param <R> the type of the request
  * @author Bela Ban
  * @since  4.0.5
@@ -36,6 +42,10 @@ public class ViewHandler<R> {
     protected Consumer<Collection<R>>     req_processor;
     protected BiPredicate<R,R>            req_matcher;
     protected final BoundedList<String>   history=new BoundedList<>(20); // maintains a list of the last 20 requests
+    protected Predicate<R>                coalescable;     // requests which trigger coalescing, null: no coalescing
+    protected long                        coalesce_time;   // time (ms) to wait for more requests
+    protected long                        max_coalesce_time; // max time (ms) to wait for more requests
+    protected int                         num_coalesced;   // number of times requests were coalesced
 
 
     /**
@@ -58,6 +68,22 @@ public class ViewHandler<R> {
     public Consumer<Collection<R>> reqProcessor()                          {return req_processor;}
     public ViewHandler<R>          reqMatcher(BiPredicate<R,R> m)          {req_matcher=m; return this;}
     public BiPredicate<R,R>        reqMatcher()                            {return req_matcher;}
+    public int                     numCoalesced()                          {return num_coalesced;}
+
+    /**
+     * Enables coalescing of requests
+     * @param coalescable Determines whether the request at the head of the queue triggers coalescing. Null disables
+     *                    coalescing
+     * @param time The time (ms) to wait for more requests. The wait is repeated as long as new requests arrive.
+     *             0 disables coalescing
+     * @param max_time The max time (ms) to wait
+     */
+    public ViewHandler<R> coalesce(Predicate<R> coalescable, long time, long max_time) {
+        this.coalescable=coalescable;
+        this.coalesce_time=time;
+        this.max_coalesce_time=Math.max(time, max_time);
+        return this;
+    }
 
     public ViewHandler<R> add(R req) {
         if(_add(req))
@@ -237,10 +263,25 @@ public class ViewHandler<R> {
         }
     }
 
-    /** We're guaranteed that only one thread will be called with this method at any time */
     protected void process(Collection<R> requests) {
+        process(requests, false);
+    }
+
+    /**
+     * We're guaranteed that only one thread will be called with this method at any time. When the request at the
+     * head of the queue is coalescable, the caller hands processing over to a handler thread (if it isn't that
+     * thread already) and returns; processing is still true, so no other thread will start processing
+     */
+    protected void process(Collection<R> requests, boolean handler_thread) {
         for(;;) {
             while(!requests.isEmpty()) {
+                if(coalescable(requests)) {
+                    if(!handler_thread) {
+                        startHandlerThread();
+                        return;
+                    }
+                    coalesce(requests);     // wait for more requests to arrive
+                }
                 removeAndProcess(requests); // remove matching requests and process them
             }
             lock.lock();
@@ -256,6 +297,44 @@ public class ViewHandler<R> {
         }
     }
 
+    /** Returns true if coalescing is enabled and the request at the head of the queue is coalescable */
+    protected boolean coalescable(Collection<R> requests) {
+        Predicate<R> pred=coalescable;
+        if(pred == null || coalesce_time <= 0 || suspended.get())
+            return false;
+        Iterator<R> it=requests.iterator();
+        return it.hasNext() && pred.test(it.next());
+    }
+
+    protected void startHandlerThread() {
+        Runnable r=() -> process(requests, true);
+        ThreadFactory factory=gms.getThreadFactory();
+        Thread t=factory != null? factory.newThread(r, "ViewHandler") : new Thread(r, "ViewHandler");
+        t.start();
+    }
+
+    /**
+     * Waits for coalesce_time ms for more requests to arrive. Repeats the wait as long as new requests were added
+     * during the last wait, but for no longer than max_coalesce_time ms in total. Called by the handler thread only
+     */
+    protected void coalesce(Collection<R> requests) {
+        long start=System.currentTimeMillis(), deadline=start + max_coalesce_time;
+        int size=requests.size(), initial_size=size;
+        for(long now=start; now < deadline;) {
+            Util.sleep(Math.min(coalesce_time, deadline - now));
+            int new_size=requests.size();
+            if(new_size <= size) // no new requests in the last window
+                break;
+            size=new_size;
+            now=System.currentTimeMillis();
+        }
+        if(size > initial_size) {
+            num_coalesced++;
+            log().trace("%s: coalesced %d requests in %d ms", gms.getLocalAddress(), size,
+                        System.currentTimeMillis() - start);
+        }
+    }
+
     /**
      * Removes requests as long as they match - breaks at the first non-matching request or when requests is empty
      * This method must catch all exceptions; or else process() might return without setting processing to true again!
@@ -0,0 +1,89 @@
+package org.jgroups.protocols.relay;
+
+import org.jgroups.Address;
+import org.jgroups.util.Util;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Picks site masters and routes by consistent (rendezvous) hashing of the original sender, or the final destination.
+ * All messages from a given sender (or to a given destination) take the same site master and route, so FIFO order is
+ * preserved, while different senders (destinations) are spread over all site masters and routes. When a site master
+ * or route is added or removed, only the senders (destinations) mapped to it are moved.<p/>
+ * Routes which are down (see {@link Route#isUp()}) are skipped, unless all routes are down.
+ * @since  4.1.2
+ */
+public class ConsistentHashSiteMasterPicker implements SiteMasterPicker {
+    protected boolean route_by_destination;
+
+    public ConsistentHashSiteMasterPicker() {
+    }
+
+    public boolean                         routeByDestination()          {return route_by_destination;}
+    public ConsistentHashSiteMasterPicker routeByDestination(boolean b) {route_by_destination=b; return this;}
+
+    public Address pickSiteMaster(List<Address> site_masters, Address original_sender) {
+        return pick(site_masters, original_sender);
+    }
+
+    public Address pickSiteMaster(List<Address> site_masters, Address original_sender, Address dest) {
+        return pick(site_masters, key(original_sender, dest));
+    }
+
+    public Route pickRoute(String site, List<Route> routes, Address original_sender) {
+        return pickRoute(routes, original_sender);
+    }
+
+    public Route pickRoute(String site, List<Route> routes, Address original_sender, Address dest) {
+        return pickRoute(routes, key(original_sender, dest));
+    }
+
+    public String toString() {
+        return String.format("%s (by %s)", getClass().getSimpleName(), route_by_destination? "destination" : "sender");
+    }
+
+    protected Address key(Address original_sender, Address dest) {
+        return route_by_destination && dest != null? dest : original_sender;
+    }
+
+    /** Picks a route, skipping routes which are down */
+    public static Route pickRoute(List<Route> routes, Object key) {
+        if(routes.size() > 1 && !routes.stream().allMatch(Route::isUp)) {
+            List<Route> up=routes.stream().filter(Route::isUp).collect(Collectors.toList());
+            if(!up.isEmpty())
+                routes=up;
+        }
+        return pick(routes, key);
+    }
+
+    /**
+     * Returns the element with the highest score for the given key (rendezvous hashing). If key is null, the first
+     * element is returned
+     */
+    public static <T> T pick(List<T> list, Object key) {
+        if(list == null || list.isEmpty())
+            return null;
+        if(list.size() == 1 || key == null)
+            return list.get(0);
+        int key_hash=key.hashCode();
+        T retval=null;
+        long max=Long.MIN_VALUE;
+        for(T el: list) {
+            long score=Util.rendezvousScore(key_hash, hash(el));
+            if(retval == null || score > max) {
+                retval=el;
+                max=score;
+            }
+        }
+        return retval;
+    }
+
+    protected static int hash(Object el) {
+        if(el instanceof Route) { // multiple routes can have the same site master (one per bridge channel)
+            Route r=(Route)el;
+            return r.siteMaster().hashCode() * 31 + System.identityHashCode(r.bridge());
+        }
+        return el.hashCode();
+    }
+}
@@ -11,15 +11,15 @@ import org.jgroups.util.*;
 import org.jgroups.util.UUID;
 import org.w3c.dom.Node;
 
-import java.io.DataInput;
-import java.io.DataOutput;
-import java.io.IOException;
-import java.io.InputStream;
+import java.io.*;
 import java.util.*;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Consumer;
 import java.util.function.Supplier;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 /**
  *
@@ -70,9 +70,45 @@ public class RELAY2 extends Protocol {
     @Property(description="Fully qualified name of a class implementing SiteMasterPicker")
     protected String                                   site_master_picker_impl;
 
+    @Property(description="If set, site masters and routes to remote sites are picked by consistent hashing of the " +
+      "original sender (\"sender\") or the final destination (\"destination\"), spreading inter-site traffic over " +
+      "all site masters and routes while preserving FIFO order per sender (or destination). " +
+      "Overrides site_master_picker_impl")
+    protected String                                   consistent_routing;
+
+    @Property(description="Number of bridge channels (per bridge configuration) created by a site master. Values " +
+      "greater than 1 spread the traffic to a remote site over multiple channels (and connections)",writable=false)
+    protected int                                      num_bridge_channels=1;
+
+    @Property(description="Time (ms) a route is considered down after a send on it failed. Routes which are down are " +
+      "skipped if other routes to the same site are up. After this time, the route is used again, and marked as up " +
+      "if the send succeeds. A new bridge view marks all routes of the bridge as up")
+    protected long                                     route_down_time=5000;
+
+    @Property(description="If true, messages relayed to a remote site are queued per route and sent as a single " +
+      "message (bundle) when more than one message is queued. No delay is added: the first message is sent " +
+      "immediately, and messages relayed while a send is in progress are bundled")
+    protected boolean                                  bundle_relayed_messages;
+
+    @Property(description="Max number of bytes of a bundle of relayed messages")
+    protected int                                      max_bundle_size=64000;
+
+    @Property(description="If true, bundles of relayed messages are compressed (if the result is smaller)")
+    protected boolean                                  compress_bundles=true;
+
+    @Property(description="Compression level of bundles (from java.util.zip.Deflater) " +
+      "(0=no compression, 1=best speed, 9=best compression)")
+    protected int                                      compression_level=Deflater.BEST_SPEED;
+
+    @Property(description="Name of a file (or resource) with a preset dictionary used to compress bundles, e.g. " +
+      "with byte sequences common in relayed messages. All sites have to use the same dictionary",writable=false)
+    protected String                                   compression_dictionary;
+
 
     /* ---------------------------------------------    Fields    ------------------------------------------------ */
 
+    protected byte[]                                   dictionary;
+
     /** A map containing site names (e.g. "LON") as keys and SiteConfigs as values */
     protected final Map<String,RelayConfig.SiteConfig> sites=new HashMap<>();
 
@@ -132,6 +168,14 @@ public class RELAY2 extends Protocol {
     /** Total time (ms) for received messages that are delivered locally */
     protected final LongAdder                          local_delivery_time=new LongAdder();
 
+    /** Number of bundles sent by this SiteMaster, and the number of relayed messages in them */
+    protected final LongAdder                          bundles_sent=new LongAdder();
+    protected final LongAdder                          bundled_msgs=new LongAdder();
+
+    /** Number of bytes of bundles before and after compression */
+    protected final LongAdder                          bundle_bytes=new LongAdder();
+    protected final LongAdder                          bundle_bytes_compressed=new LongAdder();
+
 
 
     // Fluent configuration
@@ -142,6 +186,14 @@ public class RELAY2 extends Protocol {
     public RELAY2 relayMulticasts(boolean flag)        {relay_multicasts=flag;       return this;}
     public RELAY2 asyncRelayCreation(boolean flag)     {async_relay_creation=flag;   return this;}
     public RELAY2 siteMasterPicker(SiteMasterPicker s) {if(s != null) this.site_master_picker=s; return this;}
+    public RELAY2 consistentRouting(String r)          {consistent_routing=r;        return this;}
+    public RELAY2 setNumBridgeChannels(int num)        {num_bridge_channels=num;     return this;}
+    public RELAY2 setRouteDownTime(long t)             {route_down_time=t;           return this;}
+    public RELAY2 bundleRelayedMessages(boolean b)     {bundle_relayed_messages=b;   return this;}
+    public RELAY2 setMaxBundleSize(int size)           {max_bundle_size=size;        return this;}
+    public RELAY2 compressBundles(boolean b)           {compress_bundles=b;          return this;}
+    public RELAY2 setCompressionLevel(int level)       {compression_level=level;     return this;}
+    public RELAY2 setCompressionDictionary(byte[] d)   {dictionary=d;                return this;}
 
     public String  site()                              {return site;}
     public List<String> siteNames()                    {return getSites();}
@@ -150,11 +202,26 @@ public class RELAY2 extends Protocol {
     public boolean enableAddressTagging()              {return enable_address_tagging;}
     public boolean relayMulticasts()                   {return relay_multicasts;}
     public boolean asyncRelayCreation()                {return async_relay_creation;}
+    public String  consistentRouting()                 {return consistent_routing;}
+    public int     getNumBridgeChannels()              {return num_bridge_channels;}
+    public long    getRouteDownTime()                  {return route_down_time;}
+    public boolean bundleRelayedMessages()             {return bundle_relayed_messages;}
+    public int     getMaxBundleSize()                  {return max_bundle_size;}
+    public boolean compressBundles()                   {return compress_bundles;}
+    public int     getCompressionLevel()               {return compression_level;}
+    public byte[]  getCompressionDictionary()          {return dictionary;}
     public Address getLocalAddress()                   {return local_addr;}
     public TimeScheduler getTimer()                    {return timer;}
     public void incrementRelayed()                     {relayed.increment();}
     public void addToRelayedTime(long delta)           {relayed_time.add(delta);}
 
+    public void addBundle(int num_msgs, int size, int compressed_size) {
+        bundles_sent.increment();
+        bundled_msgs.add(num_msgs);
+        bundle_bytes.add(size);
+        bundle_bytes_compressed.add(compressed_size);
+    }
+
 
     public RouteStatusListener getRouteStatusListener()       {return route_status_listener;}
     public void setRouteStatusListener(RouteStatusListener l) {this.route_status_listener=l;}
@@ -184,6 +251,24 @@ public class RELAY2 extends Protocol {
 
 
 
+    @ManagedAttribute(description="Number of bundles sent by this SiteMaster to remote SiteMasters")
+    public long getNumBundlesSent() {return bundles_sent.sum();}
+
+    @ManagedAttribute(description="Number of relayed messages sent in bundles")
+    public long getNumBundledMessages() {return bundled_msgs.sum();}
+
+    @ManagedAttribute(description="Average number of messages per bundle")
+    public double getAvgBundleSize() {
+        long bundles=bundles_sent.sum();
+        return bundles > 0? bundled_msgs.sum() / (double)bundles : 0.0;
+    }
+
+    @ManagedAttribute(description="Ratio of the size of bundles after and before compression")
+    public double getCompressionRatio() {
+        long size=bundle_bytes.sum();
+        return size > 0? bundle_bytes_compressed.sum() / (double)size : 1.0;
+    }
+
     @ManagedAttribute(description="Number of messages (received from a remote Sitemaster and) delivered " +
       "by this SiteMaster to a local node")
     public long getNumForwardedToLocalMbr() {return forward_to_local_mbr.sum();}
@@ -222,6 +307,13 @@ public class RELAY2 extends Protocol {
         forward_to_local_mbr_time.reset();
         local_deliveries.reset();
         local_delivery_time.reset();
+        bundles_sent.reset();
+        bundled_msgs.reset();
+        bundle_bytes.reset();
+        bundle_bytes_compressed.reset();
+        Relayer tmp=relayer;
+        if(tmp != null)
+            tmp.resetRouteStats();
     }
 
     public View getBridgeView(String cluster_name) {
@@ -275,6 +367,25 @@ public class RELAY2 extends Protocol {
             this.site_master_picker=clazz.getDeclaredConstructor().newInstance();
         }
 
+        if(consistent_routing != null) {
+            if(!consistent_routing.equals("sender") && !consistent_routing.equals("destination"))
+                throw new IllegalArgumentException(String.format("consistent_routing (%s) has to be \"sender\" or \"destination\"",
+                                                                 consistent_routing));
+            site_master_picker=new ConsistentHashSiteMasterPicker()
+              .routeByDestination(consistent_routing.equals("destination"));
+        }
+        if(compression_dictionary != null) {
+            try(InputStream in=ConfiguratorFactory.getConfigStream(compression_dictionary)) {
+                if(in == null)
+                    throw new FileNotFoundException(compression_dictionary);
+                dictionary=Util.readFileContents(in);
+            }
+        }
+        if(num_bridge_channels < 1) {
+            log.warn("num_bridge_channels was " + num_bridge_channels + ", changed to 1");
+            num_bridge_channels=1;
+        }
+
         if(config != null)
             parseSiteConfiguration(sites);
 
@@ -340,6 +451,13 @@ public class RELAY2 extends Protocol {
         return relayer != null? relayer.printRoutes() : "n/a (not site master)";
     }
 
+    @ManagedOperation(description="Prints the health, and the number of messages and bytes sent, of each route. " +
+      "Only available if we're the current coordinator (site master)")
+    public String printRouteStats() {
+        Relayer tmp=relayer;
+        return tmp != null? tmp.printRouteStats() : "n/a (not site master)";
+    }
+
     @ManagedOperation(description="Prints the routes that are currently up. " +
       "Only available if we're the current coordinator (site master)")
     public String printSites() {
@@ -413,7 +531,7 @@ public class RELAY2 extends Protocol {
         // forward to the site master unless we're the site master (then route the message directly)
         if(!is_site_master) {
             long start=stats? System.nanoTime() : 0;
-            Address site_master=pickSiteMaster(sender);
+            Address site_master=pickSiteMaster(sender, target);
             if(site_master == null)
                 throw new IllegalStateException("site master is null");
             forwardTo(site_master, target, sender, msg, max_site_masters == 1);
@@ -443,7 +561,8 @@ public class RELAY2 extends Protocol {
 
         if(hdr == null) {
             // forward a multicast message to all bridges except myself, then pass up
-            if(dest == null && is_site_master && relay_multicasts && !msg.isFlagSet(Message.Flag.NO_RELAY)) {
+            if(dest == null && is_site_master && relay_multicasts && !msg.isFlagSet(Message.Flag.NO_RELAY)
+              && isMulticastRelayer(msg.getSrc())) {
                 Address src=msg.getSrc();
                 Address sender=new SiteUUID((UUID)msg.getSrc(), NameCache.get(msg.getSrc()), site);
                 if(src instanceof ExtendedUUID)
@@ -468,7 +587,8 @@ public class RELAY2 extends Protocol {
 
             if(hdr == null) {
                 // forward a multicast message to all bridges except myself, then pass up
-                if(dest == null && is_site_master && relay_multicasts && !msg.isFlagSet(Message.Flag.NO_RELAY)) {
+                if(dest == null && is_site_master && relay_multicasts && !msg.isFlagSet(Message.Flag.NO_RELAY)
+                  && isMulticastRelayer(msg.getSrc())) {
                     Address src=msg.getSrc();
                     Address sender=new SiteUUID((UUID)msg.getSrc(), NameCache.get(msg.getSrc()), site);
                     if(src instanceof ExtendedUUID)
@@ -488,6 +608,56 @@ public class RELAY2 extends Protocol {
             up_prot.up(batch);
     }
 
+    /** Unpacks a bundle of relayed messages (sent by {@link Route}) and handles each message */
+    protected void handleRelayBundle(Message bundle) {
+        try {
+            byte[] buf=bundle.getRawBuffer();
+            int    offset=bundle.getOffset(), length=bundle.getLength();
+            boolean compressed=buf[offset] == 1;
+            int     size=Bits.readInt(buf, offset+1);
+            if(compressed) {
+                buf=uncompress(buf, offset + Route.BUNDLE_HDR_SIZE, length - Route.BUNDLE_HDR_SIZE, size);
+                offset=0;
+            }
+            else
+                offset+=Route.BUNDLE_HDR_SIZE;
+            DataInput in=new ByteArrayDataInputStream(buf, offset, size);
+            int num=in.readInt();
+            for(int i=0; i < num; i++) {
+                Message msg=new Message(false);
+                msg.readFrom(in);
+                msg.dest(bundle.getDest()).src(bundle.getSrc());
+                Relay2Header hdr=msg.getHeader(id);
+                if(hdr != null)
+                    handleRelayMessage(hdr, msg);
+            }
+        }
+        catch(Throwable t) {
+            log.error("%s: failed handling bundle from %s: %s", local_addr, bundle.getSrc(), t);
+        }
+    }
+
+    protected byte[] uncompress(byte[] buf, int offset, int length, int size) throws DataFormatException {
+        byte[] retval=new byte[size];
+        Inflater inflater=new Inflater();
+        try {
+            inflater.setInput(buf, offset, length);
+            int num=inflater.inflate(retval);
+            if(num == 0 && inflater.needsDictionary()) {
+                if(dictionary == null)
+                    throw new DataFormatException("bundle was compressed with a dictionary, but compression_dictionary is not set");
+                inflater.setDictionary(dictionary);
+                num=inflater.inflate(retval);
+            }
+            if(num != size)
+                throw new DataFormatException(String.format("uncompressed %d bytes, but expected %d", num, size));
+            return retval;
+        }
+        finally {
+            inflater.end();
+        }
+    }
+
     /** Called to handle a message received by the relayer */
     protected void handleRelayMessage(Relay2Header hdr, Message msg) {
         if(hdr.final_dest != null) {
@@ -564,7 +734,7 @@ public class RELAY2 extends Protocol {
             return;
         }
 
-        Route route=tmp.getRoute(target_site, sender);
+        Route route=tmp.getRoute(target_site, sender, dest);
         if(route == null) {
             log.error(local_addr + ": no route to " + target_site + ": dropping message");
             sendSiteUnreachableTo(sender, target_site);
@@ -577,7 +747,7 @@ public class RELAY2 extends Protocol {
     /** Sends the message via all bridges excluding the excluded_sites bridges */
     protected void sendToBridges(Address sender, final Message msg, String ... excluded_sites) {
         Relayer tmp=relayer;
-        List<Route> routes=tmp != null? tmp.getRoutes(excluded_sites) : null;
+        List<Route> routes=tmp != null? tmp.getRoutes(sender, excluded_sites) : null;
         if(routes == null)
             return;
         for(Route route: routes) {
@@ -625,7 +795,7 @@ public class RELAY2 extends Protocol {
         boolean send_to_coord=false;
         if(dest instanceof SiteUUID) {
             if(dest instanceof SiteMaster) {
-                local_dest=pickSiteMaster(sender);
+                local_dest=pickSiteMaster(sender, dest);
                 if(local_dest == null)
                     throw new IllegalStateException("site master was null");
                 send_to_coord=true;
@@ -753,10 +923,26 @@ public class RELAY2 extends Protocol {
 
     /** Returns a site master from site_masters */
     protected Address pickSiteMaster(Address sender) {
+        return pickSiteMaster(sender, null);
+    }
+
+    protected Address pickSiteMaster(Address sender, Address dest) {
         List<Address> masters=site_masters;
         if(masters.size() == 1)
             return masters.get(0);
-        return site_master_picker.pickSiteMaster(masters, sender);
+        return site_master_picker.pickSiteMaster(masters, sender, dest);
+    }
+
+    /**
+     * With multiple site masters and consistent_routing, every site master receives a local multicast, but only the one
+     * picked by consistent hashing of the sender relays it. This way, remote sites receive a multicast only once, and
+     * relaying is spread over all site masters. Without consistent_routing, every site master relays multicasts, as
+     * site masters running an older version do, too
+     */
+    protected boolean isMulticastRelayer(Address sender) {
+        List<Address> masters=site_masters;
+        return consistent_routing == null || masters == null || masters.size() <= 1
+          || Objects.equals(local_addr, ConsistentHashSiteMasterPicker.pick(masters, sender));
     }
 
 
@@ -765,6 +951,7 @@ public class RELAY2 extends Protocol {
         public static final byte DATA             = 1;
         public static final byte SITE_UNREACHABLE = 2; // final_dest is a SiteMaster
         public static final byte HOST_UNREACHABLE = 3; // final_dest is a SiteUUID (not currently used)
+        public static final byte DATA_BUNDLE      = 4; // multiple relayed messages (with DATA headers) in the payload
 
         protected byte    type;
         protected Address final_dest;
@@ -810,6 +997,7 @@ public class RELAY2 extends Protocol {
                 case DATA:             return "DATA";
                 case SITE_UNREACHABLE: return "SITE_UNREACHABLE";
                 case HOST_UNREACHABLE: return "HOST_UNREACHABLE";
+                case DATA_BUNDLE:      return "DATA_BUNDLE";
                 default:               return "<unknown>";
             }
         }
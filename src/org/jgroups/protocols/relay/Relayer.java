@@ -58,7 +58,8 @@ public class Relayer {
 
     
     /**
-     * Creates all bridges from site_config and connects them (joining the bridge clusters)
+     * Creates all bridges from site_config and connects them (joining the bridge clusters). If
+     * {@link RELAY2#getNumBridgeChannels()} is greater than 1, that many channels are created for each bridge
      * @param bridge_configs A list of bridge configurations
      * @param bridge_name The name of the local bridge channel, prefixed with '_'.
      * @param my_site_id The ID of this site
@@ -71,10 +72,14 @@ public class Relayer {
             return;
         }
         try {
+            int num_channels=Math.max(1, relay.getNumBridgeChannels());
             for(RelayConfig.BridgeConfig bridge_config: bridge_configs) {
-                Bridge bridge=new Bridge(bridge_config.createChannel(), bridge_config.getClusterName(), bridge_name,
-                                         () -> new SiteUUID(UUID.randomUUID(), null, my_site_id));
-                bridges.add(bridge);
+                for(int i=0; i < num_channels; i++) {
+                    String name=i == 0? bridge_name : bridge_name + "-" + i;
+                    Bridge bridge=new Bridge(bridge_config.createChannel(i), bridge_config.getClusterName(), name,
+                                             () -> new SiteUUID(UUID.randomUUID(), null, my_site_id));
+                    bridges.add(bridge);
+                }
             }
             for(Bridge bridge: bridges)
                 bridge.start();
@@ -99,6 +104,7 @@ public class Relayer {
     public void stop() {
         done=true;
         bridges.forEach(Bridge::stop);
+        bridges.forEach(b -> b.bridge_routes.values().forEach(l -> l.forEach(Route::stop)));
         bridges.clear();
     }
 
@@ -114,35 +120,84 @@ public class Relayer {
     }
 
 
-    protected Route getRoute(String site) { return getRoute(site, null);}
+    public synchronized String printRouteStats() {
+        StringBuilder sb=new StringBuilder();
+        for(Map.Entry<String,List<Route>> entry: routes.entrySet()) {
+            for(Route route: entry.getValue())
+                sb.append(entry.getKey()).append(": ").append(route.printStats()).append("\n");
+        }
+        return sb.toString();
+    }
+
+    public synchronized void resetRouteStats() {
+        routes.values().forEach(l -> l.forEach(Route::resetStats));
+    }
+
 
-    protected synchronized Route getRoute(String site, Address sender) {
+    protected Route getRoute(String site) { return getRoute(site, null, null);}
+
+    protected Route getRoute(String site, Address sender) { return getRoute(site, sender, null);}
+
+    protected synchronized Route getRoute(String site, Address sender, Address dest) {
         List<Route> list=routes.get(site);
         if(list == null)
             return null;
         if(list.size() == 1)
             return list.get(0);
 
-        return relay.site_master_picker.pickRoute(site, list, sender);
+        return relay.site_master_picker.pickRoute(site, list, sender, dest);
     }
 
     protected List<String> getSiteNames() {
         return new ArrayList<>(routes.keySet());
     }
 
-    protected synchronized List<Route> getRoutes(String ... excluded_sites) {
+    protected List<Route> getRoutes(String ... excluded_sites) {
+        return getRoutes(null, excluded_sites);
+    }
+
+    /**
+     * Returns one route for each site which is not excluded. If a site has multiple routes, the route is picked by
+     * {@link RELAY2#site_master_picker}, e.g. by consistent hashing of the sender, so that multicasts from the same
+     * sender always take the same route. If sender is null, the first route is returned.
+     */
+    protected synchronized List<Route> getRoutes(Address sender, String ... excluded_sites) {
         List<Route> retval=new ArrayList<>(routes.size());
-        for(List<Route> list: routes.values()) {
-            for(Route route: list) {
-                if(route != null && !isExcluded(route, excluded_sites)) {
-                    retval.add(route);
-                    break;
-                }
-            }
+        for(Map.Entry<String,List<Route>> entry: routes.entrySet()) {
+            List<Route> list=entry.getValue();
+            if(list.isEmpty() || isExcluded(list.get(0), excluded_sites))
+                continue;
+            retval.add(list.size() == 1 || sender == null? list.get(0)
+                         : relay.site_master_picker.pickRoute(entry.getKey(), list, sender, null));
         }
         return retval;
     }
 
+    /**
+     * Merges the routes of all bridges into the routing table and notifies the {@link RouteStatusListener} (if set)
+     * about sites which went up or down
+     */
+    protected synchronized void updateRoutes() {
+        Map<String,List<Route>> tmp=new HashMap<>();
+        for(Bridge bridge: bridges)
+            bridge.bridge_routes.forEach((site,list) -> tmp.computeIfAbsent(site, k -> new ArrayList<>()).addAll(list));
+
+        Set<String> down=new HashSet<>(routes.keySet()), up=new HashSet<>(tmp.keySet());
+        down.removeAll(tmp.keySet());
+        up.removeAll(routes.keySet());
+
+        routes.keySet().retainAll(tmp.keySet()); // remove all sites which are not in any bridge view
+        tmp.forEach((site,list) -> routes.put(site, Collections.unmodifiableList(list)));
+
+        RouteStatusListener listener=relay.getRouteStatusListener();
+        if(listener != null) {
+            if(!down.isEmpty())
+                listener.sitesDown(down.toArray(new String[down.size()]));
+            if(!up.isEmpty())
+                listener.sitesUp(up.toArray(new String[up.size()]));
+        }
+    }
+
     protected View getBridgeView(String cluster_name) {
         if(cluster_name == null || bridges == null)
             return null;
@@ -169,9 +224,11 @@ public class Relayer {
 
 
     protected class Bridge extends ReceiverAdapter {
-        protected JChannel     channel;
-        protected final String cluster_name;
-        protected View         view;
+        protected JChannel                         channel;
+        protected final String                     cluster_name;
+        protected View                             view;
+        /** The routes via this bridge, computed from its view and merged into the routing table by updateRoutes() */
+        protected volatile Map<String,List<Route>> bridge_routes=Collections.emptyMap();
 
         protected Bridge(final JChannel ch, final String cluster_name, String channel_name, AddressGenerator addr_generator) throws Exception {
             this.channel=ch;
@@ -197,7 +254,10 @@ public class Relayer {
                 log.warn("received a message without a relay header; discarding it");
                 return;
             }
-            relay.handleRelayMessage(hdr, msg);
+            if(hdr.type == RELAY2.Relay2Header.DATA_BUNDLE)
+                relay.handleRelayBundle(msg);
+            else
+                relay.handleRelayMessage(hdr, msg);
         }
 
         /** The view contains a list of SiteUUIDs. Adjust the routing table based on the SiteUUIDs UUID and site
@@ -206,58 +266,22 @@ public class Relayer {
             this.view=new_view;
             log.trace("[Relayer " + channel.getAddress() + "] view: " + new_view);
 
-            RouteStatusListener       listener=relay.getRouteStatusListener();
             Map<String,List<Address>> tmp=extract(new_view);
-            Set<String>               down=listener != null? new HashSet<>(routes.keySet()) : null;
-            Set<String>               up=listener != null? new HashSet<>() : null;
-
-            if(listener != null)
-                down.removeAll(tmp.keySet());
-
-            routes.keySet().retainAll(tmp.keySet()); // remove all sites which are not in the view
-
+            Map<String,List<Route>>   new_routes=new HashMap<>(tmp.size());
             for(Map.Entry<String,List<Address>> entry: tmp.entrySet()) {
-                String key=entry.getKey();
-                List<Address> val=entry.getValue();
-
-                List<Route> newRoutes;
-                if (routes.containsKey(key)) {
-                    newRoutes = new ArrayList<>(routes.get(key));
-                } else {
-                    newRoutes = new ArrayList<>();
-                    if(up != null) {
-                        up.add(key);
-                    }
-                }
-
-                // Remove routes not in the view anymore:
-                newRoutes.removeIf(route -> !val.contains(route.siteMaster()));
-
-                // Add routes that aren't yet in the routing table:
-                val.stream().filter(addr -> !contains(newRoutes, addr))
-                  .forEach(addr -> newRoutes.add(new Route(addr, channel, relay, log).stats(stats)));
-
-                if(newRoutes.isEmpty()) {
-                    routes.remove(key);
-                    if(listener != null) {
-                        down.add(key);
-                        up.remove(key);
-                    }
-                } else {
-                    routes.put(key, Collections.unmodifiableList(newRoutes));
+                List<Route> old_routes=bridge_routes.getOrDefault(entry.getKey(), Collections.emptyList());
+                List<Route> list=new ArrayList<>(entry.getValue().size());
+                for(Address addr: entry.getValue()) {
+                    // keep existing routes (and their stats, but reset their health), add routes that aren't yet
+                    // in the routing table
+                    Route route=old_routes.stream().filter(r -> r.siteMaster().equals(addr)).findFirst().map(Route::up)
+                      .orElseGet(() -> new Route(addr, channel, relay, log).stats(stats));
+                    list.add(route);
                 }
+                new_routes.put(entry.getKey(), list);
             }
-
-            if(listener != null) {
-                if(!down.isEmpty())
-                    listener.sitesDown(down.toArray(new String[down.size()]));
-                if(!up.isEmpty())
-                    listener.sitesUp(up.toArray(new String[up.size()]));
-            }
-        }
-
-        protected boolean contains(List<Route> routes, Address addr) {
-            return routes.stream().anyMatch(route -> route.siteMaster().equals(addr));
+            bridge_routes=new_routes;
+            updateRoutes();
         }
 
         /** Returns a map containing the site keys and addresses as values */
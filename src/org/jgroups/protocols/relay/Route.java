@@ -2,24 +2,59 @@ package org.jgroups.protocols.relay;
 
 
 import org.jgroups.Address;
+import org.jgroups.Global;
 import org.jgroups.JChannel;
 import org.jgroups.Message;
 import org.jgroups.logging.Log;
+import org.jgroups.util.Bits;
+import org.jgroups.util.ByteArrayDataOutputStream;
 import org.jgroups.util.Util;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.Deflater;
+
 
 /**
  * Class which maintains the destination address for sending messages to a given site, and the bridge channel to do so.
+ * <p/>
+ * If {@link RELAY2#bundleRelayedMessages()} is true, messages are added to a queue, which is drained by one sender
+ * thread at a time. Messages added while a send is in progress are sent as a single (optionally compressed) bundle.
+ * The payload of a bundle is a flag (compressed or not), the size of the uncompressed data and the (compressed) data:
+ * the number of messages, followed by the messages (without addresses).
  * @author Bela Ban
  * @since  3.x
  */
 public class Route implements Comparable<Route> {
     /** SiteUUID: address of the site master */
-    protected final Address  site_master;
-    protected final JChannel bridge;
-    protected final RELAY2   relay;
-    protected final Log      log;
-    protected boolean        stats=true;
+    protected final Address        site_master;
+    protected final JChannel       bridge;
+    protected final RELAY2         relay;
+    protected final Log            log;
+    protected boolean              stats=true;
+    /** False if the last send failed; set to true again by the next successful send or a new bridge view */
+    protected volatile boolean     healthy=true;
+    /** The time (ns) of the last failed send */
+    protected volatile long        failed_at;
+    protected final LongAdder      num_msgs_sent=new LongAdder();
+    protected final LongAdder      num_bytes_sent=new LongAdder();
+    protected final LongAdder      num_send_failures=new LongAdder();
+
+    /** Messages to be sent when bundling is enabled */
+    protected final Queue<Message> send_queue=new ConcurrentLinkedQueue<>();
+    /** Set while a thread is sending the messages of send_queue */
+    protected final AtomicBoolean  sending=new AtomicBoolean();
+    /** Only used by the thread which holds sending */
+    protected Deflater             deflater;
+
+    /** Size of the flag (compressed or not) and the uncompressed size at the start of a bundle */
+    protected static final int     BUNDLE_HDR_SIZE=Global.BYTE_SIZE + Global.INT_SIZE;
 
     public Route(Address site_master, JChannel bridge, RELAY2 relay, Log log) {
         this.site_master=site_master;
@@ -32,21 +67,160 @@ public class Route implements Comparable<Route> {
     public Address  siteMaster()     {return site_master;}
     public boolean  stats()          {return stats;}
     public Route    stats(boolean f) {stats=f; return this;}
+    public long     getNumMsgsSent()     {return num_msgs_sent.sum();}
+    public long     getNumBytesSent()    {return num_bytes_sent.sum();}
+    public long     getNumSendFailures() {return num_send_failures.sum();}
+
+    /**
+     * A route is up if its bridge channel is connected and the last send didn't fail, or failed more than
+     * {@link RELAY2#getRouteDownTime()} ms ago: the route is then used again, and the next send decides whether it
+     * is healthy
+     */
+    public boolean isUp() {
+        return bridge.isConnected() && (healthy
+          || System.nanoTime() - failed_at >= TimeUnit.MILLISECONDS.toNanos(relay.getRouteDownTime()));
+    }
+
+    /** Marks the route as up, e.g. after a bridge view change */
+    public Route up() {
+        healthy=true;
+        return this;
+    }
+
+    protected void down() {
+        failed_at=System.nanoTime();
+        healthy=false;
+    }
+
+    public void resetStats() {
+        num_msgs_sent.reset();
+        num_bytes_sent.reset();
+        num_send_failures.reset();
+    }
+
+    public String printStats() {
+        return String.format("%s (bridge %s): %s, msgs=%d, bytes=%d, failures=%d", this, bridge.getAddress(),
+                             isUp()? "up" : "down", getNumMsgsSent(), getNumBytesSent(), getNumSendFailures());
+    }
 
     public void send(Address final_destination, Address original_sender, final Message msg) {
         if(log.isTraceEnabled())
             log.trace("routing message to " + final_destination + " via " + site_master);
         long start=stats? System.nanoTime() : 0;
+        Message copy=createMessage(site_master, final_destination, original_sender, msg);
+        if(relay.bundleRelayedMessages()) {
+            send_queue.add(copy);
+            sendQueuedMessages();
+        }
+        else
+            sendToBridge(copy, 1);
+        if(stats) {
+            relay.addToRelayedTime(System.nanoTime() - start);
+            relay.incrementRelayed();
+            num_msgs_sent.increment();
+            num_bytes_sent.add(msg.getLength());
+        }
+    }
+
+    /** Releases the resources used for compression */
+    public void stop() {
+        Deflater tmp=deflater;
+        if(tmp != null && sending.compareAndSet(false, true)) {
+            deflater=null;
+            tmp.end();
+            sending.set(false);
+        }
+    }
+
+    /** Drains send_queue, sending all messages in it as bundles of max_bundle_size bytes (max) */
+    protected void sendQueuedMessages() {
+        while(!send_queue.isEmpty() && sending.compareAndSet(false, true)) {
+            try {
+                List<Message> list=new ArrayList<>();
+                int size=0, max_size=relay.getMaxBundleSize();
+                Message msg;
+                while((msg=send_queue.poll()) != null) {
+                    int msg_size=(int)msg.size();
+                    if(!list.isEmpty() && size + msg_size > max_size) {
+                        sendBundle(list, size);
+                        list.clear();
+                        size=0;
+                    }
+                    list.add(msg);
+                    size+=msg_size;
+                }
+                if(!list.isEmpty())
+                    sendBundle(list, size);
+            }
+            finally {
+                sending.set(false);
+            }
+        }
+    }
+
+    protected void sendBundle(List<Message> list, int size) {
+        if(list.size() == 1) {
+            sendToBridge(list.get(0), 1);
+            return;
+        }
         try {
-            Message copy=createMessage(site_master, final_destination, original_sender, msg);
-            bridge.send(copy);
-            if(stats) {
-                relay.addToRelayedTime(System.nanoTime() - start);
-                relay.incrementRelayed();
+            ByteArrayDataOutputStream out=new ByteArrayDataOutputStream(size + BUNDLE_HDR_SIZE + Global.INT_SIZE);
+            out.position(BUNDLE_HDR_SIZE);
+            out.writeInt(list.size());
+            for(Message msg: list)
+                msg.writeToNoAddrs(null, out);
+            byte[] buf=out.buffer();
+            int    length=out.position() - BUNDLE_HDR_SIZE, compressed_length=length;
+            if(relay.compressBundles()) {
+                byte[] compressed=new byte[BUNDLE_HDR_SIZE + length];
+                int num=compress(buf, BUNDLE_HDR_SIZE, length, compressed);
+                if(num > 0) {
+                    buf=compressed;
+                    compressed_length=num;
+                }
             }
+            buf[0]=(byte)(compressed_length < length? 1 : 0);
+            Bits.writeInt(length, buf, 1);
+            Message bundle=new Message(site_master, buf, 0, compressed_length + BUNDLE_HDR_SIZE)
+              .putHeader(relay.getId(), new RELAY2.Relay2Header(RELAY2.Relay2Header.DATA_BUNDLE, null, null));
+            if(sendToBridge(bundle, list.size()))
+                relay.addBundle(list.size(), length, compressed_length);
+        }
+        catch(Exception e) {
+            down();
+            num_send_failures.add(list.size());
+            log.error(Util.getMessage("FailureRelayingMessage"), e);
+        }
+    }
+
+    /**
+     * Compresses length bytes at offset of buf into output (at the same offset). Returns the number of compressed
+     * bytes, or -1 if the compressed data is not smaller than the original data
+     */
+    protected int compress(byte[] buf, int offset, int length, byte[] output) {
+        if(deflater == null)
+            deflater=new Deflater(relay.getCompressionLevel());
+        deflater.reset();
+        byte[] dictionary=relay.getCompressionDictionary();
+        if(dictionary != null)
+            deflater.setDictionary(dictionary);
+        deflater.setInput(buf, offset, length);
+        deflater.finish();
+        int compressed_length=deflater.deflate(output, offset, length);
+        return deflater.finished() && compressed_length < length? compressed_length : -1;
+    }
+
+    protected boolean sendToBridge(Message msg, int num_msgs) {
+        try {
+            bridge.send(msg);
+            healthy=true;
+            return true;
         }
         catch(Exception e) {
+            down();
+            num_send_failures.add(num_msgs);
             log.error(Util.getMessage("FailureRelayingMessage"), e);
+            return false;
         }
     }
 
@@ -55,7 +229,7 @@ public class Route implements Comparable<Route> {
     }
 
     public boolean equals(Object obj) {
-        return compareTo((Route)obj) == 0;
+        return compareTo((Route)obj) == 0 && Objects.equals(bridge, ((Route)obj).bridge);
     }
 
     public int hashCode() {
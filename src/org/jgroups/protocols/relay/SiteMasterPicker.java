@@ -11,7 +11,9 @@ import java.util.List;
  * The default implementation picks a random site master for every message to be relayed, even if they have the same
  * original sender.<p/>
  * If only one site master is configured, then {@link #pickSiteMaster(List,Address)} (List,Address)} or
- * {@link #pickRoute(String,List,Address)} will never be called.
+ * {@link #pickRoute(String,List,Address)} will never be called.<p/>
+ * {@link ConsistentHashSiteMasterPicker} picks site masters and routes by consistent hashing of the original sender
+ * (or the final destination).
  * @author Bela Ban
  * @since  3.6.12, 4.0
  */
@@ -34,4 +36,21 @@ public interface SiteMasterPicker {
      * @return A route
      */
     Route   pickRoute(String site, List<Route> routes, Address original_sender);
+
+    /**
+     * Same as {@link #pickSiteMaster(List,Address)}, but also passes the final destination of the message
+     * (e.g. for routing by destination rather than sender, see {@link ConsistentHashSiteMasterPicker})
+     * @param dest The final destination, may be null
+     */
+    default Address pickSiteMaster(List<Address> site_masters, Address original_sender, Address dest) {
+        return pickSiteMaster(site_masters, original_sender);
+    }
+
+    /**
+     * Same as {@link #pickRoute(String,List,Address)}, but also passes the final destination of the message
+     * @param dest The final destination, may be null
+     */
+    default Route pickRoute(String site, List<Route> routes, Address original_sender, Address dest) {
+        return pickRoute(site, routes, original_sender);
+    }
 }
@@ -9,6 +9,7 @@ import javax.xml.parsers.DocumentBuilderFactory;
 import java.io.FileInputStream;
 import java.io.InputStream;
 import java.util.*;
+import java.util.function.Supplier;
 
 /**
  * Parses and maintains the RELAY2 configuration (in memory)
@@ -197,6 +198,12 @@ public final class RelayConfig {
         public String            getClusterName()  {return cluster_name;}
         public abstract JChannel  createChannel() throws Exception;
 
+        /**
+         * Creates the index-th bridge channel of this configuration (when multiple bridge channels per site are used).
+         * By default, every call creates a new channel from the configuration
+         */
+        public JChannel createChannel(int index) throws Exception {return createChannel();}
+
         public String toString() {return "cluster=" + cluster_name;}
     }
 
@@ -214,19 +221,34 @@ public final class RelayConfig {
 
 
     public static class ProgrammaticBridgeConfig extends BridgeConfig {
-        protected Protocol[] protocols;
+        protected Protocol[]           protocols;
+        /** Creates a new stack for every bridge channel; required when RELAY2.num_bridge_channels is greater than 1 */
+        protected Supplier<Protocol[]> stack_creator;
 
         public ProgrammaticBridgeConfig(String cluster_name, Protocol[] prots) {
             super(cluster_name);
             this.protocols=prots;
         }
 
+        public ProgrammaticBridgeConfig(String cluster_name, Supplier<Protocol[]> stack_creator) {
+            super(cluster_name);
+            this.stack_creator=stack_creator;
+        }
+
         public JChannel createChannel() throws Exception {
-            return new JChannel(protocols);
+            return new JChannel(stack_creator != null? stack_creator.get() : protocols);
+        }
+
+        /** The protocol instances can only be used once: additional channels need a stack creator */
+        public JChannel createChannel(int index) throws Exception {
+            if(index > 0 && stack_creator == null)
+                throw new IllegalStateException(String.format("bridge %s: multiple bridge channels require a " +
+                                                                "stack creator (Supplier<Protocol[]>)", cluster_name));
+            return createChannel();
         }
 
         public String toString() {
-            return super.toString() + ", protocols=" + printProtocols(protocols);
+            return super.toString() + ", protocols=" + (protocols != null? printProtocols(protocols) : "<created per channel>");
         }
 
 
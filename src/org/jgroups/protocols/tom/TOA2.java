@@ -0,0 +1,480 @@
+package org.jgroups.protocols.tom;
+
+import org.jgroups.*;
+import org.jgroups.annotations.MBean;
+import org.jgroups.annotations.ManagedAttribute;
+import org.jgroups.annotations.ManagedOperation;
+import org.jgroups.annotations.Property;
+import org.jgroups.stack.Protocol;
+import org.jgroups.util.*;
+
+import java.io.DataInput;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Total order without a sequencer, based on Skeen's algorithm (like {@link TOA}), but with batched agreement rounds.
+ * Every destination of a message proposes a sequence number to the sender, and the sender sends the highest proposal
+ * back as final sequence number; messages are delivered in order of their final sequence numbers.<p/>
+ * The agreement rounds of different messages are independent of each other, so any number of rounds can be in flight
+ * at the same time. Proposals to the same sender and final sequence numbers to the same destination(s) are sent in
+ * batches: while one thread sends a batch, proposals and finals created by other threads (or for the other messages
+ * of a received message batch) are queued and sent in the next batch.<p/>
+ * In addition to anycasts (messages with an {@link AnycastAddress} as destination), regular multicasts are totally
+ * ordered, too (if total_order_multicasts is true): the message is multicast and the final sequence numbers are
+ * multicast as well. Messages flagged as {@link Message.Flag#NO_TOTAL_ORDER} or OOB are passed down unchanged.<p/>
+ * A leaving member flushes its messages before it leaves (see {@link #flush()}), so that all remaining members
+ * deliver the same messages of the leaver.
+ * @since  4.1.2
+ */
+@MBean(description="Total order based on Skeen's algorithm, with batched proposals and final sequence numbers")
+public class TOA2 extends Protocol implements DeliveryProtocol {
+
+    @Property(description="Establishes total order for multicast messages, too (not only for anycasts)")
+    protected boolean                  total_order_multicasts=true;
+
+    @Property(description="Max time (ms) a leaving member waits until all members have received the final sequence " +
+      "numbers of its messages. 0 disables the flush on leaving")
+    protected long                     flush_timeout=5000;
+
+    @ManagedAttribute(description="Number of totally ordered messages sent")
+    protected final LongAdder          num_msgs_sent=new LongAdder();
+
+    @ManagedAttribute(description="Number of messages delivered in total order")
+    protected final LongAdder          num_msgs_delivered=new LongAdder();
+
+    protected DeliveryManagerImpl      delivery_mgr;
+    protected SenderManager            sender_mgr;
+    protected volatile DeliveryThread  delivery_thread;
+    protected Address                  local_addr;
+    protected final AtomicLong         msg_ids=new AtomicLong();
+
+    /** The ID of the first view installed: messages sent in earlier views were not sent to us */
+    protected volatile long            first_view_id=-1;
+
+    /** IDs of sent multicasts (for which the final sequence number is multicast) */
+    protected final Set<MessageID>     mcasts=ConcurrentHashMap.newKeySet();
+
+    protected final Batcher            proposals=new Batcher(ToaHeader.PROPOSE_MESSAGE);
+    protected final Batcher            finals=new Batcher(ToaHeader.FINAL_MESSAGE);
+
+    /** Acks for the flush of a leaving member */
+    protected final AckCollector       flush_acks=new AckCollector();
+
+    /** Number of flush markers received per leaving member; the marker is sent by multicast and by unicast */
+    protected final Map<Address,Integer> flush_markers=new ConcurrentHashMap<>();
+
+
+    public boolean totalOrderMulticasts()          {return total_order_multicasts;}
+    public TOA2    totalOrderMulticasts(boolean b) {this.total_order_multicasts=b; return this;}
+    public long    flushTimeout()                  {return flush_timeout;}
+    public TOA2    flushTimeout(long t)            {this.flush_timeout=t; return this;}
+    public long    getNumMessagesSent()            {return num_msgs_sent.sum();}
+    public long    getNumMessagesDelivered()       {return num_msgs_delivered.sum();}
+
+    @ManagedAttribute(description="Number of proposals sent")
+    public long    getNumProposalsSent()           {return proposals.num_entries.sum();}
+
+    @ManagedAttribute(description="Number of batches of proposals sent")
+    public long    getNumProposalBatchesSent()     {return proposals.num_batches.sum();}
+
+    @ManagedAttribute(description="Number of final sequence numbers sent")
+    public long    getNumFinalsSent()              {return finals.num_entries.sum();}
+
+    @ManagedAttribute(description="Number of batches of final sequence numbers sent")
+    public long    getNumFinalBatchesSent()        {return finals.num_batches.sum();}
+
+    @ManagedAttribute(description="Number of messages waiting for their final sequence number or for delivery")
+    public int     getNumPendingMessages()         {return delivery_mgr != null? delivery_mgr.getAllMessages().size() : 0;}
+
+    @ManagedOperation(description="Prints the messages waiting for their final sequence number or for delivery")
+    public String  printPendingMessages()          {return delivery_mgr != null? delivery_mgr.getAllMessages().toString() : "n/a";}
+
+    public void resetStats() {
+        super.resetStats();
+        num_msgs_sent.reset();
+        num_msgs_delivered.reset();
+        proposals.resetStats();
+        finals.resetStats();
+    }
+
+    public void start() throws Exception {
+        super.start();
+        delivery_mgr=new DeliveryManagerImpl();
+        sender_mgr=new SenderManager();
+        delivery_thread=new DeliveryThread(this);
+        if(local_addr != null)
+            delivery_thread.setLocalAddress(local_addr.toString());
+        delivery_thread.start(delivery_mgr);
+    }
+
+    public void stop() {
+        DeliveryThread tmp=delivery_thread;
+        if(tmp != null)
+            tmp.interrupt();
+        delivery_thread=null;
+        mcasts.clear();
+        flush_markers.clear();
+        super.stop();
+    }
+
+    public Object down(Event evt) {
+        switch(evt.getType()) {
+            case Event.SET_LOCAL_ADDRESS:
+                local_addr=evt.getArg();
+                DeliveryThread tmp=delivery_thread;
+                if(tmp != null)
+                    tmp.setLocalAddress(local_addr.toString());
+                break;
+            case Event.DISCONNECT:
+                flush();
+                break;
+        }
+        return down_prot.down(evt);
+    }
+
+    public Object up(Event evt) {
+        switch(evt.getType()) {
+            case Event.VIEW_CHANGE:
+                handleView(evt.getArg());
+                break;
+        }
+        return up_prot.up(evt);
+    }
+
+    public Object down(Message msg) {
+        if(msg.isFlagSet(Message.Flag.NO_TOTAL_ORDER) || msg.isFlagSet(Message.Flag.OOB))
+            return down_prot.down(msg);
+        Address dest=msg.getDest();
+        if(dest instanceof AnycastAddress)
+            send(extract((AnycastAddress)dest), msg, false);
+        else if(dest == null && total_order_multicasts)
+            send(delivery_mgr.getViewMembers(), msg, true);
+        else
+            return down_prot.down(msg);
+        return null;
+    }
+
+    public Object up(Message msg) {
+        ToaHeader hdr=msg.getHeader(id);
+        if(hdr == null)
+            return up_prot.up(msg);
+        handle(msg, hdr);
+        sendBatches();
+        return null;
+    }
+
+    public void up(MessageBatch batch) {
+        boolean handled=false;
+        for(Iterator<Message> it=batch.iterator(); it.hasNext();) {
+            Message msg=it.next();
+            ToaHeader hdr=msg.getHeader(id);
+            if(hdr != null) {
+                it.remove();
+                handle(msg, hdr);
+                handled=true;
+            }
+        }
+        // the proposals and finals created for all messages of the batch are sent together
+        if(handled)
+            sendBatches();
+        if(!batch.isEmpty())
+            up_prot.up(batch);
+    }
+
+    public void deliver(Message msg) {
+        if(msg.getDest() instanceof AnycastAddress)
+            msg.setDest(local_addr);
+        up_prot.up(msg);
+        num_msgs_delivered.increment();
+    }
+
+
+    protected void send(Collection<Address> dests, Message msg, boolean mcast) {
+        MessageID msg_id=new MessageID(local_addr, msg_ids.getAndIncrement());
+        boolean to_self=dests.contains(local_addr);
+        num_msgs_sent.increment();
+        if(dests.size() == 1) {
+            msg.putHeader(id, ToaHeader.createSingleDestinationHeader(msg_id));
+            if(to_self)
+                delivery_mgr.deliverSingleDestinationMessage(msg, msg_id);
+            else
+                down_prot.down(msg.setDest(dests.iterator().next()));
+            return;
+        }
+        ToaHeader hdr=ToaHeader.newDataMessageHeader(msg_id, delivery_mgr.getViewId());
+        msg.putHeader(id, hdr);
+        long seqno=to_self? delivery_mgr.addLocalMessageToDeliver(msg_id, msg, hdr) : -1; // sets the seqno in hdr
+        if(mcast)
+            mcasts.add(msg_id);
+        sender_mgr.addNewMessageToSend(msg_id, dests, seqno, to_self);
+        if(mcast) {
+            msg.setTransientFlag(Message.TransientFlag.DONT_LOOPBACK);
+            down_prot.down(msg);
+            return;
+        }
+        for(Address dest: dests) {
+            if(!dest.equals(local_addr))
+                down_prot.down(msg.copy().setDest(dest));
+        }
+    }
+
+    protected void handle(Message msg, ToaHeader hdr) {
+        try {
+            switch(hdr.getType()) {
+                case ToaHeader.DATA_MESSAGE:
+                    handleData(msg, hdr);
+                    break;
+                case ToaHeader.PROPOSE_MESSAGE:
+                    handleProposal(msg.getSrc(), hdr.getMessageID(), hdr.getSequencerNumber());
+                    forEachEntry(msg, (msg_id, seqno) -> handleProposal(msg.getSrc(), msg_id, seqno));
+                    break;
+                case ToaHeader.FINAL_MESSAGE:
+                    handleFinal(hdr.getMessageID(), hdr.getSequencerNumber());
+                    forEachEntry(msg, this::handleFinal);
+                    break;
+                case ToaHeader.SINGLE_DESTINATION_MESSAGE:
+                    delivery_mgr.deliverSingleDestinationMessage(msg, hdr.getMessageID());
+                    break;
+                case ToaHeader.FLUSH_MESSAGE:
+                    handleFlush(msg.getSrc());
+                    break;
+                case ToaHeader.FLUSH_ACK_MESSAGE:
+                    flush_acks.ack(msg.getSrc());
+                    break;
+                default:
+                    log.error("%s: unknown header type %d from %s", local_addr, hdr.getType(), msg.getSrc());
+            }
+        }
+        catch(Exception ex) {
+            log.error("%s: failed handling message from %s (hdr: %s): %s", local_addr, msg.getSrc(), hdr, ex);
+        }
+    }
+
+    protected void handleData(Message msg, ToaHeader hdr) {
+        if(hdr.getViewId() < first_view_id) // sent to the members of a view which didn't include us
+            return;
+        MessageID msg_id=hdr.getMessageID();
+        long proposal=delivery_mgr.addRemoteMessageToDeliver(msg_id, msg, hdr.getSequencerNumber(), hdr.getViewId());
+        if(proposal >= 0)
+            proposals.add(msg_id.getAddress(), msg_id, proposal);
+    }
+
+    protected void handleProposal(Address sender, MessageID msg_id, long proposal) {
+        delivery_mgr.updateSequenceNumber(proposal);
+        long final_seqno=sender_mgr.addPropose(msg_id, sender, proposal);
+        if(final_seqno != SenderManager.NOT_READY)
+            sendFinal(msg_id, final_seqno);
+    }
+
+    protected void handleFinal(MessageID msg_id, long final_seqno) {
+        try {
+            delivery_mgr.markReadyToDeliver(msg_id, final_seqno);
+        }
+        catch(IllegalStateException ex) {
+            // a multicast sent to the members of a view which didn't include us
+            log.trace("%s: dropping final seqno %d for unknown message %s", local_addr, final_seqno, msg_id);
+        }
+    }
+
+    /** Queues the final seqno for the destinations of a message (or for all members, if the message was multicast) */
+    protected void sendFinal(MessageID msg_id, long final_seqno) {
+        if(mcasts.remove(msg_id))
+            finals.add(null, msg_id, final_seqno);
+        else {
+            for(Address dest: sender_mgr.getDestination(msg_id))
+                if(!dest.equals(local_addr))
+                    finals.add(dest, msg_id, final_seqno);
+        }
+        if(sender_mgr.markSent(msg_id)) // true if we're a destination
+            delivery_mgr.markReadyToDeliver(msg_id, final_seqno);
+    }
+
+    protected void sendBatches() {
+        proposals.send();
+        finals.send();
+    }
+
+    /**
+     * Called before leaving. The remaining members drop the messages of a member which left if they haven't received
+     * their final sequence numbers, and the finals sent by a member shortly before leaving may reach some members only
+     * after they installed the view excluding it (so they're discarded). To prevent some members from delivering a
+     * message which others drop, the leaving member waits until the finals of all of its messages have been sent.
+     * It then sends a flush marker to all members, by multicast and by unicast (as finals are sent both ways), and waits
+     * until all members have acked it. As the marker is a regular message, a member only receives it after all finals
+     * sent before it.<p/>
+     * Members which crash don't flush; their messages can be delivered by some members only
+     */
+    protected void flush() {
+        Collection<Address> mbrs=delivery_mgr != null? delivery_mgr.getViewMembers() : null;
+        if(flush_timeout <= 0 || local_addr == null || mbrs == null || mbrs.size() <= 1)
+            return;
+        long start=System.currentTimeMillis();
+        try {
+            Util.waitUntil(flush_timeout, 10, () -> sender_mgr.getPendingMessageIDs().isEmpty());
+        }
+        catch(TimeoutException ex) {
+            log.warn("%s: %d messages didn't get all proposals within %d ms", local_addr,
+                     sender_mgr.getPendingMessageIDs().size(), flush_timeout);
+        }
+        sendBatches();
+        flush_acks.reset(mbrs, local_addr);
+        MessageID msg_id=new MessageID(local_addr, msg_ids.getAndIncrement());
+        down_prot.down(new Message(null).putHeader(id, ToaHeader.newFlushMessageHeader(msg_id))
+                         .setFlag(Message.Flag.INTERNAL).setTransientFlag(Message.TransientFlag.DONT_LOOPBACK));
+        for(Address mbr: mbrs)
+            if(!mbr.equals(local_addr))
+                down_prot.down(new Message(mbr).putHeader(id, ToaHeader.newFlushMessageHeader(msg_id))
+                                 .setFlag(Message.Flag.INTERNAL));
+        try {
+            flush_acks.waitForAllAcks(Math.max(1, flush_timeout - (System.currentTimeMillis() - start)));
+        }
+        catch(TimeoutException ex) {
+            log.warn("%s: flush timed out; missing acks from %s", local_addr, flush_acks.printMissing());
+        }
+    }
+
+    /** Acks the flush of a leaving member once its marker has been received by multicast and by unicast */
+    protected void handleFlush(Address sender) {
+        if(flush_markers.merge(sender, 1, Integer::sum) < 2)
+            return;
+        flush_markers.remove(sender);
+        MessageID msg_id=new MessageID(local_addr, msg_ids.getAndIncrement());
+        down_prot.down(new Message(sender).putHeader(id, ToaHeader.newFlushAckMessageHeader(msg_id))
+                         .setFlag(Message.Flag.OOB, Message.Flag.INTERNAL));
+    }
+
+    protected void handleView(View view) {
+        if(first_view_id < 0)
+            first_view_id=view.getViewId().getId();
+        flush_acks.retainAll(view.getMembers());
+        flush_markers.keySet().retainAll(view.getMembers());
+        Collection<Address> leavers=delivery_mgr.handleView(view);
+        if(leavers == null || leavers.isEmpty())
+            return;
+        // don't wait for proposals from members which left
+        for(MessageID msg_id: sender_mgr.getPendingMessageIDs()) {
+            long final_seqno=sender_mgr.removeLeavers(msg_id, leavers);
+            if(final_seqno != SenderManager.NOT_READY)
+                sendFinal(msg_id, final_seqno);
+        }
+        sendBatches();
+    }
+
+    protected Collection<Address> extract(AnycastAddress addr) {
+        return addr.findAddresses().orElseGet(delivery_mgr::getViewMembers);
+    }
+
+    /** Reads the (message ID, seqno) pairs of a batch, following the first pair (which is in the header) */
+    protected void forEachEntry(Message msg, EntryHandler handler) throws Exception {
+        if(msg.getLength() == 0)
+            return;
+        DataInput in=new ByteArrayDataInputStream(msg.getRawBuffer(), msg.getOffset(), msg.getLength());
+        int num=in.readInt();
+        for(int i=0; i < num; i++) {
+            MessageID msg_id=new MessageID();
+            msg_id.readFrom(in);
+            long seqno=Bits.readLong(in);
+            try {
+                handler.handle(msg_id, seqno);
+            }
+            catch(Exception ex) {
+                log.error("%s: failed handling %s from %s: %s", local_addr, msg_id, msg.getSrc(), ex);
+            }
+        }
+    }
+
+
+    protected interface EntryHandler {
+        void handle(MessageID msg_id, long seqno);
+    }
+
+    /**
+     * Queues (message ID, seqno) pairs per destination and sends all pairs for the same destination in one message. The
+     * first pair goes into the {@link ToaHeader}, the others into the payload, so a batch of 1 is a regular
+     * {@link TOA} message. A null destination multicasts the pairs.
+     */
+    protected class Batcher {
+        protected final byte                    type;
+        protected Map<Address,List<Entry>>      queues=new HashMap<>(); // guarded by this
+        protected final AtomicBoolean           sending=new AtomicBoolean();
+        protected final LongAdder               num_entries=new LongAdder(), num_batches=new LongAdder();
+
+        protected Batcher(byte type) {
+            this.type=type;
+        }
+
+        protected synchronized void add(Address dest, MessageID msg_id, long seqno) {
+            queues.computeIfAbsent(dest, d -> new ArrayList<>()).add(new Entry(msg_id, seqno));
+        }
+
+        /** Sends all queued pairs, unless a different thread is already sending (that thread will send them) */
+        protected void send() {
+            while(sending.compareAndSet(false, true)) {
+                try {
+                    Map<Address,List<Entry>> tmp;
+                    synchronized(this) {
+                        if(queues.isEmpty())
+                            return;
+                        tmp=queues;
+                        queues=new HashMap<>();
+                    }
+                    tmp.forEach(this::sendBatch);
+                }
+                finally {
+                    sending.set(false);
+                }
+                synchronized(this) {
+                    if(queues.isEmpty())
+                        return;
+                }
+            }
+        }
+
+        protected void sendBatch(Address dest, List<Entry> entries) {
+            Entry first=entries.get(0);
+            ToaHeader hdr=type == ToaHeader.PROPOSE_MESSAGE? ToaHeader.newProposeMessageHeader(first.msg_id, first.seqno)
+              : ToaHeader.newFinalMessageHeader(first.msg_id, first.seqno);
+            Message msg=new Message(dest).src(local_addr).putHeader(id, hdr).setFlag(Message.Flag.OOB, Message.Flag.INTERNAL);
+            if(dest == null)
+                msg.setTransientFlag(Message.TransientFlag.DONT_LOOPBACK);
+            try {
+                if(entries.size() > 1) {
+                    ByteArrayDataOutputStream out=new ByteArrayDataOutputStream(entries.size() * 32);
+                    out.writeInt(entries.size() - 1);
+                    for(int i=1; i < entries.size(); i++) {
+                        Entry e=entries.get(i);
+                        e.msg_id.writeTo(out);
+                        Bits.writeLong(e.seqno, out);
+                    }
+                    msg.setBuffer(out.buffer(), 0, out.position());
+                }
+                down_prot.down(msg);
+                num_entries.add(entries.size());
+                num_batches.increment();
+            }
+            catch(Exception ex) {
+                log.error("%s: failed sending %d entries to %s: %s", local_addr, entries.size(), dest == null? "all" : dest, ex);
+            }
+        }
+
+        protected void resetStats() {
+            num_entries.reset();
+            num_batches.reset();
+        }
+    }
+
+    protected static class Entry {
+        protected final MessageID msg_id;
+        protected final long      seqno;
+
+        protected Entry(MessageID msg_id, long seqno) {
+            this.msg_id=msg_id;
+            this.seqno=seqno;
+        }
+    }
+}
@@ -23,6 +23,8 @@ public class ToaHeader extends Header {
     public static final byte PROPOSE_MESSAGE = 1 << 1;
     public static final byte FINAL_MESSAGE = 1 << 2;
     public static final byte SINGLE_DESTINATION_MESSAGE = 1 << 3;
+    public static final byte FLUSH_MESSAGE = 1 << 4; // used by TOA2
+    public static final byte FLUSH_ACK_MESSAGE = 1 << 5; // used by TOA2
 
     private byte type = 0;
     private MessageID messageID; //address and sequence number
@@ -98,6 +100,10 @@ public class ToaHeader extends Header {
                 return "FINAL_MESSAGE";
             case SINGLE_DESTINATION_MESSAGE:
                 return "SINGLE_DESTINATION_MESSAGE";
+            case FLUSH_MESSAGE:
+                return "FLUSH_MESSAGE";
+            case FLUSH_ACK_MESSAGE:
+                return "FLUSH_ACK_MESSAGE";
             default:
                 return "UNKNOWN";
         }
@@ -122,6 +128,16 @@ public class ToaHeader extends Header {
         return new ToaHeader(messageID, SINGLE_DESTINATION_MESSAGE);
     }
 
+    public static ToaHeader newFlushMessageHeader(MessageID messageID) {
+        assertMessageIDNotNull(messageID);
+        return new ToaHeader(messageID, FLUSH_MESSAGE);
+    }
+
+    public static ToaHeader newFlushAckMessageHeader(MessageID messageID) {
+        assertMessageIDNotNull(messageID);
+        return new ToaHeader(messageID, FLUSH_ACK_MESSAGE);
+    }
+
     private static void assertMessageIDNotNull(MessageID messageID) {
         Objects.requireNonNull(messageID, "The message ID can't be null.");
     }
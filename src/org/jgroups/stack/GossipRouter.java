@@ -19,9 +19,13 @@ import java.io.DataInput;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.*;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.BiConsumer;
 
 /**
@@ -42,6 +46,12 @@ import java.util.function.BiConsumer;
  * <p/>
  * Note that a GossipRouter is also a good way of running JGroups in Amazon's EC2 environment which (as of summer 09)
  * doesn't support IP multicasting.
+ * <p/>
+ * When num_routing_threads is greater than 0, groups are assigned to routing threads by hash. Each routing thread
+ * forwards the messages of its groups in batches: all messages to the same destination are written with a single
+ * write. A received message is copied once (the connection may reuse its buffer), and the copy is shared by all
+ * destinations of a multicast. With TCP (not NIO), every client connection has a send queue, so that a slow client
+ * blocks a routing thread (and all groups assigned to it) for at most client_send_block_time ms.
  * @author Bela Ban
  * @author Vladimir Blagojevic
  * @author Ovidiu Feodorov <ovidiuf@users.sourceforge.net>
@@ -89,6 +99,33 @@ public class GossipRouter extends ReceiverAdapter implements ConnectionListener
     @Property(description="Dumps messages (dest/src/length/headers to stdout if enabled")
     protected boolean              dump_msgs;
 
+    @Property(description="Number of routing threads. Groups are assigned to routing threads by hash, and every " +
+      "routing thread forwards the messages of its groups in batches (one write per destination). 0 forwards " +
+      "messages on the thread which received them",writable=false)
+    protected int                  num_routing_threads;
+
+    @Property(description="Max number of messages queued by a routing thread. When full, receivers block",writable=false)
+    protected int                  routing_queue_size=10000;
+
+    @Property(description="Max number of messages forwarded by a routing thread in a single batch")
+    protected int                  max_routing_batch=1000;
+
+    @Property(description="Size of the send queue of every client connection when routing threads are used with TCP " +
+      "(not NIO). 0 disables the queues: a routing thread then writes to the client directly, and a slow client " +
+      "blocks the routing thread and all groups assigned to it",writable=false)
+    protected int                  client_send_queue_size=1000;
+
+    @Property(description="Max time (ms) a routing thread blocks when the send queue of a client is full. The " +
+      "message is then dropped (and retransmitted by the client's reliable protocols). -1 blocks until there is " +
+      "space in the queue",writable=false)
+    protected long                 client_send_block_time=100;
+
+    protected RoutingThread[]      routing_threads;
+
+    protected final LongAdder      num_msgs_routed=new LongAdder();
+    protected final LongAdder      num_routing_batches=new LongAdder();
+    protected final LongAdder      num_writes=new LongAdder();
+
     protected BaseServer                                        server;
     protected final AtomicBoolean  running=new AtomicBoolean(false);
     protected Timer                timer;
@@ -142,6 +179,22 @@ public class GossipRouter extends ReceiverAdapter implements ConnectionListener
     public GossipRouter  emitSuspectEvents(boolean flag)    {emit_suspect_events=flag; return this;}
     public boolean       dumpMessages()                     {return dump_msgs;}
     public GossipRouter  dumpMessages(boolean flag)         {dump_msgs=flag; return this;}
+    public int           numRoutingThreads()                {return num_routing_threads;}
+    public GossipRouter  numRoutingThreads(int n)           {num_routing_threads=n; return this;}
+    public int           routingQueueSize()                 {return routing_queue_size;}
+    public GossipRouter  routingQueueSize(int s)            {routing_queue_size=s; return this;}
+    public int           maxRoutingBatch()                  {return max_routing_batch;}
+    public GossipRouter  maxRoutingBatch(int b)             {max_routing_batch=b; return this;}
+    public int           clientSendQueueSize()              {return client_send_queue_size;}
+    public GossipRouter  clientSendQueueSize(int s)         {client_send_queue_size=s; return this;}
+    public long          clientSendBlockTime()              {return client_send_block_time;}
+    public GossipRouter  clientSendBlockTime(long t)        {client_send_block_time=t; return this;}
+    @ManagedAttribute(description="Number of messages forwarded by the routing threads")
+    public long          getNumMessagesRouted()             {return num_msgs_routed.sum();}
+    @ManagedAttribute(description="Number of batches forwarded by the routing threads")
+    public long          getNumRoutingBatches()             {return num_routing_batches.sum();}
+    @ManagedAttribute(description="Number of (batched) writes to destinations by the routing threads")
+    public long          getNumWrites()                     {return num_writes.sum();}
     @ManagedAttribute(description="operational status", name="running")
     public boolean       running()                          {return running.get();}
 
@@ -165,6 +218,16 @@ public class GossipRouter extends ReceiverAdapter implements ConnectionListener
         server=use_nio? new NioServer(thread_factory, socket_factory, bind_addr, port, port, null, 0)
           : new TcpServer(thread_factory, socket_factory, bind_addr, port, port, null, 0);
         server.receiver(this);
+        if(num_routing_threads > 0) {
+            // NIO connections don't block on writes; with TCP, a send queue bounds the time a slow client blocks
+            if(server instanceof TcpServer && client_send_queue_size > 0)
+                ((TcpServer)server).sendQueueSize(client_send_queue_size).sendQueueBlockTime(client_send_block_time);
+            routing_threads=new RoutingThread[num_routing_threads];
+            for(int i=0; i < routing_threads.length; i++) {
+                routing_threads[i]=new RoutingThread(routing_queue_size);
+                routing_threads[i].start(thread_factory, "routing-" + i);
+            }
+        }
         server.start();
         server.addConnectionListener(this);
         Runtime.getRuntime().addShutdownHook(new Thread(GossipRouter.this::stop));
@@ -186,6 +249,11 @@ public class GossipRouter extends ReceiverAdapter implements ConnectionListener
             log.error(Util.getMessage("MBeanDeRegistrationFailed"), ex);
         }
         Util.close(server);
+        if(routing_threads != null) {
+            for(RoutingThread t: routing_threads)
+                t.stop();
+            routing_threads=null;
+        }
         log.debug("router stopped");
     }
 
@@ -196,6 +264,13 @@ public class GossipRouter extends ReceiverAdapter implements ConnectionListener
     }
 
 
+    @ManagedOperation(description="Resets all statistics")
+    public void resetStats() {
+        num_msgs_routed.reset();
+        num_routing_batches.reset();
+        num_writes.reset();
+    }
+
     @ManagedOperation(description="Dumps the address mappings")
     public String dumpAddresssMappings() {
         StringBuilder sb=new StringBuilder();
@@ -240,7 +315,12 @@ public class GossipRouter extends ReceiverAdapter implements ConnectionListener
                 try {
                     String group=Bits.readString(in);
                     Address dest=Util.readAddress(in);
-                    route(group, dest, buf, offset, length);
+                    if(routing_threads != null) { // the buffer may be reused by the connection: copy it
+                        byte[] copy=Arrays.copyOfRange(buf, offset, offset+length);
+                        route(group, dest, copy, 0, copy.length);
+                    }
+                    else
+                        route(group, dest, buf, offset, length);
 
                     if(dump_msgs) {
                         ByteArrayDataInputStream input=new ByteArrayDataInputStream(buf, offset, length);
@@ -435,6 +515,11 @@ public class GossipRouter extends ReceiverAdapter implements ConnectionListener
 
 
     protected void route(String group, Address dest, byte[] msg, int offset, int length) {
+        RoutingThread[] threads=routing_threads;
+        if(threads != null) {
+            threads[(group.hashCode() & Integer.MAX_VALUE) % threads.length].add(group, dest, msg, offset, length);
+            return;
+        }
         ConcurrentMap<Address,Entry> map=address_mappings.get(group);
         if(map == null)
             return;
@@ -515,6 +600,120 @@ public class GossipRouter extends ReceiverAdapter implements ConnectionListener
     }
 
 
+    /** A message to be forwarded by a {@link RoutingThread} */
+    protected static class RoutedMessage {
+        protected final String  group;
+        protected final Address dest; // null: send to all members of the group
+        protected final byte[]  buf;
+        protected final int     offset, length;
+
+        protected RoutedMessage(String group, Address dest, byte[] buf, int offset, int length) {
+            this.group=group;
+            this.dest=dest;
+            this.buf=buf;
+            this.offset=offset;
+            this.length=length;
+        }
+    }
+
+    /**
+     * Forwards the messages of the groups assigned to it. Messages are removed from the queue in batches; all
+     * messages of a batch to the same destination are sent with a single write, in the order in which they were
+     * received. The copy of a multicast made on reception is not copied again: every destination gets a
+     * {@link ByteBuffer} wrapping it
+     */
+    protected class RoutingThread implements Runnable {
+        protected final BlockingQueue<RoutedMessage>   queue;
+        protected final List<RoutedMessage>            batch;
+        protected final Map<Address,List<ByteBuffer>>  dests=new LinkedHashMap<>();
+        protected Thread                               thread;
+        protected volatile boolean                     running;
+
+        protected RoutingThread(int capacity) {
+            queue=new ArrayBlockingQueue<>(capacity);
+            batch=new ArrayList<>(Math.min(capacity, max_routing_batch));
+        }
+
+        protected void start(ThreadFactory factory, String name) {
+            running=true;
+            thread=factory.newThread(this, name);
+            thread.start();
+        }
+
+        protected void stop() {
+            running=false;
+            Thread tmp=thread;
+            if(tmp != null)
+                tmp.interrupt();
+            queue.clear();
+        }
+
+        protected void add(String group, Address dest, byte[] buf, int offset, int length) {
+            try {
+                queue.put(new RoutedMessage(group, dest, buf, offset, length));
+            }
+            catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        public void run() {
+            while(running) {
+                try {
+                    batch.add(queue.take());
+                    queue.drainTo(batch, max_routing_batch -1);
+                    route(batch);
+                }
+                catch(InterruptedException ie) {
+                    break;
+                }
+                catch(Throwable t) {
+                    log.error("failed routing messages", t);
+                }
+                finally {
+                    batch.clear();
+                    dests.clear();
+                }
+            }
+        }
+
+        protected void route(List<RoutedMessage> msgs) {
+            for(RoutedMessage msg: msgs) {
+                ConcurrentMap<Address,Entry> map=address_mappings.get(msg.group);
+                if(map == null)
+                    continue;
+                if(msg.dest != null) {
+                    Entry entry=map.get(msg.dest);
+                    if(entry != null)
+                        add(entry.client_addr, msg);
+                    else
+                        log.warn("dest %s in cluster %s not found", msg.dest, msg.group);
+                }
+                else {
+                    for(Entry e: map.values())
+                        add(e.client_addr, msg);
+                }
+            }
+            num_msgs_routed.add(msgs.size());
+            num_routing_batches.increment();
+            for(Map.Entry<Address,List<ByteBuffer>> entry: dests.entrySet()) {
+                Address dest=entry.getKey();
+                try {
+                    server.send(dest, entry.getValue());
+                    num_writes.increment();
+                }
+                catch(Exception ex) {
+                    log.error("failed sending %d messages to %s: %s", entry.getValue().size(), dest, ex);
+                }
+            }
+        }
+
+        protected void add(Address dest, RoutedMessage msg) {
+            dests.computeIfAbsent(dest, d -> new ArrayList<>()).add(ByteBuffer.wrap(msg.buf, msg.offset, msg.length));
+        }
+    }
+
+
     protected static class Entry {
         protected final PhysicalAddress phys_addr;
         protected final String          logical_name;
@@ -558,6 +757,7 @@ public class GossipRouter extends ReceiverAdapter implements ConnectionListener
         GossipRouter router=null;
         String bind_addr=null;
         boolean jmx=true, nio=true, suspects=true, dump_msgs=false;
+        int routing_threads=0;
 
         for(int i=0; i < args.length; i++) {
             String arg=args[i];
@@ -601,6 +801,10 @@ public class GossipRouter extends ReceiverAdapter implements ConnectionListener
                 dump_msgs=Boolean.parseBoolean(args[++i]);
                 continue;
             }
+            if("-routing_threads".equals(arg)) {
+                routing_threads=Integer.parseInt(args[++i]);
+                continue;
+            }
             help();
             return;
         }
@@ -612,7 +816,8 @@ public class GossipRouter extends ReceiverAdapter implements ConnectionListener
           .socketReadTimeout(soTimeout)
           .lingerTimeout(soLinger)
           .emitSuspectEvents(suspects)
-          .dumpMessages(dump_msgs);
+          .dumpMessages(dump_msgs)
+          .numRoutingThreads(routing_threads);
         router.start();
         IpAddress local=(IpAddress)router.localAddress();
         System.out.printf("\nGossipRouter listening on %s:%s\n", bind_addr != null? bind_addr : "0.0.0.0",  local.getPort());
@@ -650,5 +855,8 @@ public class GossipRouter extends ReceiverAdapter implements ConnectionListener
         System.out.println();
         System.out.printf("    -dump_msgs <true|false> - Dumps all messages to stdout after routing them\n");
         System.out.println();
+        System.out.printf("    -routing_threads <num>  - Number of threads forwarding messages in batches. Groups are\n" +
+                          "                              assigned to threads by hash. 0 forwards on the receiving thread\n");
+        System.out.println();
     }
 }
@@ -90,6 +90,40 @@ public class RouterStubManager implements Runnable, RouterStub.CloseListener {
     }
 
 
+    /**
+     * Applies action to the connected RouterStub picked by (rendezvous) hashing of the cluster name over the
+     * addresses of the GossipRouters. All members of a cluster therefore send their messages via the same
+     * GossipRouter, and different clusters are spread over all GossipRouters. When a GossipRouter is not reachable,
+     * only the clusters mapped to it pick a different GossipRouter.
+     * @param action
+     */
+    public void forCluster(Consumer<RouterStub> action) {
+        RouterStub stub=pickStub(stubs, cluster_name);
+        if(stub != null)
+            action.accept(stub);
+        else
+            forAny(action);
+    }
+
+    /** Returns the connected stub with the highest score for the given cluster, or null if none is connected */
+    protected static RouterStub pickStub(List<RouterStub> list, String cluster) {
+        if(cluster == null)
+            return null;
+        RouterStub retval=null;
+        long max=Long.MIN_VALUE;
+        int key=cluster.hashCode();
+        for(RouterStub stub: list) {
+            if(!stub.isConnected())
+                continue;
+            long score=Util.rendezvousScore(key, stub.gossipRouterAddress().hashCode());
+            if(retval == null || score > max) {
+                retval=stub;
+                max=score;
+            }
+        }
+        return retval;
+    }
+
     public RouterStub createAndRegisterStub(IpAddress local, IpAddress router_addr) {
         RouterStub stub=new RouterStub(local, router_addr, use_nio, this);
         RouterStub old_stub=unregisterStub(router_addr);
@@ -15,6 +15,7 @@ public class StateTransferInfo {
     public Address      target=null;
     public long         timeout=0;
     public byte[]       state=null;
+    public byte[]       version=null; // version of the requester's state for delta state transfer (can be null)
 
 
 
@@ -38,8 +39,10 @@ public class StateTransferInfo {
 
 
 
+    public StateTransferInfo version(byte[] v) {this.version=v; return this;}
+
     public StateTransferInfo copy() {
-        return new StateTransferInfo(target, timeout, state);
+        return new StateTransferInfo(target, timeout, state).version(version);
     }
 
 
@@ -48,6 +51,8 @@ public class StateTransferInfo {
         ret.append("target=" + target);
         if(state != null)
             ret.append(", state=" + state.length + " bytes");
+        if(version != null)
+            ret.append(", version=" + version.length + " bytes");
         ret.append(", timeout=" + timeout);
         return ret.toString();
     }
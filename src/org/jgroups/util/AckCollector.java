@@ -8,7 +8,8 @@ import java.util.List;
 import java.util.concurrent.TimeoutException;
 
 /**
- * Collects acks from a number of nodes, waits for all acks. Can also be time bounded
+ * Collects acks from a number of nodes, waits for all acks. Can also be time bounded. When a quorum is set, the
+ * wait returns as soon as the given number of acks has been received.
  * @author Bela Ban
  */
 public class AckCollector {
@@ -17,6 +18,7 @@ public class AckCollector {
     protected final Promise<Boolean>  all_acks_received=new Promise<>();
     protected final List<Address>     suspected_mbrs=new ArrayList<>(5);
     protected int                     expected_acks;
+    protected int                     quorum; // number of acks after which the waiter is released; 0 == all
 
 
     public AckCollector() {
@@ -38,6 +40,7 @@ public class AckCollector {
     public synchronized void reset(Collection<Address> members) {
         suspected_mbrs.clear();
         missing_acks.clear();
+        quorum=0;
         addAll(members);
         all_acks_received.reset();
     }
@@ -45,6 +48,7 @@ public class AckCollector {
     public synchronized AckCollector reset(Collection<Address> expected_acks, Collection<Address> exclude) {
         suspected_mbrs.clear();
         missing_acks.clear();
+        quorum=0;
         addAll(expected_acks, exclude);
         all_acks_received.reset();
         return this;
@@ -53,6 +57,7 @@ public class AckCollector {
     public synchronized AckCollector reset(Collection<Address> expected_acks, Address ... exclude) {
         suspected_mbrs.clear();
         missing_acks.clear();
+        quorum=0;
         addAll(expected_acks, exclude);
         all_acks_received.reset();
         return this;
@@ -73,21 +78,41 @@ public class AckCollector {
         return expected_acks;
     }
 
+    /** Returns the number of acks received so far (acks from suspected members included) */
+    public synchronized int received() {
+        return expected_acks - missing_acks.size();
+    }
+
+    public synchronized int quorum() {
+        return quorum;
+    }
+
+    /**
+     * Sets the number of acks after which {@link #waitForAllAcks(long)} returns, even if not all acks have been
+     * received. Needs to be set after a reset, as reset sets the quorum to 0 (wait for all acks)
+     */
+    public synchronized AckCollector quorum(int num_acks) {
+        quorum=Math.max(0, num_acks);
+        if(done())
+            all_acks_received.setResult(Boolean.TRUE);
+        return this;
+    }
+
     public synchronized void ack(Address member) {
-        if(member != null && missing_acks.remove(member) &&  missing_acks.isEmpty())
+        if(member != null && missing_acks.remove(member) && done())
             all_acks_received.setResult(Boolean.TRUE);
     }
 
     public synchronized void ack(Address ... members) {
         for(Address member: members) {
-            if(member != null && missing_acks.remove(member) && missing_acks.isEmpty())
+            if(member != null && missing_acks.remove(member) && done())
                 all_acks_received.setResult(Boolean.TRUE);
         }
     }
 
     public synchronized void ack(Collection<Address> members) {
         for(Address member: members) {
-            if(member != null && missing_acks.remove(member) && missing_acks.isEmpty())
+            if(member != null && missing_acks.remove(member) && done())
                 all_acks_received.setResult(Boolean.TRUE);
         }
     }
@@ -121,21 +146,21 @@ public class AckCollector {
         boolean retval=false;
         synchronized(this) {
             suspected_mbrs.retainAll(members);
-            if((retval=missing_acks.retainAll(members)) && missing_acks.isEmpty())
+            if((retval=missing_acks.retainAll(members)) && done())
                 all_acks_received.setResult(Boolean.TRUE);
         }
         return retval;
     }
 
     public boolean waitForAllAcks() {
-        if(missing_acks.isEmpty())
+        if(isDone())
             return true;
         Boolean result=all_acks_received.getResult();
         return result != null && result;
     }
 
     public boolean waitForAllAcks(long timeout) throws TimeoutException {
-        if(missing_acks.isEmpty())
+        if(isDone())
             return true;
         Boolean result=all_acks_received.getResultWithTimeout(timeout);
         return result != null && result;
@@ -153,6 +178,15 @@ public class AckCollector {
         return Util.printListWithDelimiter(suspected_mbrs, ", ");
     }
 
+    protected synchronized boolean isDone() {
+        return done();
+    }
+
+    /** All acks or at least quorum acks have been received. Needs to be called with the lock held */
+    protected boolean done() {
+        return missing_acks.isEmpty() || (quorum > 0 && expected_acks - missing_acks.size() >= quorum);
+    }
+
     protected synchronized void addAll(Address ... members) {
         if(members == null)
             return;
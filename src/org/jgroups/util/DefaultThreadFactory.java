@@ -21,6 +21,7 @@ public class DefaultThreadFactory implements ThreadFactory {
     protected String        clusterName;
     protected boolean       includeLocalAddress;
     protected String        address;
+    protected boolean       use_vthreads; // creates virtual threads if available
 
 
 
@@ -53,6 +54,13 @@ public class DefaultThreadFactory implements ThreadFactory {
         this.address=address;
     }
 
+    public boolean useVirtualThreads() {return use_vthreads;}
+
+    public DefaultThreadFactory useVirtualThreads(boolean b) {
+        use_vthreads=b && ThreadCreator.hasVirtualThreads();
+        return this;
+    }
+
 
     public Thread newThread(Runnable r, String name) {
         return newThread(r, name, null, null);
@@ -67,9 +75,7 @@ public class DefaultThreadFactory implements ThreadFactory {
                                String addr,
                                String cluster_name) {
         String thread_name=getNewThreadName(name, addr, cluster_name);
-        Thread retval=new Thread(r, thread_name);
-        retval.setDaemon(createDaemons);
-        return retval;
+        return ThreadCreator.createThread(r, thread_name, createDaemons, use_vthreads);
     }
 
     public void renameThread(String base_name, Thread thread) {
@@ -33,6 +33,8 @@ public class LazyThreadFactory extends DefaultThreadFactory {
             cluster_name=CLUSTER;
 
         retval=super.newThread(r, name, addr, cluster_name);
+        if(use_vthreads) // virtual threads are not pooled and usually short-lived: don't track them for renaming
+            return retval;
         int size=threads.size();
         threads.add(new WeakReference<>(retval));
         if(size > 0)
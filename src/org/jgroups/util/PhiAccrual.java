@@ -0,0 +1,151 @@
+package org.jgroups.util;
+
+import org.jgroups.Address;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Phi accrual failure detector (Hayashibara et al). Keeps a sliding window of the last N inter-arrival times of
+ * heartbeats from a given member and computes a suspicion level phi, which is the (negative log10) probability that
+ * a heartbeat will still arrive, given the time elapsed since the last heartbeat and the distribution of the
+ * inter-arrival times observed so far. A phi of 1 means a ~10% chance of a false suspicion, 2 ~1%, 3 ~0.1% and so on.
+ * <p/>
+ * The cumulative distribution function of the normal distribution is approximated with a logistic function, as
+ * done by Akka and Cassandra.<p/>
+ * All times are passed in nanoseconds; internally, inter-arrival times are kept in milliseconds.
+ * This class is thread-safe.
+ * @since  4.1.2
+ */
+public class PhiAccrual {
+    protected final long[] intervals; // ring buffer of inter-arrival times (ms)
+    protected int          index, size;
+    protected long         sum;       // sum of all intervals in the window
+    protected long         sum_sq;    // sum of squares of all intervals in the window
+    protected long         last;      // timestamp (ns) of the last heartbeat, or of the last reset if none was received
+    protected boolean      received;  // true if a heartbeat was received since creation or the last reset
+    protected boolean      started;   // true once a heartbeat was received or reset() was called
+    protected final double min_stddev;
+    protected final int    min_samples;
+
+    /**
+     * Creates a new instance
+     * @param window_size The max number of inter-arrival times to keep
+     * @param min_stddev The min standard deviation (ms); prevents phi from shooting up when heartbeats are very regular
+     * @param min_samples The min number of samples needed before {@link #phi(long)} returns a value greater than 0
+     */
+    public PhiAccrual(int window_size, double min_stddev, int min_samples) {
+        if(window_size <= 0)
+            throw new IllegalArgumentException("window_size has to be > 0: " + window_size);
+        this.intervals=new long[window_size];
+        this.min_stddev=min_stddev;
+        this.min_samples=Math.max(1, min_samples);
+    }
+
+    public synchronized int     size()     {return size;}
+    public synchronized boolean received() {return received;}
+    public int                  capacity() {return intervals.length;}
+
+    /** Adds the arrival time (ns) of a heartbeat */
+    public synchronized PhiAccrual add(long timestamp) {
+        if(received) {
+            long interval=TimeUnit.MILLISECONDS.convert(timestamp - last, TimeUnit.NANOSECONDS);
+            if(interval >= 0) {
+                if(size == intervals.length) {
+                    long old=intervals[index];
+                    sum-=old;
+                    sum_sq-=old * old;
+                }
+                else
+                    size++;
+                intervals[index]=interval;
+                index=(index+1) % intervals.length;
+                sum+=interval;
+                sum_sq+=interval * interval;
+            }
+        }
+        last=timestamp;
+        received=started=true;
+        return this;
+    }
+
+    public synchronized double mean() {
+        return size == 0? 0.0 : sum / (double)size;
+    }
+
+    public synchronized double stddev() {
+        if(size == 0)
+            return min_stddev;
+        double mean=sum / (double)size, variance=sum_sq / (double)size - mean * mean;
+        return Math.max(Math.sqrt(Math.max(variance, 0.0)), min_stddev);
+    }
+
+    /**
+     * Returns the time (ms) elapsed since the last heartbeat, or since the last {@link #reset(long)} if no heartbeat
+     * has been received since. Returns -1 if neither has happened yet
+     */
+    public synchronized long elapsed(long now) {
+        return started? TimeUnit.MILLISECONDS.convert(now - last, TimeUnit.NANOSECONDS) : -1;
+    }
+
+    /**
+     * Computes phi at the given time (ns). Returns 0 if less than min_samples inter-arrival times have been collected
+     */
+    public synchronized double phi(long now) {
+        if(!received || size < min_samples)
+            return 0.0;
+        return phi(TimeUnit.MILLISECONDS.convert(now - last, TimeUnit.NANOSECONDS), mean(), stddev());
+    }
+
+    /**
+     * Discards all inter-arrival times; {@link #elapsed(long)} is measured from now until the next heartbeat arrives.
+     * The next heartbeat doesn't add an inter-arrival time, as no heartbeat was received before it
+     */
+    public synchronized PhiAccrual reset(long now) {
+        index=size=0;
+        sum=sum_sq=0;
+        last=now;
+        received=false;
+        started=true;
+        return this;
+    }
+
+    public synchronized String toString() {
+        return String.format("samples=%d, mean=%.2f ms, stddev=%.2f ms", size, mean(), stddev());
+    }
+
+    public synchronized String toString(long now) {
+        return String.format("phi=%.2f (elapsed=%d ms, %s)", phi(now), elapsed(now), toString());
+    }
+
+    /** Records the arrival (ns) of a heartbeat from mbr, creating the detector for mbr if absent */
+    public static PhiAccrual addArrival(ConcurrentMap<Address,PhiAccrual> map, Address mbr, long timestamp,
+                                        int window_size, double min_stddev, int min_samples) {
+        PhiAccrual pa=map.get(mbr);
+        if(pa == null) {
+            PhiAccrual tmp=map.putIfAbsent(mbr, pa=new PhiAccrual(window_size, min_stddev, min_samples));
+            if(tmp != null)
+                pa=tmp;
+        }
+        return pa.add(timestamp);
+    }
+
+    /** Prints the phi of all members at the given time (ns) */
+    public static String print(Map<Address,PhiAccrual> map, long now) {
+        StringBuilder sb=new StringBuilder();
+        for(Map.Entry<Address,PhiAccrual> entry: map.entrySet())
+            sb.append(entry.getKey()).append(": ").append(entry.getValue().toString(now)).append("\n");
+        return sb.toString();
+    }
+
+    /** Computes phi from the time since the last heartbeat and the mean and stddev of the inter-arrival times */
+    protected static double phi(long elapsed, double mean, double stddev) {
+        if(stddev <= 0.0)
+            return elapsed > mean? Double.POSITIVE_INFINITY : 0.0;
+        double y=(elapsed - mean) / stddev;
+        double e=Math.exp(-y * (1.5976 + 0.070566 * y * y));
+        double p=elapsed > mean? e / (1.0 + e) : 1.0 - 1.0 / (1.0 + e);
+        return p <= 0.0? Double.POSITIVE_INFINITY : -Math.log10(p);
+    }
+}
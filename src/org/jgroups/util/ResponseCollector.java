@@ -7,6 +7,7 @@ import java.util.*;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
 /** Similar to AckCollector, but collects responses from cluster members, not just acks. Null is not a valid key.
@@ -163,6 +164,20 @@ public class ResponseCollector<T> {
         return cond.waitFor(this::hasAllResponses, timeout, TimeUnit.MILLISECONDS);
     }
 
+    /**
+     * Waits until all responses have been received, or the condition is true, or until a timeout has elapsed.
+     * @param condition Evaluated (under the lock) against the members which sent a valid response so far
+     * @param timeout Number of milliseconds to wait max. Needs to be greater than 0, or else it will be adjusted to 2000
+     * @return True if all responses have been received or the condition was met within timeout ms, else false
+     */
+    public boolean waitForResponses(Predicate<List<Address>> condition, long timeout) {
+        if(timeout <= 0)
+            timeout=2000L;
+        if(condition == null)
+            return waitForAllResponses(timeout);
+        return cond.waitFor(() -> hasAllResponses() || condition.test(getValidResults()), timeout, TimeUnit.MILLISECONDS);
+    }
+
     public void reset() {
         reset((Collection<Address>)null);
     }
@@ -0,0 +1,91 @@
+package org.jgroups.util;
+
+import org.jgroups.logging.Log;
+import org.jgroups.logging.LogFactory;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Creates platform or virtual threads. Virtual threads are only available in JDK 21 or later; as JGroups is compiled
+ * against earlier JDKs, they're created via method handles. When virtual threads are not available, platform threads
+ * are created instead.
+ * @since  4.1.2
+ */
+public class ThreadCreator {
+    protected static final Log          LOG=LogFactory.getLog(ThreadCreator.class);
+    protected static final MethodHandle OF_VIRTUAL, NAME, UNSTARTED, THREAD_PER_TASK_EXECUTOR;
+
+    static {
+        MethodHandle of_virtual=null, name=null, unstarted=null, executor=null;
+        try {
+            MethodHandles.Lookup lookup=MethodHandles.publicLookup();
+            Class<?> builder=Class.forName("java.lang.Thread$Builder");
+            Class<?> virtual_builder=Class.forName("java.lang.Thread$Builder$OfVirtual");
+            of_virtual=lookup.findStatic(Thread.class, "ofVirtual", MethodType.methodType(virtual_builder));
+            name=lookup.findVirtual(builder, "name", MethodType.methodType(builder, String.class));
+            unstarted=lookup.findVirtual(builder, "unstarted", MethodType.methodType(Thread.class, Runnable.class));
+            executor=lookup.findStatic(java.util.concurrent.Executors.class, "newThreadPerTaskExecutor",
+                                       MethodType.methodType(ExecutorService.class, java.util.concurrent.ThreadFactory.class));
+        }
+        catch(Throwable t) { // JDK < 21
+            of_virtual=name=unstarted=executor=null;
+        }
+        OF_VIRTUAL=of_virtual;
+        NAME=name;
+        UNSTARTED=unstarted;
+        THREAD_PER_TASK_EXECUTOR=executor;
+    }
+
+    private ThreadCreator() {
+        throw new InstantiationError("Must not instantiate this class");
+    }
+
+    /** Returns true if the JDK supports virtual threads */
+    public static boolean hasVirtualThreads() {
+        return OF_VIRTUAL != null;
+    }
+
+    /**
+     * Creates an unstarted thread
+     * @param r The runnable
+     * @param name The name of the thread
+     * @param daemon Whether or not to create a daemon thread (virtual threads are always daemon threads)
+     * @param virtual Creates a virtual thread if true and virtual threads are available, else a platform thread
+     */
+    public static Thread createThread(Runnable r, String name, boolean daemon, boolean virtual) {
+        if(virtual && hasVirtualThreads()) {
+            try {
+                Object builder=OF_VIRTUAL.invoke();
+                if(name != null)
+                    builder=NAME.invoke(builder, name);
+                return (Thread)UNSTARTED.invoke(builder, r);
+            }
+            catch(Throwable t) {
+                LOG.warn("failed creating virtual thread, falling back to platform thread: %s", t);
+            }
+        }
+        Thread t=name != null? new Thread(r, name) : new Thread(r);
+        t.setDaemon(daemon);
+        return t;
+    }
+
+    /**
+     * Creates an executor which runs every task in a new thread created by the given factory. With virtual threads,
+     * this replaces a thread pool; threads are not pooled, as virtual threads are cheap to create.
+     * @return The executor, or null if the JDK doesn't support virtual threads
+     */
+    public static ExecutorService createThreadPerTaskExecutor(java.util.concurrent.ThreadFactory factory) {
+        if(THREAD_PER_TASK_EXECUTOR == null)
+            return null;
+        try {
+            return (ExecutorService)THREAD_PER_TASK_EXECUTOR.invoke(factory);
+        }
+        catch(Throwable t) {
+            LOG.warn("failed creating thread-per-task executor: %s", t);
+            return null;
+        }
+    }
+}
@@ -8,4 +8,8 @@ public interface ThreadFactory extends java.util.concurrent.ThreadFactory {
     void setClusterName(String channelName);
     void setAddress(String address);   
     void renameThread(String base_name, Thread thread);   
+
+    /** Whether virtual threads are created (only if available, see {@link ThreadCreator#hasVirtualThreads()}) */
+    default boolean useVirtualThreads()                  {return false;}
+    default ThreadFactory useVirtualThreads(boolean b)   {return this;}
 }
@@ -2639,6 +2639,21 @@ public class Util {
     }
 
 
+    /**
+     * Mixes the hash of a key and the hash of an element into a score (finalizer of MurmurHash3). Used for rendezvous
+     * hashing: the element with the highest score for a given key is picked
+     */
+    public static long rendezvousScore(int key, int element) {
+        long h=((long)key << 32) | (element & 0xffffffffL);
+        h^=h >>> 33;
+        h*=0xff51afd7ed558ccdL;
+        h^=h >>> 33;
+        h*=0xc4ceb9fe1a85ec53L;
+        h^=h >>> 33;
+        return h;
+    }
+
+
     public static <T> T pickNext(List<T> list,T obj) {
         if(list == null || obj == null)
             return null;
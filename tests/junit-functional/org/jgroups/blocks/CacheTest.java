@@ -196,6 +196,122 @@ public class CacheTest {
         Assert.assertEquals(cache.getSize(), 2);
     }
 
+    @Test
+    public void testFrequentlyAccessedEntriesSurviveScan() {
+
+        // Setup
+        Cache<String, String> cache = new Cache<>();
+        cache.setMaxNumberOfEntries(10);
+        cache.put(KEY1, VALUE1, 0);
+        cache.get(KEY1); // moves KEY1 to the protected segment
+
+        // Run: add entries which are never read again
+        for (int i = 0; i < 100; i++)
+            cache.put("scan-" + i, "val-" + i, 0);
+
+        // Verify
+        Assert.assertEquals(cache.getSize(), 10);
+        Assert.assertEquals(cache.get(KEY1), VALUE1);
+        Assert.assertNull(cache.getEntry("scan-0"));
+        Assert.assertNotNull(cache.getEntry("scan-99"));
+        Assert.assertEquals(cache.getNumEvictions(), 91);
+    }
+
+    @Test
+    public void testMaxWeight() {
+
+        // Setup
+        Cache<String, byte[]> cache = new Cache<>();
+        cache.setWeigher((k, v) -> v.length);
+        cache.setMaxWeight(1000);
+
+        // Run
+        for (int i = 0; i < 10; i++)
+            cache.put("key-" + i, new byte[300], 0);
+
+        // Verify
+        Assert.assertEquals(cache.getSize(), 3);
+        Assert.assertEquals(cache.getWeight(), 900);
+        Assert.assertNotNull(cache.getEntry("key-9"));
+        cache.remove("key-9");
+        Assert.assertEquals(cache.getWeight(), 600);
+    }
+
+    @Test
+    public void testBoundsSetAfterAdding() {
+
+        // Setup: entries are not tracked for eviction while the cache is unbounded
+        Cache<String, byte[]> cache = new Cache<>();
+        cache.setWeigher((k, v) -> v.length);
+        for (int i = 0; i < 10; i++)
+            cache.put("key-" + i, new byte[100], 0);
+        Assert.assertEquals(cache.getWeight(), 0);
+
+        // Run
+        cache.setMaxWeight(500);
+        cache.put("key-10", new byte[100], 0);
+
+        // Verify
+        Assert.assertEquals(cache.getSize(), 5);
+        Assert.assertEquals(cache.getWeight(), 500);
+        Assert.assertNotNull(cache.getEntry("key-10"));
+
+        // Run: unbounded again
+        cache.setMaxWeight(0);
+        for (int i = 11; i < 20; i++)
+            cache.put("key-" + i, new byte[100], 0);
+
+        // Verify
+        Assert.assertEquals(cache.getSize(), 14);
+        cache.setMaxWeight(300);
+        cache.put("key-20", new byte[100], 0);
+        Assert.assertEquals(cache.getSize(), 3);
+        Assert.assertEquals(cache.getWeight(), 300);
+    }
+
+    @Test
+    public void testOneExpirationPerKey() {
+
+        // Setup
+        Cache<String, String> cache = new Cache<>();
+
+        // Run: overwrite the same key many times
+        for (int i = 0; i < 100; i++)
+            cache.put(KEY1, VALUE1 + i, 60000);
+        cache.put(KEY2, VALUE2, 60000);
+
+        // Verify
+        Assert.assertEquals(cache.getNumExpiringEntries(), 2);
+        cache.put(KEY1, VALUE1, 0); // doesn't expire
+        Assert.assertEquals(cache.getNumExpiringEntries(), 1);
+        cache.remove(KEY2);
+        Assert.assertEquals(cache.getNumExpiringEntries(), 0);
+    }
+
+    @Test
+    public void testStats() throws Exception {
+
+        // Setup
+        Cache<String, String> cache = new Cache<>();
+        cache.put(KEY1, VALUE1, 0);
+        cache.put(KEY2, VALUE2, 10);
+        Thread.sleep(50);
+
+        // Run
+        cache.get(KEY1);
+        cache.get(KEY1);
+        cache.get(KEY2);
+        cache.get(KEY3);
+
+        // Verify
+        Assert.assertEquals(cache.getNumHits(), 2);
+        Assert.assertEquals(cache.getNumMisses(), 2);
+        Assert.assertEquals(cache.getNumExpirations(), 1);
+        Assert.assertEquals(cache.getHitRatio(), 0.5);
+        cache.resetStats();
+        Assert.assertEquals(cache.getNumHits(), 0);
+    }
+
     @Test
     public void testRemoveListener() throws Exception {
 
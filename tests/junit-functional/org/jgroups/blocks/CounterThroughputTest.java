@@ -0,0 +1,142 @@
+package org.jgroups.blocks;
+
+import org.jgroups.Global;
+import org.jgroups.JChannel;
+import org.jgroups.blocks.atomic.Counter;
+import org.jgroups.blocks.atomic.CounterService;
+import org.jgroups.protocols.COUNTER;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+import static org.testng.Assert.*;
+
+/**
+ * Tests batching of adds ({@link COUNTER#batch_adds}) and range counters
+ * @since  4.1.2
+ */
+@Test(groups=Global.FUNCTIONAL,singleThreaded=true)
+public class CounterThroughputTest {
+    protected JChannel              a, b, c;
+    protected CounterService        s1, s2, s3;
+    protected static final String   NAME="counter";
+    protected static final int      NUM_THREADS=10, NUM=200;
+
+    @BeforeMethod protected void setup() throws Exception {
+        a=create("A");
+        s1=new CounterService(a);
+        a.connect(CounterThroughputTest.class.getSimpleName());
+        b=create("B");
+        s2=new CounterService(b);
+        b.connect(CounterThroughputTest.class.getSimpleName());
+        c=create("C");
+        s3=new CounterService(c);
+        c.connect(CounterThroughputTest.class.getSimpleName());
+        Util.waitUntilAllChannelsHaveSameView(10000, 500, a, b, c);
+    }
+
+    @AfterMethod protected void destroy() {
+        Util.close(c, b, a);
+    }
+
+
+    /** Concurrent increments on a non-coordinator are folded, but every caller still gets a unique value */
+    public void testBatchedAdds() throws Exception {
+        Counter counter=s2.getOrCreateCounter(NAME, 0);
+        Set<Long> values=ConcurrentHashMap.newKeySet();
+        run(counter, values);
+        assertEquals(values.size(), NUM_THREADS * NUM);
+        assertEquals(Collections.min(values).longValue(), 1);
+        assertEquals(Collections.max(values).longValue(), NUM_THREADS * NUM);
+        assertEquals(s1.getOrCreateCounter(NAME, 0).get(), NUM_THREADS * NUM);
+        System.out.printf("folded adds: %d\n", counter(b).getNumFoldedAdds());
+    }
+
+    public void testBatchedAddsWithDifferentDeltas() throws Exception {
+        Counter counter=s3.getOrCreateCounter(NAME, 100);
+        List<Thread> threads=new ArrayList<>();
+        for(int i=1; i <= NUM_THREADS; i++) {
+            final long delta=i % 2 == 0? i : -i;
+            Thread t=new Thread(() -> {
+                for(int j=0; j < NUM; j++)
+                    counter.addAndGet(delta);
+            });
+            threads.add(t);
+            t.start();
+        }
+        for(Thread t: threads)
+            t.join(30000);
+        // sum of deltas: -1 +2 -3 +4 ... +10 = 5
+        assertEquals(s1.getOrCreateCounter(NAME, 0).get(), 100 + 5 * NUM);
+        assertEquals(counter.get(), 100 + 5 * NUM);
+    }
+
+    /** Range counters on all members hand out unique values and only occasionally contact the coordinator */
+    public void testRangeCounter() throws Exception {
+        int range_size=100;
+        Set<Long> values=ConcurrentHashMap.newKeySet();
+        List<Counter> counters=Arrays.asList(s1.getOrCreateRangeCounter(NAME, 0, range_size),
+                                             s2.getOrCreateRangeCounter(NAME, 0, range_size),
+                                             s3.getOrCreateRangeCounter(NAME, 0, range_size));
+        for(Counter counter: counters)
+            run(counter, values);
+        assertEquals(values.size(), counters.size() * NUM_THREADS * NUM);
+        long reservations=counter(a).getNumRangeReservations() + counter(b).getNumRangeReservations()
+          + counter(c).getNumRangeReservations();
+        assertEquals(reservations, counters.size() * NUM_THREADS * NUM / range_size);
+        assertEquals(counters.get(0).get(), reservations * range_size);
+    }
+
+    public void testRangeCounterAddAndGet() throws Exception {
+        Counter counter=s2.getOrCreateRangeCounter(NAME, 0, 10);
+        assertEquals(counter.incrementAndGet(), 1);
+        assertEquals(counter.addAndGet(5), 6);      // allocates 2-6
+        assertEquals(counter.addAndGet(5), 15);     // 7-10 are not enough: reserves 11-20 and allocates 11-15
+        assertEquals(counter.addAndGet(20), 40);    // reserves 21-40
+        assertEquals(counter.get(), 40);
+        counter.set(1000);
+        assertEquals(counter.incrementAndGet(), 1001);
+        try {
+            counter.decrementAndGet();
+            fail("decrementing a range counter should fail");
+        }
+        catch(UnsupportedOperationException expected) {
+            System.out.printf("caught %s as expected\n", expected);
+        }
+    }
+
+
+    protected static void run(Counter counter, Set<Long> values) throws InterruptedException {
+        CountDownLatch latch=new CountDownLatch(1);
+        Thread[] threads=new Thread[NUM_THREADS];
+        for(int i=0; i < threads.length; i++) {
+            threads[i]=new Thread(() -> {
+                try {
+                    latch.await();
+                }
+                catch(InterruptedException e) {
+                    return;
+                }
+                for(int j=0; j < NUM; j++)
+                    assertTrue(values.add(counter.incrementAndGet()));
+            });
+            threads[i].start();
+        }
+        latch.countDown();
+        for(Thread t: threads)
+            t.join(30000);
+    }
+
+    protected static COUNTER counter(JChannel ch) {
+        return ch.getProtocolStack().findProtocol(COUNTER.class);
+    }
+
+    protected static JChannel create(String name) throws Exception {
+        return new JChannel(Util.getTestStack(new COUNTER().batchAdds(true))).name(name);
+    }
+}
@@ -0,0 +1,179 @@
+package org.jgroups.blocks;
+
+import org.jgroups.*;
+import org.jgroups.blocks.crdt.CrdtService;
+import org.jgroups.blocks.crdt.LWWRegister;
+import org.jgroups.blocks.crdt.ORMap;
+import org.jgroups.blocks.crdt.PNCounter;
+import org.jgroups.protocols.CRDT;
+import org.jgroups.protocols.pbcast.GMS;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.*;
+import java.util.stream.Stream;
+
+import static org.testng.Assert.*;
+
+/**
+ * Tests the CRDTs provided by {@link CrdtService}
+ * @since  4.1.2
+ */
+@Test(groups=Global.FUNCTIONAL,singleThreaded=true)
+public class CrdtTest {
+    protected final JChannel[]     channels=new JChannel[3];
+    protected final CrdtService[]  services=new CrdtService[channels.length];
+    protected static final int     NUM=100;
+
+    @BeforeMethod protected void setup() throws Exception {
+        for(int i=0; i < channels.length; i++) {
+            channels[i]=create(String.valueOf((char)('A' + i))).connect(CrdtTest.class.getSimpleName());
+            services[i]=new CrdtService(channels[i]);
+        }
+        Util.waitUntilAllChannelsHaveSameView(10000, 500, channels);
+    }
+
+    @AfterMethod protected void destroy() {
+        Util.closeReverse(channels);
+    }
+
+
+    public void testCounter() throws Exception {
+        List<Thread> threads=new ArrayList<>();
+        for(CrdtService svc: services) {
+            PNCounter counter=svc.getCounter("counter");
+            threads.add(new Thread(() -> {
+                for(int i=0; i < NUM; i++)
+                    counter.incrementAndGet();
+            }));
+            threads.add(new Thread(() -> {
+                for(int i=0; i < NUM/2; i++)
+                    counter.addAndGet(-1);
+            }));
+        }
+        threads.forEach(Thread::start);
+        for(Thread t: threads)
+            t.join(10000);
+        long expected=channels.length * NUM/2;
+        Util.waitUntil(5000, 100, () -> Stream.of(services).allMatch(s -> s.getCounter("counter").get() == expected));
+    }
+
+    public void testRegister() throws Exception {
+        LWWRegister<String> r1=services[0].getRegister("reg"), r2=services[1].getRegister("reg");
+        assertNull(r1.get());
+        r1.set("one");
+        Util.waitUntil(5000, 100, () -> Stream.of(services).allMatch(s -> "one".equals(s.getRegister("reg").get())));
+        assertEquals(r2.set("two"), "one");
+        Util.waitUntil(5000, 100, () -> Stream.of(services).allMatch(s -> "two".equals(s.getRegister("reg").get())));
+    }
+
+    public void testMap() throws Exception {
+        ORMap<String,Integer> m1=services[0].getMap("map"), m2=services[1].getMap("map");
+        for(int i=0; i < NUM; i++)
+            (i % 2 == 0? m1 : m2).put("key-" + i, i);
+        Util.waitUntil(5000, 100, () -> Stream.of(services).allMatch(s -> s.getMap("map").size() == NUM));
+
+        for(int i=0; i < NUM; i+=2)
+            m2.remove("key-" + i);
+        m1.put("key-1", -1);
+        Util.waitUntil(5000, 100, () -> Stream.of(services).allMatch(s -> s.getMap("map").size() == NUM/2));
+        Util.waitUntil(5000, 100, () -> Stream.of(services).allMatch(s -> s.getMap("map").get("key-1").equals(-1)));
+        Map<String,Integer> expected=m1.toMap();
+        assertFalse(expected.containsKey("key-0"));
+        Util.waitUntil(5000, 100, () -> Stream.of(services).allMatch(s -> s.<String,Integer>getMap("map").toMap().equals(expected)));
+    }
+
+    public void testTypeMismatch() {
+        services[0].getCounter("x");
+        try {
+            services[0].getMap("x");
+            fail("getting a map named like an existing counter should fail");
+        }
+        catch(IllegalArgumentException expected) {
+            System.out.printf("caught %s as expected\n", expected);
+        }
+    }
+
+    /** A joiner gets the state of the existing members */
+    public void testJoinerGetsState() throws Exception {
+        services[0].getCounter("counter").addAndGet(10);
+        services[1].getMap("map").put("name", "Bela");
+        services[2].<String>getRegister("reg").set("hello");
+        Util.waitUntil(5000, 100, () -> services[2].getCounter("counter").get() == 10);
+
+        try(JChannel d=create("D").connect(CrdtTest.class.getSimpleName())) {
+            CrdtService svc=new CrdtService(d);
+            Util.waitUntil(5000, 100, () -> svc.getCounter("counter").get() == 10
+              && "Bela".equals(svc.getMap("map").get("name")) && "hello".equals(svc.getRegister("reg").get()));
+            svc.getCounter("counter").incrementAndGet();
+            Util.waitUntil(5000, 100, () -> Stream.of(services).allMatch(s -> s.getCounter("counter").get() == 11));
+        }
+    }
+
+    /** The state of a single CRDT sent to a joiner is not counted as a delta */
+    public void testStateOfSingleCrdtIsNotADelta() throws Exception {
+        services[0].getCounter("counter").addAndGet(10);
+        Util.waitUntil(5000, 100, () -> services[2].getCounter("counter").get() == 10);
+        try(JChannel d=create("D").connect(CrdtTest.class.getSimpleName())) {
+            CrdtService svc=new CrdtService(d);
+            CRDT crdt=d.getProtocolStack().findProtocol(CRDT.class);
+            Util.waitUntil(5000, 100, () -> svc.getCounter("counter").get() == 10);
+            Util.waitUntil(5000, 100, () -> crdt.getNumStatesReceived() == channels.length);
+            assertEquals(crdt.getNumDeltasReceived(), 0);
+        }
+    }
+
+    /** Updates made in different partitions are merged when the partitions merge */
+    public void testMerge() throws Exception {
+        PNCounter c1=services[0].getCounter("counter"), c3=services[2].getCounter("counter");
+        ORMap<String,String> m1=services[0].getMap("map"), m3=services[2].getMap("map");
+        c1.incrementAndGet();
+        m1.put("a", "1");
+        Util.waitUntil(5000, 100, () -> c3.get() == 1 && m3.size() == 1);
+
+        injectView(channels[0], channels[1]);
+        injectView(channels[2]);
+        c1.addAndGet(5);
+        m1.put("b", "2");
+        c3.addAndGet(-2);
+        m3.remove("a");
+        m3.put("c", "3");
+        assertEquals(c1.get(), 6);
+        assertEquals(c3.get(), -1);
+
+        injectMergeView(channels);
+        Map<String,String> expected=new HashMap<>();
+        expected.put("b", "2");
+        expected.put("c", "3");
+        Util.waitUntil(5000, 100, () -> Stream.of(services).allMatch(s -> s.getCounter("counter").get() == 4
+          && s.<String,String>getMap("map").toMap().equals(expected)));
+    }
+
+
+    protected static void injectView(JChannel... channels) throws Exception {
+        Address[] addrs=Stream.of(channels).map(JChannel::getAddress).toArray(Address[]::new);
+        View v=View.create(addrs[0], channels[0].getView().getViewId().getId()+1, addrs);
+        for(JChannel ch: channels)
+            ch.getProtocolStack().<GMS>findProtocol(GMS.class).installView(v);
+        Util.waitUntilAllChannelsHaveSameView(10000, 500, channels);
+    }
+
+    protected static void injectMergeView(JChannel... channels) throws Exception {
+        Address[] addrs=Stream.of(channels).map(JChannel::getAddress).toArray(Address[]::new);
+        List<View> subgroups=new ArrayList<>();
+        for(JChannel ch: channels)
+            if(!subgroups.contains(ch.getView()))
+                subgroups.add(ch.getView());
+        long id=channels[0].getView().getViewId().getId()+1;
+        MergeView mv=new MergeView(new ViewId(addrs[0], id), addrs, subgroups);
+        for(JChannel ch: channels)
+            ch.getProtocolStack().<GMS>findProtocol(GMS.class).installView(mv);
+        Util.waitUntilAllChannelsHaveSameView(10000, 500, channels);
+    }
+
+    protected static JChannel create(String name) throws Exception {
+        return new JChannel(Util.getTestStack(new CRDT())).name(name);
+    }
+}
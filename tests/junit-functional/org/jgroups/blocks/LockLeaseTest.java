@@ -0,0 +1,169 @@
+package org.jgroups.blocks;
+
+import org.jgroups.Global;
+import org.jgroups.JChannel;
+import org.jgroups.blocks.locking.LockService;
+import org.jgroups.protocols.CENTRAL_LOCK;
+import org.jgroups.protocols.CENTRAL_LOCK2;
+import org.jgroups.protocols.Locking;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+
+import static org.testng.Assert.*;
+
+/**
+ * Tests lock leases ({@link Locking#lock_lease_time}): repeated acquisitions by the same member are served locally,
+ * and the lease is recalled when a different member requests the lock
+ * @since  4.1.2
+ */
+@Test(groups=Global.FUNCTIONAL,singleThreaded=true,dataProvider="createLockingProtocol")
+public class LockLeaseTest {
+    protected JChannel              a, b;
+    protected LockService           s1, s2;
+    protected static final String   LOCK="lease-lock";
+    protected static final int      NUM=100;
+
+    @DataProvider(name="createLockingProtocol")
+    Object[][] createLockingProtocol() {
+        return new Object[][] {
+          {CENTRAL_LOCK.class},
+          {CENTRAL_LOCK2.class}
+        };
+    }
+
+    protected void init(Class<? extends Locking> locking_class, long lease_time) throws Exception {
+        a=create("A", locking_class, lease_time).connect(LockLeaseTest.class.getSimpleName());
+        s1=new LockService(a);
+        b=create("B", locking_class, lease_time).connect(LockLeaseTest.class.getSimpleName());
+        s2=new LockService(b);
+        Util.waitUntilAllChannelsHaveSameView(10000, 500, a, b);
+    }
+
+    @AfterMethod protected void destroy() {
+        Util.close(b, a);
+    }
+
+
+    public void testRepeatedAcquisitionsAreLocal(Class<? extends Locking> locking_class) throws Exception {
+        init(locking_class, 60_000);
+        Lock lock=s2.getLock(LOCK);
+        for(int i=0; i < NUM; i++) {
+            lock.lock();
+            lock.unlock();
+        }
+        Locking l=locking(b);
+        // only the first acquisition had to wait for the lease to be granted
+        assertEquals(l.getNumLeaseHits(), NUM-1);
+        assertEquals(locking(a).getNumServerLocks(), 1); // the lease is still held by B
+    }
+
+
+    public void testLeaseIsRecalled(Class<? extends Locking> locking_class) throws Exception {
+        init(locking_class, 60_000);
+        Lock lock_b=s2.getLock(LOCK), lock_a=s1.getLock(LOCK);
+        lock_b.lock();
+        lock_b.unlock(); // B keeps the lease
+
+        assertTrue(lock_a.tryLock(5, TimeUnit.SECONDS), "A should get the lock after B's lease is recalled");
+        assertEquals(locking(b).getNumLeaseRecalls(), 1);
+        assertFalse(lock_b.tryLock(), "A holds the lock");
+
+        // B blocks until A unlocks
+        CountDownLatch acquired=new CountDownLatch(1);
+        Thread t=new Thread(() -> {
+            lock_b.lock();
+            acquired.countDown();
+            lock_b.unlock();
+        });
+        t.start();
+        assertFalse(acquired.await(500, TimeUnit.MILLISECONDS));
+        lock_a.unlock();
+        assertTrue(acquired.await(5, TimeUnit.SECONDS));
+        t.join(5000);
+    }
+
+
+    public void testLocalThreadsAreMutuallyExclusive(Class<? extends Locking> locking_class) throws Exception {
+        init(locking_class, 60_000);
+        Lock lock=s2.getLock(LOCK);
+        AtomicInteger in_lock=new AtomicInteger(), violations=new AtomicInteger();
+        Thread[] threads=new Thread[5];
+        for(int i=0; i < threads.length; i++) {
+            threads[i]=new Thread(() -> {
+                for(int j=0; j < NUM; j++) {
+                    lock.lock();
+                    try {
+                        if(in_lock.incrementAndGet() > 1)
+                            violations.incrementAndGet();
+                        in_lock.decrementAndGet();
+                    }
+                    finally {
+                        lock.unlock();
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for(Thread t: threads)
+            t.join(30000);
+        assertEquals(violations.get(), 0);
+    }
+
+
+    public void testMutualExclusionAcrossMembers(Class<? extends Locking> locking_class) throws Exception {
+        init(locking_class, 60_000);
+        AtomicInteger in_lock=new AtomicInteger(), violations=new AtomicInteger(), count=new AtomicInteger();
+        Thread[] threads=new Thread[4];
+        for(int i=0; i < threads.length; i++) {
+            Lock lock=(i % 2 == 0? s1 : s2).getLock(LOCK);
+            threads[i]=new Thread(() -> {
+                for(int j=0; j < NUM/2; j++) {
+                    lock.lock();
+                    try {
+                        if(in_lock.incrementAndGet() > 1)
+                            violations.incrementAndGet();
+                        count.incrementAndGet();
+                        in_lock.decrementAndGet();
+                    }
+                    finally {
+                        lock.unlock();
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for(Thread t: threads)
+            t.join(30000);
+        assertEquals(count.get(), threads.length * NUM/2);
+        assertEquals(violations.get(), 0);
+    }
+
+
+    public void testIdleLeaseIsReleased(Class<? extends Locking> locking_class) throws Exception {
+        init(locking_class, 500);
+        Lock lock=s2.getLock(LOCK);
+        lock.lock();
+        lock.unlock();
+        Locking server=locking(a);
+        assertEquals(server.getNumServerLocks(), 1);
+        Util.waitUntil(5000, 100, () -> server.getNumServerLocks() == 0);
+        assertEquals(locking(b).getNumClientLocks(), 0);
+    }
+
+
+    protected static Locking locking(JChannel ch) {
+        return ch.getProtocolStack().findProtocol(Locking.class);
+    }
+
+    protected static JChannel create(String name, Class<? extends Locking> locking_class, long lease_time) throws Exception {
+        Locking l=locking_class.getDeclaredConstructor().newInstance().lockLeaseTime(lease_time);
+        return new JChannel(Util.getTestStack(l)).name(name);
+    }
+}
@@ -0,0 +1,233 @@
+package org.jgroups.blocks;
+
+import org.jgroups.Address;
+import org.jgroups.Global;
+import org.jgroups.JChannel;
+import org.jgroups.Message;
+import org.jgroups.blocks.locking.LockService;
+import org.jgroups.protocols.CENTRAL_LOCK;
+import org.jgroups.protocols.Locking;
+import org.jgroups.stack.Protocol;
+import org.jgroups.util.MessageBatch;
+import org.jgroups.util.Owner;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import static org.testng.Assert.*;
+
+/**
+ * Tests sharding of locks across multiple lock servers in {@link CENTRAL_LOCK} and batched processing of lock requests
+ * in {@link Locking}
+ * @since  4.1.2
+ */
+@Test(groups=Global.FUNCTIONAL,singleThreaded=true)
+public class LockServiceShardingTest {
+    protected final JChannel[]    channels=new JChannel[4];
+    protected final LockService[] lock_services=new LockService[channels.length];
+    protected static final int    NUM_LOCK_SERVERS=2;
+    protected static final int    NUM_LOCKS=20;
+
+    @BeforeMethod protected void setup() throws Exception {
+        for(int i=0; i < channels.length; i++) {
+            channels[i]=create(String.valueOf((char)('A' + i))).connect(LockServiceShardingTest.class.getSimpleName());
+            lock_services[i]=new LockService(channels[i]);
+        }
+        Util.waitUntilAllChannelsHaveSameView(10000, 500, channels);
+    }
+
+    @AfterMethod protected void destroy() {
+        Util.closeReverse(channels);
+    }
+
+
+    public void testLocksAreSharded() throws Exception {
+        List<Lock> locks=lock(lock_services[3], NUM_LOCKS);
+        CENTRAL_LOCK a=centralLock(channels[0]), b=centralLock(channels[1]);
+        assertEquals(a.getLockServers(), Arrays.asList(channels[0].getAddress(), channels[1].getAddress()).toString());
+
+        Set<String> shard_a=new HashSet<>(), shard_b=new HashSet<>();
+        for(int i=0; i < NUM_LOCKS; i++) {
+            String name="lock-" + i;
+            Address server=a.getLockServer(name);
+            if(server.equals(channels[0].getAddress()))
+                shard_a.add(name);
+            else if(server.equals(channels[1].getAddress()))
+                shard_b.add(name);
+            else
+                fail(name + " is handled by " + server + ", which is not a lock server");
+        }
+        System.out.printf("shard of A: %s\nshard of B: %s\n", shard_a, shard_b);
+        assertFalse(shard_a.isEmpty());
+        assertFalse(shard_b.isEmpty());
+
+        // B is A's backup and C is B's backup; D is not a backup of any lock server
+        Set<String> all=new HashSet<>(shard_a);
+        all.addAll(shard_b);
+        CENTRAL_LOCK c=centralLock(channels[2]);
+        Util.waitUntil(5000, 100, () -> serverLocks(b).equals(all) && serverLocks(c).equals(shard_b));
+        assertEquals(serverLocks(a), shard_a);
+        assertEquals(serverLocks(b), all);
+        assertEquals(serverLocks(c), shard_b);
+        assertTrue(serverLocks(centralLock(channels[3])).isEmpty());
+
+        locks.forEach(Lock::unlock);
+        Util.waitUntil(5000, 100, () -> a.getNumServerLocks() == 0 && b.getNumServerLocks() == 0);
+    }
+
+
+    public void testFailoverOfLockServer() throws Exception {
+        List<Lock> locks=lock(lock_services[3], NUM_LOCKS);
+        Util.close(channels[0]);
+        JChannel[] remaining=Arrays.copyOfRange(channels, 1, channels.length);
+        Util.waitUntilAllChannelsHaveSameView(10000, 500, remaining);
+        CENTRAL_LOCK b=centralLock(channels[1]), c=centralLock(channels[2]);
+        assertEquals(b.getLockServers(), Arrays.asList(channels[1].getAddress(), channels[2].getAddress()).toString());
+        Util.waitUntil(5000, 100, () -> IntStream.range(0, NUM_LOCKS).mapToObj(i -> "lock-" + i)
+          .allMatch(n -> serverLocks(b.getLockServer(n).equals(channels[1].getAddress())? b : c).contains(n)));
+
+        // the locks are still held by D: nobody else can acquire them
+        for(int i=0; i < NUM_LOCKS; i++) {
+            Lock l=lock_services[2].getLock("lock-" + i);
+            assertFalse(l.tryLock(), "lock-" + i + " should not be acquirable");
+        }
+
+        locks.forEach(Lock::unlock);
+        for(int i=0; i < NUM_LOCKS; i++) {
+            Lock l=lock_services[2].getLock("lock-" + i);
+            assertTrue(l.tryLock(5, TimeUnit.SECONDS), "lock-" + i + " should be acquirable");
+            l.unlock();
+        }
+    }
+
+
+    /** Injects a batch of lock requests into A and checks that they're handled in one pass */
+    public void testBatchedLockRequests() throws Exception {
+        CENTRAL_LOCK a=centralLock(channels[0]);
+        a.batchLockRequests(true);
+        Address sender=channels[3].getAddress();
+        Owner owner=new Owner(sender, 1);
+        List<Message> msgs=IntStream.range(0, 10)
+          .mapToObj(i -> new Locking.Request(Locking.Type.GRANT_LOCK, "batch-" + i, owner, 0).lockId(i+1))
+          .map(req -> new Message(channels[0].getAddress(), Util.streamableToBuffer(req)).src(sender)
+            .putHeader(a.getId(), new Locking.LockingHeader()))
+          .collect(Collectors.toList());
+        a.up(new MessageBatch(channels[0].getAddress(), sender, null, false, msgs));
+        assertEquals(a.getNumServerLocks(), 10);
+        assertEquals(a.getAvgLockBatchSize(), 10.0);
+        assertEquals(serverLocks(a), IntStream.range(0, 10).mapToObj(i -> "batch-" + i).collect(Collectors.toSet()));
+    }
+
+
+    /**
+     * A is the only member and holds a lock. When B joins, the lock's shard moves to B. While A's hand-over is delayed,
+     * B must not grant the lock to anyone else
+     */
+    public void testNoGrantBeforeHandOver() throws Exception {
+        Util.close(channels[3], channels[2], channels[1]);
+        JChannel a=channels[0];
+        Util.waitUntilAllChannelsHaveSameView(10000, 500, a);
+        String name=IntStream.range(0, 100).mapToObj(i -> "lock-" + i)
+          .filter(n -> (n.hashCode() & Integer.MAX_VALUE) % NUM_LOCK_SERVERS == 1).findFirst().orElse(null);
+        Lock lock=lock_services[0].getLock(name);
+        lock.lock();
+
+        // holds all lock requests from A to B, including the hand-over
+        HoldLockRequests hold=new HoldLockRequests(a.getAddress());
+        CENTRAL_LOCK lock_b=new CENTRAL_LOCK().setNumLockServers(NUM_LOCK_SERVERS).setHandOverTimeout(30_000);
+        List<Protocol> prots=new ArrayList<>(Arrays.asList(Util.getTestStack()));
+        prots.add(hold);
+        prots.add(lock_b);
+        hold.lock_prot_id=lock_b.getId();
+        JChannel b=channels[1]=new JChannel(prots).name("B").connect(LockServiceShardingTest.class.getSimpleName());
+        lock_services[1]=new LockService(b);
+        Util.waitUntilAllChannelsHaveSameView(10000, 500, a, b);
+        assertEquals(lock_b.getLockServer(name), b.getAddress());
+        Util.waitUntil(5000, 100, () -> !hold.held.isEmpty());
+
+        Lock lock2=lock_services[1].getLock(name);
+        assertFalse(lock2.tryLock(1, TimeUnit.SECONDS), "lock must not be granted before it was handed over");
+        assertTrue(lock_b.getNumDeferredRequests() > 0);
+
+        hold.release();
+        Util.waitUntil(5000, 100, () -> lock_b.getNumDeferredRequests() == 0 && serverLocks(lock_b).contains(name));
+        assertFalse(lock2.tryLock(), "lock is still held by A");
+        lock.unlock();
+        assertTrue(lock2.tryLock(5, TimeUnit.SECONDS));
+        lock2.unlock();
+    }
+
+
+    protected static List<Lock> lock(LockService svc, int num) {
+        List<Lock> locks=new ArrayList<>(num);
+        for(int i=0; i < num; i++) {
+            Lock l=svc.getLock("lock-" + i);
+            l.lock();
+            locks.add(l);
+        }
+        return locks;
+    }
+
+    protected static Set<String> serverLocks(CENTRAL_LOCK l) {
+        String tmp=(String)l.printServerLocks();
+        return tmp.isEmpty()? new HashSet<>() : Stream.of(tmp.split(", ")).map(s -> s.substring(0, s.indexOf(':')))
+          .collect(Collectors.toSet());
+    }
+
+    protected static CENTRAL_LOCK centralLock(JChannel ch) {
+        return ch.getProtocolStack().findProtocol(CENTRAL_LOCK.class);
+    }
+
+    /** Holds the lock requests sent by a given member until released */
+    protected static class HoldLockRequests extends Protocol {
+        protected final Address       sender;
+        protected final List<Message> held=new ArrayList<>();
+        protected short               lock_prot_id;
+        protected boolean             hold=true;
+
+        protected HoldLockRequests(Address sender) {
+            this.sender=sender;
+        }
+
+        public Object up(Message msg) {
+            synchronized(this) {
+                if(hold && sender.equals(msg.src()) && msg.getHeader(lock_prot_id) != null) {
+                    held.add(msg);
+                    return null;
+                }
+            }
+            return up_prot.up(msg);
+        }
+
+        public void up(MessageBatch batch) {
+            synchronized(this) {
+                if(hold && sender.equals(batch.sender()))
+                    held.addAll(batch.getMatchingMessages(lock_prot_id, true));
+            }
+            if(!batch.isEmpty())
+                up_prot.up(batch);
+        }
+
+        protected void release() {
+            List<Message> msgs;
+            synchronized(this) {
+                hold=false;
+                msgs=new ArrayList<>(held);
+                held.clear();
+            }
+            msgs.forEach(up_prot::up);
+        }
+    }
+
+    protected static JChannel create(String name) throws Exception {
+        return new JChannel(Util.getTestStack(new CENTRAL_LOCK().setNumLockServers(NUM_LOCK_SERVERS))).name(name);
+    }
+}
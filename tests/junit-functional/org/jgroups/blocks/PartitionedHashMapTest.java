@@ -0,0 +1,112 @@
+package org.jgroups.blocks;
+
+import org.jgroups.Global;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.stream.IntStream;
+
+import static org.testng.Assert.*;
+
+/**
+ * Tests invalidation of the L1 caches of {@link PartitionedHashMap}
+ * @since  4.1.2
+ */
+@Test(groups=Global.FUNCTIONAL,singleThreaded=true)
+public class PartitionedHashMapTest {
+    protected PartitionedHashMap<String,String> a, b;
+    protected File                              config;
+    protected static final String               STACK="<config>\n" +
+      "  <SHARED_LOOPBACK/>\n  <SHARED_LOOPBACK_PING/>\n  <pbcast.NAKACK2/>\n  <UNICAST3/>\n  <pbcast.STABLE/>\n" +
+      "  <pbcast.GMS join_timeout=\"1000\"/>\n  <FRAG2/>\n</config>\n";
+
+    @BeforeMethod protected void setup() throws Exception {
+        config=File.createTempFile("phm", ".xml");
+        Files.write(config.toPath(), STACK.getBytes());
+    }
+
+    @AfterMethod protected void destroy() {
+        for(PartitionedHashMap<String,String> m: new PartitionedHashMap[]{b, a})
+            if(m != null)
+                m.stop();
+        config.delete();
+    }
+
+    public void testInvalidationIsDisabledByDefault() throws Exception {
+        init(false);
+        String key=keyOwnedByA();
+        assertEquals(b.get(key), "v1"); // caches the value in B's L1 cache
+        a.put(key, "v2");
+        Util.sleep(500);
+        assertEquals(b.get(key), "v1", "the L1 cache is not invalidated");
+    }
+
+    public void testPutInvalidatesL1() throws Exception {
+        init(true);
+        String key=keyOwnedByA();
+        assertEquals(b.get(key), "v1");
+        assertEquals(b.getL1Cache().getSize(), 1);
+        a.put(key, "v2");
+        Util.waitUntil(5000, 100, () -> "v2".equals(b.get(key)));
+        assertEquals(a.getL2Cache().get(key), "v2");
+    }
+
+    public void testRemoveInvalidatesL1() throws Exception {
+        init(true);
+        String key=keyOwnedByA();
+        assertEquals(b.get(key), "v1");
+        a.remove(key);
+        Util.waitUntil(5000, 100, () -> b.get(key) == null);
+        assertNull(a.getL2Cache().get(key));
+    }
+
+    /** The put() of B (not the owner) is applied by A and invalidates the L1 cache of C */
+    public void testPutByNonOwner() throws Exception {
+        init(true);
+        PartitionedHashMap<String,String> c=create("C", true);
+        try {
+            Util.waitUntil(10000, 100, () -> a.getView().contains(c.getLocalAddressAsString())
+              && c.getView().contains(a.getLocalAddressAsString()));
+            String key=keyOwnedByA();
+            assertEquals(c.get(key), "v1");
+            b.put(key, "v2");
+            Util.waitUntil(5000, 100, () -> "v2".equals(a.getL2Cache().get(key)) && "v2".equals(c.get(key)));
+        }
+        finally {
+            c.stop();
+        }
+    }
+
+
+    protected void init(boolean invalidate_l1) throws Exception {
+        a=create("A", invalidate_l1);
+        b=create("B", invalidate_l1);
+        Util.waitUntil(10000, 100, () -> a.getView().contains(b.getLocalAddressAsString())
+          && b.getView().contains(a.getLocalAddressAsString()));
+    }
+
+    protected PartitionedHashMap<String,String> create(String name, boolean invalidate_l1) throws Exception {
+        PartitionedHashMap<String,String> m=new PartitionedHashMap<>(config.getAbsolutePath(),
+                                                                    PartitionedHashMapTest.class.getSimpleName());
+        m.setL1Cache(new Cache<>());
+        m.setInvalidateL1(invalidate_l1);
+        m.start();
+        return m;
+    }
+
+    /** Puts "v1" under a key owned by A and returns the key */
+    @SuppressWarnings("unchecked")
+    protected String keyOwnedByA() {
+        PartitionedHashMap.HashFunction<String> hash=a.getHashFunction();
+        String key=IntStream.range(0, 100_000).mapToObj(i -> "key-" + i)
+          .filter(k -> a.getLocalAddress().equals(hash.hash(k, null))).findFirst()
+          .orElseThrow(() -> new IllegalStateException("no key is owned by A"));
+        a.put(key, "v1");
+        assertEquals(a.getL2Cache().get(key), "v1");
+        return key;
+    }
+}
@@ -0,0 +1,131 @@
+package org.jgroups.blocks;
+
+import org.jgroups.Global;
+import org.jgroups.JChannel;
+import org.jgroups.protocols.pbcast.STATE_TRANSFER;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import static org.testng.Assert.*;
+
+/**
+ * Tests {@link VersionedReplicatedHashMap}
+ * @since  4.1.2
+ */
+@Test(groups=Global.FUNCTIONAL,singleThreaded=true)
+public class VersionedReplicatedHashMapTest {
+    protected final JChannel[]                                   channels=new JChannel[3];
+    @SuppressWarnings("unchecked")
+    protected final VersionedReplicatedHashMap<String,Integer>[] maps=new VersionedReplicatedHashMap[channels.length];
+    protected static final int                                   NUM=1000;
+
+    @BeforeMethod protected void setup() throws Exception {
+        for(int i=0; i < channels.length; i++) {
+            channels[i]=create(String.valueOf((char)('A' + i)));
+            maps[i]=new VersionedReplicatedHashMap<String,Integer>(channels[i]).setFlushInterval(20);
+            channels[i].connect(VersionedReplicatedHashMapTest.class.getSimpleName());
+            maps[i].start(5000);
+        }
+        Util.waitUntilAllChannelsHaveSameView(10000, 500, channels);
+    }
+
+    @AfterMethod protected void destroy() {
+        for(int i=maps.length-1; i >= 0; i--)
+            Util.close(maps[i]);
+        Util.closeReverse(channels);
+    }
+
+
+    public void testReplication() throws Exception {
+        for(int i=0; i < NUM; i++)
+            maps[i % maps.length].put("key-" + i, i);
+        Util.waitUntil(5000, 100, () -> Stream.of(maps).allMatch(m -> m.size() == NUM));
+        for(VersionedReplicatedHashMap<String,Integer> m: maps)
+            for(int i=0; i < NUM; i++)
+                assertEquals(m.get("key-" + i).intValue(), i);
+
+        for(int i=0; i < NUM; i+=2)
+            assertEquals(maps[1].remove("key-" + i).intValue(), i);
+        Util.waitUntil(5000, 100, () -> Stream.of(maps).allMatch(m -> m.size() == NUM/2));
+        assertNull(maps[0].get("key-0"));
+        assertEquals(maps[0].getNumTombstones(), NUM/2);
+    }
+
+    /** All members update the same keys concurrently: all of them have to end up with the same values */
+    public void testConcurrentUpdates() throws Exception {
+        List<Thread> threads=new ArrayList<>();
+        for(int i=0; i < maps.length; i++) {
+            VersionedReplicatedHashMap<String,Integer> m=maps[i];
+            int val=i;
+            threads.add(new Thread(() -> {
+                for(int j=0; j < NUM; j++)
+                    m.put("key-" + (j % 10), val);
+            }));
+        }
+        threads.forEach(Thread::start);
+        for(Thread t: threads)
+            t.join(10000);
+        Util.waitUntil(5000, 100, () -> Stream.of(maps).allMatch(m -> new HashMap<>(m).equals(new HashMap<>(maps[0]))));
+        assertEquals(maps[0].size(), 10);
+    }
+
+    /** Multiple updates of the same key within a flush interval are sent as a single update */
+    public void testUpdatesAreCoalesced() throws Exception {
+        VersionedReplicatedHashMap<String,Integer> m=maps[0].setMaxBatchSize(NUM * 2);
+        m.flush_task.cancel(false); // updates are now only sent by flush()
+        m.flush();
+        long batches=m.getNumBatchesSent(), updates=m.getNumUpdatesSent();
+        for(int i=0; i < NUM; i++)
+            m.put("counter", i);
+        assertEquals(m.getNumBatchesSent(), batches);
+        m.flush();
+        assertEquals(m.getNumBatchesSent(), batches + 1);
+        assertEquals(m.getNumUpdatesSent(), updates + 1);
+        Util.waitUntil(5000, 100, () -> Integer.valueOf(NUM-1).equals(maps[2].get("counter")));
+    }
+
+    public void testPutAllIsSentAsOneBatch() throws Exception {
+        Map<String,Integer> m=new HashMap<>();
+        for(int i=0; i < NUM; i++)
+            m.put("key-" + i, i);
+        maps[0].flush();
+        long batches=maps[0].getNumBatchesSent();
+        maps[0].setFlushInterval(0).putAll(m);
+        assertEquals(maps[0].getNumBatchesSent(), batches + 1);
+        Util.waitUntil(5000, 100, () -> Stream.of(maps).allMatch(x -> x.size() == NUM));
+        assertEquals(new HashMap<>(maps[2]), m);
+    }
+
+    /** A joiner fetches the state, and its updates are replicated to the existing members */
+    public void testStateTransfer() throws Exception {
+        for(int i=0; i < NUM; i++)
+            maps[0].put("key-" + i, i);
+        Util.waitUntil(5000, 100, () -> Stream.of(maps).allMatch(m -> m.size() == NUM));
+        maps[1].remove("key-0");
+        Util.waitUntil(5000, 100, () -> Stream.of(maps).allMatch(m -> m.size() == NUM-1));
+
+        try(JChannel d=create("D");
+            VersionedReplicatedHashMap<String,Integer> m=new VersionedReplicatedHashMap<String,Integer>(d)
+              .setFlushInterval(20)) {
+            d.connect(VersionedReplicatedHashMapTest.class.getSimpleName());
+            m.start(5000);
+            assertEquals(m.size(), NUM-1);
+            assertNull(m.get("key-0"));
+            m.put("key-0", -1);
+            Util.waitUntil(5000, 100, () -> Stream.of(maps).allMatch(x -> Integer.valueOf(-1).equals(x.get("key-0"))));
+        }
+    }
+
+
+    protected static JChannel create(String name) throws Exception {
+        return new JChannel(Util.getTestStack(new STATE_TRANSFER())).name(name);
+    }
+}
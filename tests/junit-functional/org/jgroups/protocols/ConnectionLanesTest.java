@@ -0,0 +1,173 @@
+package org.jgroups.protocols;
+
+import org.jgroups.*;
+import org.jgroups.blocks.cs.Connection;
+import org.jgroups.protocols.pbcast.GMS;
+import org.jgroups.protocols.pbcast.NAKACK2;
+import org.jgroups.protocols.pbcast.STABLE;
+import org.jgroups.stack.IpAddress;
+import org.jgroups.util.ResourceManager;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.stream.Collectors;
+
+/**
+ * Tests multiple connections (lanes) per peer in {@link TCP} and {@link TCP_NIO2}
+ * @since  4.1.2
+ */
+@Test(groups=Global.FUNCTIONAL,singleThreaded=true)
+public class ConnectionLanesTest {
+    protected JChannel           a, b;
+    protected MyReceiver         r;
+    protected static final int   NUM_THREADS=8, NUM_MSGS=500, LANES=4, LARGE_MSG_SIZE=10_000;
+
+    @DataProvider
+    static Object[][] provider() {
+        return new Object[][] {
+          {TCP.class},
+          {TCP_NIO2.class}
+        };
+    }
+
+    @AfterMethod protected void destroy() {
+        Util.close(b, a);
+    }
+
+    public void testCookies() {
+        assert Connection.cookie(0) == Connection.cookie;
+        for(int i=0; i < Connection.MAX_LANES; i++)
+            assert Connection.laneOf(Connection.cookie(i)) == i;
+        assert Connection.laneOf(new byte[]{'b', 'e', 'l', 'a' + Connection.MAX_LANES}) == -1;
+        assert Connection.laneOf(new byte[]{'b', 'e', 'x', 'a'}) == -1;
+        assert Connection.laneOf(new byte[]{'b', 'e', 'l'}) == -1;
+    }
+
+    /** Sends small messages from multiple threads and some large messages, which use multiple lanes */
+    @Test(dataProvider="provider")
+    public void testLanes(Class<? extends BasicTCP> cl) throws Exception {
+        create(cl, "no-bundler");
+        sendAndCheck(cl);
+        BasicTCP tp=(BasicTCP)a.getProtocolStack().getTransport();
+        int num_conns=cl == TCP.class? ((TCP)tp).getOpenConnections() : ((TCP_NIO2)tp).getOpenConnections();
+        assert num_conns > 1 : String.format("expected multiple connections: %s", tp.printConnections());
+    }
+
+    /**
+     * With the default bundler, all messages are sent by the bundler thread, so the small messages use a single lane.
+     * Large messages still use the last lane, and the messages of every sender are delivered in order
+     */
+    @Test(dataProvider="provider")
+    public void testLanesWithDefaultBundler(Class<? extends BasicTCP> cl) throws Exception {
+        create(cl, null);
+        sendAndCheck(cl);
+    }
+
+    protected void sendAndCheck(Class<? extends BasicTCP> cl) throws Exception {
+        Address target=b.getAddress();
+        CountDownLatch latch=new CountDownLatch(1);
+        List<Thread> senders=new ArrayList<>(NUM_THREADS);
+        for(int i=0; i < NUM_THREADS; i++) {
+            final int id=i;
+            Thread t=new Thread(() -> {
+                try {
+                    latch.await();
+                    for(int j=1; j <= NUM_MSGS; j++) {
+                        a.send(target, new Payload(id, j, j % 50 == 0? LARGE_MSG_SIZE : 10));
+                    }
+                }
+                catch(Exception e) {
+                    e.printStackTrace();
+                }
+            });
+            senders.add(t);
+            t.start();
+        }
+        latch.countDown();
+        for(Thread t: senders)
+            t.join();
+        Util.waitUntil(10000, 100, () -> r.size() == NUM_THREADS * NUM_MSGS);
+        for(int i=0; i < NUM_THREADS; i++)
+            r.check(i);
+
+        BasicTCP tp=(BasicTCP)a.getProtocolStack().getTransport();
+        String conns=tp.printConnections();
+        System.out.printf("connections of %s (%s, %s):%s\n", a.getAddress(), cl.getSimpleName(),
+                          tp.getBundler().getClass().getSimpleName(), conns);
+        assert conns.contains("[lane " + (LANES-1) + "]") : String.format("large messages didn't use the last lane: %s", conns);
+    }
+
+    /** Creates A and B with the given bundler (null: the default bundler) */
+    protected void create(Class<? extends BasicTCP> cl, String bundler_type) throws Exception {
+        InetAddress bind_addr=Util.getLoopback();
+        List<Integer> ports=ResourceManager.getNextTcpPorts(bind_addr, 2);
+        List<PhysicalAddress> initial_hosts=ports.stream().map(p -> new IpAddress(bind_addr, p)).collect(Collectors.toList());
+        a=create(cl, "A", ports.get(0), initial_hosts, bundler_type);
+        b=create(cl, "B", ports.get(1), initial_hosts, bundler_type);
+        b.setReceiver(r=new MyReceiver());
+        Util.waitUntilAllChannelsHaveSameView(10000, 200, a, b);
+    }
+
+    protected static JChannel create(Class<? extends BasicTCP> cl, String name, int port,
+                                     List<PhysicalAddress> initial_hosts, String bundler_type) throws Exception {
+        BasicTCP tp=cl.getDeclaredConstructor().newInstance();
+        tp.setConnsPerPeer(LANES).setLargeMsgSize(LARGE_MSG_SIZE);
+        tp.setBindAddress(Util.getLoopback());
+        tp.setBindPort(port);
+        tp.setPortRange(0);
+        if(bundler_type != null)
+            tp.setValue("bundler_type", bundler_type);
+        TCPPING ping=new TCPPING();
+        ping.setInitialHosts2(initial_hosts);
+        JChannel ch=new JChannel(tp, ping, new NAKACK2().setValue("use_mcast_xmit", false), new UNICAST3(),
+                                 new STABLE(), new GMS().joinTimeout(1000)).name(name);
+        return ch.connect(ConnectionLanesTest.class.getSimpleName());
+    }
+
+    protected static class Payload implements java.io.Serializable {
+        private static final long serialVersionUID=-3401458402390385497L;
+        protected final int    sender, seqno;
+        protected final byte[] data;
+
+        protected Payload(int sender, int seqno, int size) {
+            this.sender=sender;
+            this.seqno=seqno;
+            this.data=new byte[size];
+        }
+    }
+
+    protected static class MyReceiver extends ReceiverAdapter {
+        protected final Map<Integer,List<Integer>> msgs=new ConcurrentHashMap<>();
+
+        public void receive(Message msg) {
+            Payload p=msg.getObject();
+            List<Integer> list=msgs.computeIfAbsent(p.sender, s -> new ArrayList<>());
+            synchronized(list) {
+                list.add(p.seqno);
+            }
+        }
+
+        public int size() {
+            return msgs.values().stream().mapToInt(l -> {synchronized(l) {return l.size();}}).sum();
+        }
+
+        /** Checks that the messages sent by a given thread were delivered in order */
+        protected void check(int sender) {
+            List<Integer> list=msgs.get(sender);
+            assert list != null : "no messages from sender thread " + sender;
+            synchronized(list) {
+                assert list.size() == NUM_MSGS;
+                for(int i=0; i < list.size(); i++)
+                    assert list.get(i) == i+1 : String.format("expected %d but got %d", i+1, list.get(i));
+            }
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package org.jgroups.protocols;
+
+import org.jgroups.*;
+import org.jgroups.protocols.pbcast.GMS;
+import org.jgroups.protocols.pbcast.NAKACK2;
+import org.jgroups.protocols.pbcast.STABLE;
+import org.jgroups.stack.IpAddress;
+import org.jgroups.util.ResourceManager;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Tests {@link TCP_NIO2} with multiple selectors and read batching
+ * @since  4.1.2
+ */
+@Test(groups=Global.FUNCTIONAL,singleThreaded=true)
+public class TCP_NIO2_Test {
+    protected JChannel[]          channels;
+    protected MyReceiver[]        receivers;
+    protected static final int    NUM=3, NUM_MSGS=2000;
+
+    @AfterMethod protected void destroy() {
+        Util.closeReverse(channels);
+    }
+
+    public void testSingleSelector() throws Exception {
+        create(1, 1);
+        sendAndCheck();
+    }
+
+    /** Connections are spread over 3 selectors, messages are read in batches of up to 50 and passed up as batches */
+    public void testMultipleSelectorsAndReadBatching() throws Exception {
+        create(3, 50);
+        TCP_NIO2 tp=(TCP_NIO2)channels[0].getProtocolStack().getTransport();
+        assert tp.numSelectors() == 3;
+        sendAndCheck();
+    }
+
+    /** Every member multicasts NUM_MSGS messages and sends NUM_MSGS unicasts to the next member */
+    protected void sendAndCheck() throws Exception {
+        for(int i=1; i <= NUM_MSGS; i++) {
+            for(int j=0; j < channels.length; j++) {
+                JChannel ch=channels[j];
+                ch.send(null, i);
+                ch.send(channels[(j+1) % channels.length].getAddress(), -i);
+            }
+        }
+        int expected=NUM * NUM_MSGS + NUM_MSGS;
+        Util.waitUntil(20000, 200, () -> Stream.of(receivers).allMatch(r -> r.size() == expected));
+        for(int i=0; i < receivers.length; i++) {
+            MyReceiver r=receivers[i];
+            for(JChannel ch: channels)
+                r.check(ch.getAddress(), true);
+            r.check(channels[(i + channels.length - 1) % channels.length].getAddress(), false);
+        }
+    }
+
+    protected void create(int num_selectors, int max_read_batch_size) throws Exception {
+        InetAddress bind_addr=Util.getLoopback();
+        List<Integer> ports=ResourceManager.getNextTcpPorts(bind_addr, NUM);
+        List<PhysicalAddress> initial_hosts=ports.stream().map(p -> new IpAddress(bind_addr, p)).collect(Collectors.toList());
+        channels=new JChannel[NUM];
+        receivers=new MyReceiver[NUM];
+        for(int i=0; i < NUM; i++) {
+            TCP_NIO2 tp=new TCP_NIO2();
+            tp.setBindAddress(bind_addr);
+            tp.setBindPort(ports.get(i));
+            tp.setPortRange(0);
+            tp.setValue("num_selectors", num_selectors).setValue("max_read_batch_size", max_read_batch_size);
+            TCPPING ping=new TCPPING();
+            ping.setInitialHosts2(initial_hosts);
+            channels[i]=new JChannel(tp, ping, new NAKACK2().setValue("use_mcast_xmit", false), new UNICAST3(),
+                                     new STABLE(), new GMS().joinTimeout(1000)).name(String.valueOf((char)('A' + i)));
+            channels[i].setReceiver(receivers[i]=new MyReceiver());
+            channels[i].connect(TCP_NIO2_Test.class.getSimpleName());
+        }
+        Util.waitUntilAllChannelsHaveSameView(10000, 200, channels);
+    }
+
+    protected static class MyReceiver extends ReceiverAdapter {
+        protected final Map<Address,List<Integer>> msgs=new ConcurrentHashMap<>();
+
+        public void receive(Message msg) {
+            List<Integer> list=msgs.computeIfAbsent(msg.src(), s -> new ArrayList<>());
+            synchronized(list) {
+                list.add(msg.getObject());
+            }
+        }
+
+        public int size() {
+            return msgs.values().stream().mapToInt(l -> {synchronized(l) {return l.size();}}).sum();
+        }
+
+        /** Checks that all multicasts (positive) or unicasts (negative) from sender were received in order */
+        protected void check(Address sender, boolean multicasts) {
+            List<Integer> list=msgs.get(sender), tmp;
+            assert list != null : "no messages from " + sender;
+            synchronized(list) {
+                tmp=list.stream().filter(n -> (n > 0) == multicasts).map(Math::abs).collect(Collectors.toList());
+            }
+            assert tmp.size() == NUM_MSGS : String.format("expected %d messages from %s, but got %d", NUM_MSGS, sender, tmp.size());
+            for(int i=0; i < tmp.size(); i++)
+                assert tmp.get(i) == i+1 : String.format("expected %d but got %d", i+1, tmp.get(i));
+        }
+    }
+}
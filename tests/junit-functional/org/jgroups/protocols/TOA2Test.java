@@ -0,0 +1,135 @@
+package org.jgroups.protocols;
+
+import org.jgroups.*;
+import org.jgroups.protocols.tom.TOA2;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.stream.Stream;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+/**
+ * Tests {@link TOA2}
+ * @since  4.1.2
+ */
+@Test(groups=Global.FUNCTIONAL,singleThreaded=true)
+public class TOA2Test {
+    protected JChannel[]           channels;
+    protected MyReceiver[]         receivers;
+    protected static final int     NUM_MSGS=1000, NUM_THREADS=2;
+
+    @AfterMethod protected void destroy() {
+        Util.closeReverse(channels);
+    }
+
+
+    /** All members multicast concurrently: every member has to deliver all messages in the same order */
+    public void testMulticasts() throws Exception {
+        create(4);
+        sendConcurrently(null);
+        int expected=channels.length * NUM_THREADS * NUM_MSGS;
+        Util.waitUntil(20000, 200, () -> Stream.of(receivers).allMatch(r -> r.size() == expected));
+        for(MyReceiver r: receivers)
+            assertEquals(r.list(), receivers[0].list());
+
+        TOA2 toa=channels[0].getProtocolStack().findProtocol(TOA2.class);
+        System.out.printf("A: %d proposals in %d batches, %d finals in %d batches\n",
+                          toa.getNumProposalsSent(), toa.getNumProposalBatchesSent(),
+                          toa.getNumFinalsSent(), toa.getNumFinalBatchesSent());
+        assertEquals(toa.getNumMessagesSent(), NUM_THREADS * NUM_MSGS);
+        assertEquals(toa.getNumFinalsSent(), NUM_THREADS * NUM_MSGS);
+        assertTrue(toa.getNumFinalBatchesSent() <= toa.getNumFinalsSent());
+    }
+
+    /** Anycasts to {B,C,D} from all members: B, C and D deliver the same messages in the same order, A none */
+    public void testAnycasts() throws Exception {
+        create(4);
+        AnycastAddress dest=new AnycastAddress(Arrays.asList(channels[1].getAddress(), channels[2].getAddress(),
+                                                             channels[3].getAddress()));
+        sendConcurrently(dest);
+        int expected=channels.length * NUM_THREADS * NUM_MSGS;
+        Util.waitUntil(20000, 200, () -> Stream.of(receivers).skip(1).allMatch(r -> r.size() == expected));
+        for(int i=2; i < receivers.length; i++)
+            assertEquals(receivers[i].list(), receivers[1].list());
+        assertEquals(receivers[0].size(), 0);
+    }
+
+    /**
+     * Messages sent while a member leaves are delivered by the remaining members in the same order. The leaver flushes
+     * its messages before leaving, so the remaining members deliver all of them
+     */
+    public void testMemberLeaving() throws Exception {
+        create(3);
+        for(int i=0; i < 100; i++)
+            for(JChannel ch: channels)
+                ch.send(null, ch.getName() + i);
+        Util.close(channels[2]);
+        for(int i=100; i < 200; i++)
+            for(int j=0; j < 2; j++)
+                channels[j].send(null, channels[j].getName() + i);
+        Util.waitUntil(10000, 200, () -> receivers[0].size() == 500 && receivers[1].size() == 500);
+        assertEquals(receivers[1].list(), receivers[0].list());
+    }
+
+
+    protected void sendConcurrently(Address dest) throws InterruptedException {
+        CountDownLatch latch=new CountDownLatch(1);
+        List<Thread> senders=new ArrayList<>();
+        for(JChannel ch: channels) {
+            for(int i=0; i < NUM_THREADS; i++) {
+                String prefix=ch.getName() + "-" + i + "-";
+                Thread t=new Thread(() -> {
+                    try {
+                        latch.await();
+                        for(int j=0; j < NUM_MSGS; j++)
+                            ch.send(dest, prefix + j);
+                    }
+                    catch(Exception e) {
+                        e.printStackTrace();
+                    }
+                });
+                senders.add(t);
+                t.start();
+            }
+        }
+        latch.countDown();
+        for(Thread t: senders)
+            t.join(20000);
+    }
+
+    protected void create(int num) throws Exception {
+        channels=new JChannel[num];
+        receivers=new MyReceiver[num];
+        for(int i=0; i < num; i++) {
+            channels[i]=new JChannel(Util.getTestStack(new TOA2())).name(String.valueOf((char)('A' + i)));
+            channels[i].setReceiver(receivers[i]=new MyReceiver());
+            channels[i].connect(TOA2Test.class.getSimpleName());
+        }
+        Util.waitUntilAllChannelsHaveSameView(10000, 200, channels);
+    }
+
+    protected static class MyReceiver extends ReceiverAdapter {
+        protected final List<String> msgs=new ArrayList<>();
+
+        public void receive(Message msg) {
+            synchronized(msgs) {
+                msgs.add(msg.getObject());
+            }
+        }
+
+        public int size() {
+            synchronized(msgs) {return msgs.size();}
+        }
+
+        public List<String> list() {
+            synchronized(msgs) {return new ArrayList<>(msgs);}
+        }
+    }
+}
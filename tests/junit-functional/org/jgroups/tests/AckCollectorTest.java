@@ -263,5 +263,44 @@ public class AckCollectorTest {
         assert received_all;
     }
 
+    public void testQuorum() throws TimeoutException {
+        final AckCollector ac=new AckCollector();
+        ac.reset(list, one).quorum(3);
+        assert ac.expectedAcks() == 4 && ac.quorum() == 3;
+        Stream.of(two, three).forEach(ac::ack);
+        assert ac.received() == 2;
 
+        new Thread(() -> {
+            Util.sleep(500);
+            ac.suspect(four);
+        }).start();
+
+        boolean done=ac.waitForAllAcks(30000);
+        System.out.println("ac = " + ac);
+        assert done;
+        assert ac.size() == 1 && ac.received() == 3;
+    }
+
+    public void testQuorumReachedBeforeSet() throws TimeoutException {
+        final AckCollector ac=new AckCollector();
+        ac.reset(list);
+        Stream.of(one, two).forEach(ac::ack);
+        ac.quorum(2);
+        assert ac.waitForAllAcks(10);
+    }
+
+    public void testResetClearsQuorum() {
+        final AckCollector ac=new AckCollector();
+        ac.reset(list, five).quorum(1);
+        ac.reset(list, five);
+        assert ac.quorum() == 0;
+        ac.ack(one);
+        try {
+            ac.waitForAllAcks(100);
+            assert false : "should have thrown a TimeoutException as not all acks were received";
+        }
+        catch(TimeoutException expected) {
+            System.out.println("got expected exception: " + expected);
+        }
+    }
 }
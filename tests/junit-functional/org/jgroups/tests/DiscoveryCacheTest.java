@@ -0,0 +1,111 @@
+package org.jgroups.tests;
+
+import org.jgroups.*;
+import org.jgroups.protocols.*;
+import org.jgroups.protocols.pbcast.GMS;
+import org.jgroups.protocols.pbcast.NAKACK2;
+import org.jgroups.protocols.pbcast.STABLE;
+import org.jgroups.stack.IpAddress;
+import org.jgroups.stack.Protocol;
+import org.jgroups.util.NameCache;
+import org.jgroups.util.UUID;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Tests the discovery cache ({@link Discovery#discoveryCacheDir(String)}) and batched discovery responses
+ * @since  4.1.2
+ */
+@Test(groups=Global.FUNCTIONAL,singleThreaded=true)
+public class DiscoveryCacheTest {
+    protected static final String      CLUSTER=DiscoveryCacheTest.class.getSimpleName();
+    protected static final InetAddress LOOPBACK=InetAddress.getLoopbackAddress();
+    protected static final int         PORT=7800; // TCPPING probes PORT .. PORT+2
+    protected JChannel                 a, b, c;
+    protected File                     dir;
+
+    @BeforeMethod protected void setup() throws Exception {
+        dir=Files.createTempDirectory("discovery-cache").toFile();
+    }
+
+    @AfterMethod protected void destroy() {
+        Util.close(c, b, a);
+        File[] files=dir.listFiles();
+        if(files != null)
+            for(File f: files)
+                f.delete();
+        dir.delete();
+    }
+
+    /** A new member finds the coordinator in the cache and joins without running a discovery */
+    public void testJoinCachedCoordinator() throws Exception {
+        a=create("A", PORT);
+        b=create("B", PORT+1);
+        Util.waitUntilAllChannelsHaveSameView(10000, 500, a, b);
+        File file=new File(dir, CLUSTER + ".cache");
+        Util.waitUntil(10000, 100, () -> file.exists() && file.length() > 0);
+        Util.close(b);
+        Util.waitUntil(10000, 100, () -> a.getView().size() == 1);
+
+        c=create("C", PORT+1);
+        Util.waitUntilAllChannelsHaveSameView(10000, 500, a, c);
+        Discovery ping=c.getProtocolStack().findProtocol(Discovery.class);
+        assert ping.getNumDiscoveryCacheHits() == 1;
+        assert ping.getNumberOfDiscoveryRequestsSent() == 0 : "no discovery should have been run";
+    }
+
+    /** The cached coordinator is gone: the JOIN times out and a regular discovery is run */
+    public void testStaleCachedCoordinator() throws Exception {
+        a=create("A", PORT);
+        b=create("B", PORT+1);
+        Util.waitUntilAllChannelsHaveSameView(10000, 500, a, b);
+        File file=new File(dir, CLUSTER + ".cache");
+        Util.waitUntil(10000, 100, () -> file.exists() && file.length() > 0);
+        Util.close(b, a);
+
+        c=create("C", PORT+5); // not probed by TCPPING, and different from the cached coordinator's address
+        assert c.getView().size() == 1 && c.getView().getCoord().equals(c.getAddress());
+        Discovery ping=c.getProtocolStack().findProtocol(Discovery.class);
+        assert ping.getNumDiscoveryCacheHits() == 1;
+        assert ping.getNumberOfDiscoveryRequestsSent() > 0 : "a full discovery should have been run";
+    }
+
+    /** A batch of discovery responses is added to the local caches */
+    public void testBatchedResponses() throws Exception {
+        a=create("A", PORT);
+        Discovery ping=a.getProtocolStack().findProtocol(Discovery.class);
+        UUID x=UUID.randomUUID(), y=UUID.randomUUID();
+        IpAddress x_addr=new IpAddress("127.0.0.1", 5000), y_addr=new IpAddress("127.0.0.1", 6000);
+        List<PingData> list=Arrays.asList(new PingData(x, true, "X", x_addr).coord(true),
+                                          new PingData(y, true, "Y", y_addr));
+        Message msg=new Message(a.getAddress()).setSrc(x).putHeader(ping.getId(), new PingHeader(PingHeader.GET_MBRS_RSP_BATCH))
+          .setBuffer(Discovery.marshal(list));
+        ping.up(msg);
+        assert "X".equals(NameCache.get(x)) && "Y".equals(NameCache.get(y));
+        assert x_addr.equals(a.getProtocolStack().down(new Event(Event.GET_PHYSICAL_ADDRESS, x)));
+        assert y_addr.equals(a.getProtocolStack().down(new Event(Event.GET_PHYSICAL_ADDRESS, y)));
+    }
+
+    protected JChannel create(String name, int port) throws Exception {
+        Protocol[] stack={
+          new TCP().setBindAddress(LOOPBACK).setBindPort(port).setPortRange(0),
+          new TCPPING().initialHosts(Collections.singletonList(new InetSocketAddress(LOOPBACK, PORT))).portRange(2)
+            .discoveryCacheDir(dir.getAbsolutePath()).batchDiscoveryResponses(true),
+          new NAKACK2().setUseMcastXmit(false),
+          new UNICAST3(),
+          new STABLE(),
+          new GMS().joinTimeout(1000).setValue("print_local_addr", false)
+        };
+        return new JChannel(stack).name(name).connect(CLUSTER);
+    }
+}
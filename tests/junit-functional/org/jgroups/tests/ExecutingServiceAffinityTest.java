@@ -0,0 +1,184 @@
+package org.jgroups.tests;
+
+import org.jgroups.Address;
+import org.jgroups.Global;
+import org.jgroups.JChannel;
+import org.jgroups.blocks.executor.AffinityTask;
+import org.jgroups.blocks.executor.ExecutionRunner;
+import org.jgroups.blocks.executor.ExecutionService;
+import org.jgroups.protocols.CENTRAL_EXECUTOR;
+import org.jgroups.protocols.Executing;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.*;
+
+/**
+ * Tests affinity keys ({@link AffinityTask}) in {@link Executing}
+ * @since  4.1.2
+ */
+@Test(groups={Global.FUNCTIONAL,Global.EAP_EXCLUDED}, singleThreaded=true)
+public class ExecutingServiceAffinityTest {
+    protected final List<JChannel> channels=new ArrayList<>();
+    protected final List<Thread>   runners=new ArrayList<>();
+    protected ExecutionService     service;
+    protected static CountDownLatch latch, latch_a;
+
+    @AfterMethod protected void destroy() throws InterruptedException {
+        if(latch != null)
+            latch.countDown();
+        if(latch_a != null)
+            latch_a.countDown();
+        runners.forEach(Thread::interrupt);
+        for(Thread t: runners)
+            t.join(5000);
+        runners.clear();
+        Util.closeReverse(channels.toArray(new JChannel[0]));
+        channels.clear();
+    }
+
+
+    public void testTasksRunOnPreferredMember() throws Exception {
+        init(2, 2, 2);
+        List<Address> members=channels.get(0).getView().getMembers();
+        for(int i=0; i < 10; i++) {
+            Address target=members.get(i % members.size());
+            String key=keyFor(target, members);
+            String ran_on=service.submit(new WhereAmI(key)).get(10, TimeUnit.SECONDS);
+            assertEquals(ran_on, runnerName(target));
+        }
+        assertEquals(executing(channels.get(0)).getNumAffinityHits(), 10);
+        assertEquals(executing(channels.get(0)).getNumAffinityMisses(), 0);
+    }
+
+    /** The only consumer of the preferred member is busy, so an idle consumer on another member takes the task */
+    public void testBusyMemberIsBypassed() throws Exception {
+        init(1, 1, 1);
+        List<Address> members=channels.get(0).getView().getMembers();
+        Address b=members.get(1);
+        latch=new CountDownLatch(1);
+        Future<String> blocked=service.submit(new Block(keyFor(b, members)));
+        Util.waitUntil(5000, 100, () -> executing(channels.get(0)).getNumAffinityHits() == 1);
+
+        String ran_on=service.submit(new WhereAmI(keyFor(b, members))).get(10, TimeUnit.SECONDS);
+        assertNotEquals(ran_on, runnerName(b));
+        assertEquals(executing(channels.get(0)).getNumAffinityMisses(), 1);
+        latch.countDown();
+        assertEquals(blocked.get(10, TimeUnit.SECONDS), runnerName(b));
+    }
+
+    /**
+     * All consumers are busy, and a task preferring B is queued before a task preferring A. When A's consumer becomes
+     * idle, it takes the task preferring A, although the other task has been waiting longer
+     */
+    public void testQueuedTaskGoesToPreferredMember() throws Exception {
+        init(1, 1);
+        List<Address> members=channels.get(0).getView().getMembers();
+        Address a=members.get(0), b=members.get(1);
+        latch=new CountDownLatch(1);
+        latch_a=new CountDownLatch(1);
+        Future<String> blocked_a=service.submit(new Block(keyFor(a, members), true));
+        Future<String> blocked_b=service.submit(new Block(keyFor(b, members)));
+        Util.waitUntil(5000, 100, () -> executing(channels.get(0)).getNumAffinityHits() == 2);
+
+        Future<String> for_b=service.submit(new WhereAmI(keyFor(b, members)));
+        Future<String> for_a=service.submit(new WhereAmI(keyFor(a, members)));
+        Util.waitUntil(5000, 100, () -> executing(channels.get(0)).getNumQueuedTasks() == 2);
+        latch_a.countDown();
+        assertEquals(blocked_a.get(10, TimeUnit.SECONDS), runnerName(a));
+        assertEquals(for_a.get(10, TimeUnit.SECONDS), runnerName(a));
+        assertEquals(executing(channels.get(0)).getNumAffinityHits(), 3);
+        latch.countDown();
+        assertEquals(blocked_b.get(10, TimeUnit.SECONDS), runnerName(b));
+        for_b.get(10, TimeUnit.SECONDS); // runs on the first idle consumer
+    }
+
+
+    /** Creates one member per element of num_runners, with the given number of consumer threads */
+    protected void init(int ... num_runners) throws Exception {
+        for(int i=0; i < num_runners.length; i++) {
+            String name=String.valueOf((char)('A' + i));
+            JChannel ch=new JChannel(Util.getTestStack(new CENTRAL_EXECUTOR())).name(name);
+            channels.add(ch.connect(ExecutingServiceAffinityTest.class.getSimpleName()));
+        }
+        Util.waitUntilAllChannelsHaveSameView(10000, 500, channels.toArray(new JChannel[0]));
+        service=new ExecutionService(channels.get(0));
+        for(int i=0; i < num_runners.length; i++) {
+            JChannel ch=channels.get(i);
+            for(int j=0; j < num_runners[i]; j++) {
+                Thread t=new Thread(new ExecutionRunner(ch), runnerName(ch.getAddress()));
+                runners.add(t);
+                t.start();
+            }
+            // the runners of a member register with the coordinator before those of the next member
+            int expected=runners.size();
+            Util.waitUntil(5000, 50, () -> executing(channels.get(0)).getNumIdleConsumers() == expected);
+        }
+    }
+
+    protected static String keyFor(Address target, List<Address> members) {
+        for(int i=0;; i++) {
+            String key="key-" + i;
+            if(members.get((key.hashCode() & Integer.MAX_VALUE) % members.size()).equals(target))
+                return key;
+        }
+    }
+
+    protected static String runnerName(Address addr) {
+        return "runner-" + addr;
+    }
+
+    protected static Executing executing(JChannel ch) {
+        return ch.getProtocolStack().findProtocol(Executing.class);
+    }
+
+
+    protected static class WhereAmI implements Callable<String>, AffinityTask, Serializable {
+        private static final long serialVersionUID=-7223480926383476347L;
+        protected final String key;
+
+        public WhereAmI(String key) {
+            this.key=key;
+        }
+
+        public Object getAffinityKey() {
+            return key;
+        }
+
+        /** Returns the name of the runner thread (minus the suffix added by ExecutionRunner) */
+        public String call() throws Exception {
+            String name=Thread.currentThread().getName();
+            int index=name.indexOf("- ");
+            return index > 0? name.substring(0, index) : name;
+        }
+    }
+
+    protected static class Block extends WhereAmI {
+        private static final long serialVersionUID=4531788425064185620L;
+
+        protected final boolean wait_for_a;
+
+        public Block(String key) {
+            this(key, false);
+        }
+
+        public Block(String key, boolean wait_for_a) {
+            super(key);
+            this.wait_for_a=wait_for_a;
+        }
+
+        public String call() throws Exception {
+            (wait_for_a? latch_a : latch).await(10, TimeUnit.SECONDS);
+            return super.call();
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package org.jgroups.tests;
+
+import org.jgroups.Address;
+import org.jgroups.Global;
+import org.jgroups.JChannel;
+import org.jgroups.protocols.JDBC_PING;
+import org.jgroups.protocols.SHARED_LOOPBACK;
+import org.jgroups.protocols.UNICAST3;
+import org.jgroups.protocols.pbcast.GMS;
+import org.jgroups.protocols.pbcast.NAKACK2;
+import org.jgroups.protocols.pbcast.STABLE;
+import org.jgroups.stack.Protocol;
+import org.jgroups.util.UUID;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+
+/**
+ * Tests {@link JDBC_PING} against an in-memory H2 database: pooled connections, batched upserts and incremental
+ * reads based on a watermark column
+ * @since  4.1.2
+ */
+@Test(groups=Global.FUNCTIONAL,singleThreaded=true)
+public class JDBC_PINGTest {
+    protected static final String CLUSTER=JDBC_PINGTest.class.getSimpleName();
+    protected static final String DRIVER="org.h2.Driver", USER="sa", PWD="";
+    protected static final String UPSERT="MERGE INTO JGROUPSPING (own_addr, cluster_name, ping_data, updated) " +
+      "KEY(own_addr, cluster_name) VALUES (?, ?, ?, CURRENT_TIMESTAMP)";
+    protected static final String SELECT_ALL="SELECT ping_data, own_addr, cluster_name, updated FROM JGROUPSPING " +
+      "WHERE cluster_name=?";
+    protected static final String SELECT_CHANGED=SELECT_ALL + " AND updated >= ?";
+    protected JChannel            a, b, c;
+    protected String              url;
+
+
+    @AfterMethod protected void destroy() {
+        Util.close(c, b, a);
+    }
+
+    public void testClusterFormationWithDeleteAndInsert() throws Exception {
+        url="jdbc:h2:mem:" + CLUSTER + "-1;DB_CLOSE_DELAY=-1";
+        a=create("A", false, false);
+        b=create("B", false, false);
+        c=create("C", false, false);
+        Util.waitUntilAllChannelsHaveSameView(10000, 500, a, b, c);
+        checkRows(a, b, c);
+    }
+
+    public void testClusterFormationWithUpsertAndIncrementalReads() throws Exception {
+        url="jdbc:h2:mem:" + CLUSTER + "-2;DB_CLOSE_DELAY=-1";
+        a=create("A", true, true);
+        b=create("B", true, true);
+        c=create("C", true, true);
+        Util.waitUntilAllChannelsHaveSameView(10000, 500, a, b, c);
+        checkRows(a, b, c);
+
+        JDBC_PING ping=c.getProtocolStack().findProtocol(JDBC_PING.class);
+        for(int i=0; i < 5; i++) {
+            String rsps=ping.findInitialMembersAsString();
+            for(JChannel ch: new JChannel[]{a,b,c})
+                assert rsps.contains(ch.getAddress().toString()) : String.format("%s not found in %s", ch.getAddress(), rsps);
+        }
+        int full_reads=(Integer)Util.getField(Util.getField(JDBC_PING.class, "num_full_reads"), ping);
+        int incremental_reads=(Integer)Util.getField(Util.getField(JDBC_PING.class, "num_incremental_reads"), ping);
+        int reused=(Integer)Util.getField(Util.getField(JDBC_PING.class, "num_pooled_connections_reused"), ping);
+        System.out.printf("full reads: %d, incremental reads: %d, pooled connections reused: %d\n",
+                          full_reads, incremental_reads, reused);
+        assert full_reads > 0 : "the first read should have been a full read";
+        assert incremental_reads > 0;
+        assert reused > 0;
+    }
+
+    /** select_changed_pingdata_sql without a watermark in select_all_pingdata_sql: falls back to full reads */
+    public void testIncrementalReadsWithoutWatermark() throws Exception {
+        url="jdbc:h2:mem:" + CLUSTER + "-3;DB_CLOSE_DELAY=-1";
+        a=create("A", true, false);
+        JDBC_PING ping=a.getProtocolStack().findProtocol(JDBC_PING.class);
+        ping.setValue("select_changed_pingdata_sql", SELECT_CHANGED); // select_all_pingdata_sql has only 3 columns
+        for(int i=0; i < 5; i++)
+            assert ping.findInitialMembersAsString().contains(a.getAddress().toString());
+        int incremental_reads=(Integer)Util.getField(Util.getField(JDBC_PING.class, "num_incremental_reads"), ping);
+        assert incremental_reads == 0;
+    }
+
+    protected JChannel create(String name, boolean upsert, boolean incremental) throws Exception {
+        JDBC_PING ping=new JDBC_PING().setValue("connection_driver", DRIVER).setValue("connection_url", url)
+          .setValue("connection_username", USER).setValue("connection_password", PWD)
+          .setValue("register_shutdown_hook", false);
+        if(upsert)
+            ping.setValue("upsert_single_sql", UPSERT);
+        if(incremental)
+            ping.setValue("select_all_pingdata_sql", SELECT_ALL).setValue("select_changed_pingdata_sql", SELECT_CHANGED);
+        Protocol[] stack={
+          new SHARED_LOOPBACK(),
+          ping,
+          new NAKACK2(),
+          new UNICAST3(),
+          new STABLE(),
+          new GMS().joinTimeout(1000).setValue("print_local_addr", false)
+        };
+        return new JChannel(stack).name(name).connect(CLUSTER);
+    }
+
+    /**
+     * The rows written on view changes depend on the physical addresses known to the coordinator at that time, so
+     * the coordinator rewrites all rows once the view is stable. Then, every member needs to have its own row
+     */
+    protected void checkRows(JChannel coord, JChannel ... members) throws Exception {
+        JDBC_PING ping=coord.getProtocolStack().findProtocol(JDBC_PING.class);
+        ping.writeInfo();
+        for(JChannel ch: members)
+            assert hasRow(ch.getAddress()) : String.format("no row found for %s", ch.getAddress());
+        assert hasRow(coord.getAddress());
+    }
+
+    protected boolean hasRow(Address addr) throws Exception {
+        try(Connection conn=DriverManager.getConnection(url, USER, PWD);
+            PreparedStatement ps=conn.prepareStatement("SELECT count(*) FROM JGROUPSPING WHERE cluster_name=? AND own_addr=?")) {
+            ps.setString(1, CLUSTER);
+            ps.setString(2, ((UUID)addr).toStringLong());
+            try(ResultSet rs=ps.executeQuery()) {
+                return rs.next() && rs.getInt(1) == 1;
+            }
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package org.jgroups.tests;
+
+import org.jgroups.Global;
+import org.jgroups.util.PhiAccrual;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests {@link PhiAccrual}
+ * @since  4.1.2
+ */
+@Test(groups=Global.FUNCTIONAL)
+public class PhiAccrualTest {
+    protected static final long MS=TimeUnit.MILLISECONDS.toNanos(1);
+
+    public void testNoSamples() {
+        PhiAccrual pa=new PhiAccrual(10, 100, 3);
+        assert pa.phi(System.nanoTime()) == 0.0;
+        assert pa.elapsed(System.nanoTime()) == -1;
+        pa.add(0).add(1000 * MS);
+        assert pa.size() == 1;
+        assert pa.phi(100_000 * MS) == 0.0 : "not enough samples yet";
+    }
+
+    public void testMeanAndStddev() {
+        PhiAccrual pa=new PhiAccrual(10, 0, 1);
+        long ts=0;
+        for(int i=0; i < 5; i++)
+            pa.add(ts+=1000 * MS);
+        System.out.println("pa = " + pa);
+        assert pa.size() == 4;
+        assert pa.mean() == 1000.0;
+        assert pa.stddev() == 0.0;
+    }
+
+    public void testSlidingWindow() {
+        PhiAccrual pa=new PhiAccrual(5, 0, 1);
+        long ts=0;
+        for(int i=0; i < 10; i++)
+            pa.add(ts+=100 * MS);
+        for(int i=0; i < 5; i++)
+            pa.add(ts+=1000 * MS);
+        assert pa.size() == 5;
+        assert pa.mean() == 1000.0 : "old intervals should have been evicted: " + pa;
+    }
+
+    public void testPhiIncreasesWithElapsedTime() {
+        PhiAccrual pa=new PhiAccrual(100, 200, 3);
+        long ts=0;
+        for(int i=0; i < 20; i++)
+            pa.add(ts+=(1000 + (i % 2 == 0? 50 : -50)) * MS);
+        double phi_1=pa.phi(ts + 500 * MS), phi_2=pa.phi(ts + 1000 * MS),
+          phi_3=pa.phi(ts + 2000 * MS), phi_4=pa.phi(ts + 5000 * MS);
+        System.out.printf("phi: %.2f %.2f %.2f %.2f\n", phi_1, phi_2, phi_3, phi_4);
+        assert phi_1 < phi_2 && phi_2 < phi_3 && phi_3 < phi_4;
+        assert phi_1 < 1.0;
+        assert phi_4 > 8.0;
+    }
+
+    public void testJitterRaisesTolerance() {
+        PhiAccrual regular=new PhiAccrual(100, 10, 3), jittery=new PhiAccrual(100, 10, 3);
+        long ts1=0, ts2=0;
+        for(int i=0; i < 50; i++) {
+            regular.add(ts1+=1000 * MS);
+            jittery.add(ts2+=(i % 2 == 0? 500 : 1500) * MS);
+        }
+        double phi_regular=regular.phi(ts1 + 1500 * MS), phi_jittery=jittery.phi(ts2 + 1500 * MS);
+        System.out.printf("phi regular: %.2f, phi jittery: %.2f\n", phi_regular, phi_jittery);
+        assert phi_regular > phi_jittery;
+    }
+
+    public void testReset() {
+        PhiAccrual pa=new PhiAccrual(10, 100, 1);
+        pa.add(0).add(1000 * MS).add(2000 * MS);
+        assert pa.size() == 2;
+        pa.reset(3000 * MS);
+        assert pa.size() == 0 && !pa.received();
+        assert pa.phi(100_000 * MS) == 0.0;
+        assert pa.elapsed(4000 * MS) == 1000 : "elapsed time is measured from the reset";
+        pa.add(5000 * MS);
+        assert pa.size() == 0 : "the reset must not count as a heartbeat";
+        pa.add(6000 * MS);
+        assert pa.size() == 1 && pa.mean() == 1000.0;
+    }
+
+    /** System.nanoTime() can be negative */
+    public void testNegativeTimestamps() {
+        PhiAccrual pa=new PhiAccrual(10, 0, 1);
+        long ts=Long.MIN_VALUE / 2;
+        for(int i=0; i < 5; i++)
+            pa.add(ts+=1000 * MS);
+        assert pa.size() == 4 && pa.mean() == 1000.0 : pa;
+        assert pa.elapsed(ts + 500 * MS) == 500;
+        assert pa.phi(ts + 5000 * MS) > 0.0;
+    }
+}
@@ -0,0 +1,172 @@
+package org.jgroups.tests;
+
+import org.jgroups.*;
+import org.jgroups.protocols.*;
+import org.jgroups.protocols.pbcast.GMS;
+import org.jgroups.protocols.pbcast.NAKACK2;
+import org.jgroups.protocols.pbcast.STABLE;
+import org.jgroups.util.AsciiString;
+import org.jgroups.util.DefaultThreadFactory;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests {@link PriorityBundler}
+ * @since  4.1.2
+ */
+@Test(groups=Global.FUNCTIONAL,singleThreaded=true)
+public class PriorityBundlerTest {
+    protected static final Address  dest=Util.createRandomAddress("B");
+    protected JChannel              a, b;
+
+    @AfterMethod protected void destroy() {Util.close(b, a);}
+
+    /** Internal messages are bundled before OOB messages, and OOB messages before regular messages */
+    public void testStrictPriority() throws Exception {
+        MyBundler bundler=create(100, "strict");
+        send(bundler, 10, Message.Flag.NO_FC);
+        send(bundler, 10, Message.Flag.OOB);
+        send(bundler, 10, Message.Flag.INTERNAL);
+        bundler.process();
+        List<Integer> classes=bundler.classes;
+        System.out.println("classes = " + classes);
+        assert classes.size() == 30;
+        for(int i=0; i < classes.size(); i++)
+            assert classes.get(i) == i / 10 : String.format("message %d has class %d", i, classes.get(i));
+    }
+
+    /** With weights 4:2:1, every round takes about twice as many internal as OOB messages, and twice as many OOB
+     * as regular messages, but no class is starved */
+    public void testWeightedFairQueuing() throws Exception {
+        MyBundler bundler=create(500, "wfq");
+        bundler.weights(4, 2, 1);
+        send(bundler, 300, Message.Flag.NO_FC);
+        send(bundler, 300, Message.Flag.OOB);
+        send(bundler, 300, Message.Flag.INTERNAL);
+        int num=bundler.processWeighted();
+        int[] counts=new int[3];
+        bundler.classes.forEach(c -> counts[c]++);
+        System.out.printf("first round: %d messages: internal=%d, oob=%d, regular=%d\n", num, counts[0], counts[1], counts[2]);
+        assert counts[2] > 0 : "regular messages were starved";
+        assert counts[0] >= counts[1] * 1.5 && counts[1] >= counts[2] * 1.5;
+        bundler.process();
+        assert bundler.classes.size() == 900;
+        assert bundler.size() == 0;
+    }
+
+    /** A full queue of regular messages blocks senders of regular messages, but not senders of internal messages */
+    public void testFullQueueBlocksOnlyOwnClass() throws Exception {
+        MyBundler bundler=create(5, "strict");
+        send(bundler, 5, Message.Flag.NO_FC);
+        Thread sender=new Thread(() -> {
+            try {
+                bundler.send(new Message(dest, new byte[10]));
+            }
+            catch(Exception e) {
+            }
+        });
+        sender.start();
+        Util.waitUntil(5000, 50, () -> sender.getState() == Thread.State.WAITING);
+        send(bundler, 5, Message.Flag.INTERNAL); // doesn't block
+        assert bundler.getInternalQueueSize() == 5 && bundler.getRegularQueueSize() == 5;
+        bundler.process();
+        sender.join(5000);
+        assert !sender.isAlive();
+        assert (long)bundler.getStats().get("regular_blocked_sends") == 1;
+        assert (long)bundler.getStats().get("internal_blocked_sends") == 0;
+    }
+
+    public void testStrictPriorityWithChannels() throws Exception {
+        sendAndCheck("strict");
+    }
+
+    public void testWeightedFairQueuingWithChannels() throws Exception {
+        sendAndCheck("wfq");
+    }
+
+    protected void sendAndCheck(String policy) throws Exception {
+        final int NUM=2000;
+        a=createChannel("A", policy);
+        b=createChannel("B", policy);
+        Util.waitUntilAllChannelsHaveSameView(10000, 100, a, b);
+        AtomicInteger received=new AtomicInteger();
+        b.setReceiver(new ReceiverAdapter() {
+            public void receive(Message msg) {
+                received.incrementAndGet();
+            }
+        });
+        for(int i=0; i < NUM; i++) {
+            Message msg=new Message(i % 2 == 0? b.getAddress() : null, i);
+            if(i % 3 == 0)
+                msg.setFlag(Message.Flag.OOB);
+            a.send(msg);
+        }
+        Util.waitUntil(10000, 100, () -> received.get() == NUM);
+        TP tp=a.getProtocolStack().getTransport();
+        assert tp.getBundler() instanceof PriorityBundler;
+        System.out.printf("bundler stats: %s\n", tp.bundlerStats());
+    }
+
+    protected static JChannel createChannel(String name, String policy) throws Exception {
+        TP tp=new SHARED_LOOPBACK().setValue("bundler_type", "priority").setValue("bundler_priority_policy", policy);
+        return new JChannel(tp, new SHARED_LOOPBACK_PING(), new NAKACK2(), new UNICAST3(), new STABLE(), new GMS())
+          .name(name).connect(PriorityBundlerTest.class.getSimpleName());
+    }
+
+    protected static MyBundler create(int capacity, String policy) {
+        MyBundler bundler=new MyBundler(capacity);
+        bundler.policy(policy).init(new MockTransport());
+        bundler.enable();
+        return bundler;
+    }
+
+    protected static void send(Bundler bundler, int num, Message.Flag flag) throws Exception {
+        for(int i=0; i < num; i++)
+            bundler.send(new Message(dest, new byte[1000]).setFlag(flag));
+    }
+
+    /** Records the traffic class of every bundled message, and doesn't start the bundler thread */
+    protected static class MyBundler extends PriorityBundler {
+        protected final List<Integer> classes=new ArrayList<>();
+
+        protected MyBundler(int capacity) {
+            super(capacity);
+        }
+
+        protected void enable() {
+            running=true;
+        }
+
+        @Override protected boolean process() {
+            return super.process();
+        }
+
+        @Override protected int processWeighted() {
+            return super.processWeighted();
+        }
+
+        @Override
+        protected void _addMessage(Message msg, long size) {
+            classes.add(trafficClass(msg));
+            super._addMessage(msg, size);
+        }
+    }
+
+    protected static class MockTransport extends TP {
+        public MockTransport() {
+            this.cluster_name=new AsciiString("mock");
+            thread_factory=new DefaultThreadFactory("", false);
+        }
+
+        public boolean supportsMulticasting() {return false;}
+        public void sendMulticast(byte[] data, int offset, int length) throws Exception {}
+        public void sendUnicast(PhysicalAddress dest, byte[] data, int offset, int length) throws Exception {}
+        public String getInfo() {return null;}
+        protected PhysicalAddress getPhysicalAddress() {return null;}
+    }
+}
@@ -4,6 +4,7 @@ import org.jgroups.*;
 import org.jgroups.protocols.*;
 import org.jgroups.protocols.pbcast.GMS;
 import org.jgroups.protocols.pbcast.NAKACK2;
+import org.jgroups.protocols.relay.ConsistentHashSiteMasterPicker;
 import org.jgroups.protocols.relay.RELAY2;
 import org.jgroups.protocols.relay.Route;
 import org.jgroups.protocols.relay.SiteMaster;
@@ -17,7 +18,10 @@ import org.testng.annotations.Test;
 import java.net.InetAddress;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
 
 /**
  * Various RELAY2-related tests
@@ -302,6 +306,117 @@ public class Relay2Test {
         assert rz.getList().isEmpty();
     }
 
+    /**
+     * A and B are the site masters of LON, X and Y of SFO. With consistent_routing, multicasts sent by C must be relayed
+     * by only one of A or B (picked by consistent hashing), so that X, Y and Z receive every message exactly once and in order
+     */
+    public void testMulticastsWithMultipleSiteMasters() throws Exception {
+        MyReceiver rx=new MyReceiver(), ry=new MyReceiver(), rz=new MyReceiver();
+        final int NUM=100;
+        a=createNode(LON, "A", LON_CLUSTER, 2, null, "sender", null);
+        b=createNode(LON, "B", LON_CLUSTER, 2, null, "sender", null);
+        c=createNode(LON, "C", LON_CLUSTER, 2, null, "sender", null);
+        Util.waitUntilAllChannelsHaveSameView(10000, 500, a,b,c);
+        x=createNode(SFO, "X", SFO_CLUSTER, 2, null, "sender", rx);
+        y=createNode(SFO, "Y", SFO_CLUSTER, 2, null, "sender", ry);
+        z=createNode(SFO, "Z", SFO_CLUSTER, 2, null, "sender", rz);
+        Util.waitUntilAllChannelsHaveSameView(10000, 500, x,y,z);
+        waitForBridgeView(4, 10000, 500, a,b,x,y);
+
+        for(int i=1; i <= NUM; i++)
+            c.send(null, i);
+        List<Integer> expected=new ArrayList<>(NUM);
+        for(int i=1; i <= NUM; i++)
+            expected.add(i);
+        Util.waitUntil(10000, 500, () -> Stream.of(rx,ry,rz).allMatch(r -> r.getList().size() >= NUM));
+        Util.sleep(500); // wait for duplicates (if any)
+        for(MyReceiver r: Arrays.asList(rx, ry, rz))
+            assert r.getList().equals(expected) : r.getList();
+    }
+
+    /**
+     * A and X create 2 bridge channels each: A has 4 routes to SFO (2 local bridges * 2 remote bridges). Messages
+     * from different senders are spread over the routes by consistent hashing
+     */
+    public void testMultipleBridgeChannels() throws Exception {
+        MyReceiver rx=new MyReceiver();
+        a=createNode(LON, "A", null, null);
+        x=createNode(SFO, "X", null, rx);
+        for(JChannel ch: Arrays.asList(a, x)) {
+            RELAY2 relay=ch.getProtocolStack().findProtocol(RELAY2.class);
+            relay.setNumBridgeChannels(2).siteMasterPicker(new ConsistentHashSiteMasterPicker());
+        }
+        a.connect(LON_CLUSTER);
+        x.connect(SFO_CLUSTER);
+        waitForBridgeView(4, 10000, 500, a,x);
+
+        RELAY2 relay=a.getProtocolStack().findProtocol(RELAY2.class);
+        Util.waitUntil(10000, 500, () -> Stream.of(relay.printRouteStats().split("\n"))
+          .filter(l -> l.startsWith(SFO)).count() == 4);
+        System.out.println("routes:\n" + relay.printRouteStats());
+
+        final int NUM=100;
+        for(int i=1; i <= NUM; i++)
+            a.send(new SiteMaster(SFO), i);
+        Util.waitUntil(10000, 500, () -> rx.getList().size() == NUM);
+        List<Integer> expected=new ArrayList<>(NUM);
+        for(int i=1; i <= NUM; i++)
+            expected.add(i);
+        assert rx.getList().equals(expected) : rx.getList();
+        System.out.println("routes:\n" + relay.printRouteStats());
+    }
+
+    /**
+     * Messages relayed concurrently by A to SFO are sent in (compressed) bundles. X has to receive all of them, and
+     * the messages of each sender have to be received in order
+     */
+    public void testBundlingAndCompression() throws Exception {
+        final int NUM_SENDERS=4, NUM=1000;
+        MyBundleReceiver rx=new MyBundleReceiver();
+        byte[] dictionary="sender-0 sender-1 sender-2 sender-3 message number ".getBytes();
+        a=createNode(LON, "A", null, null);
+        x=createNode(SFO, "X", null, null);
+        x.setReceiver(rx);
+        for(JChannel ch: Arrays.asList(a, x)) {
+            RELAY2 relay=ch.getProtocolStack().findProtocol(RELAY2.class);
+            relay.bundleRelayedMessages(true).compressBundles(true).setCompressionDictionary(dictionary);
+        }
+        a.connect(LON_CLUSTER);
+        x.connect(SFO_CLUSTER);
+        waitForBridgeView(2, 10000, 500, a,x);
+
+        Thread[] senders=new Thread[NUM_SENDERS];
+        for(int i=0; i < senders.length; i++) {
+            String name="sender-" + i;
+            senders[i]=new Thread(() -> {
+                for(int j=1; j <= NUM; j++) {
+                    try {
+                        a.send(new SiteMaster(SFO), name + " message number " + j);
+                    }
+                    catch(Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+            });
+            senders[i].start();
+        }
+        for(Thread t: senders)
+            t.join(10000);
+        Util.waitUntil(10000, 500, () -> rx.size() == NUM_SENDERS * NUM);
+        RELAY2 relay=a.getProtocolStack().findProtocol(RELAY2.class);
+        System.out.printf("bundles: %d, bundled messages: %d, avg bundle size: %.2f, compression ratio: %.2f\n",
+                          relay.getNumBundlesSent(), relay.getNumBundledMessages(), relay.getAvgBundleSize(),
+                          relay.getCompressionRatio());
+        assert relay.getNumRelayed() == NUM_SENDERS * NUM;
+        assert relay.getNumBundlesSent() > 0;
+        assert relay.getCompressionRatio() < 1.0;
+        for(int i=0; i < NUM_SENDERS; i++) {
+            List<Integer> list=rx.get("sender-" + i);
+            for(int j=0; j < NUM; j++)
+                assert list.get(j) == j+1 : "sender-" + i + ": " + list;
+        }
+    }
+
     protected static class SiteMasterPickerImpl implements SiteMasterPicker {
 
         public SiteMasterPickerImpl() {
@@ -324,6 +439,11 @@ public class Relay2Test {
 
     protected JChannel createNode(String site_name, String node_name, String cluster_name, int num_site_masters,
                                   String sm_picker, Receiver receiver) throws Exception {
+        return createNode(site_name, node_name, cluster_name, num_site_masters, sm_picker, null, receiver);
+    }
+
+    protected JChannel createNode(String site_name, String node_name, String cluster_name, int num_site_masters,
+                                  String sm_picker, String consistent_routing, Receiver receiver) throws Exception {
         JChannel ch=new JChannel(new SHARED_LOOPBACK(),
                                  new SHARED_LOOPBACK_PING(),
                                  new MERGE3().setValue("max_interval", 3000).setValue("min_interval", 1000),
@@ -333,7 +453,8 @@ public class Relay2Test {
                                  new FORWARD_TO_COORD(),
                                  createRELAY2(site_name)
                                    .setValue("max_site_masters", num_site_masters)
-                                   .setValue("site_master_picker_impl", sm_picker)).name(node_name);
+                                   .setValue("site_master_picker_impl", sm_picker)
+                                   .setValue("consistent_routing", consistent_routing)).name(node_name);
         if(receiver != null)
             ch.setReceiver(receiver);
         if(cluster_name != null)
@@ -349,8 +470,8 @@ public class Relay2Test {
         RelayConfig.SiteConfig lon_cfg=new RelayConfig.SiteConfig(LON),
           sfo_cfg=new RelayConfig.SiteConfig(SFO);
 
-        lon_cfg.addBridge(new RelayConfig.ProgrammaticBridgeConfig(BRIDGE_CLUSTER, createBridgeStack()));
-        sfo_cfg.addBridge(new RelayConfig.ProgrammaticBridgeConfig(BRIDGE_CLUSTER, createBridgeStack()));
+        lon_cfg.addBridge(new RelayConfig.ProgrammaticBridgeConfig(BRIDGE_CLUSTER, Relay2Test::createBridgeStack));
+        sfo_cfg.addBridge(new RelayConfig.ProgrammaticBridgeConfig(BRIDGE_CLUSTER, Relay2Test::createBridgeStack));
         relay.addSite(LON, lon_cfg).addSite(SFO, sfo_cfg);
         return relay;
     }
@@ -432,6 +553,24 @@ public class Relay2Test {
     }
 
 
+    /** Records the message numbers per sender ("sender-0 message number 1") */
+    protected static class MyBundleReceiver extends ReceiverAdapter {
+        protected final Map<String,List<Integer>> msgs=new HashMap<>();
+
+        public synchronized void receive(Message msg) {
+            String[] tmp=((String)msg.getObject()).split(" ");
+            msgs.computeIfAbsent(tmp[0], k -> new ArrayList<>()).add(Integer.parseInt(tmp[3]));
+        }
+
+        public synchronized int size() {
+            return msgs.values().stream().mapToInt(List::size).sum();
+        }
+
+        public synchronized List<Integer> get(String sender) {
+            return new ArrayList<>(msgs.get(sender));
+        }
+    }
+
     protected static class MyReceiver extends ReceiverAdapter {
         protected final List<Integer> list=new ArrayList<>(512);
 
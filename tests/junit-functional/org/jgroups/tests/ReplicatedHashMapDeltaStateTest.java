@@ -0,0 +1,159 @@
+package org.jgroups.tests;
+
+import org.jgroups.Address;
+import org.jgroups.Global;
+import org.jgroups.JChannel;
+import org.jgroups.View;
+import org.jgroups.blocks.ReplicatedHashMap;
+import org.jgroups.protocols.pbcast.STATE;
+import org.jgroups.protocols.pbcast.STATE_TRANSFER;
+import org.jgroups.stack.Protocol;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.util.*;
+import java.util.function.Supplier;
+
+/**
+ * Tests delta state transfer ({@link org.jgroups.DeltaStateListener}) with {@link ReplicatedHashMap}: a member which
+ * restarts from a snapshot only fetches the changes since the snapshot was taken
+ * @since  4.1.2
+ */
+@Test(groups=Global.FUNCTIONAL,singleThreaded=true,dataProvider="createStateTransfer")
+public class ReplicatedHashMapDeltaStateTest {
+    protected static final String               CLUSTER=ReplicatedHashMapDeltaStateTest.class.getSimpleName();
+    protected static final int                  NUM=100;
+    protected ReplicatedHashMap<String,Integer> a, b;
+
+    @DataProvider
+    static Object[][] createStateTransfer() {
+        return new Object[][] {
+          {(Supplier<Protocol>)STATE_TRANSFER::new},
+          {(Supplier<Protocol>)STATE::new}
+        };
+    }
+
+    @AfterMethod protected void destroy() {
+        Util.close(b, a);
+    }
+
+    public void testDeltaAfterRestart(Supplier<Protocol> state_transfer) throws Exception {
+        a=create("A", state_transfer, null);
+        b=create("B", state_transfer, null);
+        for(int i=0; i < NUM; i++)
+            a.put("key-" + i, i);
+        assert b.size() == NUM;
+        byte[] snapshot=snapshot(b);
+        Util.close(b);
+
+        // changes while B is down: 5 new keys, 2 updated keys and 3 removed keys
+        for(int i=NUM; i < NUM+5; i++)
+            a.put("key-" + i, i);
+        a.put("key-0", -1);
+        a.put("key-1", -1);
+        for(int i=2; i < 5; i++)
+            a.remove("key-" + i);
+
+        Counter counter=new Counter();
+        b=create("B", state_transfer, snapshot, counter);
+        assert b.equals(a) : String.format("A: %s\nB: %s", a, b);
+        assert counter.set == 7 : "only the 7 changed entries should have been transferred, but got " + counter.set;
+        assert counter.removed == 3;
+
+        // B can now provide a delta state itself
+        byte[] version=b.getStateVersion();
+        assert version != null;
+        ByteArrayOutputStream out=new ByteArrayOutputStream();
+        b.getState(version, out);
+        ByteArrayOutputStream full=new ByteArrayOutputStream();
+        b.getState(full);
+        assert out.size() < full.size() / 10 : String.format("delta (%d bytes) should be smaller than full state (%d bytes)",
+                                                             out.size(), full.size());
+    }
+
+    /** After a clear() the provider cannot compute a delta for an older version and sends the full state */
+    public void testFullStateAfterClear(Supplier<Protocol> state_transfer) throws Exception {
+        a=create("A", state_transfer, null);
+        b=create("B", state_transfer, null);
+        for(int i=0; i < NUM; i++)
+            a.put("key-" + i, i);
+        byte[] snapshot=snapshot(b);
+        Util.close(b);
+
+        a.clear();
+        a.put("x", 1);
+        a.put("y", 2);
+
+        b=create("B", state_transfer, snapshot);
+        assert b.equals(a) : String.format("A: %s\nB: %s", a, b);
+        assert b.size() == 2;
+    }
+
+    /** Dropped tombstones force a full state transfer, as the provider doesn't know all removed keys */
+    public void testFullStateAfterDroppedTombstones(Supplier<Protocol> state_transfer) throws Exception {
+        a=create("A", state_transfer, null).setMaxTombstones(5);
+        b=create("B", state_transfer, null);
+        for(int i=0; i < NUM; i++)
+            a.put("key-" + i, i);
+        byte[] snapshot=snapshot(b);
+        Util.close(b);
+
+        for(int i=0; i < 10; i++)
+            a.remove("key-" + i);
+
+        b=create("B", state_transfer, snapshot);
+        assert b.equals(a) : String.format("A: %s\nB: %s", a, b);
+        assert b.size() == NUM - 10;
+    }
+
+    /** Without delta state transfer (default), the old state format is used and the full state is transferred */
+    public void testDeltaStateTransferDisabled(Supplier<Protocol> state_transfer) throws Exception {
+        a=create("A", state_transfer, null);
+        a.setDeltaStateTransfer(false);
+        for(int i=0; i < NUM; i++)
+            a.put("key-" + i, i);
+        ByteArrayOutputStream out=new ByteArrayOutputStream();
+        a.getState(out);
+        try(ObjectInputStream in=new ObjectInputStream(new ByteArrayInputStream(out.toByteArray()))) {
+            Map<?,?> state=(Map<?,?>)in.readObject(); // the format used by older versions
+            assert state.size() == NUM;
+        }
+        assert a.getStateVersion() == null;
+    }
+
+    protected static byte[] snapshot(ReplicatedHashMap<String,Integer> map) throws Exception {
+        ByteArrayOutputStream out=new ByteArrayOutputStream();
+        map.saveSnapshot(out);
+        return out.toByteArray();
+    }
+
+    protected static ReplicatedHashMap<String,Integer> create(String name, Supplier<Protocol> state_transfer,
+                                                              byte[] snapshot,
+                                                              ReplicatedHashMap.Notification... notifications) throws Exception {
+        JChannel ch=new JChannel(Util.getTestStack(state_transfer.get())).name(name);
+        ReplicatedHashMap<String,Integer> map=new ReplicatedHashMap<String,Integer>(ch).setDeltaStateTransfer(true);
+        map.setBlockingUpdates(true);
+        if(snapshot != null)
+            map.loadSnapshot(new ByteArrayInputStream(snapshot));
+        for(ReplicatedHashMap.Notification n: notifications)
+            map.addNotifier(n);
+        ch.connect(CLUSTER);
+        map.start(10000);
+        return map;
+    }
+
+    protected static class Counter implements ReplicatedHashMap.Notification<String,Integer> {
+        protected int set, removed;
+
+        public void entrySet(String key, Integer value) {}
+        public void entryRemoved(String key)            {removed++;}
+        public void contentsSet(Map<String,Integer> m)  {set+=m.size();}
+        public void contentsCleared()                   {}
+        public void viewChange(View view, List<Address> joined, List<Address> left) {}
+    }
+}
@@ -122,6 +122,35 @@ public class ResponseCollectorTest {
         assert coll.size() == 0;
     }
 
+    public static void testWaitForResponsesWithCondition() {
+        final ResponseCollector<Integer> coll=new ResponseCollector<>(a, b, c);
+        new Thread(() -> {
+            Util.sleep(500);
+            coll.add(a, 1);
+            Util.sleep(500);
+            coll.add(b, 2);
+        }).start();
+        long start=System.currentTimeMillis();
+        boolean rc=coll.waitForResponses(rsps -> rsps.size() >= 2, 10000);
+        long time=System.currentTimeMillis() - start;
+        System.out.printf("coll = %s (%d ms)\n", coll, time);
+        assert rc;
+        assert time < 10000;
+        assert !coll.hasAllResponses();
+        assert coll.getMissing().contains(c);
+    }
+
+    public static void testWaitForResponsesWithConditionNotMet() {
+        final ResponseCollector<Integer> coll=new ResponseCollector<>(a, b, c);
+        coll.add(a, 1);
+        boolean rc=coll.waitForResponses(rsps -> rsps.contains(c), 500);
+        assert !rc;
+        coll.add(b, 2);
+        coll.add(c, 3);
+        rc=coll.waitForResponses(rsps -> false, 500);
+        assert rc : "all responses have been received";
+    }
+
 
 
 
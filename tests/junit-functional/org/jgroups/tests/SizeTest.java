@@ -558,6 +558,11 @@ public class SizeTest {
         }
         hdr=new GMS.GmsHeader(GMS.GmsHeader.MERGE_RSP);
         _testSize(hdr);
+
+        hdr=new GMS.GmsHeader(GMS.GmsHeader.VIEW_ACK).viewId(view.getViewId());
+        _testSize(hdr);
+        GMS.GmsHeader hdr2=Util.streamableFromByteBuffer(GMS.GmsHeader::new, Util.streamableToByteBuffer(hdr));
+        assert view.getViewId().equals(hdr2.getViewId());
     }
 
 
@@ -0,0 +1,247 @@
+package org.jgroups.tests;
+
+import org.jgroups.*;
+import org.jgroups.protocols.BARRIER;
+import org.jgroups.protocols.pbcast.STATE_PARALLEL;
+import org.jgroups.protocols.pbcast.SegmentedState;
+import org.jgroups.util.Digest;
+import org.jgroups.util.MutableDigest;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests {@link STATE_PARALLEL}
+ * @since  4.1.2
+ */
+@Test(groups=Global.FUNCTIONAL,singleThreaded=true)
+public class StateParallelTest {
+    protected static final String CLUSTER=StateParallelTest.class.getSimpleName();
+    protected static final int    NUM_SEGMENTS=50, CHUNK_SIZE=1000;
+    protected JChannel            a, b, c, d;
+
+    @AfterMethod protected void destroy() {Util.close(d, c, b, a);}
+
+    public void testStateFromMultipleDonors() throws Exception {
+        Map<Integer,byte[]> state=createState();
+        Segments sa=new Segments(state), sb=new Segments(state), sc=new Segments(state), sd=new Segments(null);
+        a=create("A", sa);
+        b=create("B", sb);
+        c=create("C", sc);
+        d=create("D", sd);
+        Util.waitUntilAllChannelsHaveSameView(10000, 500, a, b, c, d);
+
+        d.getState(null, 20000);
+        assertSameState(state, sd.segments);
+        System.out.printf("segments provided: A=%d B=%d C=%d\n", sa.provided.get(), sb.provided.get(), sc.provided.get());
+        assert sa.provided.get() + sb.provided.get() + sc.provided.get() == NUM_SEGMENTS;
+        assert sa.provided.get() > 0 && sb.provided.get() > 0 && sc.provided.get() > 0 : "all donors should provide segments";
+    }
+
+    /** A donor fails providing a segment: the segment is fetched from a different donor */
+    public void testFailingDonor() throws Exception {
+        Map<Integer,byte[]> state=createState();
+        Segments sa=new Segments(state), sb=new Segments(state), sc=new Segments(state).failAfter(5), sd=new Segments(null);
+        a=create("A", sa);
+        b=create("B", sb);
+        c=create("C", sc);
+        d=create("D", sd);
+        Util.waitUntilAllChannelsHaveSameView(10000, 500, a, b, c, d);
+
+        d.getState(null, 20000);
+        assertSameState(state, sd.segments);
+        STATE_PARALLEL prot=d.getProtocolStack().findProtocol(STATE_PARALLEL.class);
+        assert prot.getNumSegmentRetries() > 0;
+        assert prot.getNumSegmentsReceived() == NUM_SEGMENTS;
+    }
+
+    /** A donor leaves during the state transfer: its segments are fetched from the remaining donors */
+    public void testDonorLeaving() throws Exception {
+        Map<Integer,byte[]> state=createState();
+        Segments sa=new Segments(state), sb=new Segments(state), sc=new Segments(state).delay(50), sd=new Segments(null);
+        a=create("A", sa);
+        b=create("B", sb);
+        c=create("C", sc);
+        d=create("D", sd);
+        Util.waitUntilAllChannelsHaveSameView(10000, 500, a, b, c, d);
+
+        Thread closer=new Thread(() -> {
+            try {
+                Util.waitUntil(10000, 10, () -> sc.provided.get() >= 2);
+            }
+            catch(Exception e) {
+            }
+            Util.close(c);
+        });
+        closer.start();
+        d.getState(null, 20000);
+        closer.join();
+        assertSameState(state, sd.segments);
+    }
+
+    /** All donors fail: the state transfer has to fail, too */
+    public void testAllDonorsFailing() throws Exception {
+        Map<Integer,byte[]> state=createState();
+        a=create("A", new Segments(state).failAfter(0));
+        b=create("B", new Segments(null));
+        Util.waitUntilAllChannelsHaveSameView(10000, 500, a, b);
+        try {
+            b.getState(null, 10000);
+            assert false : "state transfer should have failed";
+        }
+        catch(Exception ex) {
+            System.out.printf("received exception as expected: %s\n", ex);
+        }
+    }
+
+    /** Updates are multicast while the state is transferred: no update must be lost */
+    public void testUpdatesDuringStateTransfer() throws Exception {
+        Updates ua=new Updates(), ub=new Updates(), uc=new Updates(), ud=new Updates();
+        a=create("A", ua);
+        b=create("B", ub);
+        c=create("C", uc);
+        Util.waitUntilAllChannelsHaveSameView(10000, 500, a, b, c);
+        for(int i=0; i < 200; i++)
+            a.send(null, i);
+        Util.waitUntil(10000, 100, () -> ub.size() == 200 && uc.size() == 200);
+
+        d=create("D", ud);
+        Util.waitUntilAllChannelsHaveSameView(10000, 500, a, b, c, d);
+        Thread sender=new Thread(() -> {
+            for(int i=200; i < 1000; i++) {
+                try {
+                    (i % 2 == 0? a : b).send(null, i);
+                }
+                catch(Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        sender.start();
+        d.getState(null, 20000);
+        sender.join();
+        Util.waitUntil(10000, 100, () -> ud.size() == 1000);
+        for(Updates u: Arrays.asList(ua, ub, uc))
+            assert u.size() == 1000;
+    }
+
+    public void testMergeDigests() {
+        Address[] mbrs=Util.createRandomAddresses(3);
+        Digest base=new MutableDigest(mbrs).set(mbrs[0], 10, 10).set(mbrs[1], 20, 20).set(mbrs[2], 30, 30);
+        Digest d1=new MutableDigest(mbrs).set(mbrs[0], 12, 12).set(mbrs[1], 18, 18).set(mbrs[2], 35, 35);
+        Digest d2=new MutableDigest(new Address[]{mbrs[0], mbrs[1]}).set(mbrs[0], 11, 11).set(mbrs[1], 25, 25);
+        Digest merged=STATE_PARALLEL.mergeDigests(base, Arrays.asList(d1, d2, null));
+        assert merged.get(mbrs[0])[0] == 11;
+        assert merged.get(mbrs[1])[0] == 18;
+        assert merged.get(mbrs[2])[0] == 35;
+        merged=STATE_PARALLEL.mergeDigests(base, Collections.emptyList());
+        assert merged.get(mbrs[0])[0] == 10 && merged.get(mbrs[2])[0] == 30;
+    }
+
+    protected static void assertSameState(Map<Integer,byte[]> expected, Map<Integer,byte[]> actual) {
+        assert actual.size() == expected.size() : String.format("expected %d segments, but got %d", expected.size(), actual.size());
+        for(Map.Entry<Integer,byte[]> e: expected.entrySet())
+            assert Arrays.equals(e.getValue(), actual.get(e.getKey())) : "segment " + e.getKey() + " differs";
+    }
+
+    protected static Map<Integer,byte[]> createState() {
+        Map<Integer,byte[]> state=new ConcurrentHashMap<>();
+        for(int i=0; i < NUM_SEGMENTS; i++) {
+            byte[] buf=new byte[ThreadLocalRandom.current().nextInt(0, CHUNK_SIZE * 5)];
+            ThreadLocalRandom.current().nextBytes(buf);
+            state.put(i, buf);
+        }
+        return state;
+    }
+
+    protected static JChannel create(String name, SegmentedState state) throws Exception {
+        STATE_PARALLEL prot=new STATE_PARALLEL().chunkSize(CHUNK_SIZE).maxDonors(3).setSegmentedState(state);
+        JChannel ch=new JChannel(Util.getTestStack(new BARRIER(), prot)).name(name);
+        if(state instanceof Receiver)
+            ch.setReceiver((Receiver)state);
+        return ch.connect(CLUSTER);
+    }
+
+    /** State of integers, received as messages: integer i is stored in segment i % NUM_SEGMENTS */
+    protected static class Updates extends ReceiverAdapter implements SegmentedState {
+        protected final Map<Integer,Set<Integer>> segments=new ConcurrentHashMap<>();
+
+        protected int size() {return segments.values().stream().mapToInt(Set::size).sum();}
+
+        protected Set<Integer> segment(int segment) {
+            return segments.computeIfAbsent(segment, k -> ConcurrentHashMap.newKeySet());
+        }
+
+        public void receive(Message msg) {
+            int num=msg.getObject();
+            segment(num % NUM_SEGMENTS).add(num);
+        }
+
+        public int numSegments() {return NUM_SEGMENTS;}
+
+        public void getSegment(int segment, OutputStream out) throws Exception {
+            DataOutputStream dout=new DataOutputStream(out);
+            Set<Integer> set=segment(segment);
+            Integer[] nums=set.toArray(new Integer[0]);
+            dout.writeInt(nums.length);
+            for(int num: nums)
+                dout.writeInt(num);
+            dout.flush();
+        }
+
+        public void setSegment(int segment, InputStream in) throws Exception { // idempotent: adds to the segment
+            DataInputStream din=new DataInputStream(in);
+            Set<Integer> set=segment(segment);
+            for(int i=din.readInt(); i > 0; i--)
+                set.add(din.readInt());
+        }
+    }
+
+
+    protected static class Segments implements SegmentedState {
+        protected final Map<Integer,byte[]> segments=new ConcurrentHashMap<>();
+        protected final AtomicInteger       provided=new AtomicInteger();
+        protected int                       fail_after=-1; // fail after N segments have been provided
+        protected long                      delay=10;      // ms to sleep in getSegment()
+
+        protected Segments(Map<Integer,byte[]> state) {
+            if(state != null)
+                segments.putAll(state);
+        }
+
+        protected Segments failAfter(int n) {fail_after=n; return this;}
+        protected Segments delay(long d)    {delay=d; return this;}
+
+        public int numSegments() {return NUM_SEGMENTS;}
+
+        public void getSegment(int segment, OutputStream out) throws Exception {
+            if(fail_after >= 0 && provided.get() >= fail_after)
+                throw new IllegalStateException("failing segment " + segment);
+            Util.sleep(delay);
+            byte[] buf=segments.get(segment);
+            out.write(new byte[]{(byte)(buf.length >>> 24), (byte)(buf.length >>> 16), (byte)(buf.length >>> 8), (byte)buf.length});
+            out.write(buf);
+            provided.incrementAndGet();
+        }
+
+        public void setSegment(int segment, InputStream in) throws Exception {
+            DataInputStream din=new DataInputStream(in);
+            byte[] buf=new byte[din.readInt()];
+            din.readFully(buf);
+            ByteArrayOutputStream rest=new ByteArrayOutputStream();
+            for(int b; (b=in.read()) != -1;)
+                rest.write(b);
+            assert rest.size() == 0 : "segment " + segment + " has " + rest.size() + " extra bytes";
+            segments.put(segment, buf);
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package org.jgroups.tests;
+
+import org.jgroups.Global;
+import org.jgroups.JChannel;
+import org.jgroups.ReceiverAdapter;
+import org.jgroups.protocols.pbcast.FileState;
+import org.jgroups.protocols.pbcast.STATE_SOCK;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Tests {@link STATE_SOCK} with zero_copy enabled: state kept in files is transferred with
+ * FileChannel.transferTo() / transferFrom()
+ * @since  4.1.2
+ */
+@Test(groups=Global.FUNCTIONAL,singleThreaded=true)
+public class StateSockZeroCopyTest {
+    protected static final String CLUSTER=StateSockZeroCopyTest.class.getSimpleName();
+    protected JChannel            a, b;
+    protected Path                dir;
+
+    @BeforeMethod protected void setup() throws IOException {
+        dir=Files.createTempDirectory("state-sock");
+    }
+
+    @AfterMethod protected void destroy() throws IOException {
+        Util.close(b, a);
+        File[] files=dir.toFile().listFiles();
+        if(files != null)
+            for(File f: files)
+                f.delete();
+        Files.deleteIfExists(dir);
+    }
+
+    public void testFileRegions() throws Exception {
+        byte[] one=random(1_000_000), two=random(10);
+        Files.write(dir.resolve("one"), one);
+        Files.write(dir.resolve("two"), two);
+        RegionState state=new RegionState(dir.resolve("one"), dir.resolve("two"));
+
+        a=create("A", true, state, null);
+        RegionState copy=new RegionState();
+        b=create("B", true, copy, null);
+        b.getState(null, 10000);
+
+        assert copy.received.equals(Arrays.asList("one", "two")) : "received: " + copy.received;
+        assert Arrays.equals(one, copy.data.get("one").toByteArray());
+        assert Arrays.equals(two, copy.data.get("two").toByteArray());
+        STATE_SOCK prot=a.getProtocolStack().findProtocol(STATE_SOCK.class);
+        assert prot.getNumZeroCopyTransfers() == 1;
+        state.close();
+    }
+
+    /** A region covering only part of a file */
+    public void testPartialRegion() throws Exception {
+        byte[] buf=random(10_000);
+        Files.write(dir.resolve("file"), buf);
+        FileChannel fc=FileChannel.open(dir.resolve("file"), StandardOpenOption.READ);
+        FileState state=new RegionState() {
+            public List<Region> getRegions() {
+                return Collections.singletonList(new Region("part", fc, 1000, 5000));
+            }
+        };
+        a=create("A", true, state, null);
+        RegionState copy=new RegionState();
+        b=create("B", true, copy, null);
+        b.getState(null, 10000);
+        assert Arrays.equals(Arrays.copyOfRange(buf, 1000, 6000), copy.data.get("part").toByteArray());
+        fc.close();
+    }
+
+    /** The requester has no FileState: the state is transferred with getState() / setState() */
+    public void testFallbackToStream() throws Exception {
+        Files.write(dir.resolve("one"), random(100));
+        RegionState state=new RegionState(dir.resolve("one"));
+        StreamState provider=new StreamState(random(5000)), requester=new StreamState(null);
+        a=create("A", true, state, provider);
+        b=create("B", true, null, requester);
+        b.getState(null, 10000);
+        assert Arrays.equals(provider.state, requester.state);
+        STATE_SOCK prot=a.getProtocolStack().findProtocol(STATE_SOCK.class);
+        assert prot.getNumZeroCopyTransfers() == 0;
+        state.close();
+    }
+
+    /** zero_copy is disabled: file regions are not used even if a FileState is set */
+    public void testZeroCopyDisabled() throws Exception {
+        Files.write(dir.resolve("one"), random(100));
+        RegionState state=new RegionState(dir.resolve("one"));
+        StreamState provider=new StreamState(random(5000)), requester=new StreamState(null);
+        a=create("A", false, state, provider);
+        RegionState copy=new RegionState();
+        b=create("B", false, copy, requester);
+        b.getState(null, 10000);
+        assert Arrays.equals(provider.state, requester.state);
+        assert copy.received.isEmpty();
+        state.close();
+    }
+
+    protected static byte[] random(int size) {
+        byte[] buf=new byte[size];
+        ThreadLocalRandom.current().nextBytes(buf);
+        return buf;
+    }
+
+    protected static JChannel create(String name, boolean zero_copy, FileState file_state,
+                                     ReceiverAdapter receiver) throws Exception {
+        STATE_SOCK state_sock=new STATE_SOCK().zeroCopy(zero_copy).setFileState(file_state)
+          .setValue("bind_addr", InetAddress.getLoopbackAddress());
+        JChannel ch=new JChannel(Util.getTestStack(state_sock)).name(name);
+        if(receiver != null)
+            ch.setReceiver(receiver);
+        return ch.connect(CLUSTER);
+    }
+
+
+    /** Provides the given files as regions, and stores received regions in memory (via temp files) */
+    protected static class RegionState implements FileState {
+        protected final List<FileChannel>                 channels=new ArrayList<>();
+        protected final List<String>                      names=new ArrayList<>();
+        protected final Map<String,ByteArrayOutputStream> data=new HashMap<>();
+        protected final List<String>                      received=new ArrayList<>();
+        protected final Map<String,Path>                  tmp_files=new HashMap<>();
+
+        protected RegionState(Path ... files) throws IOException {
+            for(Path f: files) {
+                channels.add(FileChannel.open(f, StandardOpenOption.READ));
+                names.add(f.getFileName().toString());
+            }
+        }
+
+        public List<Region> getRegions() throws Exception {
+            List<Region> regions=new ArrayList<>(channels.size());
+            for(int i=0; i < channels.size(); i++)
+                regions.add(new Region(names.get(i), channels.get(i)));
+            return regions;
+        }
+
+        public FileChannel openRegion(String name, long length) throws Exception {
+            Path tmp=Files.createTempFile("region-", name);
+            tmp_files.put(name, tmp);
+            FileChannel fc=FileChannel.open(tmp, StandardOpenOption.WRITE, StandardOpenOption.READ);
+            channels.add(fc);
+            return fc;
+        }
+
+        public void regionsReceived(List<String> region_names) throws Exception {
+            for(String name: region_names) {
+                Path tmp=tmp_files.get(name);
+                ByteArrayOutputStream out=new ByteArrayOutputStream();
+                out.write(Files.readAllBytes(tmp));
+                data.put(name, out);
+                Files.delete(tmp);
+            }
+            received.addAll(region_names);
+        }
+
+        protected void close() {
+            channels.forEach(Util::close);
+        }
+    }
+
+    protected static class StreamState extends ReceiverAdapter {
+        protected byte[] state;
+
+        protected StreamState(byte[] state) {
+            this.state=state;
+        }
+
+        public void getState(OutputStream output) throws Exception {
+            DataOutputStream out=new DataOutputStream(output);
+            out.writeInt(state.length);
+            out.write(state);
+        }
+
+        public void setState(InputStream input) throws Exception {
+            DataInputStream in=new DataInputStream(input);
+            state=new byte[in.readInt()];
+            in.readFully(state);
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package org.jgroups.tests;
+
+import org.jgroups.Address;
+import org.jgroups.Global;
+import org.jgroups.blocks.cs.ReceiverAdapter;
+import org.jgroups.blocks.cs.TcpClient;
+import org.jgroups.blocks.cs.TcpServer;
+import org.jgroups.stack.IpAddress;
+import org.jgroups.util.Bits;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+import java.io.DataInput;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests the send queues of {@link org.jgroups.blocks.cs.TcpConnection}
+ * @since  4.1.2
+ */
+@Test(groups=Global.FUNCTIONAL,singleThreaded=true)
+public class TcpSendQueueTest {
+    protected TcpClient    client;
+    protected TcpServer    server;
+    protected ServerSocket srv_sock;
+    protected Socket       client_sock;
+
+    @AfterMethod protected void destroy() {Util.close(client, server, client_sock, srv_sock);}
+
+
+    /** Messages sent through the send queue are received in order, and are coalesced into fewer writes */
+    public void testOrder() throws Exception {
+        final int NUM=10_000;
+        MyReceiver r=new MyReceiver();
+        server=new TcpServer(Util.getLoopback(), 0);
+        server.receiver(r);
+        server.start();
+        client=new TcpClient(null, (IpAddress)server.localAddress());
+        client.sendQueueSize(100).sendQueueBlockTime(-1);
+        client.start();
+        byte[] buf=new byte[Integer.BYTES];
+        for(int i=1; i <= NUM; i++) {
+            Bits.writeInt(i, buf, 0);
+            client.send(buf, 0, buf.length); // the buffer is reused: the queue must copy it
+        }
+        Util.waitUntil(10000, 100, () -> r.size() == NUM);
+        List<Integer> list=r.list();
+        for(int i=0; i < NUM; i++)
+            assert list.get(i) == i+1 : String.format("expected %d, but got %d", i+1, list.get(i));
+        assert client.getNumSendQueueDrops() == 0;
+        assert client.getNumSendQueueMessagesWritten() == NUM;
+        System.out.printf("%d messages in %d writes (%.2f msgs/write)\n",
+                          NUM, client.getNumSendQueueWrites(), client.getAvgMessagesPerWrite());
+    }
+
+    /** With a block time of 0, messages are dropped when the queue is full, and senders never block */
+    public void testDrop() throws Exception {
+        createBlockedPeer(10, 0);
+        byte[] buf=new byte[8192*4];
+        long start=System.currentTimeMillis();
+        for(int i=0; i < 1000; i++)
+            client.send(buf, 0, buf.length);
+        long time=System.currentTimeMillis() - start;
+        System.out.printf("sent 1000 messages in %d ms, %d dropped\n", time, client.getNumSendQueueDrops());
+        assert client.getNumSendQueueDrops() > 0;
+        assert client.getNumSendQueueBlocks() == 0;
+        assert time < 5000 : String.format("sending took %d ms", time);
+    }
+
+    /** With a block time of 500 ms, senders block when the queue is full, and the message is dropped afterwards */
+    public void testBlockAndDrop() throws Exception {
+        createBlockedPeer(10, 500);
+        byte[] buf=new byte[8192*4];
+        long time=0;
+        while(client.getNumSendQueueDrops() == 0) {
+            long start=System.currentTimeMillis();
+            client.send(buf, 0, buf.length);
+            time=System.currentTimeMillis() - start;
+        }
+        assert client.getNumSendQueueBlocks() > 0;
+        System.out.printf("blocks=%d, drops=%d, the dropped message blocked for %d ms\n",
+                          client.getNumSendQueueBlocks(), client.getNumSendQueueDrops(), time);
+        assert time >= 450 : String.format("sender blocked for %d ms only", time);
+    }
+
+    /** Closing a connection unblocks senders that are blocked on a full send queue */
+    public void testCloseUnblocksSenders() throws Exception {
+        createBlockedPeer(10, -1);
+        byte[] buf=new byte[8192*4];
+        Thread sender=new Thread(() -> {
+            try {
+                for(;;)
+                    client.send(buf, 0, buf.length);
+            }
+            catch(Exception e) {
+            }
+        });
+        sender.start();
+        Util.waitUntil(10000, 100, () -> client.getNumSendQueueBlocks() > 0);
+        Util.close(client);
+        sender.join(10000);
+        assert !sender.isAlive();
+    }
+
+    /**
+     * Stops a server while the writer of a send queue is blocked writing to a peer which doesn't read. The failed
+     * write must not close the connection while holding the connection's send lock, or else it deadlocks with
+     * stop(), which closes the connection while holding the server's lock
+     */
+    public void testStopWhileWriting() throws Exception {
+        srv_sock=new ServerSocket(0, 50, Util.getLoopback());
+        Thread acceptor=new Thread(() -> {
+            try {
+                client_sock=srv_sock.accept();
+            }
+            catch(IOException e) {
+            }
+        });
+        acceptor.start();
+        server=new TcpServer(Util.getLoopback(), 0);
+        server.sendQueueSize(10).sendQueueBlockTime(0);
+        server.sendBufferSize(8192);
+        server.start();
+        IpAddress dest=new IpAddress(Util.getLoopback(), srv_sock.getLocalPort());
+        byte[] buf=new byte[8192*4];
+        for(int i=0; i < 1000 && server.getNumSendQueueDrops() == 0; i++)
+            server.send(dest, buf, 0, buf.length);
+        assert server.getNumSendQueueDrops() > 0 : "the writer is not blocked";
+
+        Thread stopper=new Thread(server::stop, "stopper");
+        stopper.start();
+        stopper.join(10000);
+        assert !stopper.isAlive() : "stop() is blocked:\n" + Util.dumpThreads();
+    }
+
+    /** Connects a client to a socket which accepts the connection, but doesn't read from it */
+    protected void createBlockedPeer(int send_queue_size, long block_time) throws Exception {
+        srv_sock=new ServerSocket(0);
+        Thread acceptor=new Thread(() -> {
+            try {
+                client_sock=srv_sock.accept();
+            }
+            catch(IOException e) {
+            }
+        });
+        acceptor.start();
+        client=new TcpClient(null, 0, Util.getLoopback(), srv_sock.getLocalPort());
+        client.sendQueueSize(send_queue_size).sendQueueBlockTime(block_time).sendBufferSize(8192);
+        client.start();
+        acceptor.join(5000);
+    }
+
+    protected static class MyReceiver extends ReceiverAdapter {
+        protected final List<Integer> list=new ArrayList<>();
+
+        public void receive(Address sender, DataInput in) throws Exception {
+            int num=in.readInt();
+            synchronized(list) {
+                list.add(num);
+            }
+        }
+
+        protected int size() {
+            synchronized(list) {return list.size();}
+        }
+
+        protected List<Integer> list() {
+            synchronized(list) {return new ArrayList<>(list);}
+        }
+    }
+}
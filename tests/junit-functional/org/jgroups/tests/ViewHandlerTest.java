@@ -300,6 +300,64 @@ public class ViewHandlerTest {
     }
 
 
+    public void testCoalescing() throws Exception {
+        List<Collection<Integer>> batches=new ArrayList<>();
+        req_handler=l -> batches.add(new ArrayList<>(l));
+        req_matcher=(a,b) -> true;
+        view_handler.coalesce(n -> n > 0, 200, 2000);
+        CountDownLatch latch=new CountDownLatch(1);
+        Thread[] adders=new Thread[10];
+        for(int i=0; i < adders.length; i++) {
+            final int num=i+1;
+            adders[i]=new Thread(() -> {
+                try {
+                    latch.await();
+                }
+                catch(InterruptedException e) {
+                }
+                Util.sleep(num * 20);
+                view_handler.add(num);
+            });
+            adders[i].start();
+        }
+        latch.countDown();
+        for(Thread t: adders)
+            t.join(5000);
+        view_handler.waitUntilComplete(5000);
+        System.out.printf("batches: %s\n", batches);
+        assert batches.size() == 1 : "all requests should have been coalesced into a single batch: " + batches;
+        assert batches.get(0).size() == 10;
+        assert view_handler.numCoalesced() == 1;
+    }
+
+    /** Coalescing must not block the thread adding the request: the wait is done by the handler thread */
+    public void testCoalescingDoesNotBlockCaller() throws Exception {
+        List<Collection<Integer>> batches=new ArrayList<>();
+        req_handler=l -> batches.add(new ArrayList<>(l));
+        req_matcher=(a,b) -> true;
+        view_handler.coalesce(n -> n > 0, 500, 1000);
+        long start=System.currentTimeMillis();
+        view_handler.add(1);
+        long time=System.currentTimeMillis() - start;
+        assert time < 500 : "caller should not have been blocked, but add() took " + time + " ms";
+        view_handler.add(2);
+        view_handler.waitUntilComplete(5000);
+        assert batches.equals(Collections.singletonList(Arrays.asList(1,2))) : "batches: " + batches;
+    }
+
+    public void testNoCoalescingForNonMatchingRequests() {
+        List<Integer> list=new ArrayList<>();
+        req_handler=list::addAll;
+        req_matcher=(a,b) -> true;
+        view_handler.coalesce(n -> n > 0, 5000, 10000);
+        long start=System.currentTimeMillis();
+        view_handler.add(-1, -2, -3);
+        long time=System.currentTimeMillis() - start;
+        assert list.equals(Arrays.asList(-1, -2, -3));
+        assert time < 5000 : "requests should not have been coalesced, but took " + time + " ms";
+        assert view_handler.numCoalesced() == 0;
+    }
+
     protected static void configureGMS(GMS gms) {
         Address local_addr=Util.createRandomAddress("A");
         ThreadFactory fac=new DefaultThreadFactory("test", true);
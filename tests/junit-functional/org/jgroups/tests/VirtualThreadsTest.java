@@ -0,0 +1,123 @@
+package org.jgroups.tests;
+
+import org.jgroups.Global;
+import org.jgroups.JChannel;
+import org.jgroups.Message;
+import org.jgroups.blocks.MethodCall;
+import org.jgroups.blocks.RequestOptions;
+import org.jgroups.blocks.RpcDispatcher;
+import org.jgroups.protocols.SHARED_LOOPBACK;
+import org.jgroups.protocols.SHARED_LOOPBACK_PING;
+import org.jgroups.protocols.TP;
+import org.jgroups.protocols.UNICAST3;
+import org.jgroups.protocols.pbcast.GMS;
+import org.jgroups.protocols.pbcast.NAKACK2;
+import org.jgroups.protocols.pbcast.STABLE;
+import org.jgroups.util.DefaultThreadFactory;
+import org.jgroups.util.ThreadCreator;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests the use of virtual threads by the transport (use_virtual_threads). On JDKs without virtual threads, the
+ * tests check that platform threads are used instead
+ * @since  4.1.2
+ */
+@Test(groups=Global.FUNCTIONAL,singleThreaded=true)
+public class VirtualThreadsTest {
+    protected JChannel            a, b;
+    protected RpcDispatcher       disp_a, disp_b;
+    protected static final int    NUM_RPCS=200;
+    protected static final long   SLEEP=500;
+    protected static final Method BLOCK;
+
+    static {
+        try {
+            BLOCK=VirtualThreadsTest.class.getMethod("block", long.class);
+        }
+        catch(NoSuchMethodException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @AfterMethod protected void destroy() {Util.close(disp_b, disp_a, b, a);}
+
+    public static long block(long time) {
+        Util.sleep(time);
+        return time;
+    }
+
+    public void testCreateThread() throws Exception {
+        Thread t=ThreadCreator.createThread(() -> {}, "bla", true, true);
+        assert t.getName().equals("bla");
+        assert isVirtual(t) == ThreadCreator.hasVirtualThreads();
+        assert t.isDaemon();
+        t=ThreadCreator.createThread(() -> {}, "bla", false, false);
+        assert !isVirtual(t) && !t.isDaemon();
+    }
+
+    public void testThreadFactory() throws Exception {
+        DefaultThreadFactory f=new DefaultThreadFactory("test", false, true).useVirtualThreads(true);
+        assert f.useVirtualThreads() == ThreadCreator.hasVirtualThreads();
+        Thread t=f.newThread(() -> {});
+        assert t.getName().startsWith("test-1");
+        assert isVirtual(t) == ThreadCreator.hasVirtualThreads();
+    }
+
+    /** Without virtual threads, the transport falls back to a regular thread pool */
+    public void testTransport() throws Exception {
+        a=create("A");
+        TP tp=a.getProtocolStack().getTransport();
+        assert tp.useVirtualThreads() == ThreadCreator.hasVirtualThreads();
+        assert (tp.getThreadPool() instanceof ThreadPoolExecutor) == !ThreadCreator.hasVirtualThreads();
+        assert !isVirtual(tp.getThreadFactory().newThread(() -> {})); // e.g. receiver or timer runner threads
+    }
+
+    /**
+     * Invokes NUM_RPCS concurrent RPCs whose handlers block. With virtual threads, they all run concurrently, even
+     * though the number of handlers exceeds thread_pool.max_threads
+     */
+    public void testBlockingRpcs() throws Exception {
+        a=create("A");
+        b=create("B");
+        disp_a=new RpcDispatcher(a, this);
+        disp_b=new RpcDispatcher(b, this);
+        Util.waitUntilAllChannelsHaveSameView(10000, 100, a, b);
+        RequestOptions opts=RequestOptions.SYNC().flags(Message.Flag.OOB).timeout(60_000);
+        List<CompletableFuture<Long>> futures=new ArrayList<>(NUM_RPCS);
+        long start=System.nanoTime();
+        for(int i=0; i < NUM_RPCS; i++)
+            futures.add(disp_a.callRemoteMethodWithFuture(b.getAddress(), new MethodCall(BLOCK, SLEEP), opts));
+        for(CompletableFuture<Long> f: futures)
+            assert f.get(60, TimeUnit.SECONDS) == SLEEP;
+        long time=TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        TP tp=b.getProtocolStack().getTransport();
+        System.out.printf("%d blocking RPCs took %d ms (virtual threads: %b, rejected msgs: %d)\n",
+                          NUM_RPCS, time, tp.useVirtualThreads(), tp.getMessageStats().getNumRejectedMsgs());
+        if(tp.useVirtualThreads()) {
+            assert tp.getMessageStats().getNumRejectedMsgs() == 0;
+            assert time < SLEEP * 10 : String.format("%d RPCs took %d ms", NUM_RPCS, time);
+        }
+    }
+
+    protected static JChannel create(String name) throws Exception {
+        TP tp=new SHARED_LOOPBACK().useVirtualThreads(true).setValue("bundler_type", "no-bundler")
+          .setValue("thread_pool_max_threads", 20);
+        return new JChannel(tp, new SHARED_LOOPBACK_PING(), new NAKACK2(), new UNICAST3(), new STABLE(), new GMS())
+          .name(name).connect(VirtualThreadsTest.class.getSimpleName());
+    }
+
+    protected static boolean isVirtual(Thread t) throws Exception {
+        if(!ThreadCreator.hasVirtualThreads())
+            return false;
+        return (boolean)Thread.class.getMethod("isVirtual").invoke(t);
+    }
+}
@@ -2,6 +2,7 @@ package org.jgroups.tests;
 
 import org.jgroups.Global;
 import org.jgroups.JChannel;
+import org.jgroups.Message;
 import org.jgroups.ReceiverAdapter;
 import org.jgroups.View;
 import org.jgroups.protocols.*;
@@ -31,7 +32,7 @@ import java.util.concurrent.locks.ReentrantLock;
  */
 @Test(groups={Global.STACK_INDEPENDENT,Global.GOSSIP_ROUTER,Global.EAP_EXCLUDED},singleThreaded=true)
 public class GossipRouterTest {
-    protected GossipRouter        router;
+    protected GossipRouter        router, router2;
     protected JChannel            a, b;
     protected int                 gossip_router_port;
     protected String              gossip_router_hosts;
@@ -52,6 +53,10 @@ public class GossipRouterTest {
             router.stop();
             router=null;
         }
+        if(router2 != null) {
+            router2.stop();
+            router2=null;
+        }
         Util.close(b,a);
     }
 
@@ -100,6 +105,80 @@ public class GossipRouterTest {
         Util.close(b,a);
     }
 
+    /** Messages forwarded by the routing threads of the GossipRouter are received by all members, in FIFO order */
+    public void testRoutingThreads() throws Exception {
+        _testRoutingThreads(false);
+    }
+
+    public void testRoutingThreadsNio() throws Exception {
+        _testRoutingThreads(true);
+    }
+
+    /** With consistent router selection, all members of a cluster send their messages via the same GossipRouter */
+    public void testConsistentRouterSelection() throws Exception {
+        int port2=ResourceManager.getNextTcpPort(bind_addr);
+        router=new GossipRouter(bind_addr, gossip_router_port).useNio(false).numRoutingThreads(2).jmx(false);
+        router2=new GossipRouter(bind_addr, port2).useNio(false).numRoutingThreads(2).jmx(false);
+        router.start();
+        router2.start();
+        gossip_router_hosts=String.format("%s,%s[%d]", gossip_router_hosts, bind_addr.getHostAddress(), port2);
+        try {
+            MyMessageReceiver ra=new MyMessageReceiver(), rb=new MyMessageReceiver();
+            a=createTunnelChannel("A", false);
+            b=createTunnelChannel("B", false);
+            for(JChannel ch: Arrays.asList(a, b))
+                ((TUNNEL)ch.getProtocolStack().getTransport()).setValue("consistent_router_selection", true);
+            a.setReceiver(ra);
+            b.setReceiver(rb);
+            a.connect("demo");
+            b.connect("demo");
+            Util.waitUntilAllChannelsHaveSameView(10000, 200, a, b);
+            router.resetStats();
+            router2.resetStats();
+            sendAndCheck(ra, rb, 100);
+            long routed=router.getNumMessagesRouted(), routed2=router2.getNumMessagesRouted();
+            System.out.printf("router: %d messages, router2: %d messages\n", routed, routed2);
+            assert routed == 0 || routed2 == 0 : String.format("router: %d, router2: %d", routed, routed2);
+        }
+        finally {
+            gossip_router_hosts=bind_addr.getHostAddress() + "[" + gossip_router_port + "]";
+        }
+    }
+
+    protected void _testRoutingThreads(boolean nio) throws Exception {
+        router=new GossipRouter(bind_addr, gossip_router_port).useNio(nio).numRoutingThreads(2).jmx(false);
+        router.start();
+        MyMessageReceiver ra=new MyMessageReceiver(), rb=new MyMessageReceiver();
+        a=createTunnelChannel("A", false);
+        b=createTunnelChannel("B", false);
+        for(JChannel ch: Arrays.asList(a, b))
+            ((TUNNEL)ch.getProtocolStack().getTransport()).setValue("use_nio", nio);
+        a.setReceiver(ra);
+        b.setReceiver(rb);
+        a.connect("demo");
+        b.connect("demo");
+        Util.waitUntilAllChannelsHaveSameView(10000, 200, a, b);
+        sendAndCheck(ra, rb, 1000);
+        System.out.printf("router: %d messages routed in %d batches and %d writes\n", router.getNumMessagesRouted(),
+                          router.getNumRoutingBatches(), router.getNumWrites());
+        assert router.getNumMessagesRouted() > 0;
+    }
+
+    /** A and B multicast num messages each, and A sends num unicasts to B */
+    protected void sendAndCheck(MyMessageReceiver ra, MyMessageReceiver rb, int num) throws Exception {
+        for(int i=1; i <= num; i++) {
+            a.send(null, i);
+            b.send(null, i);
+            a.send(b.getAddress(), -i);
+        }
+        Util.waitUntil(10000, 200, () -> ra.size() == num * 2 && rb.size() == num * 3);
+        ra.check(a.getAddress(), num, true);
+        ra.check(b.getAddress(), num, true);
+        rb.check(a.getAddress(), num, true);
+        rb.check(a.getAddress(), num, false);
+        rb.check(b.getAddress(), num, true);
+    }
+
     protected JChannel createTunnelChannel(String name) throws Exception {
         return createTunnelChannel(name, true);
     }
@@ -126,6 +205,35 @@ public class GossipRouterTest {
     }
 
 
+    protected static class MyMessageReceiver extends ReceiverAdapter {
+        protected final List<Message> msgs=new ArrayList<>();
+
+        public void receive(Message msg) {
+            synchronized(msgs) {
+                msgs.add(msg);
+            }
+        }
+
+        public int size() {
+            synchronized(msgs) {return msgs.size();}
+        }
+
+        /** Checks that the multicasts (positive) or unicasts (negative) from sender were received in order */
+        protected void check(Object sender, int num, boolean multicasts) {
+            List<Integer> list=new ArrayList<>();
+            synchronized(msgs) {
+                for(Message msg: msgs) {
+                    int num_msg=msg.getObject();
+                    if(msg.src().equals(sender) && (num_msg > 0) == multicasts)
+                        list.add(Math.abs(num_msg));
+                }
+            }
+            assert list.size() == num : String.format("expected %d messages from %s, but got %d", num, sender, list.size());
+            for(int i=0; i < list.size(); i++)
+                assert list.get(i) == i+1 : String.format("expected %d but got %d: %s", i+1, list.get(i), list);
+        }
+    }
+
     private static class MyReceiver extends ReceiverAdapter {
         private final String name;
         private final Lock lock;
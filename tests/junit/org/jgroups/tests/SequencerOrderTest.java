@@ -7,6 +7,7 @@ import org.jgroups.Global;
 import org.jgroups.JChannel;
 import org.jgroups.Message;
 import org.jgroups.ReceiverAdapter;
+import org.jgroups.protocols.SEQUENCER;
 import org.jgroups.protocols.SHUFFLE;
 import org.jgroups.protocols.pbcast.NAKACK2;
 import org.jgroups.stack.ProtocolStack;
@@ -15,6 +16,7 @@ import org.testng.annotations.AfterMethod;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
+import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -68,8 +70,23 @@ public class SequencerOrderTest {
         Util.close(c,b,a);
     }
 
-    @Test @SuppressWarnings("unchecked")
+    @Test
     public void testBroadcastSequence() throws Exception {
+        sendAndVerify();
+    }
+
+    /** Same as above, but messages are forwarded to the sequencer (and broadcast by it) in batches */
+    @Test
+    public void testBroadcastSequenceWithBatching() throws Exception {
+        for(JChannel ch: Arrays.asList(a,b,c))
+            ch.getProtocolStack().<SEQUENCER>findProtocol(SEQUENCER.class).batchForwards(true);
+        sendAndVerify();
+        SEQUENCER seq=b.getProtocolStack().findProtocol(SEQUENCER.class);
+        System.out.printf("B: forwarded %d messages in %d batches\n", seq.getNumBatchedMessages(), seq.getNumBatchesForwarded());
+        assert seq.getNumBatchesForwarded() > 0;
+    }
+
+    protected void sendAndVerify() throws Exception {
         insertShuffle(a,b,c);
         
         // use concurrent senders to send messages to the group
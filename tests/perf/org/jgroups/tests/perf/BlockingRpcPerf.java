@@ -0,0 +1,145 @@
+package org.jgroups.tests.perf;
+
+import org.jgroups.JChannel;
+import org.jgroups.Message;
+import org.jgroups.blocks.MethodCall;
+import org.jgroups.blocks.RequestOptions;
+import org.jgroups.blocks.RpcDispatcher;
+import org.jgroups.protocols.*;
+import org.jgroups.protocols.pbcast.GMS;
+import org.jgroups.protocols.pbcast.NAKACK2;
+import org.jgroups.protocols.pbcast.STABLE;
+import org.jgroups.util.AverageMinMax;
+import org.jgroups.util.ThreadCreator;
+import org.jgroups.util.Util;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Measures concurrent blocking RPCs: every caller thread invokes a blocking RPC on the other member, whose handler
+ * blocks for a given time (e.g. waiting for a lock or a nested RPC). With platform threads, every blocked handler
+ * ties up a pool thread (or a spawned thread when the pool is exhausted); with virtual threads (use_virtual_threads
+ * in the transport, JDK 21+), handlers and callers only tie up a virtual thread.<p/>
+ * Example: java BlockingRpcPerf -rpcs 10000 -sleep 1000 -virtual true
+ * @since  4.1.2
+ */
+public class BlockingRpcPerf {
+    protected int                 num_rpcs=10_000;
+    protected long                sleep=1000; // ms the RPC handler blocks
+    protected boolean             virtual=true;
+    protected JChannel            a, b;
+    protected RpcDispatcher       disp_a, disp_b;
+    protected final LongAdder     num_failed=new LongAdder();
+    protected final AverageMinMax rtt=new AverageMinMax(); // round trip times in ms
+    protected static final Method BLOCK;
+
+    static {
+        try {
+            BLOCK=BlockingRpcPerf.class.getMethod("block", long.class);
+        }
+        catch(NoSuchMethodException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+
+    /** The RPC handler: blocks for the given time */
+    public static long block(long time) {
+        Util.sleep(time);
+        return time;
+    }
+
+    protected void start() throws Exception {
+        if(virtual && !ThreadCreator.hasVirtualThreads())
+            System.out.printf("** virtual threads are not supported by this JDK (%s): using platform threads\n",
+                              System.getProperty("java.version"));
+        a=create("A");
+        b=create("B");
+        disp_a=new RpcDispatcher(a, this);
+        disp_b=new RpcDispatcher(b, this);
+        Util.waitUntilAllChannelsHaveSameView(10000, 100, a, b);
+    }
+
+    protected void run() throws Exception {
+        ThreadMXBean mx=ManagementFactory.getThreadMXBean();
+        int threads_before=mx.getThreadCount();
+        mx.resetPeakThreadCount();
+        CountDownLatch latch=new CountDownLatch(1), done=new CountDownLatch(num_rpcs);
+        RequestOptions opts=RequestOptions.SYNC().flags(Message.Flag.OOB).timeout(sleep + 60_000);
+        for(int i=0; i < num_rpcs; i++) {
+            Thread t=ThreadCreator.createThread(() -> {
+                try {
+                    latch.await();
+                    long start=System.nanoTime();
+                    disp_a.callRemoteMethod(b.getAddress(), new MethodCall(BLOCK, sleep), opts);
+                    synchronized(rtt) {
+                        rtt.add(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                    }
+                }
+                catch(Throwable ex) {
+                    num_failed.increment();
+                }
+                finally {
+                    done.countDown();
+                }
+            }, "caller", true, virtual);
+            t.start();
+        }
+        long start=System.nanoTime();
+        latch.countDown();
+        while(!done.await(2, TimeUnit.SECONDS))
+            System.out.printf("-- %,d / %,d RPCs completed\n", num_rpcs - done.getCount(), num_rpcs);
+        long time=System.nanoTime() - start;
+        TP tp=b.getProtocolStack().getTransport();
+        System.out.printf("\n%,d blocking RPCs (handler blocks for %d ms) completed in %.2f s (%,.0f RPCs/sec), " +
+                            "%,d failed\nround trip time (ms): %s\n" +
+                            "virtual threads: %b, platform threads: %d before, %d peak; " +
+                            "messages rejected by the thread pool: %,d, threads spawned on rejection: %,d\n",
+                          num_rpcs, sleep, time / 1.0e9, num_rpcs / (time / 1.0e9), num_failed.sum(), rtt,
+                          tp.useVirtualThreads(), threads_before, mx.getPeakThreadCount(),
+                          tp.getMessageStats().getNumRejectedMsgs(), tp.getMessageStats().getNumThreadsSpawned());
+    }
+
+    protected void stop() {
+        Util.close(disp_b, disp_a, b, a);
+    }
+
+    protected JChannel create(String name) throws Exception {
+        TP tp=new SHARED_LOOPBACK().useVirtualThreads(virtual).setValue("bundler_type", "no-bundler");
+        return new JChannel(tp, new SHARED_LOOPBACK_PING(), new NAKACK2(), new UNICAST3(), new STABLE(), new GMS())
+          .name(name).connect(BlockingRpcPerf.class.getSimpleName());
+    }
+
+
+    public static void main(String[] args) throws Exception {
+        BlockingRpcPerf perf=new BlockingRpcPerf();
+        for(int i=0; i < args.length; i++) {
+            if("-rpcs".equals(args[i])) {
+                perf.num_rpcs=Integer.parseInt(args[++i]);
+                continue;
+            }
+            if("-sleep".equals(args[i])) {
+                perf.sleep=Long.parseLong(args[++i]);
+                continue;
+            }
+            if("-virtual".equals(args[i])) {
+                perf.virtual=Boolean.parseBoolean(args[++i]);
+                continue;
+            }
+            System.out.println("BlockingRpcPerf [-rpcs <num>] [-sleep <ms>] [-virtual <true|false>]");
+            return;
+        }
+        try {
+            perf.start();
+            perf.run();
+        }
+        finally {
+            perf.stop();
+        }
+    }
+}
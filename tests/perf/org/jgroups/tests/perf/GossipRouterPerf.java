@@ -0,0 +1,174 @@
+package org.jgroups.tests.perf;
+
+import org.jgroups.Address;
+import org.jgroups.stack.GossipData;
+import org.jgroups.stack.GossipRouter;
+import org.jgroups.stack.IpAddress;
+import org.jgroups.stack.RouterStub;
+import org.jgroups.util.UUID;
+import org.jgroups.util.Util;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Measures the throughput of a {@link GossipRouter}: a number of clients (the same {@link RouterStub}s used by TUNNEL)
+ * connect to the router over loopback, and are spread over a number of groups. Every client multicasts N messages
+ * to its group, and we measure how long it takes until every client has received the messages of all members of its
+ * group. As NIO connections drop messages when a write is incomplete (JGroups retransmits them), the run ends when no
+ * messages have been received for a few seconds, and the missing messages are reported.
+ * Example: java GossipRouterPerf -clients 500 -groups 50 -routing_threads 4
+ * @since  4.1.2
+ */
+public class GossipRouterPerf {
+    protected int                    num_clients=500, num_groups=50, num_msgs=1000, msg_size=1000;
+    protected int                    num_routing_threads, router_port=12001;
+    protected boolean                nio=true;
+    protected InetAddress            bind_addr;
+    protected GossipRouter           router;
+    protected final List<Client>     clients=new ArrayList<>();
+    protected final LongAdder        total_received=new LongAdder();
+    protected CountDownLatch         done;
+    protected volatile long          last_received;
+    protected static final int       MAX_IDLE=5; // secs without messages
+
+
+    protected void start() throws Exception {
+        bind_addr=Util.getLoopback();
+        router=new GossipRouter(bind_addr, router_port).useNio(nio).numRoutingThreads(num_routing_threads).jmx(false);
+        router.start();
+        IpAddress router_addr=new IpAddress(bind_addr, router_port);
+        done=new CountDownLatch(num_clients);
+        for(int i=0; i < num_clients; i++) {
+            String group="group-" + (i % num_groups);
+            int members=num_clients / num_groups + (i % num_groups < num_clients % num_groups? 1 : 0);
+            Client client=new Client(group, (long)members * num_msgs);
+            client.stub=new RouterStub(new IpAddress(bind_addr, 0), router_addr, nio, null).receiver(client);
+            client.stub.connect(group, client.addr, "C" + i, new IpAddress(bind_addr, 20000 + i));
+            clients.add(client);
+        }
+        System.out.printf("%d clients in %d groups connected to GossipRouter at %s (nio=%b, %d routing threads)\n",
+                          num_clients, num_groups, router_addr, nio, num_routing_threads);
+    }
+
+    protected void run() throws Exception {
+        CountDownLatch latch=new CountDownLatch(1);
+        List<Thread> senders=new ArrayList<>(clients.size());
+        byte[] payload=new byte[msg_size];
+        for(Client client: clients) {
+            Thread t=new Thread(() -> {
+                try {
+                    latch.await();
+                    for(int i=0; i < num_msgs; i++)
+                        client.stub.sendToAllMembers(client.group, client.addr, payload, 0, payload.length);
+                }
+                catch(Exception e) {
+                    e.printStackTrace();
+                }
+            });
+            senders.add(t);
+            t.start();
+        }
+        long start=System.nanoTime();
+        latch.countDown();
+        for(Thread t: senders)
+            t.join();
+        long send_time=System.nanoTime() - start;
+        long expected=clients.stream().mapToLong(c -> c.expected).sum(), prev=-1;
+        for(int idle=0; idle < MAX_IDLE && !done.await(1, TimeUnit.SECONDS);) {
+            long received=total_received.sum();
+            System.out.printf("-- received %,d / %,d messages\n", received, expected);
+            idle=received == prev? idle+1 : 0;
+            prev=received;
+        }
+        long time=Math.max(last_received, start+1) - start, received=total_received.sum();
+        long sent=(long)num_clients * num_msgs;
+        System.out.printf("\nsent %,d messages in %.2f s (%,.0f msgs/sec), received %,d messages in %.2f s " +
+                            "(%,.0f msgs/sec, %,.2f MB/sec)\n",
+                          sent, send_time / 1.0e9, sent / (send_time / 1.0e9),
+                          received, time / 1.0e9, received / (time / 1.0e9), received * msg_size / (time / 1.0e9) / 1_000_000);
+        if(received < expected)
+            System.out.printf("%,d messages were dropped\n", expected - received);
+        if(num_routing_threads > 0)
+            System.out.printf("router: %,d messages routed in %,d batches and %,d writes\n",
+                              router.getNumMessagesRouted(), router.getNumRoutingBatches(), router.getNumWrites());
+    }
+
+    protected void stop() {
+        router.stop();
+        clients.forEach(c -> c.stub.destroy());
+    }
+
+
+    protected class Client implements RouterStub.StubReceiver {
+        protected final String    group;
+        protected final Address   addr=UUID.randomUUID();
+        protected final long      expected;
+        protected final LongAdder received=new LongAdder();
+        protected RouterStub      stub;
+
+        public Client(String group, long expected) {
+            this.group=group;
+            this.expected=expected;
+        }
+
+        public void receive(GossipData data) {
+            if(data.getBuffer() == null)
+                return;
+            received.increment();
+            total_received.increment();
+            last_received=System.nanoTime();
+            if(received.sum() == expected)
+                done.countDown();
+        }
+    }
+
+
+    public static void main(String[] args) throws Exception {
+        GossipRouterPerf perf=new GossipRouterPerf();
+        for(int i=0; i < args.length; i++) {
+            if("-clients".equals(args[i])) {
+                perf.num_clients=Integer.parseInt(args[++i]);
+                continue;
+            }
+            if("-groups".equals(args[i])) {
+                perf.num_groups=Integer.parseInt(args[++i]);
+                continue;
+            }
+            if("-msgs".equals(args[i])) {
+                perf.num_msgs=Integer.parseInt(args[++i]);
+                continue;
+            }
+            if("-size".equals(args[i])) {
+                perf.msg_size=Integer.parseInt(args[++i]);
+                continue;
+            }
+            if("-routing_threads".equals(args[i])) {
+                perf.num_routing_threads=Integer.parseInt(args[++i]);
+                continue;
+            }
+            if("-port".equals(args[i])) {
+                perf.router_port=Integer.parseInt(args[++i]);
+                continue;
+            }
+            if("-nio".equals(args[i])) {
+                perf.nio=Boolean.parseBoolean(args[++i]);
+                continue;
+            }
+            System.out.println("GossipRouterPerf [-clients <num>] [-groups <num>] [-msgs <num per client>] " +
+                                 "[-size <bytes>] [-routing_threads <num>] [-port <port>] [-nio <true|false>]");
+            return;
+        }
+        try {
+            perf.start();
+            perf.run();
+        }
+        finally {
+            perf.stop();
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package org.jgroups.tests.perf;
+
+import org.jgroups.JChannel;
+import org.jgroups.ReceiverAdapter;
+import org.jgroups.protocols.pbcast.FileState;
+import org.jgroups.protocols.pbcast.STATE_SOCK;
+import org.jgroups.util.Util;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Measures the throughput of state transfer with {@link STATE_SOCK} for state that lives in a file: the stream path
+ * (getState() / setState() copying the file through user space) is compared with the zero-copy path
+ * (FileChannel.transferTo() / transferFrom()).
+ * <pre>
+ * java org.jgroups.tests.perf.StateTransferPerf -size 500 -iterations 5
+ * </pre>
+ * @since  4.1.2
+ */
+public class StateTransferPerf {
+    protected static final String CLUSTER=StateTransferPerf.class.getSimpleName();
+    protected Path                dir, src;
+    protected long                size;
+
+
+    protected void start(long size, int iterations, int buffer_size) throws Exception {
+        this.size=size;
+        dir=Files.createTempDirectory("state-perf");
+        src=dir.resolve("state");
+        createFile(src, size);
+        System.out.printf("state: %s, iterations: %d, buffer_size: %s\n\n", Util.printBytes(size), iterations,
+                          Util.printBytes(buffer_size));
+        try {
+            for(boolean zero_copy: new boolean[]{false, true}) {
+                double total=0;
+                for(int i=1; i <= iterations; i++) {
+                    long time=run(zero_copy, buffer_size);
+                    double mb_sec=(size / 1_000_000.0) / (time / 1000.0);
+                    total+=mb_sec;
+                    System.out.printf("%-9s #%d: %s in %d ms (%.2f MB/sec)\n", zero_copy? "zero-copy" : "stream",
+                                      i, Util.printBytes(size), time, mb_sec);
+                }
+                System.out.printf("%-9s avg: %.2f MB/sec\n\n", zero_copy? "zero-copy" : "stream", total / iterations);
+            }
+        }
+        finally {
+            File[] files=dir.toFile().listFiles();
+            if(files != null)
+                for(File f: files)
+                    f.delete();
+            Files.deleteIfExists(dir);
+        }
+    }
+
+    /** Transfers the state from A to B and returns the time (in ms) */
+    protected long run(boolean zero_copy, int buffer_size) throws Exception {
+        Path dest=dir.resolve("copy");
+        Files.deleteIfExists(dest);
+        try(FileChannel in=FileChannel.open(src, StandardOpenOption.READ);
+            FileChannel out=FileChannel.open(dest, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            JChannel a=create("A", zero_copy, buffer_size, new FileStateImpl(in, null));
+            JChannel b=create("B", zero_copy, buffer_size, new FileStateImpl(null, out))) {
+            long start=System.currentTimeMillis();
+            b.getState(null, 0);
+            long time=System.currentTimeMillis() - start;
+            if(Files.size(dest) != size)
+                throw new IllegalStateException(String.format("expected %d bytes, but copy has %d", size, Files.size(dest)));
+            return time;
+        }
+    }
+
+    protected JChannel create(String name, boolean zero_copy, int buffer_size, FileStateImpl state) throws Exception {
+        STATE_SOCK state_sock=new STATE_SOCK().zeroCopy(zero_copy).setFileState(zero_copy? state : null)
+          .setValue("bind_addr", InetAddress.getLoopbackAddress()).setValue("buffer_size", buffer_size);
+        return new JChannel(Util.getTestStack(state_sock)).name(name).setReceiver(state).connect(CLUSTER);
+    }
+
+    protected static void createFile(Path file, long size) throws IOException {
+        byte[] buf=new byte[1 << 20];
+        ThreadLocalRandom.current().nextBytes(buf);
+        try(FileChannel ch=FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            for(long written=0; written < size;) {
+                ByteBuffer b=ByteBuffer.wrap(buf, 0, (int)Math.min(buf.length, size - written));
+                written+=ch.write(b);
+            }
+        }
+    }
+
+
+    /** Provides the state as a file region (zero-copy), or copies it through the streams (stream path) */
+    protected static class FileStateImpl extends ReceiverAdapter implements FileState {
+        protected final FileChannel in, out;
+
+        protected FileStateImpl(FileChannel in, FileChannel out) {
+            this.in=in;
+            this.out=out;
+        }
+
+        public List<Region> getRegions() throws Exception {
+            return Collections.singletonList(new Region("state", in));
+        }
+
+        public FileChannel openRegion(String name, long length) {
+            return out;
+        }
+
+        public void regionsReceived(List<String> names) throws Exception {
+            out.force(false);
+        }
+
+        public void getState(OutputStream output) throws Exception {
+            byte[] buf=new byte[64 * 1024];
+            InputStream input=Channels.newInputStream(in.position(0));
+            for(int num; (num=input.read(buf)) >= 0;)
+                output.write(buf, 0, num);
+        }
+
+        public void setState(InputStream input) throws Exception {
+            byte[] buf=new byte[64 * 1024];
+            long pos=0;
+            for(int num; (num=input.read(buf)) >= 0;)
+                pos+=out.write(ByteBuffer.wrap(buf, 0, num), pos);
+            out.force(false);
+        }
+    }
+
+
+    public static void main(String[] args) throws Exception {
+        long size=100;
+        int iterations=5, buffer_size=64 * 1024;
+        for(int i=0; i < args.length; i++) {
+            if("-size".equals(args[i])) {
+                size=Long.parseLong(args[++i]);
+                continue;
+            }
+            if("-iterations".equals(args[i])) {
+                iterations=Integer.parseInt(args[++i]);
+                continue;
+            }
+            if("-buffer_size".equals(args[i])) {
+                buffer_size=Integer.parseInt(args[++i]);
+                continue;
+            }
+            System.out.println("StateTransferPerf [-size <MB>] [-iterations <num>] [-buffer_size <bytes>]");
+            return;
+        }
+        new StateTransferPerf().start(size * 1_000_000, iterations, buffer_size);
+    }
+}
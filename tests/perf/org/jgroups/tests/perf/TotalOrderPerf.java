@@ -0,0 +1,171 @@
+package org.jgroups.tests.perf;
+
+import org.jgroups.*;
+import org.jgroups.protocols.SEQUENCER;
+import org.jgroups.protocols.tom.TOA;
+import org.jgroups.protocols.tom.TOA2;
+import org.jgroups.stack.Protocol;
+import org.jgroups.util.Bits;
+import org.jgroups.util.Util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Compares the throughput of the total order protocols {@link SEQUENCER}, {@link TOA} and {@link TOA2}: every member
+ * sends messages from a number of threads to all members (SEQUENCER and TOA2 use multicasts, TOA uses anycasts to
+ * all members), and the time until all members have delivered all messages is measured. At the end, every member's
+ * delivery order is compared with that of the first member.<p/>
+ * The members run in the same process, over SHARED_LOOPBACK.<p/>
+ * Example: java TotalOrderPerf -protocol all -members 4 -threads 2 -msgs 10000 -size 100
+ * @since  4.1.2
+ */
+public class TotalOrderPerf {
+    protected int     num_members=4, num_threads=2, num_msgs=10_000, msg_size=100;
+    protected String  protocol="all"; // "sequencer", "toa", "toa2" or "all"
+
+
+    protected void run() throws Exception {
+        if("all".equals(protocol) || "sequencer".equals(protocol))
+            run("SEQUENCER", SEQUENCER::new, false);
+        if("all".equals(protocol) || "toa".equals(protocol))
+            run("TOA", TOA::new, true);
+        if("all".equals(protocol) || "toa2".equals(protocol))
+            run("TOA2", TOA2::new, false);
+    }
+
+    /**
+     * Runs one round with the given protocol
+     * @param name The name of the protocol
+     * @param creator Creates the total order protocol, which is placed at the top of the stack
+     * @param anycast True if the messages need to be sent to an {@link AnycastAddress} to be totally ordered
+     */
+    protected void run(String name, Supplier<Protocol> creator, boolean anycast) throws Exception {
+        JChannel[] channels=new JChannel[num_members];
+        Receiver[] receivers=new Receiver[num_members];
+        int expected=num_members * num_threads * num_msgs;
+        try {
+            for(int i=0; i < num_members; i++) {
+                channels[i]=new JChannel(Util.getTestStack(creator.get())).name(String.valueOf((char)('A' + i)));
+                channels[i].setReceiver(receivers[i]=new Receiver(expected));
+                channels[i].connect(TotalOrderPerf.class.getSimpleName() + "-" + name);
+            }
+            Util.waitUntilAllChannelsHaveSameView(10000, 200, channels);
+            Address dest=anycast? new AnycastAddress(channels[0].getView().getMembers()) : null;
+
+            CountDownLatch latch=new CountDownLatch(1);
+            List<Thread> senders=new ArrayList<>(num_members * num_threads);
+            for(int i=0; i < num_members; i++) {
+                for(int j=0; j < num_threads; j++) {
+                    Thread t=new Thread(new Sender(channels[i], dest, i * num_threads + j, latch), "sender");
+                    senders.add(t);
+                    t.start();
+                }
+            }
+            long start=System.nanoTime();
+            latch.countDown();
+            for(Receiver r: receivers) {
+                while(!r.done.await(2, TimeUnit.SECONDS))
+                    System.out.printf("-- %s: %,d / %,d messages delivered\n", name, r.count, expected);
+            }
+            long time=System.nanoTime() - start;
+            for(Thread t: senders)
+                t.join();
+
+            boolean same_order=true;
+            for(Receiver r: receivers)
+                same_order&=r.hash == receivers[0].hash;
+            System.out.printf("%-9s: %,d messages delivered by %d members in %.2f s (%,.0f msgs/sec/member), " +
+                                "same order: %b\n", name, expected, num_members, time / 1.0e9,
+                              expected / (time / 1.0e9), same_order);
+        }
+        finally {
+            Util.closeReverse(channels);
+        }
+    }
+
+
+    protected class Sender implements Runnable {
+        protected final JChannel       ch;
+        protected final Address        dest;
+        protected final int            id;
+        protected final CountDownLatch latch;
+
+        protected Sender(JChannel ch, Address dest, int id, CountDownLatch latch) {
+            this.ch=ch;
+            this.dest=dest;
+            this.id=id;
+            this.latch=latch;
+        }
+
+        public void run() {
+            try {
+                latch.await();
+                for(int i=0; i < num_msgs; i++) {
+                    byte[] buf=new byte[Math.max(msg_size, Global.INT_SIZE * 2)];
+                    Bits.writeInt(id, buf, 0);
+                    Bits.writeInt(i, buf, Global.INT_SIZE);
+                    ch.send(new Message(dest, buf));
+                }
+            }
+            catch(Exception ex) {
+                System.err.printf("%s: sender %d failed: %s\n", ch.getAddress(), id, ex);
+            }
+        }
+    }
+
+    /** Counts the delivered messages and computes a hash over the delivery order */
+    protected static class Receiver extends ReceiverAdapter {
+        protected final int            expected;
+        protected final CountDownLatch done=new CountDownLatch(1);
+        protected int                  count;
+        protected long                 hash=17;
+
+        protected Receiver(int expected) {
+            this.expected=expected;
+        }
+
+        public synchronized void receive(Message msg) {
+            byte[] buf=msg.getRawBuffer();
+            int off=msg.getOffset();
+            long id=((long)Bits.readInt(buf, off) << 32) | Bits.readInt(buf, off + Global.INT_SIZE);
+            hash=hash * 31 + id;
+            if(++count == expected)
+                done.countDown();
+        }
+    }
+
+
+    public static void main(String[] args) throws Exception {
+        TotalOrderPerf perf=new TotalOrderPerf();
+        for(int i=0; i < args.length; i++) {
+            if("-protocol".equals(args[i])) {
+                perf.protocol=args[++i].toLowerCase();
+                continue;
+            }
+            if("-members".equals(args[i])) {
+                perf.num_members=Integer.parseInt(args[++i]);
+                continue;
+            }
+            if("-threads".equals(args[i])) {
+                perf.num_threads=Integer.parseInt(args[++i]);
+                continue;
+            }
+            if("-msgs".equals(args[i])) {
+                perf.num_msgs=Integer.parseInt(args[++i]);
+                continue;
+            }
+            if("-size".equals(args[i])) {
+                perf.msg_size=Integer.parseInt(args[++i]);
+                continue;
+            }
+            System.out.println("TotalOrderPerf [-protocol <sequencer|toa|toa2|all>] [-members <num>] " +
+                                 "[-threads <num senders per member>] [-msgs <num per sender>] [-size <bytes>]");
+            return;
+        }
+        perf.run();
+    }
+}